@@ -29,24 +29,39 @@ package com.abcbank.config;
 import org.jasypt.encryption.StringEncryptor;
 import org.jasypt.encryption.pbe.PooledPBEStringEncryptor;
 import org.jasypt.encryption.pbe.config.SimpleStringPBEConfig;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
 public class AppConfigForJasyptStarter {
 
+    /**
+     * The encryptor is pooled with one cipher per core by default, each cipher serves one encryption at a time.
+     *
+     * @param poolSize number of ciphers, 0 or less for the number of available cores.
+     * @return
+     */
     @Bean(name = "StringEncryptor")
-    public StringEncryptor stringEncryptor() {
+    public StringEncryptor stringEncryptor(@Value("${atm.crypto.pool-size:0}") int poolSize) {
         PooledPBEStringEncryptor encryptor = new PooledPBEStringEncryptor();
         SimpleStringPBEConfig config = new SimpleStringPBEConfig();
         config.setPassword("password");
         config.setAlgorithm("PBEWithMD5AndDES");
         config.setKeyObtentionIterations("1000");
-        config.setPoolSize("1");
+        config.setPoolSize(String.valueOf(cryptoPoolSize(poolSize)));
         config.setProviderName("SunJCE");
         config.setSaltGeneratorClassName("org.jasypt.salt.ZeroSaltGenerator");
         config.setStringOutputType("base64");
         encryptor.setConfig(config);
         return encryptor;
     }
+
+    /**
+     * @param poolSize configured number of ciphers, 0 or less for the number of available cores.
+     * @return number of ciphers of the encryptor.
+     */
+    public static int cryptoPoolSize(int poolSize) {
+        return poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+    }
 }
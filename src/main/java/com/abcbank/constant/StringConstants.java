@@ -46,4 +46,20 @@ public class StringConstants {
 
     public static final String BankAccountNotFound = "Bank Account not found.";
 
+    public static final String PinLocked = "Too many incorrect PINs, please try again later";
+
+    public static final String InvalidSession = "Session is invalid or has expired";
+
+    public static final String SessionLimitReached = "No session can be opened now, please use the PIN";
+
+    public static final String SessionClosed = "Session closed";
+
+    public static final String ReservationNotFound = "Reservation not found, it was released or has expired";
+
+    public static final String TerminalNotFound = "ATM terminal not found";
+
+    public static final String AccountNotOwned = "Account is not served by this node";
+
+    public static final String DefaultTerminalId = "ATM-1";
+
 }
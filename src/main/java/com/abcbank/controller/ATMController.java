@@ -29,12 +29,15 @@ package com.abcbank.controller;
 import com.abcbank.aspects.CollectLog;
 import com.abcbank.data.dto.BalanceEnquiry;
 import com.abcbank.data.dto.BalanceEnquiryResponse;
+import com.abcbank.data.dto.CardSessionRequest;
+import com.abcbank.data.dto.CardSessionResponse;
 import com.abcbank.data.dto.WithdrawalRequest;
 import com.abcbank.data.dto.WithdrawalResponse;
 import com.abcbank.data.entity.BankAccount;
 import com.abcbank.data.entity.DenominationDetail;
 import com.abcbank.service.bussiness.atm.ATMService;
 import com.abcbank.service.bussiness.bankacc.BankAccountService;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
@@ -42,9 +45,13 @@ import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.validation.Valid;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Rest Controller class. Exposes all the public APIs to the outside world.
@@ -61,32 +68,95 @@ public class ATMController {
     @Autowired
     private BankAccountService bankAccountService;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
     /**
      * This controller method will fetch the denomination details from ATM. <br>
      * This is more of a audit feature. No authentication is added here.
      *
+     * @param terminalId id of the ATM terminal, omitted for the default terminal.
      * @return {@link com.abcbank.data.entity.DenominationDetail} A list of Denomination Details.
      */
     @CollectLog
     @Operation(summary = "Get all the Denomination details present in ATM Machine")
     @ApiResponses(value = {@ApiResponse(responseCode = "200", description = "Will respond with denomination details", content = {@Content(mediaType = "application/json", schema = @Schema(implementation = DenominationDetail.class))})})
     @GetMapping("atm-inventory")
-    public List<DenominationDetail> getATMInventory() {
-        return this.atmService.getATMInventory();
+    public List<DenominationDetail> getATMInventory(@RequestParam(required = false) String terminalId) {
+        return this.atmService.getATMInventory(terminalId);
     }
 
     /**
-     * This controller method will fetch the details of bank accounts. <br>
+     * This controller method will fetch the ids of all the ATM terminals served. <br>
      * This is more of a audit feature. No authentication is added here.
      *
-     * @return {@link com.abcbank.data.entity.BankAccount} A list of Denomination Details.
+     * @return ids of the ATM terminals.
      */
     @CollectLog
-    @Operation(summary = "Get all the accounts and their details form the bank")
+    @Operation(summary = "Get the ids of all the ATM Machines served")
+    @ApiResponses(value = {@ApiResponse(responseCode = "200", description = "Will respond with the terminal ids", content = {@Content(mediaType = "application/json")})})
+    @GetMapping("terminals")
+    public Set<String> getTerminalIds() {
+        return this.atmService.getTerminalIds();
+    }
+
+    /**
+     * This controller method will fetch the amounts which can be withdrawn from the ATM right now. <br>
+     * The amounts are precomputed for the current ATM inventory, up to the configured cap. No authentication is added here.
+     *
+     * @param terminalId id of the ATM terminal, omitted for the default terminal.
+     * @return A list of the dispensable amounts in ascending order.
+     */
+    @CollectLog
+    @Operation(summary = "Get all the amounts which can be withdrawn from the ATM Machine right now")
+    @ApiResponses(value = {@ApiResponse(responseCode = "200", description = "Will respond with the dispensable amounts", content = {@Content(mediaType = "application/json")})})
+    @GetMapping("dispensable-amounts")
+    public List<Long> getDispensableAmounts(@RequestParam(required = false) String terminalId) {
+        return this.atmService.getDispensableAmounts(terminalId);
+    }
+
+    /**
+     * This controller method will fetch one page of the details of bank accounts, ordered by account id. <br>
+     * Pass the id of the last account of a page as afterId to get the next page. <br>
+     * This is more of a audit feature. No authentication is added here.
+     *
+     * @param afterId id of the last account of the previous page, omitted for the first page.
+     * @param limit   maximum number of accounts in the page, omitted for the default page size.
+     * @return {@link com.abcbank.data.entity.BankAccount} A list of account details.
+     */
+    @CollectLog
+    @Operation(summary = "Get a page of the accounts and their details form the bank")
     @ApiResponses(value = {@ApiResponse(responseCode = "200", description = "Will respond with account details", content = {@Content(mediaType = "application/json", schema = @Schema(implementation = BankAccount.class))})})
     @GetMapping("account-inventory")
-    public List<BankAccount> getAccountInventory() {
-        return this.bankAccountService.getAccountsInventory();
+    public List<BankAccount> getAccountInventory(@RequestParam(required = false) Long afterId, @RequestParam(required = false) Integer limit) {
+        return this.bankAccountService.getAccountsInventoryPage(afterId, limit);
+    }
+
+    /**
+     * This controller method will stream the details of all bank accounts as newline delimited JSON. <br>
+     * The accounts are written while they are read, off the request thread. <br>
+     * This is more of a audit feature. No authentication is added here.
+     *
+     * @return one {@link com.abcbank.data.entity.BankAccount} per line.
+     */
+    @Operation(summary = "Stream all the accounts and their details form the bank as newline delimited JSON")
+    @ApiResponses(value = {@ApiResponse(responseCode = "200", description = "Will stream account details", content = {@Content(mediaType = "application/x-ndjson", schema = @Schema(implementation = BankAccount.class))})})
+    @GetMapping(value = "account-inventory/stream", produces = "application/x-ndjson")
+    public StreamingResponseBody streamAccountInventory() {
+        return outputStream -> {
+            try {
+                this.bankAccountService.streamAccountsInventory(bankAccount -> {
+                    try {
+                        outputStream.write(this.objectMapper.writeValueAsBytes(bankAccount));
+                        outputStream.write('\n');
+                    } catch (IOException exp) {
+                        throw new UncheckedIOException(exp);
+                    }
+                });
+            } catch (UncheckedIOException exp) {
+                throw exp.getCause();
+            }
+        };
     }
 
     /**
@@ -119,4 +189,32 @@ public class ATMController {
     public WithdrawalResponse withDraw(@Valid @RequestBody WithdrawalRequest withdrawalRequest) {
         return this.bankAccountService.withDraw(withdrawalRequest);
     }
+
+    /**
+     * <p>This controller method will authenticate the pin for user once and open a card session.
+     * The session token is presented instead of the pin by the balance enquiries and withdrawals of the visit.</p>
+     *
+     * @param cardSessionRequest {@link com.abcbank.data.dto.CardSessionRequest} user name and PIN.
+     * @return {@link com.abcbank.data.dto.CardSessionResponse} with the session token and its lifetime.
+     */
+    @CollectLog
+    @Operation(summary = "Opens a card session, its token replaces the PIN for the following requests")
+    @ApiResponses(value = {@ApiResponse(responseCode = "200", description = "Will respond with the session token", content = {@Content(mediaType = "application/json", schema = @Schema(implementation = CardSessionResponse.class))})})
+    @PostMapping("session")
+    public CardSessionResponse openSession(@Valid @RequestBody CardSessionRequest cardSessionRequest) {
+        return this.bankAccountService.openSession(cardSessionRequest);
+    }
+
+    /**
+     * <p>This controller method will close the card session, at the end of the visit.</p>
+     *
+     * @param cardSessionRequest {@link com.abcbank.data.dto.CardSessionRequest} user name and session token.
+     * @return {@link com.abcbank.data.dto.CardSessionResponse}
+     */
+    @CollectLog
+    @Operation(summary = "Closes a card session")
+    @PostMapping("session/close")
+    public CardSessionResponse closeSession(@Valid @RequestBody CardSessionRequest cardSessionRequest) {
+        return this.bankAccountService.closeSession(cardSessionRequest);
+    }
 }
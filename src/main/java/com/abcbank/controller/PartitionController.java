@@ -0,0 +1,136 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.controller;
+
+import com.abcbank.aspects.CollectLog;
+import com.abcbank.data.dto.BalanceEnquiry;
+import com.abcbank.data.dto.BalanceEnquiryResponse;
+import com.abcbank.data.dto.CardSessionRequest;
+import com.abcbank.data.dto.CardSessionResponse;
+import com.abcbank.data.dto.WithdrawalRequest;
+import com.abcbank.data.dto.WithdrawalResponse;
+import com.abcbank.exception.custom_exceptions.AccountNotOwnedException;
+import com.abcbank.service.bussiness.bankacc.BankAccountService;
+import com.abcbank.service.bussiness.bankacc.PartitionedBankAccountService;
+import io.swagger.v3.oas.annotations.Operation;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.validation.Valid;
+
+/**
+ * Partition API, called by the other nodes for the accounts owned by this node. <br>
+ * Requests are served by the local bank account service and are never forwarded again,
+ * so nodes with a different view of the ring can not send a request around in circles.
+ * Requests for accounts this node does not own are rejected with 409, as they would otherwise be served
+ * from a database which is not the one of the account, outside the account lock of its owner.
+ * <br>Forwarded requests carry the PIN in plain text, like the requests of the ATM API. The partition API must only be
+ * reachable from the other nodes, over a trusted network or with https base urls in {@code atm.partition.nodes}.
+ *
+ * @author himanshuupadhyay
+ */
+@RestController
+@RequestMapping("/atm/api/partition")
+public class PartitionController {
+
+    @Autowired
+    @Qualifier("bankAccountServiceImpl")
+    private BankAccountService localBankAccountService;
+
+    @Autowired
+    private PartitionedBankAccountService partitionedBankAccountService;
+
+    /**
+     * Balance enquiry forwarded by another node.
+     *
+     * @param balanceEnquiry {@link com.abcbank.data.dto.BalanceEnquiry} A custom balance enquiry object.
+     * @return {@link com.abcbank.data.dto.BalanceEnquiryResponse}. Bank account details for user.
+     */
+    @CollectLog
+    @Operation(summary = "Get the Balance for a user owned by this node, called by the other nodes")
+    @PostMapping("balance")
+    public BalanceEnquiryResponse getBalanceForUser(@Valid @RequestBody BalanceEnquiry balanceEnquiry) {
+        this.requireOwned(balanceEnquiry.getUserName());
+        return this.localBankAccountService.getBalanceForBalanceEnquiry(balanceEnquiry);
+    }
+
+    /**
+     * Withdrawal forwarded by another node.
+     *
+     * @param withdrawalRequest {@link com.abcbank.data.dto.WithdrawalRequest}
+     * @return
+     */
+    @CollectLog
+    @Operation(summary = "Withdraws the amount from an account owned by this node, called by the other nodes")
+    @PostMapping("withdraw")
+    public WithdrawalResponse withDraw(@Valid @RequestBody WithdrawalRequest withdrawalRequest) {
+        this.requireOwned(withdrawalRequest.getUserName());
+        return this.localBankAccountService.withDraw(withdrawalRequest);
+    }
+
+    /**
+     * Card session opened through another node.
+     *
+     * @param cardSessionRequest {@link com.abcbank.data.dto.CardSessionRequest} user name and PIN.
+     * @return {@link com.abcbank.data.dto.CardSessionResponse} with the session token.
+     */
+    @CollectLog
+    @Operation(summary = "Opens a card session for a user owned by this node, called by the other nodes")
+    @PostMapping("session")
+    public CardSessionResponse openSession(@Valid @RequestBody CardSessionRequest cardSessionRequest) {
+        this.requireOwned(cardSessionRequest.getUserName());
+        return this.localBankAccountService.openSession(cardSessionRequest);
+    }
+
+    /**
+     * Card session closed through another node.
+     *
+     * @param cardSessionRequest {@link com.abcbank.data.dto.CardSessionRequest} user name and session token.
+     * @return {@link com.abcbank.data.dto.CardSessionResponse}
+     */
+    @CollectLog
+    @Operation(summary = "Closes a card session of a user owned by this node, called by the other nodes")
+    @PostMapping("session/close")
+    public CardSessionResponse closeSession(@Valid @RequestBody CardSessionRequest cardSessionRequest) {
+        this.requireOwned(cardSessionRequest.getUserName());
+        return this.localBankAccountService.closeSession(cardSessionRequest);
+    }
+
+    /**
+     * @param userName user name of the account.
+     * @throws AccountNotOwnedException if the account is owned by another node.
+     */
+    private void requireOwned(String userName) {
+        if (!this.partitionedBankAccountService.isLocal(userName)) {
+            throw new AccountNotOwnedException("Account of " + userName + " is owned by " + this.partitionedBankAccountService.ownerOf(userName));
+        }
+    }
+}
@@ -26,12 +26,15 @@
 
 package com.abcbank.data.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import javax.validation.constraints.AssertTrue;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.Pattern;
+import java.util.Objects;
 
 @Data
 @AllArgsConstructor
@@ -39,17 +42,38 @@ import javax.validation.constraints.Pattern;
 public class BalanceEnquiry {
 
     @Pattern(regexp = "^[0-9]{4}", message = "Pin can only be number and that to 4 digits only")
-    @NotBlank(message = "PIN cannot be blank")
     private String pin;
 
     @NotBlank(message = "Username cannot be null")
     private String userName;
 
+    //Token of an open card session, presented instead of the PIN
+    private String sessionToken;
+
+    //If not provided the enquiry is made at the default terminal
+    private String terminalId;
+
+    public BalanceEnquiry(String pin, String userName) {
+        this(pin, userName, null, null);
+    }
+
+    public BalanceEnquiry(String pin, String userName, String sessionToken) {
+        this(pin, userName, sessionToken, null);
+    }
+
+    @JsonIgnore
+    @AssertTrue(message = "PIN cannot be blank")
+    public boolean isPinOrSessionTokenPresent() {
+        return (Objects.nonNull(pin) && !pin.isBlank()) || (Objects.nonNull(sessionToken) && !sessionToken.isBlank());
+    }
+
     @Override
     public String toString() {
         return "BalanceEnquiry{" +
                 "pin= *****" +
                 ", userName='" + userName + '\'' +
+                ", sessionToken= *****" +
+                ", terminalId='" + terminalId + '\'' +
                 '}';
     }
 }
@@ -0,0 +1,68 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.data.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.Pattern;
+
+/**
+ * Opens a card session with the PIN, or closes it with the session token.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class CardSessionRequest {
+
+    @NotBlank(message = "Username cannot be blank")
+    private String userName;
+
+    @Pattern(regexp = "^[0-9]{4}", message = "Pin can only be number and that to 4 digits only")
+    private String pin;
+
+    private String sessionToken;
+
+    //If not provided the session is opened at the default terminal
+    private String terminalId;
+
+    public CardSessionRequest(String userName, String pin, String sessionToken) {
+        this(userName, pin, sessionToken, null);
+    }
+
+    @Override
+    public String toString() {
+        return "CardSessionRequest{" +
+                "userName='" + userName + '\'' +
+                ", pin= *****" +
+                ", sessionToken= *****" +
+                ", terminalId='" + terminalId + '\'' +
+                '}';
+    }
+}
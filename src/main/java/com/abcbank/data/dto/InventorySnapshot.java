@@ -0,0 +1,81 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.data.dto;
+
+import com.abcbank.data.entity.DenominationDetail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * Immutable, versioned copy of the ATM table rows of one terminal, ordered by currency highest first.
+ * </p>
+ * The rows are shared by all readers of the snapshot and must not be changed,
+ * {@link #copyDenominationDetails()} gives rows which can be changed and saved.
+ *
+ * @author himanshuupadhyay
+ */
+public final class InventorySnapshot {
+
+    private final long version;
+
+    private final List<DenominationDetail> denominationDetails;
+
+    public InventorySnapshot(long version, List<DenominationDetail> denominationDetails) {
+        this.version = version;
+        this.denominationDetails = Collections.unmodifiableList(copyOf(denominationDetails));
+    }
+
+    /**
+     * @return version of the snapshot, incremented on every change of the cached rows of the terminal.
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    public List<DenominationDetail> getDenominationDetails() {
+        return this.denominationDetails;
+    }
+
+    /**
+     * @return copy of the rows of the snapshot.
+     */
+    public List<DenominationDetail> copyDenominationDetails() {
+        return copyOf(this.denominationDetails);
+    }
+
+    private static List<DenominationDetail> copyOf(List<DenominationDetail> denominationDetails) {
+        List<DenominationDetail> copies = new ArrayList<>(denominationDetails.size());
+        for (DenominationDetail denominationDetail : denominationDetails) {
+            copies.add(new DenominationDetail(denominationDetail.getId(), denominationDetail.getCurrency(),
+                    denominationDetail.getCurrencyCount(), denominationDetail.getCurrencyType(), denominationDetail.getVersion(), denominationDetail.getTerminalId()));
+        }
+        return copies;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.data.dto;
+
+import com.abcbank.enums.WithDrawStatus;
+import com.abcbank.utils.MinorUnits;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * One withdrawal as recorded in the append only transaction ledger.
+ * The amount is held in minor units, the account id is null if the withdrawal ended before the account was read.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class LedgerEntry {
+    private Long accountId;
+    private String userName;
+    private Long amountMinorUnits;
+    private String dispensedNotes;
+    private WithDrawStatus status;
+    private Instant createdAt;
+
+    /**
+     * @param withdrawalRequest the requested withdrawal.
+     * @return entry of the withdrawal without an outcome, completed by {@link #complete(WithdrawalResponse)} or {@link #fail()}.
+     */
+    public static LedgerEntry of(WithdrawalRequest withdrawalRequest) {
+        Long amount = withdrawalRequest.getWithDrawlAmount();
+        return new LedgerEntry(null, withdrawalRequest.getUserName(), Objects.isNull(amount) ? null : MinorUnits.toMinorUnits(amount),
+                null, null, Instant.now());
+    }
+
+    /**
+     * @param withdrawalResponse the response of the withdrawal.
+     * @return this entry with the status and the dispensed notes of the response.
+     */
+    public LedgerEntry complete(WithdrawalResponse withdrawalResponse) {
+        this.dispensedNotes = toDispensedNotes(withdrawalResponse.getCurrencyDispenseList());
+        this.status = withdrawalResponse.getWithDrawlStatus();
+        return this;
+    }
+
+    /**
+     * @return this entry as a withdrawal which ended with an error, nothing is dispensed.
+     */
+    public LedgerEntry fail() {
+        this.dispensedNotes = null;
+        this.status = WithDrawStatus.FAILED;
+        return this;
+    }
+
+    /**
+     * @param currencyDispenses the dispensed notes.
+     * @return the notes as {@code currency x count} separated by comma, e.g. {@code 50x10,20x25}, null if nothing is dispensed.
+     */
+    private static String toDispensedNotes(List<CurrencyDispense> currencyDispenses) {
+        if (Objects.isNull(currencyDispenses) || currencyDispenses.isEmpty()) {
+            return null;
+        }
+        return currencyDispenses.stream().map(dispense -> dispense.getCurrencyValue() + "x" + dispense.getCount()).collect(Collectors.joining(","));
+    }
+}
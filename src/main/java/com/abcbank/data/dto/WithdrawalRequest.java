@@ -27,14 +27,17 @@
 package com.abcbank.data.dto;
 
 import com.abcbank.constant.StringConstants;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import javax.validation.constraints.AssertTrue;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Pattern;
+import java.util.Objects;
 
 @Data
 @NoArgsConstructor
@@ -45,7 +48,6 @@ public class WithdrawalRequest {
     private String userName;
 
     @Pattern(regexp = "^[0-9]{4}", message = "Pin can only be number and that to 4 digits only")
-    @NotBlank(message = "PIN cannot be blank")
     private String pin;
 
     @Min(value = 1, message = "Minimum value for withdrawal is 1 " + StringConstants.CurrencyFormat)
@@ -55,6 +57,22 @@ public class WithdrawalRequest {
     //If not provided its false
     private Boolean useOverDraft = false;
 
+    //If not provided the withdrawal is made at the default terminal
+    private String terminalId;
+
+    //Token of an open card session, presented instead of the PIN
+    private String sessionToken;
+
+    public WithdrawalRequest(String userName, String pin, Long withDrawlAmount, Boolean useOverDraft) {
+        this(userName, pin, withDrawlAmount, useOverDraft, null, null);
+    }
+
+    @JsonIgnore
+    @AssertTrue(message = "PIN cannot be blank")
+    public boolean isPinOrSessionTokenPresent() {
+        return (Objects.nonNull(pin) && !pin.isBlank()) || (Objects.nonNull(sessionToken) && !sessionToken.isBlank());
+    }
+
     @Override
     public String toString() {
         return "WithdrawalRequest{" +
@@ -62,6 +80,8 @@ public class WithdrawalRequest {
                 ", pin= ***** "+
                 ", withDrawlAmount=" + withDrawlAmount +
                 ", useOverDraft=" + useOverDraft +
+                ", terminalId='" + terminalId + '\'' +
+                ", sessionToken= *****" +
                 '}';
     }
 }
@@ -33,6 +33,7 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 
 import java.util.List;
+import java.util.Objects;
 
 @Data
 @NoArgsConstructor
@@ -54,6 +55,14 @@ public class WithdrawalResponse {
         this.withdrawalRequest = withdrawalRequest;
     }
 
+    public void preparePinLockedResponse(WithdrawalRequest withdrawalRequest,
+                                         String... messages) {
+        this.withDrawlStatus = WithDrawStatus.PIN_LOCKED;
+        this.message = StringUtils.combineMessage(messages);
+        this.withdrawalRequest = withdrawalRequest;
+        this.maskCredentials();
+    }
+
     public void prepareSuccessFullWithdrawResponse(
             Long remainingOpeningBalance,
             Long remainingOverdraftAmount,
@@ -66,7 +75,7 @@ public class WithdrawalResponse {
         this.remainingOverdraftAmount = remainingOverdraftAmount;
         this.message = StringUtils.combineMessage(messages);
         this.withdrawalRequest = withdrawalRequest;
-        this.withdrawalRequest.setPin("*****");
+        this.maskCredentials();
     }
 
     public void prepareInvalidDispenseResponse(Long remainingOpeningBalance,
@@ -78,7 +87,7 @@ public class WithdrawalResponse {
         this.remainingOverdraftAmount = remainingOverdraftAmount;
         this.withdrawalRequest = withdrawalRequest;
         this.message = StringUtils.combineMessage(messages);
-        this.withdrawalRequest.setPin("*****");
+        this.maskCredentials();
     }
 
     public void prepareLowBalanceResponse(Long remainingOpeningBalance,
@@ -90,7 +99,7 @@ public class WithdrawalResponse {
         this.remainingOverdraftAmount = remainingOverdraftAmount;
         this.withdrawalRequest = withdrawalRequest;
         this.message = StringUtils.combineMessage(messages);
-        this.withdrawalRequest.setPin("*****");
+        this.maskCredentials();
     }
 
     public void prepareInSufficientMoneyInATMResponse(Long remainingOpeningBalance,
@@ -102,7 +111,14 @@ public class WithdrawalResponse {
         this.remainingOverdraftAmount = remainingOverdraftAmount;
         this.message = StringUtils.combineMessage(messages);
         this.withdrawalRequest = withdrawalRequest;
+        this.maskCredentials();
+    }
+
+    private void maskCredentials() {
         this.withdrawalRequest.setPin("*****");
+        if (Objects.nonNull(this.withdrawalRequest.getSessionToken())) {
+            this.withdrawalRequest.setSessionToken("*****");
+        }
     }
 
 }
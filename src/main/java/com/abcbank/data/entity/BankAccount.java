@@ -26,6 +26,7 @@
 
 package com.abcbank.data.entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -48,7 +49,24 @@ public class BankAccount {
     private String email;
     private String account_number;
     private String atm_pin;
+
+    /**
+     * Balances in whole currency units, stored in minor units.
+     */
+    @Convert(converter = MinorUnitsConverter.class)
     private Long opening_balance;
+    @Convert(converter = MinorUnitsConverter.class)
     private Long overdraft;
 
+    /**
+     * Optimistic lock version, a concurrent update of the same account fails on commit instead of being lost.
+     */
+    @Version
+    @JsonIgnore
+    private Long version;
+
+    public BankAccount(Long id, String first_name, String last_name, String user_name, String email, String account_number, String atm_pin, Long opening_balance, Long overdraft) {
+        this(id, first_name, last_name, user_name, email, account_number, atm_pin, opening_balance, overdraft, null);
+    }
+
 }
@@ -26,6 +26,8 @@
 
 package com.abcbank.data.entity;
 
+import com.abcbank.constant.StringConstants;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -48,4 +50,24 @@ public class DenominationDetail {
     private Integer currencyCount;
 
     private Character currencyType;
+
+    /**
+     * Optimistic lock version, a concurrent update of the same denomination fails on commit instead of being lost.
+     */
+    @Version
+    @JsonIgnore
+    private Long version;
+
+    /**
+     * Terminal whose cassette holds the notes, every terminal has its own row per currency.
+     */
+    private String terminalId = StringConstants.DefaultTerminalId;
+
+    public DenominationDetail(Long id, Integer currency, Integer currencyCount, Character currencyType) {
+        this(id, currency, currencyCount, currencyType, null);
+    }
+
+    public DenominationDetail(Long id, Integer currency, Integer currencyCount, Character currencyType, Long version) {
+        this(id, currency, currencyCount, currencyType, version, StringConstants.DefaultTerminalId);
+    }
 }
@@ -27,6 +27,7 @@
 package com.abcbank.data.repository;
 
 import com.abcbank.data.entity.DenominationDetail;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
 
@@ -37,4 +38,9 @@ public interface DenominationDetailRepository
         extends CrudRepository<DenominationDetail, Integer> {
 
     List<DenominationDetail> findAllByOrderByCurrencyDesc();
+
+    List<DenominationDetail> findAllByTerminalIdOrderByCurrencyDesc(String terminalId);
+
+    @Query("SELECT DISTINCT dd.terminalId FROM DenominationDetail dd ORDER BY dd.terminalId")
+    List<String> findTerminalIds();
 }
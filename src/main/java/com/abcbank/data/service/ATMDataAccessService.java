@@ -26,25 +26,466 @@
 
 package com.abcbank.data.service;
 
+import com.abcbank.constant.StringConstants;
+import com.abcbank.data.dto.InventorySnapshot;
 import com.abcbank.data.entity.DenominationDetail;
 import com.abcbank.data.repository.DenominationDetailRepository;
+import com.abcbank.exception.custom_exceptions.CurrencyDenominationCountNotAvailableException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * <p>
+ * Data access for the ATM table. The rows of every terminal are cached as a versioned {@link InventorySnapshot}
+ * of their own, reads are served from the snapshot and writes go through to the table and then to the snapshot.
+ * The table holds the rows of all terminals, each terminal reads and writes only its own rows.
+ * </p>
+ * Every terminal has its own lock, loading, writing through or checking the rows of one terminal never waits
+ * for another terminal, and only the rows of the terminal are read to load or check its snapshot.
+ * <br>Every write appends the saved rows to the {@link WithdrawalJournal} before its transaction commits.
+ * A write inside a transaction reaches the snapshots once the transaction commits, a rollback drops the
+ * snapshots of the written terminals so the next read loads their rows again. {@link #verifyInventoryCache(String)}
+ * compares the snapshot of a terminal with its rows and reloads it when they differ.
+ * <br>Instances sharing the table take notes with {@link #takeAvailableCurrencyCounts(String, Map)}, which only
+ * takes them off rows still holding them.
+ */
 @Service
 public class ATMDataAccessService {
 
+    private static final String TAKE_COUNT_STATEMENT = "UPDATE ATM SET currency_count = currency_count - ?, version = version + 1 WHERE id = ? AND terminal_id = ?";
+
+    private static final String TAKE_AVAILABLE_COUNT_STATEMENT = "UPDATE ATM SET currency_count = currency_count - ?, version = version + 1 "
+            + "WHERE id = ? AND terminal_id = ? AND currency_count >= ?";
+
+    private static final String SELECT_ROWS_QUERY = "SELECT id, currency, currency_count, currency_type, version, terminal_id FROM ATM WHERE id IN ";
+
+    private final Logger logger = LogManager.getLogger(this.getClass());
+
     @Autowired
     private DenominationDetailRepository denominationDetailRepository;
 
+    @Autowired
+    private WithdrawalJournal withdrawalJournal;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * Cached rows by terminal id, only terminals with rows in the table are kept.
+     */
+    private final Map<String, TerminalInventory> terminalInventories = new ConcurrentHashMap<>();
+
+    private final Counter cacheHits = Metrics.counter("atm.inventory.cache", "result", "hit");
+
+    private final Counter cacheMisses = Metrics.counter("atm.inventory.cache", "result", "miss");
+
+    private final Counter cacheInconsistencies = Metrics.counter("atm.inventory.cache.inconsistencies");
+
+    private final Counter versionConflicts = Metrics.counter("atm.inventory.conflicts", "source", "save");
+
+    /**
+     * @return copy of the ATM table rows of the default terminal, ordered by currency highest first, which can be changed and saved.
+     */
     public List<DenominationDetail> getATMInventory() {
-        return this.denominationDetailRepository.findAllByOrderByCurrencyDesc();
+        return this.getATMInventory(StringConstants.DefaultTerminalId);
+    }
+
+    /**
+     * @param terminalId id of the ATM terminal.
+     * @return copy of the ATM table rows of the terminal, ordered by currency highest first, which can be changed and saved.
+     */
+    public List<DenominationDetail> getATMInventory(String terminalId) {
+        return this.getInventorySnapshot(terminalId).copyDenominationDetails();
+    }
+
+    /**
+     * @return ids of the ATM terminals with rows in the ATM table.
+     */
+    public Set<String> getTerminalIds() {
+        return new LinkedHashSet<>(this.denominationDetailRepository.findTerminalIds());
     }
 
+    /**
+     * @return the cached {@link InventorySnapshot} of the default terminal.
+     */
+    public InventorySnapshot getInventorySnapshot() {
+        return this.getInventorySnapshot(StringConstants.DefaultTerminalId);
+    }
+
+    /**
+     * @param terminalId id of the ATM terminal, null for the default terminal.
+     * @return the cached {@link InventorySnapshot} of the terminal, loaded from its rows if not cached.
+     * The snapshot of a terminal without rows is empty and not cached.
+     */
+    public InventorySnapshot getInventorySnapshot(String terminalId) {
+        String id = Objects.isNull(terminalId) ? StringConstants.DefaultTerminalId : terminalId;
+        TerminalInventory terminalInventory = this.terminalInventories.computeIfAbsent(id, key -> new TerminalInventory());
+        InventorySnapshot snapshot = terminalInventory.snapshot;
+        if (Objects.nonNull(snapshot)) {
+            this.cacheHits.increment();
+            return snapshot;
+        }
+        this.cacheMisses.increment();
+        synchronized (terminalInventory) {
+            snapshot = terminalInventory.snapshot;
+            if (Objects.isNull(snapshot)) {
+                List<DenominationDetail> terminalRows = this.denominationDetailRepository.findAllByTerminalIdOrderByCurrencyDesc(id);
+                snapshot = new InventorySnapshot(++terminalInventory.version, terminalRows);
+                if (terminalRows.isEmpty()) {
+                    //Unknown terminal ids come from requests, they are not kept.
+                    this.terminalInventories.remove(id, terminalInventory);
+                    return snapshot;
+                }
+                terminalInventory.snapshot = snapshot;
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * <p>Saves the rows through the repository. The rows are flushed before they are journaled, so the journal
+     * gets the versions they are committed with.</p>
+     *
+     * @param currencyDetails rows to be saved.
+     * @throws OptimisticLockingFailureException if a row was changed since it was read, the conflict is counted.
+     */
+    @Transactional
     public void saveAllCurrencyDetails(List<DenominationDetail> currencyDetails) {
-        this.denominationDetailRepository.saveAll(currencyDetails);
+        Iterable<DenominationDetail> savedRows;
+        try {
+            savedRows = this.denominationDetailRepository.saveAll(currencyDetails);
+            this.entityManager.flush();
+        } catch (OptimisticLockingFailureException exp) {
+            this.versionConflicts.increment();
+            throw exp;
+        }
+        this.afterSave(savedRows);
+    }
+
+    /**
+     * <p>Writes the note counts of the rows whose count differs from the cached snapshot, as one JDBC batch of
+     * relative updates without loading the rows first. Rows which did not change are not written at all.</p>
+     * Each row is moved by the difference between its count and the cached count, so a count written by someone
+     * else after the row was cached is kept and never fails the write. The row must have been read at the version
+     * the snapshot holds, otherwise the difference is unknown.
+     *
+     * @param currencyDetails rows with the note counts to be stored.
+     * @return number of rows written.
+     * @throws OptimisticLockingFailureException if a row was read from an older snapshot, the conflict is counted.
+     */
+    @Transactional
+    public int saveChangedCurrencyCounts(List<DenominationDetail> currencyDetails) {
+        Map<Long, DenominationDetail> cachedRows = new HashMap<>();
+        Set<String> cachedTerminalIds = new LinkedHashSet<>();
+        Map<String, Map<Long, Integer>> takenNotesByTerminal = new LinkedHashMap<>();
+        for (DenominationDetail denominationDetail : currencyDetails) {
+            if (cachedTerminalIds.add(denominationDetail.getTerminalId())) {
+                this.getInventorySnapshot(denominationDetail.getTerminalId()).getDenominationDetails()
+                        .forEach(cachedRow -> cachedRows.put(cachedRow.getId(), cachedRow));
+            }
+            DenominationDetail cached = cachedRows.get(denominationDetail.getId());
+            if (Objects.isNull(cached)) {
+                throw new EmptyResultDataAccessException("ATM row " + denominationDetail.getId() + " does not exist", 1);
+            }
+            if (Objects.equals(cached.getCurrencyCount(), denominationDetail.getCurrencyCount())) {
+                continue;
+            }
+            if (!Objects.equals(cached.getVersion(), denominationDetail.getVersion())) {
+                this.versionConflicts.increment();
+                throw new OptimisticLockingFailureException("ATM row " + denominationDetail.getId() + " was read at version " + denominationDetail.getVersion()
+                        + ", the inventory holds version " + cached.getVersion());
+            }
+            takenNotesByTerminal.computeIfAbsent(cached.getTerminalId(), terminalId -> new LinkedHashMap<>())
+                    .put(denominationDetail.getId(), cached.getCurrencyCount() - denominationDetail.getCurrencyCount());
+        }
+        int writtenRows = 0;
+        for (Map.Entry<String, Map<Long, Integer>> takenNotes : takenNotesByTerminal.entrySet()) {
+            writtenRows += this.takeCurrencyCounts(takenNotes.getKey(), takenNotes.getValue(), false);
+        }
+        return writtenRows;
+    }
+
+    /**
+     * <p>Takes the dispensed notes off the rows as one JDBC batch of relative updates. The update never overwrites
+     * a count written by someone else meanwhile, so it never fails on a version conflict and a failed write can
+     * simply be written again.</p>
+     * The written rows are read back in the same transaction, the journal and the snapshot get the counts
+     * the rows were left with.
+     *
+     * @param terminalId     id of the ATM terminal the rows belong to, null for the default terminal.
+     * @param dispensedNotes notes dispensed since the last write, by id of the ATM row.
+     * @return number of rows written.
+     * @throws EmptyResultDataAccessException if a row does not exist or belongs to another terminal, nothing is written then.
+     */
+    @Transactional
+    public int withdrawCurrencyCounts(String terminalId, Map<Long, Integer> dispensedNotes) {
+        return this.takeCurrencyCounts(terminalId, dispensedNotes, false);
+    }
+
+    /**
+     * <p>Takes the notes off the rows only if every row still holds them, as one JDBC batch of guarded relative updates
+     * in a transaction of its own. When several instances hand out the notes of the same terminal, the table decides
+     * which of them gets the notes, so no note is handed out twice.</p>
+     * The written rows are read back in the same transaction, as for {@link #withdrawCurrencyCounts(String, Map)}.
+     *
+     * @param terminalId id of the ATM terminal the rows belong to, null for the default terminal.
+     * @param takenNotes notes to take off each row by id of the ATM row.
+     * @return number of rows written.
+     * @throws CurrencyDenominationCountNotAvailableException if a row does not hold the notes, nothing is taken then.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public int takeAvailableCurrencyCounts(String terminalId, Map<Long, Integer> takenNotes) {
+        return this.takeCurrencyCounts(terminalId, takenNotes, true);
+    }
+
+    /**
+     * @param terminalId id of the ATM terminal the rows belong to, null for the default terminal.
+     * @param takenNotes notes to take off each row by id of the ATM row, negative to add notes.
+     * @param available  if the notes are only taken off rows which hold them.
+     * @return number of rows written.
+     */
+    private int takeCurrencyCounts(String terminalId, Map<Long, Integer> takenNotes, boolean available) {
+        String id = Objects.isNull(terminalId) ? StringConstants.DefaultTerminalId : terminalId;
+        List<Map.Entry<Long, Integer>> changedRows = new ArrayList<>();
+        takenNotes.entrySet().forEach(taken -> {
+            if (Objects.nonNull(taken.getValue()) && taken.getValue() != 0) {
+                changedRows.add(taken);
+            }
+        });
+        if (changedRows.isEmpty()) {
+            return 0;
+        }
+        int[][] updateCounts = this.jdbcTemplate.batchUpdate(available ? TAKE_AVAILABLE_COUNT_STATEMENT : TAKE_COUNT_STATEMENT, changedRows, changedRows.size(),
+                (preparedStatement, taken) -> {
+                    preparedStatement.setInt(1, taken.getValue());
+                    preparedStatement.setLong(2, taken.getKey());
+                    preparedStatement.setString(3, id);
+                    if (available) {
+                        preparedStatement.setInt(4, taken.getValue());
+                    }
+                });
+        for (int row = 0; row < changedRows.size(); row++) {
+            if (updateCounts[0][row] == 0 && available) {
+                throw new CurrencyDenominationCountNotAvailableException("Count for ATM row " + changedRows.get(row).getKey() + " of terminal " + id
+                        + " is not available, expected " + changedRows.get(row).getValue());
+            }
+            if (updateCounts[0][row] == 0) {
+                //Thrown inside the transaction, so the rows of the batch which were written are rolled back.
+                throw new EmptyResultDataAccessException("ATM row " + changedRows.get(row).getKey() + " does not exist for terminal " + id, 1);
+            }
+        }
+        List<DenominationDetail> savedRows = this.jdbcTemplate.query(SELECT_ROWS_QUERY + "(" + String.join(", ", Collections.nCopies(changedRows.size(), "?")) + ")",
+                preparedStatement -> {
+                    for (int row = 0; row < changedRows.size(); row++) {
+                        preparedStatement.setLong(row + 1, changedRows.get(row).getKey());
+                    }
+                }, (resultSet, rowNum) -> new DenominationDetail(resultSet.getLong(1), resultSet.getInt(2), resultSet.getInt(3),
+                        resultSet.getString(4).trim().charAt(0), resultSet.getLong(5), resultSet.getString(6)));
+        this.afterSave(savedRows);
+        return changedRows.size();
+    }
+
+    /**
+     * Journals the saved rows before the surrounding transaction commits and writes them through to the snapshots
+     * once it has committed.
+     *
+     * @param savedCurrencyDetails rows as saved to the table.
+     */
+    private void afterSave(Iterable<DenominationDetail> savedCurrencyDetails) {
+        this.journal(savedCurrencyDetails);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            this.writeThrough(savedCurrencyDetails);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == TransactionSynchronization.STATUS_COMMITTED) {
+                    writeThrough(savedCurrencyDetails);
+                } else {
+                    invalidate(savedCurrencyDetails);
+                }
+            }
+        });
+    }
+
+    /**
+     * <p>Compares the cached snapshot of every terminal with its rows, see {@link #verifyInventoryCache(String)}.</p>
+     *
+     * @return true if all snapshots match the table, false if any had to be reloaded.
+     */
+    public boolean verifyInventoryCache() {
+        boolean consistent = true;
+        for (String terminalId : this.terminalInventories.keySet()) {
+            consistent &= this.verifyInventoryCache(terminalId);
+        }
+        return consistent;
+    }
+
+    /**
+     * <p>Compares the cached snapshot of the terminal with its rows in the ATM table. If they differ the snapshot
+     * is replaced by the rows. Only the terminal is locked meanwhile.</p>
+     *
+     * @param terminalId id of the ATM terminal.
+     * @return true if the snapshot matches the table or nothing is cached, false if it had to be reloaded.
+     */
+    public boolean verifyInventoryCache(String terminalId) {
+        TerminalInventory terminalInventory = Objects.isNull(terminalId) ? null : this.terminalInventories.get(terminalId);
+        if (Objects.isNull(terminalInventory)) {
+            return true;
+        }
+        synchronized (terminalInventory) {
+            InventorySnapshot snapshot = terminalInventory.snapshot;
+            if (Objects.isNull(snapshot)) {
+                return true;
+            }
+            List<DenominationDetail> tableRows = this.denominationDetailRepository.findAllByTerminalIdOrderByCurrencyDesc(terminalId);
+            if (sameRows(snapshot.getDenominationDetails(), tableRows)) {
+                return true;
+            }
+            this.cacheInconsistencies.increment();
+            this.logger.warn("ATM inventory cache version " + snapshot.getVersion() + " of terminal " + terminalId + " differs from the ATM table, reloading : cached "
+                    + snapshot.getDenominationDetails() + ", table " + tableRows);
+            terminalInventory.snapshot = new InventorySnapshot(++terminalInventory.version, tableRows);
+            return false;
+        }
+    }
+
+    /**
+     * Merges the saved rows into the cached snapshots of their terminals as new versions.
+     *
+     * @param savedCurrencyDetails rows returned by the repository.
+     */
+    private void writeThrough(Iterable<DenominationDetail> savedCurrencyDetails) {
+        if (Objects.isNull(savedCurrencyDetails)) {
+            //Nothing known about the saved rows, the next reads load the tables.
+            this.terminalInventories.clear();
+            return;
+        }
+        byTerminal(savedCurrencyDetails).forEach((terminalId, savedRows) -> {
+            TerminalInventory terminalInventory = this.terminalInventories.get(terminalId);
+            if (Objects.isNull(terminalInventory)) {
+                //Nothing cached yet, the next read loads the rows.
+                return;
+            }
+            synchronized (terminalInventory) {
+                InventorySnapshot snapshot = terminalInventory.snapshot;
+                if (Objects.isNull(snapshot)) {
+                    return;
+                }
+                Map<Long, DenominationDetail> rows = new LinkedHashMap<>();
+                snapshot.getDenominationDetails().forEach(denominationDetail -> rows.put(denominationDetail.getId(), denominationDetail));
+                savedRows.forEach(denominationDetail -> rows.put(denominationDetail.getId(), denominationDetail));
+                List<DenominationDetail> mergedRows = new ArrayList<>(rows.values());
+                mergedRows.sort(Comparator.comparing(DenominationDetail::getCurrency).reversed());
+                terminalInventory.snapshot = new InventorySnapshot(++terminalInventory.version, mergedRows);
+            }
+        });
+    }
+
+    /**
+     * Appends the saved note counts to the {@link WithdrawalJournal} as one record, the journal aborts the record
+     * if the surrounding transaction does not commit.
+     *
+     * @param savedCurrencyDetails rows returned by the repository.
+     */
+    private void journal(Iterable<DenominationDetail> savedCurrencyDetails) {
+        if (Objects.isNull(savedCurrencyDetails) || !this.withdrawalJournal.isEnabled()) {
+            return;
+        }
+        List<Long> denominations = new ArrayList<>();
+        savedCurrencyDetails.forEach(denominationDetail -> {
+            if (Objects.nonNull(denominationDetail.getId()) && Objects.nonNull(denominationDetail.getVersion())) {
+                denominations.add(denominationDetail.getId());
+                denominations.add((long) denominationDetail.getCurrencyCount());
+                denominations.add(denominationDetail.getVersion());
+            }
+        });
+        this.withdrawalJournal.appendDenominations(denominations.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    /**
+     * Drops the snapshots of the terminals of the rows, the next read loads their rows again.
+     *
+     * @param savedCurrencyDetails rows of a write which did not commit.
+     */
+    private void invalidate(Iterable<DenominationDetail> savedCurrencyDetails) {
+        if (Objects.isNull(savedCurrencyDetails)) {
+            this.terminalInventories.clear();
+            return;
+        }
+        byTerminal(savedCurrencyDetails).keySet().forEach(terminalId -> {
+            TerminalInventory terminalInventory = this.terminalInventories.get(terminalId);
+            if (Objects.nonNull(terminalInventory)) {
+                synchronized (terminalInventory) {
+                    terminalInventory.snapshot = null;
+                }
+            }
+        });
+    }
+
+    private static Map<String, List<DenominationDetail>> byTerminal(Iterable<DenominationDetail> currencyDetails) {
+        Map<String, List<DenominationDetail>> rowsByTerminal = new LinkedHashMap<>();
+        currencyDetails.forEach(denominationDetail -> rowsByTerminal.computeIfAbsent(Objects.isNull(denominationDetail.getTerminalId())
+                ? StringConstants.DefaultTerminalId : denominationDetail.getTerminalId(), terminalId -> new ArrayList<>()).add(denominationDetail));
+        return rowsByTerminal;
+    }
+
+    private static boolean sameRows(List<DenominationDetail> cachedRows, List<DenominationDetail> tableRows) {
+        if (cachedRows.size() != tableRows.size()) {
+            return false;
+        }
+        //Rows of different terminals share currencies, so they are matched by id and not by position.
+        Map<Long, DenominationDetail> cachedRowsById = new HashMap<>();
+        cachedRows.forEach(cached -> cachedRowsById.put(cached.getId(), cached));
+        for (DenominationDetail table : tableRows) {
+            DenominationDetail cached = cachedRowsById.get(table.getId());
+            if (Objects.isNull(cached) || !Objects.equals(cached.getCurrency(), table.getCurrency())
+                    || !Objects.equals(cached.getCurrencyCount(), table.getCurrencyCount())
+                    || !Objects.equals(cached.getTerminalId(), table.getTerminalId())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Cached rows of one terminal, its monitor guards loading, writing through and checking the rows.
+     */
+    private static final class TerminalInventory {
+        private volatile InventorySnapshot snapshot;
+        /**
+         * Version of the last snapshot of the terminal, guarded by the monitor.
+         */
+        private long version;
     }
 
 }
@@ -0,0 +1,256 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.data.service;
+
+import com.abcbank.data.dto.AccountSummary;
+import com.abcbank.exception.custom_exceptions.AccountNotFoundException;
+import com.abcbank.utils.MinorUnits;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Read model of the accounts for balance enquiries and pin checks, a bounded in memory map from user name to the
+ * balances and the stored pin hash. Enquiries are answered from the map without a connection, a persistence
+ * context or an account lock, whether they are authenticated with a card session or with the pin.
+ * </p>
+ * An account is read from the BANK_ACCOUNT table when it is first asked for, nothing is read up front. The view
+ * is updated with the balances of every committed debit, and an entry older than {@code atm.balance-view.ttl-millis}
+ * is read again, which picks up changes made by other instances and drops accounts deleted from the table.
+ * An entry is only replaced by one with a newer row version, so a read never undoes a debit it raced with.
+ * <br>The stored pin hash is only returned by {@link #readAccountSummary(String)}, summaries returned for card sessions
+ * hold no pin. Pins replaced through this instance are applied with {@link #applyPin(Long, String, String)}, pins
+ * replaced by other instances are picked up when the entry expires. Pins are only ever rehashed, so a hash held
+ * until then still verifies the same pin.
+ * <br>At most {@code atm.balance-view.max-entries} accounts are held, expired entries are removed in the background
+ * and when the view is full, further accounts are then read from the table on every request.
+ *
+ * @author himanshuupadhyay
+ */
+@Component
+public class AccountBalanceView {
+
+    private static final String ACCOUNT_QUERY = "SELECT id, user_name, atm_pin, opening_balance, overdraft, version FROM BANK_ACCOUNT WHERE user_name = ?";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${atm.balance-view.ttl-millis:5000}")
+    private long ttlMillis = 5000;
+
+    @Value("${atm.balance-view.max-entries:100000}")
+    private int maxEntries = 100000;
+
+    private final Map<String, AccountView> accountsByUserName = new ConcurrentHashMap<>();
+
+    private final Map<Long, String> userNamesById = new ConcurrentHashMap<>();
+
+    private final Counter viewHits = Metrics.counter("atm.balance.view", "result", "hit");
+
+    private final Counter viewMisses = Metrics.counter("atm.balance.view", "result", "miss");
+
+    private final ScheduledExecutorService viewSweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "atm-balance-view");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void scheduleSweep() {
+        Metrics.gauge("atm.balance.view.size", this.accountsByUserName, Map::size);
+        long sweepMillis = Math.max(1000, this.ttlMillis);
+        this.viewSweeper.scheduleWithFixedDelay(this::removeExpired, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        this.viewSweeper.shutdownNow();
+    }
+
+    /**
+     * <p>Returns the balances of the account, from the view if it holds a current entry of the user.
+     * The returned summary holds no pin.</p>
+     *
+     * @param userName
+     * @return {@link AccountSummary} of the account, without the pin.
+     * @throws AccountNotFoundException if no account exists for the user name.
+     */
+    public AccountSummary getAccountSummary(String userName) {
+        return this.find(userName).accountSummary;
+    }
+
+    /**
+     * <p>Returns the stored pin hash and the balances of the account, from the view if it holds a current entry of the user.</p>
+     *
+     * @param userName
+     * @return {@link AccountSummary} of the account, with the pin.
+     * @throws AccountNotFoundException if no account exists for the user name.
+     */
+    public AccountSummary readAccountSummary(String userName) {
+        return this.find(userName).withPin();
+    }
+
+    /**
+     * <p>Applies the balances of a committed debit. Accounts not in the view are left to be read on demand.</p>
+     *
+     * @param accountId      id of the debited account.
+     * @param openingBalance balance of the account after the debit.
+     * @param overdraft      overdraft of the account after the debit.
+     * @param version        row version of the account after the debit.
+     */
+    public void applyDebit(Long accountId, Long openingBalance, Long overdraft, Long version) {
+        String userName = this.userNamesById.get(accountId);
+        if (Objects.isNull(userName)) {
+            return;
+        }
+        this.accountsByUserName.computeIfPresent(userName, (name, accountView) -> version > accountView.version
+                ? new AccountView(new AccountSummary(accountId, name, null, openingBalance, overdraft), accountView.atmPin, version, accountView.readAt)
+                : accountView);
+    }
+
+    /**
+     * <p>Applies a replaced pin hash. The entry is only changed if it still holds the replaced hash.</p>
+     *
+     * @param accountId   id of the account.
+     * @param expectedPin pin hash which was replaced.
+     * @param newPin      pin hash stored for the account.
+     */
+    public void applyPin(Long accountId, String expectedPin, String newPin) {
+        String userName = this.userNamesById.get(accountId);
+        if (Objects.isNull(userName)) {
+            return;
+        }
+        this.accountsByUserName.computeIfPresent(userName, (name, accountView) -> Objects.equals(expectedPin, accountView.atmPin)
+                ? new AccountView(accountView.accountSummary, newPin, accountView.version, accountView.readAt)
+                : accountView);
+    }
+
+    /**
+     * <p>Removes the account from the view, for an account which is deleted.</p>
+     *
+     * @param accountId id of the account.
+     */
+    public void evict(Long accountId) {
+        String userName = this.userNamesById.remove(accountId);
+        if (Objects.nonNull(userName)) {
+            this.accountsByUserName.remove(userName);
+        }
+    }
+
+    private AccountView find(String userName) {
+        AccountView accountView = Objects.isNull(userName) ? null : this.accountsByUserName.get(userName);
+        if (Objects.nonNull(accountView) && !accountView.isExpired(System.nanoTime())) {
+            this.viewHits.increment();
+            return accountView;
+        }
+        this.viewMisses.increment();
+        return this.read(userName);
+    }
+
+    private AccountView read(String userName) {
+        RowMapper<AccountView> accountView = (resultSet, rowNum) -> new AccountView(new AccountSummary(resultSet.getLong("id"), resultSet.getString("user_name"),
+                null, MinorUnits.toUnits(resultSet.getLong("opening_balance")), MinorUnits.toUnits(resultSet.getLong("overdraft"))),
+                resultSet.getString("atm_pin"), resultSet.getLong("version"), System.nanoTime());
+        List<AccountView> accountViews = this.jdbcTemplate.query(ACCOUNT_QUERY, accountView, userName);
+        if (accountViews.isEmpty()) {
+            AccountView removed = Objects.isNull(userName) ? null : this.accountsByUserName.remove(userName);
+            if (Objects.nonNull(removed)) {
+                this.userNamesById.remove(removed.accountSummary.getId());
+            }
+            throw new AccountNotFoundException("Account not exists for username " + userName);
+        }
+        AccountView read = accountViews.get(0);
+        this.put(read);
+        return read;
+    }
+
+    private void put(AccountView accountView) {
+        AccountSummary accountSummary = accountView.accountSummary;
+        if (!this.accountsByUserName.containsKey(accountSummary.getUserName()) && this.accountsByUserName.size() >= this.maxEntries) {
+            this.removeExpired();
+            if (this.accountsByUserName.size() >= this.maxEntries) {
+                return;
+            }
+        }
+        this.userNamesById.put(accountSummary.getId(), accountSummary.getUserName());
+        //A read of the same version renews the entry, an older one never replaces a newer debit. The pin is not versioned, the read one is kept.
+        this.accountsByUserName.merge(accountSummary.getUserName(), accountView,
+                (viewed, read) -> read.version >= viewed.version ? read : new AccountView(viewed.accountSummary, read.atmPin, viewed.version, read.readAt));
+    }
+
+    private void removeExpired() {
+        long now = System.nanoTime();
+        this.accountsByUserName.values().removeIf(accountView -> {
+            if (accountView.isExpired(now)) {
+                this.userNamesById.remove(accountView.accountSummary.getId());
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * An account as held by the view, the summary is never changed once it is in the view and holds no pin.
+     */
+    private final class AccountView {
+        private final AccountSummary accountSummary;
+        private final String atmPin;
+        private final long version;
+        private final long readAt;
+
+        private AccountView(AccountSummary accountSummary, String atmPin, long version, long readAt) {
+            this.accountSummary = accountSummary;
+            this.atmPin = atmPin;
+            this.version = version;
+            this.readAt = readAt;
+        }
+
+        private AccountSummary withPin() {
+            return new AccountSummary(this.accountSummary.getId(), this.accountSummary.getUserName(), this.atmPin,
+                    this.accountSummary.getOpeningBalance(), this.accountSummary.getOverdraft());
+        }
+
+        private boolean isExpired(long now) {
+            return now - this.readAt > TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        }
+    }
+}
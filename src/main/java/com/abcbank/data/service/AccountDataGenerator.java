@@ -0,0 +1,146 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.data.service;
+
+import com.abcbank.service.security.AuthenticationService;
+import com.abcbank.utils.MinorUnits;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Fills the BANK_ACCOUNT table of the large profile up to {@code atm.generator.accounts} accounts, in JDBC
+ * batches of {@code atm.generator.batch-size}. Accounts already in the table are kept, so the generator only
+ * adds the missing ones on a restart.
+ * </p>
+ * Generated accounts are named {@code user_0000001} onwards and all have the pin 1234. Once the table is filled
+ * {@code atm.generator.lookup-samples} random accounts are looked up by user name and the latency is logged
+ * with the row count, so runs with different sizes show how lookups scale.
+ *
+ * @author himanshuupadhyay
+ */
+@Component
+@Profile("large")
+public class AccountDataGenerator implements ApplicationRunner {
+
+    private static final String INSERT_STATEMENT = "INSERT INTO BANK_ACCOUNT (first_name, last_name, user_name, email, account_number, atm_pin, opening_balance, overdraft) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String GENERATED_PIN = "1234";
+
+    private static final long FIRST_ACCOUNT_NUMBER = 1_000_000_000L;
+
+    private final Logger logger = LogManager.getLogger(this.getClass());
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private AuthenticationService authenticationService;
+
+    @Autowired
+    private BankAccountDataAccessService bankAccountDataAccessService;
+
+    @Value("${atm.generator.accounts:1000000}")
+    private long accounts = 1000000;
+
+    @Value("${atm.generator.batch-size:10000}")
+    private int batchSize = 10000;
+
+    @Value("${atm.generator.lookup-samples:1000}")
+    private int lookupSamples = 1000;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        long existingAccounts = this.jdbcTemplate.queryForObject("SELECT COUNT(*) FROM BANK_ACCOUNT", Long.class);
+        if (existingAccounts < this.accounts) {
+            this.generate(existingAccounts + 1, this.accounts);
+        }
+        this.measureLookups(Math.max(existingAccounts, this.accounts));
+    }
+
+    private void generate(long firstAccount, long lastAccount) {
+        long start = System.nanoTime();
+        //Hashing every pin would take hours, so the generated accounts share one salted hash.
+        String hashedPin = this.authenticationService.hashPin(GENERATED_PIN);
+        List<Object[]> batch = new ArrayList<>(this.batchSize);
+        for (long account = firstAccount; account <= lastAccount; account++) {
+            String userName = userNameOf(account);
+            batch.add(new Object[]{"first_" + account, "last_" + account, userName, userName + "@abcbank.com", FIRST_ACCOUNT_NUMBER + account,
+                    hashedPin, MinorUnits.toMinorUnits(account * 7919 % 5000), MinorUnits.toMinorUnits(account % 5 * 50)});
+            if (batch.size() == this.batchSize) {
+                this.jdbcTemplate.batchUpdate(INSERT_STATEMENT, batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            this.jdbcTemplate.batchUpdate(INSERT_STATEMENT, batch);
+        }
+        this.logger.info("Generated accounts " + firstAccount + " to " + lastAccount + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * Looks up random generated accounts by user name and logs the latency percentiles.
+     *
+     * @param rows number of generated accounts in the table.
+     */
+    private void measureLookups(long rows) {
+        if (this.lookupSamples <= 0 || rows <= 0) {
+            return;
+        }
+        long[] latencies = new long[this.lookupSamples];
+        for (int sample = 0; sample < this.lookupSamples; sample++) {
+            String userName = userNameOf(ThreadLocalRandom.current().nextLong(1, rows + 1));
+            long start = System.nanoTime();
+            this.bankAccountDataAccessService.getAccountDetailsForUserName(userName);
+            latencies[sample] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        this.logger.info("Looked up " + this.lookupSamples + " accounts by user name among " + rows + " rows : p50 "
+                + TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length / 2]) + " us, p99 "
+                + TimeUnit.NANOSECONDS.toMicros(latencies[(int) (latencies.length * 0.99)]) + " us, max "
+                + TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length - 1]) + " us");
+    }
+
+    private static String userNameOf(long account) {
+        return String.format("user_%07d", account);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.data.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * Binary snapshot of the account balances and the ATM note counts, with the journal segment from which
+ * the {@link WithdrawalJournal} has to be replayed on top of it.
+ * </p>
+ * The file holds a header, the account rows, the denomination rows and a trailer with the row counts and
+ * a CRC32 of everything before the checksum. Account rows are id, opening balance, overdraft and version,
+ * denomination rows are id, note count and version, all as longs.
+ *
+ * @author himanshuupadhyay
+ */
+public final class BalanceSnapshot {
+
+    private static final int MAGIC = 0x41544d53;
+
+    /**
+     * Format 2 holds balances in minor units, format 1 held whole units.
+     */
+    private static final int FORMAT_VERSION = 2;
+
+    private static final int HEADER_BYTES = 2 * Integer.BYTES + Long.BYTES;
+
+    private static final int TRAILER_BYTES = 2 * Integer.BYTES + Long.BYTES;
+
+    public static final int ACCOUNT_FIELDS = 4;
+
+    public static final int DENOMINATION_FIELDS = 3;
+
+    private final long journalSegment;
+
+    private final long[] accounts;
+
+    private final long[] denominations;
+
+    private BalanceSnapshot(long journalSegment, long[] accounts, long[] denominations) {
+        this.journalSegment = journalSegment;
+        this.accounts = accounts;
+        this.denominations = denominations;
+    }
+
+    /**
+     * @return index of the first journal segment written after the snapshot was taken.
+     */
+    public long getJournalSegment() {
+        return this.journalSegment;
+    }
+
+    /**
+     * @return account rows, {@link #ACCOUNT_FIELDS} longs per account.
+     */
+    public long[] getAccounts() {
+        return this.accounts;
+    }
+
+    /**
+     * @return denomination rows, {@link #DENOMINATION_FIELDS} longs per denomination.
+     */
+    public long[] getDenominations() {
+        return this.denominations;
+    }
+
+    /**
+     * <p>Reads a snapshot with one sequential pass over the file.</p>
+     *
+     * @param snapshotPath the snapshot file.
+     * @return the {@link BalanceSnapshot}, null if the file is incomplete or corrupt.
+     * @throws IOException           if the file can not be read.
+     * @throws IllegalStateException if the file is complete but in another format.
+     */
+    public static BalanceSnapshot read(Path snapshotPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES + TRAILER_BYTES || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 checksum = new CRC32();
+            ByteBuffer checkedBytes = buffer.duplicate();
+            checkedBytes.limit((int) size - Long.BYTES);
+            checksum.update(checkedBytes);
+            int accountCount = buffer.getInt((int) size - TRAILER_BYTES);
+            int denominationCount = buffer.getInt((int) size - TRAILER_BYTES + Integer.BYTES);
+            if (buffer.getLong((int) size - Long.BYTES) != checksum.getValue() || buffer.getInt() != MAGIC) {
+                return null;
+            }
+            int formatVersion = buffer.getInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IllegalStateException("Balance snapshot " + snapshotPath + " is in format " + formatVersion + " and not in format "
+                        + FORMAT_VERSION + ", it can not be restored");
+            }
+            if (size != HEADER_BYTES + ((long) accountCount * ACCOUNT_FIELDS + (long) denominationCount * DENOMINATION_FIELDS) * Long.BYTES + TRAILER_BYTES) {
+                return null;
+            }
+            long journalSegment = buffer.getLong();
+            long[] accounts = new long[accountCount * ACCOUNT_FIELDS];
+            buffer.asLongBuffer().get(accounts);
+            buffer.position(buffer.position() + accounts.length * Long.BYTES);
+            long[] denominations = new long[denominationCount * DENOMINATION_FIELDS];
+            buffer.asLongBuffer().get(denominations);
+            return new BalanceSnapshot(journalSegment, accounts, denominations);
+        }
+    }
+
+    /**
+     * <p>
+     * Streams a snapshot to a file. All accounts have to be added before the first denomination.
+     * </p>
+     * The rows are written to a temporary file, which replaces the snapshot file only once it is complete
+     * and forced to disk, so a crash never leaves a partial snapshot behind.
+     */
+    public static final class Writer implements AutoCloseable {
+
+        private final Path snapshotPath;
+
+        private final Path temporaryPath;
+
+        private final FileChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        private final CRC32 checksum = new CRC32();
+
+        private int accountCount;
+
+        private int denominationCount;
+
+        private boolean committed;
+
+        public Writer(Path snapshotPath, long journalSegment) throws IOException {
+            this.snapshotPath = snapshotPath;
+            this.temporaryPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+            this.channel = FileChannel.open(this.temporaryPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            this.buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(journalSegment);
+        }
+
+        public void addAccount(long accountId, long openingBalance, long overdraft, long version) throws IOException {
+            if (this.denominationCount > 0) {
+                throw new IllegalStateException("Accounts must be added before the denominations");
+            }
+            this.reserve(ACCOUNT_FIELDS * Long.BYTES);
+            this.buffer.putLong(accountId).putLong(openingBalance).putLong(overdraft).putLong(version);
+            this.accountCount++;
+        }
+
+        public void addDenomination(long denominationId, long currencyCount, long version) throws IOException {
+            this.reserve(DENOMINATION_FIELDS * Long.BYTES);
+            this.buffer.putLong(denominationId).putLong(currencyCount).putLong(version);
+            this.denominationCount++;
+        }
+
+        /**
+         * Completes the snapshot, forces it to disk and moves it in place of the snapshot file.
+         */
+        public void commit() throws IOException {
+            this.reserve(TRAILER_BYTES);
+            this.buffer.putInt(this.accountCount).putInt(this.denominationCount);
+            this.writeBuffer();
+            this.buffer.putLong(this.checksum.getValue());
+            this.buffer.flip();
+            while (this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            }
+            this.channel.force(true);
+            this.channel.close();
+            Files.move(this.temporaryPath, this.snapshotPath, StandardCopyOption.ATOMIC_MOVE);
+            this.committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.channel.isOpen()) {
+                this.channel.close();
+            }
+            if (!this.committed) {
+                Files.deleteIfExists(this.temporaryPath);
+            }
+        }
+
+        private void reserve(int bytes) throws IOException {
+            if (this.buffer.remaining() < bytes) {
+                this.writeBuffer();
+            }
+        }
+
+        private void writeBuffer() throws IOException {
+            this.buffer.flip();
+            this.checksum.update(this.buffer.duplicate());
+            while (this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            }
+            this.buffer.clear();
+        }
+    }
+}
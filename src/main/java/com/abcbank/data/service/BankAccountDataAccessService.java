@@ -30,11 +30,17 @@ import com.abcbank.data.entity.BankAccount;
 import com.abcbank.data.repository.BankAccountRepository;
 import com.abcbank.exception.custom_exceptions.AccountNotFoundException;
 import com.abcbank.exception.custom_exceptions.InsufficientFundsException;
+import com.abcbank.utils.MinorUnits;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.sql.PreparedStatement;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 
 @Service
@@ -43,6 +49,35 @@ public class BankAccountDataAccessService {
     @Autowired
     private BankAccountRepository bankAccountRepository;
 
+    @Autowired
+    private WithdrawalBatcher withdrawalBatcher;
+
+    @Autowired
+    private WithdrawalJournal withdrawalJournal;
+
+    @Autowired
+    private AccountBalanceView accountBalanceView;
+
+    /**
+     * Columns of an account page, the pin is never read.
+     */
+    private static final String ACCOUNTS_PAGE_QUERY = "SELECT id, first_name, last_name, user_name, email, account_number, opening_balance, overdraft, version "
+            + "FROM BANK_ACCOUNT WHERE id > ? ORDER BY id LIMIT ?";
+
+    private static final String UPDATE_PIN_STATEMENT = "UPDATE BANK_ACCOUNT SET atm_pin = ? WHERE id = ? AND atm_pin = ?";
+
+    private static final String REVERSE_DEBIT_STATEMENT = "UPDATE BANK_ACCOUNT SET opening_balance = opening_balance + ?, overdraft = overdraft + ?, version = version + 1 WHERE id = ?";
+
+    private static final String BALANCES_QUERY = "SELECT opening_balance, overdraft, version FROM BANK_ACCOUNT WHERE id = ?";
+
+    private static final RowMapper<BankAccount> ACCOUNT_WITHOUT_PIN = (resultSet, rowNum) -> new BankAccount(resultSet.getLong("id"),
+            resultSet.getString("first_name"), resultSet.getString("last_name"), resultSet.getString("user_name"), resultSet.getString("email"),
+            resultSet.getString("account_number"), null, MinorUnits.toUnits(resultSet.getLong("opening_balance")),
+            MinorUnits.toUnits(resultSet.getLong("overdraft")), resultSet.getLong("version"));
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
     public List<BankAccount> getAllAccounts() {
         List<BankAccount> bankAccounts = new ArrayList<>();
         this.bankAccountRepository.findAll().forEach(ba -> {
@@ -52,6 +87,24 @@ public class BankAccountDataAccessService {
         return bankAccounts;
     }
 
+    /**
+     * <p>Reads one page of accounts ordered by id, without the pin and without the persistence context.
+     * Pages are keyed on the id, so reading a page costs the same however deep it is.</p>
+     *
+     * @param afterId id of the last account of the previous page, 0 for the first page.
+     * @param limit   maximum number of accounts in the page, also used as JDBC fetch size.
+     * @return accounts with an id greater than afterId, ordered by id.
+     */
+    public List<BankAccount> getAccountsPage(Long afterId, int limit) {
+        return this.jdbcTemplate.query(connection -> {
+            PreparedStatement preparedStatement = connection.prepareStatement(ACCOUNTS_PAGE_QUERY);
+            preparedStatement.setFetchSize(limit);
+            preparedStatement.setLong(1, afterId);
+            preparedStatement.setInt(2, limit);
+            return preparedStatement;
+        }, ACCOUNT_WITHOUT_PIN);
+    }
+
     /**
      * @param userName
      * @return BankAccount if account exists, else returns null
@@ -64,20 +117,88 @@ public class BankAccountDataAccessService {
         return possibleBankAccount.get();
     }
 
-    public synchronized void withDraw(BankAccount bankAccount, Long amount, Boolean useOverDraft) {
-        if (amount <= bankAccount.getOpening_balance()) {
-            bankAccount.setOpening_balance(bankAccount.getOpening_balance() - amount);
-        } else {
-            Long totalAmountIncludingOverdraftInAccount = bankAccount.getOpening_balance() + (useOverDraft ? bankAccount.getOverdraft() : 0);
-            if (totalAmountIncludingOverdraftInAccount < amount) {
-                throw new InsufficientFundsException("insufficient funds");
-            } else {
-                Long pendingOverDraft = totalAmountIncludingOverdraftInAccount - amount;
-                bankAccount.setOverdraft(pendingOverDraft);
-                bankAccount.setOpening_balance(0L);
-            }
+    /**
+     * <p>Debits the amount from the account with a single conditional update guarded by the available funds.
+     * The debit is group committed with concurrent withdrawals and is committed when this method returns.
+     * The provided account is not modified.</p>
+     *
+     * @param bankAccount  {@link BankAccount} from which the amount is withdrawn.
+     * @param amount       the amount to be withdrawn.
+     * @param useOverDraft if the overdraft may be used for the withdrawal.
+     * @return {@link BankAccount} with the balances after the withdrawal.
+     * @throws InsufficientFundsException if the account has not enough funds for the withdrawal.
+     */
+    public BankAccount withDraw(BankAccount bankAccount, Long amount, Boolean useOverDraft) {
+        WithdrawalBatcher.DebitedAccount debitedAccount = this.withdrawalBatcher.debit(bankAccount.getId(), amount, useOverDraft);
+        if (Objects.isNull(debitedAccount)) {
+            throw new InsufficientFundsException("insufficient funds");
+        }
+        return new BankAccount(bankAccount.getId(), bankAccount.getFirst_name(), bankAccount.getLast_name(), bankAccount.getUser_name(),
+                bankAccount.getEmail(), bankAccount.getAccount_number(), bankAccount.getAtm_pin(),
+                debitedAccount.getOpeningBalance(), debitedAccount.getOverdraft(), debitedAccount.getVersion());
+    }
+
+    /**
+     * <p>Gives a committed withdrawal back to the account, as compensation when the notes of the withdrawal can not
+     * be dispensed. The balances are moved back by what the debit took from each of them, so debits committed
+     * meanwhile are kept.</p>
+     * The balances after the reversal are journaled before the reversal commits and applied to the {@link AccountBalanceView}.
+     *
+     * @param bankAccount        {@link BankAccount} as read before the withdrawal.
+     * @param debitedBankAccount {@link BankAccount} as returned by {@link #withDraw(BankAccount, Long, Boolean)}.
+     * @return {@link BankAccount} with the balances after the reversal.
+     */
+    @Transactional
+    public BankAccount reverseWithdrawal(BankAccount bankAccount, BankAccount debitedBankAccount) {
+        long openingBalanceDebited = MinorUnits.toMinorUnits(bankAccount.getOpening_balance()) - MinorUnits.toMinorUnits(debitedBankAccount.getOpening_balance());
+        long overdraftDebited = MinorUnits.toMinorUnits(bankAccount.getOverdraft()) - MinorUnits.toMinorUnits(debitedBankAccount.getOverdraft());
+        if (this.jdbcTemplate.update(REVERSE_DEBIT_STATEMENT, openingBalanceDebited, overdraftDebited, bankAccount.getId()) == 0) {
+            throw new AccountNotFoundException("Account not exists for id " + bankAccount.getId());
+        }
+        long[] balances = this.jdbcTemplate.queryForObject(BALANCES_QUERY,
+                (resultSet, rowNum) -> new long[]{resultSet.getLong(1), resultSet.getLong(2), resultSet.getLong(3)}, bankAccount.getId());
+        this.withdrawalJournal.appendAccounts(new long[]{bankAccount.getId(), balances[0], balances[1], balances[2]});
+        this.accountBalanceView.applyDebit(bankAccount.getId(), MinorUnits.toUnits(balances[0]), MinorUnits.toUnits(balances[1]), balances[2]);
+        return new BankAccount(bankAccount.getId(), bankAccount.getFirst_name(), bankAccount.getLast_name(), bankAccount.getUser_name(),
+                bankAccount.getEmail(), bankAccount.getAccount_number(), bankAccount.getAtm_pin(),
+                MinorUnits.toUnits(balances[0]), MinorUnits.toUnits(balances[1]), balances[2]);
+    }
+
+    /**
+     * <p>Replaces the pin of the account if it is still the expected one. The row version is not changed,
+     * it guards the balances only, so a pin change never fails a concurrent withdrawal.
+     * A replaced pin is applied to the {@link AccountBalanceView}.</p>
+     *
+     * @param accountId   id of the account.
+     * @param expectedPin pin as it was read for the account.
+     * @param newPin      pin to store.
+     * @return true if the pin was replaced.
+     */
+    public boolean updatePin(Long accountId, String expectedPin, String newPin) {
+        if (this.jdbcTemplate.update(UPDATE_PIN_STATEMENT, newPin, accountId, expectedPin) == 1) {
+            this.accountBalanceView.applyPin(accountId, expectedPin, newPin);
+            return true;
         }
-        this.bankAccountRepository.save(bankAccount);
+        return false;
     }
 
+    /**
+     * <p>Replaces the pins of several accounts in one batch, each only if it is still the expected one.
+     * Replaced pins are applied to the {@link AccountBalanceView}.</p>
+     *
+     * @param pinUpdates new pin, account id and expected pin of every account.
+     * @return for every account, true if its pin was replaced.
+     */
+    public boolean[] updatePins(List<Object[]> pinUpdates) {
+        int[] updateCounts = this.jdbcTemplate.batchUpdate(UPDATE_PIN_STATEMENT, pinUpdates);
+        boolean[] updated = new boolean[updateCounts.length];
+        for (int update = 0; update < updateCounts.length; update++) {
+            updated[update] = updateCounts[update] == 1;
+            if (updated[update]) {
+                Object[] pinUpdate = pinUpdates.get(update);
+                this.accountBalanceView.applyPin((Long) pinUpdate[1], (String) pinUpdate[2], (String) pinUpdate[0]);
+            }
+        }
+        return updated;
+    }
 }
@@ -0,0 +1,161 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.data.service;
+
+import com.abcbank.data.dto.LedgerEntry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Writer of the append only TRANSACTION_LEDGER table. Withdrawals hand their {@link LedgerEntry} to a bounded
+ * in memory queue and return at once, a single background writer inserts the queued entries in JDBC batches.
+ * </p>
+ * A batch is written when it reaches {@code atm.ledger.batch-size} entries or every
+ * {@code atm.ledger.flush-interval-millis}. If the queue is full the entry is dropped and counted, the
+ * withdrawal itself is never held up by the ledger.
+ *
+ * @author himanshuupadhyay
+ */
+@Component
+public class TransactionLedgerWriter {
+
+    private static final String INSERT_STATEMENT = "INSERT INTO TRANSACTION_LEDGER (account_id, user_name, amount_minor, dispensed_notes, status, created_at) VALUES (?, ?, ?, ?, ?, ?)";
+
+    private final Logger logger = LogManager.getLogger(this.getClass());
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${atm.ledger.batch-size:256}")
+    private int batchSize = 256;
+
+    @Value("${atm.ledger.flush-interval-millis:100}")
+    private long flushIntervalMillis = 100;
+
+    @Value("${atm.ledger.queue-capacity:10000}")
+    private int queueCapacity = 10000;
+
+    private final Timer flushLatency = Metrics.timer("atm.ledger.flush");
+
+    private final Counter droppedEntries = Metrics.counter("atm.ledger.dropped");
+
+    private final Counter failedEntries = Metrics.counter("atm.ledger.failed");
+
+    private BlockingQueue<LedgerEntry> pendingEntries;
+
+    private Thread writer;
+
+    private volatile boolean running;
+
+    @PostConstruct
+    public void start() {
+        this.pendingEntries = new ArrayBlockingQueue<>(this.queueCapacity);
+        Metrics.gauge("atm.ledger.queue.depth", this.pendingEntries, BlockingQueue::size);
+        this.running = true;
+        this.writer = new Thread(this::writeLoop, "atm-ledger-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        this.running = false;
+        this.writer.interrupt();
+        this.writer.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    /**
+     * <p>Queues the entry for the ledger without waiting for it to be written.</p>
+     *
+     * @param ledgerEntry {@link LedgerEntry} of a withdrawal.
+     * @return true if the entry is queued, false if the queue is full and the entry is dropped.
+     */
+    public boolean record(LedgerEntry ledgerEntry) {
+        if (this.pendingEntries.offer(ledgerEntry)) {
+            return true;
+        }
+        this.droppedEntries.increment();
+        return false;
+    }
+
+    private void writeLoop() {
+        List<LedgerEntry> batch = new ArrayList<>(this.batchSize);
+        while (this.running || !this.pendingEntries.isEmpty()) {
+            try {
+                LedgerEntry first = this.pendingEntries.poll(this.flushIntervalMillis, TimeUnit.MILLISECONDS);
+                if (Objects.isNull(first)) {
+                    continue;
+                }
+                batch.add(first);
+                this.pendingEntries.drainTo(batch, this.batchSize - 1);
+            } catch (InterruptedException exp) {
+                //Stopping, the queue is drained without waiting.
+                this.pendingEntries.drainTo(batch, this.batchSize - batch.size());
+            }
+            if (!batch.isEmpty()) {
+                this.write(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<LedgerEntry> batch) {
+        long start = System.nanoTime();
+        try {
+            this.jdbcTemplate.batchUpdate(INSERT_STATEMENT, batch, batch.size(), (preparedStatement, ledgerEntry) -> {
+                preparedStatement.setObject(1, ledgerEntry.getAccountId());
+                preparedStatement.setString(2, ledgerEntry.getUserName());
+                preparedStatement.setObject(3, ledgerEntry.getAmountMinorUnits());
+                preparedStatement.setString(4, ledgerEntry.getDispensedNotes());
+                preparedStatement.setString(5, ledgerEntry.getStatus().name());
+                preparedStatement.setTimestamp(6, Timestamp.from(ledgerEntry.getCreatedAt()));
+            });
+            this.flushLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        } catch (RuntimeException exp) {
+            this.failedEntries.increment(batch.size());
+            this.logger.error("Failed to write " + batch.size() + " entries to the transaction ledger", exp);
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.data.service;
+
+import com.abcbank.utils.MinorUnits;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionOperations;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Group commit stage for account debits. Concurrent withdrawals queue their debit here, a single committer
+ * thread collects them into batches and applies each batch in one transaction.
+ * </p>
+ * Each debit is one conditional UPDATE guarded by the available funds, the debits of a batch are sent as one JDBC
+ * batch and the new balances of the debited accounts are read back with one query in the same transaction.
+ * The guard keeps a debit correct whatever was committed before it, so a debit never conflicts with a concurrent
+ * update and is never retried. The columns hold minor units, amounts and balances are converted with {@link MinorUnits}.
+ * A batch is committed when it reaches {@code atm.withdraw.batch.max-size} debits or when the first debit
+ * of the batch has waited {@code atm.withdraw.batch.max-linger-millis}. The new balances are appended to the
+ * {@link WithdrawalJournal} inside the transaction, before it commits, and a batch whose record can not be written
+ * is rolled back. Every caller gets the outcome of its own debit back once the batch is committed, a failure after
+ * the commit, such as applying the balances to the {@link AccountBalanceView}, does not change that outcome.
+ * <br>A caller waits at most {@code atm.withdraw.batch.wait-timeout-millis} to queue its debit and as long again for
+ * its outcome, it is called with the account lock held. A debit not yet taken by the committer when the wait ends,
+ * or when the batcher stops, is cancelled and fails, so the caller releases its reservation and the account lock.
+ * A debit already being committed is waited for once more, if it still has no outcome the caller fails and a commit
+ * arriving afterwards is logged for reconciliation.
+ *
+ * @author himanshuupadhyay
+ */
+@Component
+public class WithdrawalBatcher {
+
+    //@formatter:off
+    private static final String DEBIT_STATEMENT = "UPDATE BANK_ACCOUNT SET "
+            + "overdraft = CASE WHEN opening_balance >= ? THEN overdraft ELSE opening_balance + overdraft - ? END, "
+            + "opening_balance = CASE WHEN opening_balance >= ? THEN opening_balance - ? ELSE 0 END, "
+            + "version = version + 1 "
+            + "WHERE id = ? AND opening_balance + CASE WHEN ? THEN overdraft ELSE 0 END >= ?";
+    //@formatter:on
+
+    private static final String BALANCES_QUERY = "SELECT id, opening_balance, overdraft, version FROM BANK_ACCOUNT WHERE id IN ";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private TransactionOperations transactionOperations;
+
+    @Autowired
+    private WithdrawalJournal withdrawalJournal;
+
+    @Autowired
+    private AccountBalanceView accountBalanceView;
+
+    @Value("${atm.withdraw.batch.max-size:64}")
+    private int maxBatchSize = 64;
+
+    @Value("${atm.withdraw.batch.max-linger-millis:2}")
+    private long maxLingerMillis = 2;
+
+    @Value("${atm.withdraw.batch.queue-capacity:4096}")
+    private int queueCapacity = 4096;
+
+    @Value("${atm.withdraw.batch.wait-timeout-millis:10000}")
+    private long waitTimeoutMillis = 10000;
+
+    private final Logger logger = LogManager.getLogger(this.getClass());
+
+    private final DistributionSummary batchSize = Metrics.summary("atm.withdraw.batch.size");
+
+    private final Timer commitLatency = Metrics.timer("atm.withdraw.batch.commit");
+
+    private BlockingQueue<AccountDebit> pendingDebits;
+
+    private Thread committer;
+
+    private volatile boolean running;
+
+    @PostConstruct
+    public void start() {
+        this.pendingDebits = new ArrayBlockingQueue<>(this.queueCapacity);
+        this.running = true;
+        this.committer = new Thread(this::commitLoop, "atm-withdrawal-group-commit");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        this.running = false;
+        this.committer.interrupt();
+        this.committer.join(TimeUnit.SECONDS.toMillis(10));
+        //Debits the committer did not take are failed, their callers do not wait for the timeout.
+        this.cancelPendingDebits("The withdrawal batcher is stopped, the withdrawal is not debited");
+    }
+
+    /**
+     * <p>Debits the amount from the account if the account has the funds for it.
+     * Blocks until the batch holding this debit is committed, at most twice {@code atm.withdraw.batch.wait-timeout-millis}.</p>
+     *
+     * @param accountId    id of the account to be debited.
+     * @param amount       the amount to be withdrawn.
+     * @param useOverDraft if the overdraft may be used for the withdrawal.
+     * @return {@link DebitedAccount} with the balances after the debit, null if the account has not enough funds.
+     * @throws IllegalStateException if the debit could not be queued or committed in time, or the batcher is stopped.
+     */
+    public DebitedAccount debit(Long accountId, Long amount, Boolean useOverDraft) {
+        if (!this.running) {
+            throw new IllegalStateException("The withdrawal batcher is stopped, the withdrawal is not debited");
+        }
+        AccountDebit accountDebit = new AccountDebit(accountId, amount, useOverDraft);
+        try {
+            if (!this.pendingDebits.offer(accountDebit, this.waitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("The withdrawal queue stayed full for " + this.waitTimeoutMillis + " ms, the withdrawal is not debited");
+            }
+            //Stopped after the check, the debit may have missed the last drain of the queue.
+            if (!this.running) {
+                this.cancel(accountDebit, "The withdrawal batcher is stopped, the withdrawal is not debited");
+            }
+            return this.awaitOutcome(accountDebit);
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            this.cancel(accountDebit, "Interrupted while waiting for the withdrawal to be committed");
+            throw new IllegalStateException("Interrupted while waiting for the withdrawal to be committed", exp);
+        }
+    }
+
+    private DebitedAccount awaitOutcome(AccountDebit accountDebit) throws InterruptedException {
+        try {
+            try {
+                return accountDebit.outcome.get(this.waitTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException exp) {
+                if (this.cancel(accountDebit, "The withdrawal was not committed within " + this.waitTimeoutMillis + " ms, it is not debited")) {
+                    return accountDebit.outcome.get();
+                }
+            }
+            //The debit is being committed, its outcome is waited for once more.
+            try {
+                return accountDebit.outcome.get(this.waitTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException exp) {
+                accountDebit.outcome.completeExceptionally(new IllegalStateException("The commit of the withdrawal from account "
+                        + accountDebit.accountId + " did not finish within " + 2 * this.waitTimeoutMillis + " ms, its outcome is unknown"));
+                return accountDebit.outcome.get();
+            }
+        } catch (ExecutionException exp) {
+            if (exp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) exp.getCause();
+            }
+            throw new IllegalStateException(exp.getCause());
+        }
+    }
+
+    /**
+     * Fails the debit if the committer has not taken it yet.
+     *
+     * @return true if the debit was cancelled, false if it is being or has been committed.
+     */
+    private boolean cancel(AccountDebit accountDebit, String reason) {
+        if (!accountDebit.state.compareAndSet(AccountDebit.QUEUED, AccountDebit.CANCELLED)) {
+            return false;
+        }
+        this.pendingDebits.remove(accountDebit);
+        accountDebit.outcome.completeExceptionally(new IllegalStateException(reason));
+        return true;
+    }
+
+    private void cancelPendingDebits(String reason) {
+        List<AccountDebit> pending = new ArrayList<>();
+        this.pendingDebits.drainTo(pending);
+        pending.forEach(accountDebit -> this.cancel(accountDebit, reason));
+    }
+
+    private void commitLoop() {
+        try {
+            List<AccountDebit> batch = new ArrayList<>(this.maxBatchSize);
+            while (this.running || !this.pendingDebits.isEmpty()) {
+                try {
+                    AccountDebit first = this.pendingDebits.poll(100, TimeUnit.MILLISECONDS);
+                    if (Objects.isNull(first) || !first.claim()) {
+                        continue;
+                    }
+                    batch.add(first);
+                    long lingerDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.maxLingerMillis);
+                    while (batch.size() < this.maxBatchSize) {
+                        long lingerNanos = lingerDeadline - System.nanoTime();
+                        AccountDebit next = lingerNanos > 0 ? this.pendingDebits.poll(lingerNanos, TimeUnit.NANOSECONDS) : this.pendingDebits.poll();
+                        if (Objects.isNull(next)) {
+                            break;
+                        }
+                        //A cancelled debit has already failed its caller.
+                        if (next.claim()) {
+                            batch.add(next);
+                        }
+                    }
+                } catch (InterruptedException exp) {
+                    //Stopping, the debits already collected are committed and the queue is drained without waiting.
+                }
+                if (!batch.isEmpty()) {
+                    this.commit(batch);
+                    batch.clear();
+                }
+            }
+        } finally {
+            if (this.running) {
+                this.running = false;
+                this.logger.error("The withdrawal group commit thread stopped unexpectedly, withdrawals are rejected");
+                this.cancelPendingDebits("The withdrawal group commit thread stopped, the withdrawal is not debited");
+            }
+        }
+    }
+
+    private void commit(List<AccountDebit> batch) {
+        this.batchSize.record(batch.size());
+        long start = System.nanoTime();
+        DebitedAccount[] debitedAccounts;
+        try {
+            debitedAccounts = this.transactionOperations.execute(status -> {
+                DebitedAccount[] debited = this.debitAll(batch);
+                this.journal(batch, debited);
+                return debited;
+            });
+        } catch (RuntimeException | Error exp) {
+            //Not committed, neither the debits nor a journal record of them survive.
+            batch.forEach(accountDebit -> accountDebit.outcome.completeExceptionally(exp));
+            if (exp instanceof Error) {
+                throw (Error) exp;
+            }
+            return;
+        }
+        this.commitLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        for (int index = 0; index < batch.size(); index++) {
+            DebitedAccount debitedAccount = debitedAccounts[index];
+            if (Objects.nonNull(debitedAccount)) {
+                try {
+                    this.accountBalanceView.applyDebit(batch.get(index).accountId, debitedAccount.getOpeningBalance(),
+                            debitedAccount.getOverdraft(), debitedAccount.getVersion());
+                } catch (RuntimeException exp) {
+                    this.logger.error("Failed to apply the committed debit of account " + batch.get(index).accountId + " to the balance view", exp);
+                }
+            }
+            if (!batch.get(index).outcome.complete(debitedAccount)) {
+                this.logger.error("The withdrawal of " + batch.get(index).amount + " from account " + batch.get(index).accountId
+                        + " was committed after its caller stopped waiting, " + (Objects.nonNull(debitedAccount) ? "the account was debited" : "the account was not debited"));
+            }
+        }
+    }
+
+    /**
+     * Appends the balances of the debited accounts of the batch to the {@link WithdrawalJournal} as one record.
+     */
+    private void journal(List<AccountDebit> batch, DebitedAccount[] debitedAccounts) {
+        if (!this.withdrawalJournal.isEnabled()) {
+            return;
+        }
+        long[] accounts = new long[batch.size() * BalanceSnapshot.ACCOUNT_FIELDS];
+        int field = 0;
+        for (int index = 0; index < batch.size(); index++) {
+            DebitedAccount debitedAccount = debitedAccounts[index];
+            if (Objects.nonNull(debitedAccount)) {
+                accounts[field++] = batch.get(index).accountId;
+                accounts[field++] = MinorUnits.toMinorUnits(debitedAccount.getOpeningBalance());
+                accounts[field++] = MinorUnits.toMinorUnits(debitedAccount.getOverdraft());
+                accounts[field++] = debitedAccount.getVersion();
+            }
+        }
+        this.withdrawalJournal.appendAccounts(Arrays.copyOf(accounts, field));
+    }
+
+    /**
+     * <p>Sends the debits of the batch as one JDBC batch and reads the balances of the debited accounts back.</p>
+     * An account is debited at most once per batch, its withdrawals are serialised by the account lock.
+     *
+     * @param batch debits to apply.
+     * @return for every debit the balances after it, null where the guard failed and the account has not enough funds.
+     */
+    private DebitedAccount[] debitAll(List<AccountDebit> batch) {
+        int[][] updateCounts = this.jdbcTemplate.batchUpdate(DEBIT_STATEMENT, batch, batch.size(), (preparedStatement, accountDebit) -> {
+            long amount = MinorUnits.toMinorUnits(accountDebit.amount);
+            preparedStatement.setLong(1, amount);
+            preparedStatement.setLong(2, amount);
+            preparedStatement.setLong(3, amount);
+            preparedStatement.setLong(4, amount);
+            preparedStatement.setLong(5, accountDebit.accountId);
+            preparedStatement.setBoolean(6, accountDebit.useOverDraft);
+            preparedStatement.setLong(7, amount);
+        });
+        List<Long> debitedIds = new ArrayList<>(batch.size());
+        for (int index = 0; index < batch.size(); index++) {
+            //No row means the guard failed, the account has not enough funds.
+            if (updateCounts[0][index] != 0) {
+                debitedIds.add(batch.get(index).accountId);
+            }
+        }
+        DebitedAccount[] debited = new DebitedAccount[batch.size()];
+        if (debitedIds.isEmpty()) {
+            return debited;
+        }
+        Map<Long, DebitedAccount> balances = new HashMap<>();
+        this.jdbcTemplate.query(BALANCES_QUERY + "(" + String.join(", ", Collections.nCopies(debitedIds.size(), "?")) + ")", preparedStatement -> {
+            for (int index = 0; index < debitedIds.size(); index++) {
+                preparedStatement.setLong(index + 1, debitedIds.get(index));
+            }
+        }, (RowCallbackHandler) resultSet -> balances.put(resultSet.getLong(1), new DebitedAccount(MinorUnits.toUnits(resultSet.getLong(2)),
+                MinorUnits.toUnits(resultSet.getLong(3)), resultSet.getLong(4))));
+        for (int index = 0; index < batch.size(); index++) {
+            if (updateCounts[0][index] != 0) {
+                debited[index] = balances.get(batch.get(index).accountId);
+            }
+        }
+        return debited;
+    }
+
+    /**
+     * Balances of an account after a committed debit.
+     */
+    public static final class DebitedAccount {
+        private final Long openingBalance;
+        private final Long overdraft;
+        private final Long version;
+
+        public DebitedAccount(Long openingBalance, Long overdraft, Long version) {
+            this.openingBalance = openingBalance;
+            this.overdraft = overdraft;
+            this.version = version;
+        }
+
+        public Long getOpeningBalance() {
+            return this.openingBalance;
+        }
+
+        public Long getOverdraft() {
+            return this.overdraft;
+        }
+
+        public Long getVersion() {
+            return this.version;
+        }
+    }
+
+    /**
+     * A debit waiting to be group committed. Either the committer claims it or its caller cancels it, never both.
+     */
+    private static final class AccountDebit {
+        private static final int QUEUED = 0;
+        private static final int CLAIMED = 1;
+        private static final int CANCELLED = 2;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private final Long accountId;
+        private final Long amount;
+        private final Boolean useOverDraft;
+        private final CompletableFuture<DebitedAccount> outcome = new CompletableFuture<>();
+
+        private AccountDebit(Long accountId, Long amount, Boolean useOverDraft) {
+            this.accountId = accountId;
+            this.amount = amount;
+            this.useOverDraft = useOverDraft;
+        }
+
+        private boolean claim() {
+            return this.state.compareAndSet(QUEUED, CLAIMED);
+        }
+    }
+}
@@ -0,0 +1,619 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.data.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.sql.init.dependency.DependsOnDatabaseInitialization;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * Write ahead journal of withdrawals. A debit batch appends the balances of its accounts and a dispense
+ * appends the note counts of its denominations, all with their row version, as one record inside the
+ * transaction making the change. The record is forced to disk before the transaction commits, and if the
+ * transaction does not commit an abort record is appended, so replay skips the batch.
+ * </p>
+ * Records are appended to memory mapped segment files of {@code atm.journal.segment-size-bytes} in
+ * {@code atm.journal.directory}. Every segment starts with a magic number and the format version, segments
+ * of another format are refused on startup. Format 2 holds balances in minor units, format 1 segments had
+ * no header and held whole units.
+ * <br>Every {@code atm.journal.snapshot-interval-millis} a {@link BalanceSnapshot} of the balances and note
+ * counts is written and the journal rolls to a new segment. Segments older than the oldest retained snapshot
+ * are deleted.
+ * <br>Every snapshot is recorded in the JOURNAL_CHECKPOINT table. On startup, if the checkpoint names the latest
+ * snapshot the tables already hold it, as a persistent database does, and only the segments written after it are
+ * replayed, so startup time grows with the journal tail and not with the number of accounts. Otherwise, as for the
+ * in memory database recreated from the schema scripts, the latest valid snapshot is applied to the BANK_ACCOUNT
+ * and ATM tables first. A row is updated only if its version is older, so restoring state that already reached
+ * the database changes nothing.
+ * <br>The journal is disabled unless {@code atm.journal.enabled} is set, appends are then ignored.
+ *
+ * @author himanshuupadhyay
+ */
+@Component
+@DependsOnDatabaseInitialization
+public class WithdrawalJournal {
+
+    private static final String REPLAY_ACCOUNT_STATEMENT = "UPDATE BANK_ACCOUNT SET opening_balance = ?, overdraft = ?, version = ? WHERE id = ? AND version < ?";
+
+    private static final String REPLAY_DENOMINATION_STATEMENT = "UPDATE ATM SET currency_count = ?, version = ? WHERE id = ? AND version < ?";
+
+    private static final String SNAPSHOT_ACCOUNTS_QUERY = "SELECT id, opening_balance, overdraft, version FROM BANK_ACCOUNT ORDER BY id";
+
+    private static final String SNAPSHOT_DENOMINATIONS_QUERY = "SELECT id, currency_count, version FROM ATM ORDER BY id";
+
+    private static final String CHECKPOINT_QUERY = "SELECT snapshot_segment FROM JOURNAL_CHECKPOINT WHERE id = 1";
+
+    private static final String CHECKPOINT_STATEMENT = "MERGE INTO JOURNAL_CHECKPOINT (id, snapshot_segment) KEY (id) VALUES (1, ?)";
+
+    private static final String SEGMENT_PREFIX = "withdrawals-";
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final String SNAPSHOT_PREFIX = "balances-";
+
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    private static final int RETAINED_SNAPSHOTS = 2;
+
+    private static final int RESTORE_BATCH_SIZE = 1000;
+
+    private static final int SEGMENT_MAGIC = 0x41544d4a;
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final int SEGMENT_HEADER_BYTES = 2 * Integer.BYTES;
+
+    /**
+     * Length and checksum in front of every record, a zero length marks the end of the segment.
+     */
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    /**
+     * Record type, row count and then {@link BalanceSnapshot#ACCOUNT_FIELDS} longs per account.
+     */
+    private static final byte ACCOUNT_RECORD = 1;
+
+    /**
+     * Record type, row count and then {@link BalanceSnapshot#DENOMINATION_FIELDS} longs per denomination.
+     */
+    private static final byte DENOMINATION_RECORD = 2;
+
+    /**
+     * Record type and the position of the record whose transaction did not commit.
+     */
+    private static final byte ABORT_RECORD = 3;
+
+    private static final int ROWS_RECORD_BYTES = 1 + Integer.BYTES;
+
+    private static final int ABORT_RECORD_BYTES = 1 + Long.BYTES;
+
+    private final Logger logger = LogManager.getLogger(this.getClass());
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${atm.journal.enabled:false}")
+    private boolean enabled = false;
+
+    @Value("${atm.journal.directory:journal}")
+    private String directory = "journal";
+
+    @Value("${atm.journal.segment-size-bytes:16777216}")
+    private int segmentSizeBytes = 16 * 1024 * 1024;
+
+    @Value("${atm.journal.snapshot-interval-millis:300000}")
+    private long snapshotIntervalMillis = 300000;
+
+    private final Counter appendedRecords = Metrics.counter("atm.journal.appends");
+
+    private final Counter replayedRecords = Metrics.counter("atm.journal.replayed");
+
+    private final Counter abortedRecords = Metrics.counter("atm.journal.aborts");
+
+    private final Timer fsyncLatency = Metrics.timer("atm.journal.fsync");
+
+    private final Timer snapshotLatency = Metrics.timer("atm.journal.snapshot");
+
+    private final Timer recoveryLatency = Metrics.timer("atm.journal.recovery");
+
+    private final CRC32 checksum = new CRC32();
+
+    private Path journalDirectory;
+
+    private long segmentIndex;
+
+    private FileChannel segmentChannel;
+
+    private MappedByteBuffer segment;
+
+    /**
+     * Positions of the records whose transaction has not completed yet, guarded by this journal.
+     */
+    private final NavigableSet<Long> openPositions = new TreeSet<>();
+
+    private ScheduledExecutorService snapshotWorker;
+
+    private volatile boolean running;
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!this.enabled) {
+            return;
+        }
+        this.journalDirectory = Paths.get(this.directory);
+        Files.createDirectories(this.journalDirectory);
+        long start = System.nanoTime();
+        long tailSegment = this.restoreSnapshot();
+        List<Path> segments = this.listFiles(SEGMENT_PREFIX, SEGMENT_SUFFIX).stream()
+                .filter(segmentPath -> indexOf(segmentPath, SEGMENT_PREFIX, SEGMENT_SUFFIX) >= tailSegment).collect(Collectors.toList());
+        this.replay(segments);
+        this.recoveryLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        this.segmentIndex = segments.isEmpty() ? tailSegment : indexOf(segments.get(segments.size() - 1), SEGMENT_PREFIX, SEGMENT_SUFFIX) + 1;
+        this.openSegment();
+        this.running = true;
+        this.snapshotWorker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "atm-journal-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (this.snapshotIntervalMillis > 0) {
+            this.snapshotWorker.scheduleWithFixedDelay(this::writeScheduledSnapshot, this.snapshotIntervalMillis, this.snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException, IOException {
+        if (!this.running) {
+            return;
+        }
+        this.running = false;
+        this.snapshotWorker.shutdown();
+        this.snapshotWorker.awaitTermination(10, TimeUnit.SECONDS);
+        synchronized (this) {
+            this.segmentChannel.close();
+        }
+    }
+
+    /**
+     * <p>Appends the balances of the accounts changed by a transaction and forces them to disk. Must be called
+     * inside the transaction, before it commits. If the transaction then does not commit the record is aborted.</p>
+     *
+     * @param accounts id, opening balance, overdraft and version of every account after the change,
+     *                 {@link BalanceSnapshot#ACCOUNT_FIELDS} longs per account, balances in minor units as stored.
+     * @return position of the record, -1 if the journal is disabled.
+     * @throws UncheckedIOException if the record can not be written, the transaction must not commit then.
+     */
+    public long appendAccounts(long[] accounts) {
+        return this.appendRows(ACCOUNT_RECORD, accounts, BalanceSnapshot.ACCOUNT_FIELDS);
+    }
+
+    /**
+     * <p>Appends the note counts of the denominations changed by a transaction and forces them to disk. Must be
+     * called inside the transaction, before it commits. If the transaction then does not commit the record is aborted.</p>
+     *
+     * @param denominations id, note count and version of every denomination after the change,
+     *                      {@link BalanceSnapshot#DENOMINATION_FIELDS} longs per denomination.
+     * @return position of the record, -1 if the journal is disabled.
+     * @throws UncheckedIOException if the record can not be written, the transaction must not commit then.
+     */
+    public long appendDenominations(long[] denominations) {
+        return this.appendRows(DENOMINATION_RECORD, denominations, BalanceSnapshot.DENOMINATION_FIELDS);
+    }
+
+    /**
+     * <p>Marks a record as not committed, replay skips it.</p>
+     *
+     * @param position position of the record as returned by the append.
+     */
+    public void abort(long position) {
+        if (!this.enabled || position < 0) {
+            return;
+        }
+        synchronized (this) {
+            MappedByteBuffer buffer = this.reserve(ABORT_RECORD_BYTES);
+            int recordStart = buffer.position();
+            buffer.position(recordStart + RECORD_HEADER_BYTES);
+            buffer.put(ABORT_RECORD).putLong(position);
+            this.completeRecord(buffer, recordStart, ABORT_RECORD_BYTES);
+        }
+        this.abortedRecords.increment();
+    }
+
+    private long appendRows(byte recordType, long[] rows, int fieldsPerRow) {
+        if (!this.enabled || rows.length == 0) {
+            return -1;
+        }
+        long position;
+        synchronized (this) {
+            MappedByteBuffer buffer = this.reserve(ROWS_RECORD_BYTES + rows.length * Long.BYTES);
+            int recordStart = buffer.position();
+            position = this.segmentIndex << 32 | recordStart;
+            buffer.position(recordStart + RECORD_HEADER_BYTES);
+            buffer.put(recordType).putInt(rows.length / fieldsPerRow);
+            for (long field : rows) {
+                buffer.putLong(field);
+            }
+            this.completeRecord(buffer, recordStart, ROWS_RECORD_BYTES + rows.length * Long.BYTES);
+            if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+                return position;
+            }
+            this.openPositions.add(position);
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                complete(position, status == TransactionSynchronization.STATUS_COMMITTED);
+            }
+        });
+        return position;
+    }
+
+    private void complete(long position, boolean committed) {
+        try {
+            if (!committed) {
+                this.abort(position);
+            }
+        } catch (RuntimeException exp) {
+            this.logger.error("Failed to abort withdrawal journal record " + position + ", replay will apply it although it was rolled back", exp);
+        } finally {
+            synchronized (this) {
+                this.openPositions.remove(position);
+            }
+        }
+    }
+
+    /**
+     * <p>Rolls the journal to a new segment and writes a {@link BalanceSnapshot} of the tables, streamed
+     * straight from the database. Segments and snapshots no longer needed for recovery are deleted.</p>
+     *
+     * @return the snapshot file.
+     * @throws IOException if the snapshot can not be written.
+     */
+    public Path writeSnapshot() throws IOException {
+        if (!this.running) {
+            throw new IllegalStateException("The withdrawal journal is not enabled");
+        }
+        long tailSegment;
+        synchronized (this) {
+            //Everything committed before the roll is in the tables when they are read below. A transaction still open
+            //may commit after the tables are read, so replay has to start at the segment of its record.
+            this.rollSegment();
+            tailSegment = this.openPositions.isEmpty() ? this.segmentIndex : this.openPositions.first() >>> 32;
+        }
+        long start = System.nanoTime();
+        Path snapshotPath = this.journalDirectory.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, tailSegment, SNAPSHOT_SUFFIX));
+        try (BalanceSnapshot.Writer writer = new BalanceSnapshot.Writer(snapshotPath, tailSegment)) {
+            this.jdbcTemplate.query(SNAPSHOT_ACCOUNTS_QUERY, (RowCallbackHandler) resultSet -> {
+                try {
+                    writer.addAccount(resultSet.getLong(1), resultSet.getLong(2), resultSet.getLong(3), resultSet.getLong(4));
+                } catch (IOException exp) {
+                    throw new UncheckedIOException(exp);
+                }
+            });
+            this.jdbcTemplate.query(SNAPSHOT_DENOMINATIONS_QUERY, (RowCallbackHandler) resultSet -> {
+                try {
+                    writer.addDenomination(resultSet.getLong(1), resultSet.getLong(2), resultSet.getLong(3));
+                } catch (IOException exp) {
+                    throw new UncheckedIOException(exp);
+                }
+            });
+            writer.commit();
+        } catch (UncheckedIOException exp) {
+            throw exp.getCause();
+        }
+        //Written after the snapshot is in place, the tables hold everything the snapshot holds as it was read from them.
+        this.jdbcTemplate.update(CHECKPOINT_STATEMENT, tailSegment);
+        this.snapshotLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        this.deleteExpiredFiles();
+        return snapshotPath;
+    }
+
+    /**
+     * @return true if appends are written to the journal.
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Returns the buffer of the current segment with room for the record, rolling to a new segment if it is full.
+     */
+    private MappedByteBuffer reserve(int payloadBytes) {
+        if (RECORD_HEADER_BYTES + payloadBytes > this.segmentSizeBytes - SEGMENT_HEADER_BYTES) {
+            throw new IllegalArgumentException("A journal record of " + payloadBytes + " bytes does not fit into a segment of " + this.segmentSizeBytes + " bytes");
+        }
+        if (this.segment.remaining() < RECORD_HEADER_BYTES + payloadBytes) {
+            this.rollSegment();
+        }
+        return this.segment;
+    }
+
+    /**
+     * Forces and closes the current segment and continues in a new one, must be called holding this journal.
+     */
+    private void rollSegment() {
+        try {
+            this.segmentChannel.close();
+            this.segmentIndex++;
+            this.openSegment();
+        } catch (IOException exp) {
+            throw new UncheckedIOException("Failed to roll the withdrawal journal segment", exp);
+        }
+    }
+
+    /**
+     * Writes the checksum and then the length, so a record torn by a crash is never read as complete,
+     * and forces the segment to disk.
+     */
+    private void completeRecord(MappedByteBuffer buffer, int recordStart, int payloadBytes) {
+        this.checksum.reset();
+        for (int index = recordStart + RECORD_HEADER_BYTES; index < recordStart + RECORD_HEADER_BYTES + payloadBytes; index++) {
+            this.checksum.update(buffer.get(index));
+        }
+        buffer.putInt(recordStart + Integer.BYTES, (int) this.checksum.getValue());
+        buffer.putInt(recordStart, payloadBytes);
+        long start = System.nanoTime();
+        buffer.force();
+        this.fsyncLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        this.appendedRecords.increment();
+    }
+
+    private void writeScheduledSnapshot() {
+        try {
+            this.writeSnapshot();
+        } catch (IOException | RuntimeException exp) {
+            this.logger.error("Failed to write the balance snapshot", exp);
+        }
+    }
+
+    private void openSegment() throws IOException {
+        Path segmentPath = this.journalDirectory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, this.segmentIndex, SEGMENT_SUFFIX));
+        this.segmentChannel = FileChannel.open(segmentPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.segment = this.segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSizeBytes);
+        //Forced with the first record, a segment left all zeros by a crash is read as empty.
+        this.segment.putInt(SEGMENT_MAGIC).putInt(FORMAT_VERSION);
+    }
+
+    /**
+     * Keeps the newest snapshots and the segments written after the oldest of them.
+     */
+    private void deleteExpiredFiles() throws IOException {
+        List<Path> snapshots = this.listFiles(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        if (snapshots.size() < RETAINED_SNAPSHOTS) {
+            return;
+        }
+        for (int index = 0; index < snapshots.size() - RETAINED_SNAPSHOTS; index++) {
+            Files.deleteIfExists(snapshots.get(index));
+        }
+        long oldestTailSegment = indexOf(snapshots.get(snapshots.size() - RETAINED_SNAPSHOTS), SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        for (Path segmentPath : this.listFiles(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (indexOf(segmentPath, SEGMENT_PREFIX, SEGMENT_SUFFIX) < oldestTailSegment) {
+                Files.deleteIfExists(segmentPath);
+            }
+        }
+    }
+
+    private List<Path> listFiles(String prefix, String suffix) throws IOException {
+        try (Stream<Path> paths = Files.list(this.journalDirectory)) {
+            return paths.filter(path -> path.getFileName().toString().startsWith(prefix) && path.getFileName().toString().endsWith(suffix))
+                    .sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static long indexOf(Path path, String prefix, String suffix) {
+        String fileName = path.getFileName().toString();
+        return Long.parseLong(fileName.substring(prefix.length(), fileName.length() - suffix.length()));
+    }
+
+    /**
+     * <p>Applies the newest readable snapshot to the tables, skipping snapshots which are incomplete or corrupt.
+     * Nothing is read or applied if the checkpoint shows the tables already hold the newest snapshot.</p>
+     *
+     * @return the journal segment replay starts from, 0 if there is no snapshot.
+     */
+    private long restoreSnapshot() throws IOException {
+        List<Path> snapshots = this.listFiles(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        if (snapshots.isEmpty()) {
+            return 0;
+        }
+        long latestSegment = indexOf(snapshots.get(snapshots.size() - 1), SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        List<Long> checkpoint = this.jdbcTemplate.queryForList(CHECKPOINT_QUERY, Long.class);
+        if (!checkpoint.isEmpty() && checkpoint.get(0) == latestSegment) {
+            this.logger.info("Tables hold balance snapshot " + snapshots.get(snapshots.size() - 1) + ", replaying the journal from segment " + latestSegment);
+            return latestSegment;
+        }
+        for (int index = snapshots.size() - 1; index >= 0; index--) {
+            BalanceSnapshot snapshot = BalanceSnapshot.read(snapshots.get(index));
+            if (Objects.isNull(snapshot)) {
+                this.logger.warn("Skipping unreadable balance snapshot " + snapshots.get(index));
+                continue;
+            }
+            long[] accounts = snapshot.getAccounts();
+            List<Object[]> rows = new ArrayList<>(RESTORE_BATCH_SIZE);
+            for (int field = 0; field < accounts.length; field += BalanceSnapshot.ACCOUNT_FIELDS) {
+                rows.add(new Object[]{accounts[field + 1], accounts[field + 2], accounts[field + 3], accounts[field], accounts[field + 3]});
+                if (rows.size() == RESTORE_BATCH_SIZE) {
+                    this.jdbcTemplate.batchUpdate(REPLAY_ACCOUNT_STATEMENT, rows);
+                    rows = new ArrayList<>(RESTORE_BATCH_SIZE);
+                }
+            }
+            if (!rows.isEmpty()) {
+                this.jdbcTemplate.batchUpdate(REPLAY_ACCOUNT_STATEMENT, rows);
+            }
+            long[] denominations = snapshot.getDenominations();
+            rows = new ArrayList<>();
+            for (int field = 0; field < denominations.length; field += BalanceSnapshot.DENOMINATION_FIELDS) {
+                rows.add(new Object[]{(int) denominations[field + 1], denominations[field + 2], denominations[field], denominations[field + 2]});
+            }
+            if (!rows.isEmpty()) {
+                this.jdbcTemplate.batchUpdate(REPLAY_DENOMINATION_STATEMENT, rows);
+            }
+            this.jdbcTemplate.update(CHECKPOINT_STATEMENT, snapshot.getJournalSegment());
+            this.logger.info("Restored balance snapshot " + snapshots.get(index) + " : " + accounts.length / BalanceSnapshot.ACCOUNT_FIELDS
+                    + " accounts, " + denominations.length / BalanceSnapshot.DENOMINATION_FIELDS + " denominations");
+            return snapshot.getJournalSegment();
+        }
+        return 0;
+    }
+
+    /**
+     * <p>Applies the latest journaled state of every account and denomination to the tables, skipping aborted records.
+     * Reading a segment stops at its end or at the first incomplete or corrupt record.</p>
+     *
+     * @param segments segment files in append order.
+     * @throws IllegalStateException if a segment was written in another format.
+     */
+    private void replay(List<Path> segments) throws IOException {
+        Map<Long, long[]> rowRecords = new LinkedHashMap<>();
+        Map<Long, Byte> rowRecordTypes = new LinkedHashMap<>();
+        Set<Long> abortedPositions = new HashSet<>();
+        for (Path segmentPath : segments) {
+            long segmentIndex = indexOf(segmentPath, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+            try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.remaining() < SEGMENT_HEADER_BYTES) {
+                    continue;
+                }
+                int magic = buffer.getInt();
+                int formatVersion = buffer.getInt();
+                if (magic == 0 && formatVersion == 0) {
+                    //Created but nothing forced to it before a crash.
+                    continue;
+                }
+                if (magic != SEGMENT_MAGIC || formatVersion != FORMAT_VERSION) {
+                    throw new IllegalStateException("Withdrawal journal segment " + segmentPath + " is not in journal format " + FORMAT_VERSION
+                            + ", it was written by an older version holding whole units and can not be replayed");
+                }
+                while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+                    long position = segmentIndex << 32 | buffer.position();
+                    int payloadBytes = buffer.getInt();
+                    int expectedChecksum = buffer.getInt();
+                    if (payloadBytes <= 0 || payloadBytes > buffer.remaining() || !this.checksumMatches(buffer, payloadBytes, expectedChecksum)) {
+                        break;
+                    }
+                    byte recordType = buffer.get();
+                    if (recordType == ACCOUNT_RECORD || recordType == DENOMINATION_RECORD) {
+                        long[] rows = new long[buffer.getInt() * (recordType == ACCOUNT_RECORD ? BalanceSnapshot.ACCOUNT_FIELDS : BalanceSnapshot.DENOMINATION_FIELDS)];
+                        for (int field = 0; field < rows.length; field++) {
+                            rows[field] = buffer.getLong();
+                        }
+                        rowRecords.put(position, rows);
+                        rowRecordTypes.put(position, recordType);
+                    } else if (recordType == ABORT_RECORD) {
+                        abortedPositions.add(buffer.getLong());
+                    } else {
+                        break;
+                    }
+                }
+            }
+        }
+        Map<Long, Object[]> accounts = new LinkedHashMap<>();
+        Map<Long, Object[]> denominations = new LinkedHashMap<>();
+        long records = 0;
+        for (Map.Entry<Long, long[]> rowRecord : rowRecords.entrySet()) {
+            if (abortedPositions.contains(rowRecord.getKey())) {
+                continue;
+            }
+            long[] rows = rowRecord.getValue();
+            if (rowRecordTypes.get(rowRecord.getKey()) == ACCOUNT_RECORD) {
+                for (int field = 0; field < rows.length; field += BalanceSnapshot.ACCOUNT_FIELDS) {
+                    long accountId = rows[field];
+                    long version = rows[field + 3];
+                    accounts.merge(accountId, new Object[]{rows[field + 1], rows[field + 2], version, accountId, version}, WithdrawalJournal::latestVersion);
+                }
+            } else {
+                for (int field = 0; field < rows.length; field += BalanceSnapshot.DENOMINATION_FIELDS) {
+                    long denominationId = rows[field];
+                    long version = rows[field + 2];
+                    denominations.merge(denominationId, new Object[]{(int) rows[field + 1], version, denominationId, version}, WithdrawalJournal::latestVersion);
+                }
+            }
+            records++;
+        }
+        if (!accounts.isEmpty()) {
+            this.jdbcTemplate.batchUpdate(REPLAY_ACCOUNT_STATEMENT, new ArrayList<>(accounts.values()));
+        }
+        if (!denominations.isEmpty()) {
+            this.jdbcTemplate.batchUpdate(REPLAY_DENOMINATION_STATEMENT, new ArrayList<>(denominations.values()));
+        }
+        this.replayedRecords.increment(records);
+        this.logger.info("Replayed " + records + " withdrawal journal records from " + segments.size() + " segments, skipped "
+                + abortedPositions.size() + " aborted : " + accounts.size() + " accounts, " + denominations.size() + " denominations");
+    }
+
+    /**
+     * Keeps the replay row with the higher version, the version is the last parameter of both statements.
+     */
+    private static Object[] latestVersion(Object[] journaled, Object[] appended) {
+        return (long) appended[appended.length - 1] >= (long) journaled[journaled.length - 1] ? appended : journaled;
+    }
+
+    private boolean checksumMatches(MappedByteBuffer buffer, int payloadBytes, int expectedChecksum) {
+        this.checksum.reset();
+        for (int index = buffer.position(); index < buffer.position() + payloadBytes; index++) {
+            this.checksum.update(buffer.get(index));
+        }
+        return (int) this.checksum.getValue() == expectedChecksum;
+    }
+}
@@ -33,7 +33,11 @@ public enum ATMInventoryStatus {
 
     DENOMINATION_NOT_AVAILABLE("requested denomination is not available", "Indicates if requested denomination is not available"),
 
-    DENOMINATION_COUNT_NOT_AVAILABLE("requested denomination count is not available", "Indicates if requested denomination count is not available");
+    DENOMINATION_COUNT_NOT_AVAILABLE("requested denomination count is not available", "Indicates if requested denomination count is not available"),
+
+    RESERVATION_NOT_FOUND("requested reservation is not found", "Indicates if the reservation does not exist, was released or has expired"),
+
+    AMOUNT_NOT_DISPENSABLE("requested amount can not be dispensed", "Indicates if the requested amount can not be made up from the notes in atm");
     //@formatter:on
     private final String name;
     private final String description;
@@ -29,8 +29,10 @@ package com.abcbank.enums;
 public enum WithDrawStatus {
     SUCCESS("withdrawn successfully", "Indicates if the amount is withdrawn from account successfully"),
     INVALID_PIN("invalid pin", "Indicates if the atm pin is incorrect."),
+    PIN_LOCKED("pin locked", "Indicates if the account or the terminal is locked after too many incorrect pins."),
     LOW_BALANCE_IN_ACCOUNT("low_balance", "Indicates if the amount in account is insufficient than requested amount"),
     LOW_BALANCE_IN_ATM("low_balance_in_atm", "Indicates if the amount in atm is insufficient than requested amount"),
+    FAILED("failed", "Indicates if the withdrawal ended with an error, nothing is dispensed."),
 
     INVALID_REQUEST_AMOUNT("invalid request amount", "Indicates if the amount requested is 0 or -ive");
 
@@ -26,9 +26,13 @@
 
 package com.abcbank.exception.handler;
 
+import com.abcbank.constant.StringConstants;
+import com.abcbank.exception.custom_exceptions.AccountNotOwnedException;
+import com.abcbank.exception.custom_exceptions.TerminalNotFoundException;
 import com.abcbank.exception.formatter.APIError;
 import org.springframework.core.Ordered;
 import org.springframework.core.annotation.Order;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -38,6 +42,7 @@ import org.springframework.validation.ObjectError;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.MissingServletRequestParameterException;
 import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.servlet.mvc.method.annotation.ResponseEntityExceptionHandler;
 
@@ -88,6 +93,41 @@ public class RestExceptionHandler extends ResponseEntityExceptionHandler {
         return buildResponseEntity(new APIError(HttpStatus.BAD_REQUEST, errors.toString(), ex));
     }
 
+    /**
+     * Handles writes of ATM counts read at an older version of the ATM rows than the one cached, the
+     * conflicts are counted as {@code atm.inventory.conflicts}. Withdrawals debit accounts and ATM rows with
+     * relative updates and do not end up here.
+     *
+     * @param ex
+     * @return
+     */
+    @ExceptionHandler(OptimisticLockingFailureException.class)
+    protected ResponseEntity<Object> handleOptimisticLockingFailure(OptimisticLockingFailureException ex) {
+        String error = "ATM inventory was updated concurrently, please retry";
+        return buildResponseEntity(new APIError(HttpStatus.CONFLICT, error, ex));
+    }
+
+    /**
+     * Handles requests for a terminal which has no rows in the ATM table.
+     *
+     * @param ex
+     * @return
+     */
+    @ExceptionHandler(TerminalNotFoundException.class)
+    protected ResponseEntity<Object> handleTerminalNotFound(TerminalNotFoundException ex) {
+        return buildResponseEntity(new APIError(HttpStatus.NOT_FOUND, StringConstants.TerminalNotFound, ex));
+    }
+
+    /**
+     * Handles partition requests for an account owned by another node.
+     *
+     * @param ex
+     * @return
+     */
+    @ExceptionHandler(AccountNotOwnedException.class)
+    protected ResponseEntity<Object> handleAccountNotOwned(AccountNotOwnedException ex) {
+        return buildResponseEntity(new APIError(HttpStatus.CONFLICT, StringConstants.AccountNotOwned, ex));
+    }
 
     private ResponseEntity<Object> buildResponseEntity(APIError apiError) {
         return new ResponseEntity<>(apiError, apiError.getStatus());
@@ -29,9 +29,11 @@ package com.abcbank.service.bussiness.atm;
 import com.abcbank.data.dto.ATMInventory;
 import com.abcbank.data.dto.CurrencyDispense;
 import com.abcbank.data.dto.DispenseDetails;
+import com.abcbank.data.dto.DispenseReservation;
 import com.abcbank.data.entity.DenominationDetail;
 
 import java.util.List;
+import java.util.Set;
 
 /**
  * <p>
@@ -39,6 +41,8 @@ import java.util.List;
  * ATMService should allow the user to get the ATM inventory, Check if the requested amount can be
  * dispensed from the ATM and dispense the amount.
  * </p>
+ * Every terminal has its own inventory. Methods without a terminal id work on the default terminal
+ * {@link com.abcbank.constant.StringConstants#DefaultTerminalId}, a null terminal id means the default terminal too.
  */
 public interface ATMService {
 
@@ -49,6 +53,15 @@ public interface ATMService {
      */
     List<DenominationDetail> getATMInventory();
 
+    /**
+     * Fetch all the denomination details available in the terminal.
+     *
+     * @param terminalId id of the ATM terminal.
+     * @return {@link DenominationDetail} of all available denomination in the terminal.
+     * @throws com.abcbank.exception.custom_exceptions.TerminalNotFoundException if the terminal has no denominations.
+     */
+    List<DenominationDetail> getATMInventory(String terminalId);
+
     /**
      * <p>
      * Returns Dispense details for the requested amount from the ATM.
@@ -67,6 +80,48 @@ public interface ATMService {
      */
     DispenseDetails canDispenseFromATM(Long amount);
 
+    /**
+     * Returns Dispense details for the requested amount from the terminal, as {@link #canDispenseFromATM(Long)}.
+     *
+     * @param terminalId id of the ATM terminal.
+     * @param amount     Long the amount to be dispensed from the terminal.
+     * @return {@linkplain DispenseDetails} for the amount to be dispense
+     */
+    DispenseDetails canDispenseFromATM(String terminalId, Long amount);
+
+    /**
+     * <p>Quick check whether the current ATM inventory can make up the amount, without planning the notes.
+     * This is meant to reject impossible withdrawals before any other work is done.</p>
+     *
+     * @param amount Long the amount to be dispensed from the ATM.
+     * @return false if the amount can not be dispensed, true if it can or may be dispensed.
+     */
+    boolean isAmountDispensable(Long amount);
+
+    /**
+     * Quick check whether the inventory of the terminal can make up the amount, as {@link #isAmountDispensable(Long)}.
+     *
+     * @param terminalId id of the ATM terminal.
+     * @param amount     Long the amount to be dispensed from the terminal.
+     * @return false if the amount can not be dispensed, true if it can or may be dispensed.
+     */
+    boolean isAmountDispensable(String terminalId, Long amount);
+
+    /**
+     * Fetch all the amounts which can be withdrawn from the ATM right now, up to the configured cap.
+     *
+     * @return the dispensable amounts in ascending order.
+     */
+    List<Long> getDispensableAmounts();
+
+    /**
+     * Fetch all the amounts which can be withdrawn from the terminal right now, up to the configured cap.
+     *
+     * @param terminalId id of the ATM terminal.
+     * @return the dispensable amounts in ascending order.
+     */
+    List<Long> getDispensableAmounts(String terminalId);
+
     /**
      * <p>Dispenses the provided dispenses form the ATM.</p>
      *
@@ -75,4 +130,93 @@ public interface ATMService {
      */
     ATMInventory dispenseFormATM(List<CurrencyDispense> dispenses);
 
+    /**
+     * <p>Dispenses the provided dispenses form the terminal.</p>
+     *
+     * @param terminalId id of the ATM terminal.
+     * @param dispenses  the list of {@link CurrencyDispense} to be disposed.
+     * @return {@link ATMInventory} representing current state of the terminal inventory.
+     */
+    ATMInventory dispenseFormATM(String terminalId, List<CurrencyDispense> dispenses);
+
+    /**
+     * <p>Reserves the notes of the provided dispenses in the ATM.</p>
+     * Reserved notes cannot be dispensed to anyone else. The reservation must be committed or released
+     * by the caller, else it expires after the reservation timeout and the notes are released.
+     *
+     * @param dispenses the list of {@link CurrencyDispense} to be reserved.
+     * @return {@link DispenseReservation} holding the reservation id if the notes are reserved.
+     */
+    DispenseReservation reserveDispense(List<CurrencyDispense> dispenses);
+
+    /**
+     * <p>Reserves the notes of the provided dispenses in the terminal, as {@link #reserveDispense(List)}.</p>
+     *
+     * @param terminalId id of the ATM terminal.
+     * @param dispenses  the list of {@link CurrencyDispense} to be reserved.
+     * @return {@link DispenseReservation} holding the reservation id if the notes are reserved.
+     */
+    DispenseReservation reserveDispense(String terminalId, List<CurrencyDispense> dispenses);
+
+    /**
+     * <p>Plans the notes for the amount and reserves them in the ATM in one step.</p>
+     * The reservation must be committed or released by the caller, as for {@link #reserveDispense(List)}.
+     *
+     * @param amount Long the amount to be dispensed from the ATM.
+     * @return {@link DispenseReservation} holding the reservation id and the reserved notes if the amount is reserved,
+     * otherwise the reason why it is not.
+     */
+    DispenseReservation reserveAmount(Long amount);
+
+    /**
+     * <p>Plans the notes for the amount and reserves them in the terminal, as {@link #reserveAmount(Long)}.</p>
+     *
+     * @param terminalId id of the ATM terminal.
+     * @param amount     Long the amount to be dispensed from the terminal.
+     * @return {@link DispenseReservation} holding the reservation id and the reserved notes if the amount is reserved,
+     * otherwise the reason why it is not.
+     */
+    DispenseReservation reserveAmount(String terminalId, Long amount);
+
+    /**
+     * <p>Marks the reservation as being committed, it no longer expires after the reservation timeout.
+     * Must be called before the account is debited for the reserved notes, so the notes can not be released
+     * while the debit is in flight.</p>
+     * The reservation can still be committed or released.
+     *
+     * @param reservationId id of the reservation returned by {@link #reserveDispense(List)}.
+     * @return true if the reservation is held until it is committed or released, false if it has expired or was released.
+     */
+    boolean beginCommit(String reservationId);
+
+    /**
+     * <p>Commits the reservation, the reserved notes are removed from the inventory of its terminal for good.</p>
+     *
+     * @param reservationId id of the reservation returned by {@link #reserveDispense(List)}.
+     * @return {@link ATMInventory} representing current state of ATM inventory, with status
+     * {@link com.abcbank.enums.ATMInventoryStatus#RESERVATION_NOT_FOUND} if the reservation has expired or was released.
+     */
+    ATMInventory commitReservation(String reservationId);
+
+    /**
+     * @return ids of all ATM terminals served.
+     */
+    Set<String> getTerminalIds();
+
+    /**
+     * <p>Sets if the ATM table is shared with other instances serving the same terminals. While it is, the notes of a
+     * reservation are taken off the table when they are reserved, so the table decides which instance gets them.</p>
+     *
+     * @param sharedInventory true if other instances take notes off the same ATM table.
+     */
+    void setSharedInventory(boolean sharedInventory);
+
+    /**
+     * <p>Releases the reservation, the reserved notes are available again.
+     * Releasing an unknown, expired or already released reservation has no effect.</p>
+     *
+     * @param reservationId id of the reservation returned by {@link #reserveDispense(List)}.
+     */
+    void releaseReservation(String reservationId);
+
 }
@@ -31,33 +31,173 @@ import com.abcbank.constant.StringConstants;
 import com.abcbank.data.dto.ATMInventory;
 import com.abcbank.data.dto.CurrencyDispense;
 import com.abcbank.data.dto.DispenseDetails;
+import com.abcbank.data.dto.DispenseReservation;
 import com.abcbank.data.entity.DenominationDetail;
 import com.abcbank.data.service.ATMDataAccessService;
 import com.abcbank.enums.ATMInventoryStatus;
 import com.abcbank.exception.custom_exceptions.CurrencyDenominationCountNotAvailableException;
 import com.abcbank.exception.custom_exceptions.CurrencyDenominationNotAvailableException;
+import com.abcbank.exception.custom_exceptions.TerminalNotFoundException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * <p>
+ * Implementation of the {@link ATMService} on top of the in memory {@link CassetteInventory}.
+ * Withdrawals plan and reserve notes against the cassettes without touching the database,
+ * committed dispenses are written back to the ATM table by a small pool of background writers.
+ * Reservations which are neither committed nor released within the reservation timeout are released.
+ * </p>
+ * The write behind takes the notes of the committed reservations off the table rows, it never writes absolute counts.
+ * A failed write keeps its notes and is retried with backoff until it succeeds.
+ * <br>Every terminal has its own cassettes, dispensable amounts and pending write behind, loaded on the first
+ * request for the terminal. Withdrawals at different terminals never touch the same counters, and a write
+ * behind only writes the rows of its terminal. At most one write behind or cache check of a terminal runs at
+ * a time, the writes of different terminals run in parallel on the pool, so a slow terminal does not hold up the others.
+ * <br>The cache check compares the cassettes with the ATM table: the cassettes must hold the table counts less the
+ * notes not yet written and the notes of open reservations. A terminal whose cassettes drifted is corrected by the
+ * difference, open reservations stay valid.
+ * <br>When several instances serve the same ATM table, see {@link #setSharedInventory(boolean)}, the cassettes of an
+ * instance only plan the notes. A reservation also takes its notes off the table with a guarded update, so two
+ * instances never hand out the same notes, and a reservation the table can not serve refreshes the cassettes from the
+ * table before the amount is planned again. Committing such a reservation writes nothing, releasing it writes its
+ * notes back behind. The cache check then runs every {@code atm.inventory.cache.shared-verify-interval-millis}.
+ *
+ * @author himanshuupadhyay
+ */
 @Service
 public class ATMServiceImpl implements ATMService {
 
+    private final Logger logger = LogManager.getLogger(this.getClass());
+
     @Autowired
     private ATMDataAccessService atmDataAccessService;
 
+    /**
+     * Number of times an amount is planned when concurrent withdrawals take the planned notes before they are reserved.
+     */
+    private static final int MAX_PLAN_ATTEMPTS = 3;
+
+    /**
+     * Number of times the cassettes of a terminal are read for a check when reservations change them meanwhile.
+     */
+    private static final int MAX_CASSETTE_CHECK_ATTEMPTS = 3;
+
+    @Autowired
+    private DispenseStrategy dispenseStrategy = new OptimalDispenseStrategy();
+
+    private final Map<String, Terminal> terminals = new ConcurrentHashMap<>();
+
+    /**
+     * Largest amount for which the dispensable amounts are precomputed.
+     */
+    @Value("${atm.dispense.amounts.cap:10000}")
+    private long dispensableAmountsCap = 10000;
+
+    /**
+     * Time after which a reservation which is neither committed nor released gives its notes back.
+     */
+    @Value("${atm.dispense.reservation-timeout-millis:30000}")
+    private long reservationTimeoutMillis = 30000;
+
+    /**
+     * Interval of the check of the ATM inventory cache against the ATM table.
+     */
+    @Value("${atm.inventory.cache.verify-interval-millis:60000}")
+    private long cacheVerifyIntervalMillis = 60000;
+
+    /**
+     * Interval of the check of the ATM inventory cache against the ATM table, while the table is shared with other instances.
+     */
+    @Value("${atm.inventory.cache.shared-verify-interval-millis:5000}")
+    private long sharedCacheVerifyIntervalMillis = 5000;
+
+    /**
+     * Set while the ATM table is shared with other instances, reservations then take their notes off the table.
+     */
+    private volatile boolean sharedInventory;
+
+    private ScheduledFuture<?> sharedCacheVerification;
+
+    /**
+     * Delay of the first retry of a failed write behind, doubled with every further failure.
+     */
+    @Value("${atm.inventory.write-behind.retry-initial-millis:100}")
+    private long writeBehindRetryInitialMillis = 100;
+
+    /**
+     * Longest delay between the retries of a failed write behind.
+     */
+    @Value("${atm.inventory.write-behind.retry-max-millis:30000}")
+    private long writeBehindRetryMaxMillis = 30000;
+
+    private final Map<String, Reservation> reservations = new ConcurrentHashMap<>();
+
+    private final Counter expiredReservations = Metrics.counter("atm.dispense.reservations.expired");
+
+    private final Counter failedWriteBehinds = Metrics.counter("atm.inventory.write-behind.failures");
+
+    private final Counter correctedCassettes = Metrics.counter("atm.inventory.cassettes.corrected");
+
+    private final Counter conflictingWriteBehinds = Metrics.counter("atm.inventory.conflicts", "source", "write-behind");
+
+    /**
+     * Threads writing behind and checking the inventories of the terminals.
+     */
+    @Value("${atm.inventory.worker-threads:4}")
+    private int inventoryWorkerThreads = 4;
+
+    private final AtomicInteger inventoryWorkerCount = new AtomicInteger();
+
+    private final ScheduledThreadPoolExecutor inventoryWorker = new ScheduledThreadPoolExecutor(this.inventoryWorkerThreads, runnable -> {
+        Thread thread = new Thread(runnable, "atm-inventory-worker-" + this.inventoryWorkerCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
     @Override
     public List<DenominationDetail> getATMInventory() {
-        return this.atmDataAccessService.getATMInventory();
+        return this.getATMInventory(StringConstants.DefaultTerminalId);
+    }
+
+    @Override
+    public List<DenominationDetail> getATMInventory(String terminalId) {
+        return this.getTerminal(terminalId).cassettes.toDenominationDetails();
     }
 
     /**
      * {@inheritDoc}
+     * <br>The notes are planned by the configured {@link DispenseStrategy} over the live cassette counts.
      *
      * @param amount Long the amount to be dispensed from the ATM.
      * @return
@@ -65,90 +205,744 @@ public class ATMServiceImpl implements ATMService {
     @Override
     @CollectLog
     public DispenseDetails canDispenseFromATM(Long amount) {
-        if (Objects.isNull(amount) || amount <= 0) {
-            return new DispenseDetails(null, StringConstants.AskToProvidePositiveAmount);
+        return this.canDispenseFromATM(StringConstants.DefaultTerminalId, amount);
+    }
+
+    @Override
+    @CollectLog
+    public DispenseDetails canDispenseFromATM(String terminalId, Long amount) {
+        Terminal terminal = this.getTerminal(terminalId);
+        CassetteInventory cassettes = terminal.cassettes;
+        String rejection = this.rejectAmount(terminal, amount);
+        if (Objects.nonNull(rejection)) {
+            return new DispenseDetails(null, rejection);
+        }
+        int[] plan = this.dispenseStrategy.plan(cassettes.getDenominations(), cassettes.getCounts(), amount);
+        if (Objects.isNull(plan)) {
+            return new DispenseDetails(null, StringConstants.ImproperAmountToWithDraw);
+        }
+        return new DispenseDetails(this.toCurrencyDispenses(cassettes, plan), StringConstants.CollectMoneyFromATMMessage);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <br>Looks the amount up in the dispensable amounts of the current inventory version.
+     *
+     * @param amount Long the amount to be dispensed from the ATM.
+     * @return
+     */
+    @Override
+    public boolean isAmountDispensable(Long amount) {
+        return this.isAmountDispensable(StringConstants.DefaultTerminalId, amount);
+    }
+
+    @Override
+    public boolean isAmountDispensable(String terminalId, Long amount) {
+        return Objects.nonNull(amount) && this.dispensableAmountsOf(this.getTerminal(terminalId)).mayDispense(amount);
+    }
+
+    @Override
+    public List<Long> getDispensableAmounts() {
+        return this.getDispensableAmounts(StringConstants.DefaultTerminalId);
+    }
+
+    @Override
+    public List<Long> getDispensableAmounts(String terminalId) {
+        return this.dispensableAmountsOf(this.getTerminal(terminalId)).toAmounts();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <br>The notes are reserved in the cassettes. When called inside a transaction the reservation is
+     * committed once the transaction commits and released if it rolls back, otherwise it is committed immediately.
+     *
+     * @param dispenses the list of {@link CurrencyDispense} to be disposed.
+     * @return
+     */
+    @Override
+    @CollectLog
+    public ATMInventory dispenseFormATM(List<CurrencyDispense> dispenses) {
+        return this.dispenseFormATM(StringConstants.DefaultTerminalId, dispenses);
+    }
+
+    @Override
+    @CollectLog
+    public ATMInventory dispenseFormATM(String terminalId, List<CurrencyDispense> dispenses) {
+        DispenseReservation reservation = this.reserveDispense(terminalId, dispenses);
+        if (!reservation.isReserved()) {
+            return ATMInventory.of(reservation.getMessage(), reservation.getInventoryStatus(), this.getATMInventory(terminalId));
         }
-        List<CurrencyDispense> currencyDispenses = new ArrayList<>();
-        List<DenominationDetail> atmInventory = this.atmDataAccessService.getATMInventory();
+        String reservationId = reservation.getReservationId();
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return this.commitReservation(reservationId);
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == TransactionSynchronization.STATUS_COMMITTED) {
+                    commitReservation(reservationId);
+                } else {
+                    releaseReservation(reservationId);
+                }
+            }
+        });
+        return ATMInventory.of(this.getATMInventory(terminalId), ATMInventoryStatus.DISPENSE_PERMITTED);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <br>The notes are taken out of the cassettes with compare and set, no lock is held while the
+     * reservation is open.
+     *
+     * @param dispenses the list of {@link CurrencyDispense} to be reserved.
+     * @return
+     */
+    @Override
+    @CollectLog
+    public DispenseReservation reserveDispense(List<CurrencyDispense> dispenses) {
+        return this.reserveDispense(StringConstants.DefaultTerminalId, dispenses);
+    }
+
+    @Override
+    @CollectLog
+    public DispenseReservation reserveDispense(String terminalId, List<CurrencyDispense> dispenses) {
+        Terminal terminal = this.getTerminal(terminalId);
+        CassetteInventory cassettes = terminal.cassettes;
+        try {
+            int[] plan = this.toDispensePlan(cassettes, dispenses);
+            String reservationId = this.reserve(terminal, plan);
+            if (Objects.isNull(reservationId)) {
+                throw new CurrencyDenominationCountNotAvailableException("Count for Denominations : " + dispenses + " is not available in ATM");
+            }
+            return DispenseReservation.of(reservationId, dispenses);
+        } catch (CurrencyDenominationNotAvailableException exp) {
+            return DispenseReservation.of(exp.getMessage(), ATMInventoryStatus.DENOMINATION_NOT_AVAILABLE, dispenses);
+        } catch (CurrencyDenominationCountNotAvailableException exp) {
+            return DispenseReservation.of(exp.getMessage(), ATMInventoryStatus.DENOMINATION_COUNT_NOT_AVAILABLE, dispenses);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <br>Planning and reserving work on the primitive slot counts of the cassettes, the notes are converted to
+     * {@link CurrencyDispense} only once they are reserved. If a concurrent withdrawal takes notes between the
+     * plan and the reserve, the amount is planned again on the new counts.
+     *
+     * @param amount Long the amount to be dispensed from the ATM.
+     * @return
+     */
+    @Override
+    @CollectLog
+    public DispenseReservation reserveAmount(Long amount) {
+        return this.reserveAmount(StringConstants.DefaultTerminalId, amount);
+    }
 
-        Long totalAmountInATM = atmInventory.stream().collect(Collectors.summingLong(dd -> dd.getCurrencyCount() * dd.getCurrencyCount()));
-        if (totalAmountInATM < amount) {
-            return new DispenseDetails(null, StringConstants.InsufficientAmountInATMMessage);
+    @Override
+    @CollectLog
+    public DispenseReservation reserveAmount(String terminalId, Long amount) {
+        Terminal terminal = this.getTerminal(terminalId);
+        CassetteInventory cassettes = terminal.cassettes;
+        for (int attempt = 1; ; attempt++) {
+            String rejection = this.rejectAmount(terminal, amount);
+            if (Objects.nonNull(rejection)) {
+                return DispenseReservation.of(rejection, ATMInventoryStatus.AMOUNT_NOT_DISPENSABLE, null);
+            }
+            int[] plan = this.dispenseStrategy.plan(cassettes.getDenominations(), cassettes.getCounts(), amount);
+            if (Objects.isNull(plan)) {
+                return DispenseReservation.of(StringConstants.ImproperAmountToWithDraw, ATMInventoryStatus.AMOUNT_NOT_DISPENSABLE, null);
+            }
+            String reservationId = this.reserve(terminal, plan);
+            if (Objects.nonNull(reservationId)) {
+                return DispenseReservation.of(reservationId, this.toCurrencyDispenses(cassettes, plan));
+            }
+            if (attempt >= MAX_PLAN_ATTEMPTS) {
+                return DispenseReservation.of("Count for Denominations of amount : " + amount + " is not available in ATM",
+                        ATMInventoryStatus.DENOMINATION_COUNT_NOT_AVAILABLE, this.toCurrencyDispenses(cassettes, plan));
+            }
         }
+    }
 
-        //Iterate over all currency and try to find the count for each denomination available in ATM.
-        for (int inventoryIndex = 0; inventoryIndex < atmInventory.size() && amount != 0; inventoryIndex++) {
-            DenominationDetail denominationDetail = atmInventory.get(inventoryIndex);
-            Long neededCountForCurrentCurrency = amount / denominationDetail.getCurrency();
-            neededCountForCurrentCurrency = neededCountForCurrentCurrency > denominationDetail.getCurrencyCount() ? denominationDetail.getCurrencyCount() : neededCountForCurrentCurrency;
-            if (neededCountForCurrentCurrency > 0) {
-                currencyDispenses.add(new CurrencyDispense(denominationDetail.getCurrency(), neededCountForCurrentCurrency.intValue(), StringConstants.CurrencyFormat));
-                amount = amount - (denominationDetail.getCurrency() * neededCountForCurrentCurrency);
+    /**
+     * {@inheritDoc}
+     *
+     * @param reservationId id of the reservation returned by {@link #reserveDispense(List)}.
+     * @return
+     */
+    @Override
+    @CollectLog
+    public ATMInventory commitReservation(String reservationId) {
+        Reservation reservation = this.reservations.get(reservationId);
+        //The notes of a reservation taken off the table are already written.
+        if (Objects.isNull(reservation) || !this.closeReservation(reservation, () -> {
+            if (!reservation.takenFromTable) {
+                reservation.terminal.addUnwrittenNotes(reservation.plan);
             }
+        })) {
+            //The terminal of an unknown reservation is unknown as well, so no inventory is returned.
+            return ATMInventory.of(StringConstants.ReservationNotFound, ATMInventoryStatus.RESERVATION_NOT_FOUND, Collections.emptyList());
         }
-        if (amount != 0) {
-            return new DispenseDetails(null, StringConstants.ImproperAmountToWithDraw);
+        if (!reservation.takenFromTable) {
+            this.scheduleWriteBehind(reservation.terminal);
         }
-        return new DispenseDetails(currencyDispenses, StringConstants.CollectMoneyFromATMMessage);
+        return ATMInventory.of(reservation.terminal.cassettes.toDenominationDetails(), ATMInventoryStatus.DISPENSE_PERMITTED);
     }
 
     /**
      * {@inheritDoc}
      *
-     * @param dispenses the list of {@link CurrencyDispense} to be disposed.
+     * @param reservationId id of the reservation returned by {@link #reserveDispense(List)}.
      * @return
      */
     @Override
+    public boolean beginCommit(String reservationId) {
+        Reservation reservation = this.reservations.get(reservationId);
+        return Objects.nonNull(reservation) && reservation.state.compareAndSet(Reservation.HELD, Reservation.COMMITTING);
+    }
+
+    @Override
+    public Set<String> getTerminalIds() {
+        return this.atmDataAccessService.getTerminalIds();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <br>Reservations opened before the change keep the mode they were opened with.
+     *
+     * @param sharedInventory true if other instances take notes off the same ATM table.
+     */
+    @Override
+    public synchronized void setSharedInventory(boolean sharedInventory) {
+        this.sharedInventory = sharedInventory;
+        if (sharedInventory && Objects.isNull(this.sharedCacheVerification)) {
+            this.sharedCacheVerification = this.inventoryWorker.scheduleWithFixedDelay(this::verifyInventoryCache,
+                    this.sharedCacheVerifyIntervalMillis, this.sharedCacheVerifyIntervalMillis, TimeUnit.MILLISECONDS);
+        } else if (!sharedInventory && Objects.nonNull(this.sharedCacheVerification)) {
+            this.sharedCacheVerification.cancel(false);
+            this.sharedCacheVerification = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @param reservationId id of the reservation returned by {@link #reserveDispense(List)}.
+     */
+    @Override
     @CollectLog
-    public ATMInventory dispenseFormATM(List<CurrencyDispense> dispenses) {
-        List<DenominationDetail> atmInventory = this.atmDataAccessService.getATMInventory();
-        ATMInventory inventoryAfterDispense = this.removeDispensesFromInventory(atmInventory, dispenses);
-        if (inventoryAfterDispense.getInventoryStatus().isHealthyWithdrawal()) {
-            this.atmDataAccessService.saveAllCurrencyDetails(inventoryAfterDispense.getDenominationDetailList());
+    public void releaseReservation(String reservationId) {
+        Reservation reservation = this.reservations.get(reservationId);
+        if (Objects.nonNull(reservation) && this.closeReservation(reservation, () -> this.giveBack(reservation))) {
+            this.writeBackBehind(reservation);
+        }
+    }
+
+    /**
+     * Releases all reservations which are neither committed nor released within the reservation timeout.
+     * Reservations being committed are skipped, their account debit is in flight.
+     * This is invoked periodically by the inventory worker.
+     */
+    public void expireReservations() {
+        long now = System.nanoTime();
+        this.reservations.forEach((reservationId, reservation) -> {
+            // Expiring only held reservations makes sure a begun commit wins over the expiry, removing with the value
+            // makes sure a concurrent commit or release does.
+            if (now - reservation.deadlineNanos >= 0 && reservation.state.compareAndSet(Reservation.HELD, Reservation.EXPIRED)
+                    && this.closeReservation(reservation, () -> this.giveBack(reservation))) {
+                this.expiredReservations.increment();
+                this.writeBackBehind(reservation);
+            }
+        });
+    }
+
+    /**
+     * <p>Checks the amount against the cassette totals and the dispensable amounts, without planning.</p>
+     *
+     * @param terminal {@link Terminal} from which dispense to be made.
+     * @param amount   Long the amount to be dispensed from the ATM.
+     * @return the message why the amount can not be dispensed, null if it may be dispensed.
+     */
+    private String rejectAmount(Terminal terminal, Long amount) {
+        if (Objects.isNull(amount) || amount <= 0) {
+            return StringConstants.AskToProvidePositiveAmount;
+        }
+        if (terminal.cassettes.getTotalAmount() < amount) {
+            return StringConstants.InsufficientAmountInATMMessage;
+        }
+        //Amounts the notes can not make up are rejected without planning.
+        if (!this.dispensableAmountsOf(terminal).mayDispense(amount)) {
+            return StringConstants.ImproperAmountToWithDraw;
+        }
+        return null;
+    }
+
+    /**
+     * Takes the notes of the plan out of the cassettes of the terminal and opens a reservation for them. While the
+     * ATM table is shared the notes are taken off the table as well, if the table does not hold them the cassettes
+     * are refreshed from the table.
+     *
+     * @param terminal {@link Terminal} the notes are taken from.
+     * @param plan     note count to take, indexed by slot.
+     * @return id of the reservation, null if the cassettes or the table do not hold the notes.
+     */
+    private String reserve(Terminal terminal, int[] plan) {
+        boolean takeFromTable = this.sharedInventory;
+        String reservationId = null;
+        terminal.beginChange();
+        try {
+            if (!terminal.cassettes.reserve(plan)) {
+                return null;
+            }
+            boolean taken;
+            try {
+                taken = !takeFromTable || this.takeFromTable(terminal, plan);
+            } catch (RuntimeException exp) {
+                terminal.cassettes.release(plan);
+                throw exp;
+            }
+            if (taken) {
+                Reservation reservation = new Reservation(UUID.randomUUID().toString(), terminal, plan, takeFromTable,
+                        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.reservationTimeoutMillis));
+                this.reservations.put(reservation.id, reservation);
+                reservationId = reservation.id;
+            } else {
+                terminal.cassettes.release(plan);
+            }
+        } finally {
+            terminal.endChange();
+        }
+        if (Objects.isNull(reservationId)) {
+            //Other instances took the notes off the table, the cassettes are refreshed before the amount is planned again.
+            this.verifyTerminal(terminal);
+        }
+        return reservationId;
+    }
+
+    /**
+     * Takes the notes of the plan off the rows of the terminal in the ATM table, only if every row still holds them.
+     *
+     * @param terminal {@link Terminal} the notes are taken from.
+     * @param plan     note count to take, indexed by slot.
+     * @return true if the notes were taken, false if the table does not hold them.
+     */
+    private boolean takeFromTable(Terminal terminal, int[] plan) {
+        Map<Long, Integer> takenNotesById = new LinkedHashMap<>();
+        for (int slot = 0; slot < plan.length; slot++) {
+            if (plan[slot] != 0) {
+                takenNotesById.put(terminal.cassettes.getId(slot), plan[slot]);
+            }
+        }
+        try {
+            this.atmDataAccessService.takeAvailableCurrencyCounts(terminal.id, takenNotesById);
+            return true;
+        } catch (CurrencyDenominationCountNotAvailableException exp) {
+            return false;
+        }
+    }
+
+    /**
+     * Puts the notes of a released or expired reservation back into the cassettes. The notes of a reservation taken
+     * off the table are to be written back to it.
+     *
+     * @param reservation {@link Reservation} which is released.
+     */
+    private void giveBack(Reservation reservation) {
+        reservation.terminal.cassettes.release(reservation.plan);
+        if (reservation.takenFromTable) {
+            int[] returnedNotes = new int[reservation.plan.length];
+            for (int slot = 0; slot < returnedNotes.length; slot++) {
+                returnedNotes[slot] = -reservation.plan[slot];
+            }
+            reservation.terminal.addUnwrittenNotes(returnedNotes);
+        }
+    }
+
+    /**
+     * Schedules the write of the notes given back by a reservation taken off the table.
+     *
+     * @param reservation {@link Reservation} which was released.
+     */
+    private void writeBackBehind(Reservation reservation) {
+        if (reservation.takenFromTable) {
+            this.scheduleWriteBehind(reservation.terminal);
+        }
+    }
+
+    /**
+     * Removes the reservation and moves its notes, so a cache check never sees the notes in neither place.
+     *
+     * @param reservation {@link Reservation} to be committed, released or expired.
+     * @param moveNotes   puts the notes of the reservation where they go.
+     * @return true if the reservation was removed by this call, false if it was already committed or released.
+     */
+    private boolean closeReservation(Reservation reservation, Runnable moveNotes) {
+        reservation.terminal.beginChange();
+        try {
+            if (!this.reservations.remove(reservation.id, reservation)) {
+                return false;
+            }
+            moveNotes.run();
+            return true;
+        } finally {
+            reservation.terminal.endChange();
         }
-        return inventoryAfterDispense;
     }
 
     /**
-     * <p>This method removes the currency dispenses from the ATM inventory.</p>
-     * This method also handles dispense failures by throwing execption such as:
+     * Converts a plan into the {@link CurrencyDispense} handed out at the API boundary.
+     *
+     * @param cassettes {@link CassetteInventory} the plan is made for.
+     * @param plan      note count to take, indexed by slot.
+     * @return {@link CurrencyDispense} for each slot with notes in the plan, highest currency first.
+     */
+    private List<CurrencyDispense> toCurrencyDispenses(CassetteInventory cassettes, int[] plan) {
+        List<CurrencyDispense> currencyDispenses = new ArrayList<>(plan.length);
+        for (int slot = 0; slot < plan.length; slot++) {
+            if (plan[slot] > 0) {
+                currencyDispenses.add(new CurrencyDispense(cassettes.getDenomination(slot), plan[slot], StringConstants.CurrencyFormat));
+            }
+        }
+        return currencyDispenses;
+    }
+
+    /**
+     * <p>Converts the currency dispenses into note counts per cassette slot.</p>
+     * This method handles dispense failures by throwing execption such as:
      * <ul>
      *     <li>If requested currency denomination is not present in ATM.</li>
      *     <li>If requested currency count is not present in ATM.</li>
      * </ul>
      *
-     * @param denominationDetails {@link DenominationDetail} a list of denominations from which dispense to be made.
-     * @param dispenses           {@link CurrencyDispense} the details of dispense.
-     * @return {@link ATMInventory} the atm inventory with the updated details.
+     * @param cassettes {@link CassetteInventory} from which dispense to be made.
+     * @param dispenses {@link CurrencyDispense} the details of dispense.
+     * @return note count to take, indexed by slot.
+     */
+    private int[] toDispensePlan(CassetteInventory cassettes, List<CurrencyDispense> dispenses) {
+        int[] plan = new int[cassettes.size()];
+        for (CurrencyDispense dispense : dispenses) {
+            int slot = cassettes.slotOf(dispense.getCurrencyValue());
+            // If requested currency is not found
+            if (slot < 0) {
+                throw new CurrencyDenominationNotAvailableException("Denomination of value : " + dispense.getCurrencyValue() + " is not available in ATM");
+            }
+            // If requested currency count is not found
+            if (cassettes.getCount(slot) < dispense.getCount()) {
+                throw new CurrencyDenominationCountNotAvailableException("Count for Denomination : " + dispense.getCurrencyValue() + " is not available in ATM : expected " + dispense.getCount() + ", Available : " + cassettes.getCount(slot));
+            }
+            plan[slot] += dispense.getCount();
+        }
+        return plan;
+    }
+
+    /**
+     * Schedules a write of the notes dispensed at the terminal to the ATM table. Writes requested for the terminal
+     * while one is pending, or while its cache is checked, are coalesced.
+     *
+     * @param terminal {@link Terminal} whose counts changed.
+     */
+    private void scheduleWriteBehind(Terminal terminal) {
+        if (terminal.writeBehindPending.compareAndSet(false, true)) {
+            this.inventoryWorker.execute(() -> this.writeBehind(terminal));
+        }
+    }
+
+    /**
+     * <p>Writes the notes dispensed at the terminal since the last write as relative updates of the ATM table.</p>
+     * A failed write puts the notes back into the unwritten notes of the terminal, which stays pending, and is
+     * retried with exponential backoff. Notes dispensed meanwhile are written with the retry.
+     *
+     * @param terminal {@link Terminal} whose counts changed.
+     */
+    private void writeBehind(Terminal terminal) {
+        int[] dispensedNotes = terminal.takeUnwrittenNotes();
+        try {
+            Map<Long, Integer> dispensedNotesById = new LinkedHashMap<>();
+            for (int slot = 0; slot < dispensedNotes.length; slot++) {
+                if (dispensedNotes[slot] != 0) {
+                    dispensedNotesById.put(terminal.cassettes.getId(slot), dispensedNotes[slot]);
+                }
+            }
+            this.atmDataAccessService.withdrawCurrencyCounts(terminal.id, dispensedNotesById);
+        } catch (RuntimeException exp) {
+            terminal.addUnwrittenNotes(dispensedNotes);
+            this.failedWriteBehinds.increment();
+            if (exp instanceof OptimisticLockingFailureException) {
+                this.conflictingWriteBehinds.increment();
+            }
+            long delayMillis = Math.min(this.writeBehindRetryMaxMillis, this.writeBehindRetryInitialMillis << Math.min(terminal.failedWrites++, 20));
+            this.logger.error("Failed to write the inventory of ATM terminal " + terminal.id + " to the database, retrying in " + delayMillis + " ms", exp);
+            try {
+                this.inventoryWorker.schedule(() -> this.writeBehind(terminal), delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException rejected) {
+                this.logger.error("ATM terminal " + terminal.id + " is shut down with notes not written to the database : " + Arrays.toString(terminal.takeUnwrittenNotes()));
+            }
+            return;
+        }
+        terminal.failedWrites = 0;
+        terminal.writeBehindPending.set(false);
+        //Notes committed while the write was running did not schedule a write of their own.
+        if (terminal.hasUnwrittenNotes()) {
+            this.scheduleWriteBehind(terminal);
+        }
+    }
+
+    /**
+     * Returns the dispensable amounts of the terminal, rebuilt only when its inventory version has changed.
+     * Counts change before the version does, so the amounts are never older than the version they are built for.
+     *
+     * @param terminal {@link Terminal} of the ATM.
+     * @return {@link DispensableAmounts} of the current inventory version.
+     */
+    private DispensableAmounts dispensableAmountsOf(Terminal terminal) {
+        CassetteInventory cassettes = terminal.cassettes;
+        DispensableAmounts amounts = terminal.dispensableAmounts;
+        long version = cassettes.getVersion();
+        if (Objects.isNull(amounts) || amounts.getVersion() != version) {
+            amounts = DispensableAmounts.of(version, cassettes.getDenominations(), cassettes.getCounts(), this.dispensableAmountsCap);
+            terminal.dispensableAmounts = amounts;
+        }
+        return amounts;
+    }
+
+    /**
+     * Checks the cached rows and the cassettes of every loaded terminal against the ATM table. A terminal with a
+     * write behind pending is skipped until the next check, so the check never races with a write of the terminal.
+     */
+    private void verifyInventoryCache() {
+        this.terminals.values().forEach(this::verifyTerminal);
+    }
+
+    /**
+     * Checks the cached rows and the cassettes of the terminal against the ATM table, unless a write behind of the
+     * terminal is pending.
+     *
+     * @param terminal {@link Terminal} to be checked.
      */
-    private ATMInventory removeDispensesFromInventory(List<DenominationDetail> denominationDetails, List<CurrencyDispense> dispenses) {
-        ATMInventory updatedInventory = null;
+    private void verifyTerminal(Terminal terminal) {
+        if (!terminal.writeBehindPending.compareAndSet(false, true)) {
+            return;
+        }
         try {
-            Map<Integer, DenominationDetail> currencyLookup = denominationDetails.stream().collect(Collectors.toMap(DenominationDetail::getCurrency, atm -> atm));
-            List<DenominationDetail> remainingDenominationDetails = dispenses.stream().map(dispense -> {
-                DenominationDetail currencyDetail = currencyLookup.get(dispense.getCurrencyValue());
+            this.atmDataAccessService.verifyInventoryCache(terminal.id);
+            this.verifyCassettes(terminal);
+        } catch (RuntimeException exp) {
+            this.logger.error("Failed to verify the ATM inventory cache of terminal " + terminal.id, exp);
+        } finally {
+            terminal.writeBehindPending.set(false);
+            //Notes committed during the check did not schedule a write of their own.
+            if (terminal.hasUnwrittenNotes()) {
+                this.scheduleWriteBehind(terminal);
+            }
+        }
+    }
 
-                // If requested currency is not found
-                if (Objects.isNull(currencyDetail)) {
-                    throw new CurrencyDenominationNotAvailableException("Denomination of value : " + dispense.getCurrencyValue() + " is not available in ATM");
+    /**
+     * <p>Compares the cassettes of the terminal with its rows in the ATM table, and corrects them by the difference
+     * if they drifted. The cassettes must hold the table counts less the notes not yet written and the notes of open
+     * reservations not taken off the table. The caller holds the write behind of the terminal.</p>
+     * The counts are only compared when no reservation of the terminal was opened or closed while they were read,
+     * a terminal which is never quiet long enough is compared at the next check.
+     *
+     * @param terminal {@link Terminal} to be checked.
+     * @return true if the cassettes match the table or could not be compared, false if they were corrected.
+     */
+    private boolean verifyCassettes(Terminal terminal) {
+        CassetteInventory cassettes = terminal.cassettes;
+        for (int attempt = 0; attempt < MAX_CASSETTE_CHECK_ATTEMPTS; attempt++) {
+            long changes = terminal.changesCompleted.get();
+            if (terminal.changesInProgress.get() != 0) {
+                Thread.yield();
+                continue;
+            }
+            Map<Long, Integer> tableCounts = new LinkedHashMap<>();
+            this.atmDataAccessService.getATMInventory(terminal.id).forEach(row -> tableCounts.put(row.getId(), row.getCurrencyCount()));
+            int[] drift = new int[cassettes.size()];
+            for (int slot = 0; slot < drift.length; slot++) {
+                Integer tableCount = tableCounts.get(cassettes.getId(slot));
+                drift[slot] = Objects.isNull(tableCount) ? 0 : tableCount - terminal.unwrittenNotes.get(slot) - cassettes.getCount(slot);
+            }
+            this.reservations.values().forEach(reservation -> {
+                if (reservation.terminal == terminal && !reservation.takenFromTable) {
+                    for (int slot = 0; slot < drift.length; slot++) {
+                        drift[slot] -= reservation.plan[slot];
+                    }
                 }
-                // If requested currency count is not found
-                if (currencyDetail.getCurrencyCount() < dispense.getCount()) {
-                    throw new CurrencyDenominationCountNotAvailableException("Count for Denomination : " + dispense.getCurrencyValue() + " is not available in ATM : expected " + dispense.getCount() + ", Available : " + currencyDetail.getCurrencyCount());
+            });
+            if (terminal.changesInProgress.get() != 0 || terminal.changesCompleted.get() != changes) {
+                continue;
+            }
+            if (Arrays.stream(drift).allMatch(notes -> notes == 0)) {
+                return true;
+            }
+            this.correctedCassettes.increment();
+            this.logger.warn("Cassettes of ATM terminal " + terminal.id + " differ from the ATM table by " + Arrays.toString(drift) + " notes, correcting them");
+            terminal.beginChange();
+            try {
+                cassettes.adjust(drift);
+            } finally {
+                terminal.endChange();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the terminal, its cassettes are loaded from the ATM table on the first request for it.
+     * Only the loading of the same terminal is serialised, other terminals are served meanwhile.
+     *
+     * @param terminalId id of the ATM terminal, null for the default terminal.
+     * @return {@link Terminal} of the id.
+     * @throws TerminalNotFoundException if the ATM table has no rows for the terminal.
+     */
+    private Terminal getTerminal(String terminalId) {
+        String id = Objects.isNull(terminalId) ? StringConstants.DefaultTerminalId : terminalId;
+        Terminal terminal = this.terminals.get(id);
+        if (Objects.nonNull(terminal)) {
+            return terminal;
+        }
+        return this.terminals.computeIfAbsent(id, this::loadTerminal);
+    }
+
+    private Terminal loadTerminal(String terminalId) {
+        List<DenominationDetail> denominationDetails = this.atmDataAccessService.getATMInventory(terminalId);
+        if (denominationDetails.isEmpty()) {
+            throw new TerminalNotFoundException("No denominations found for ATM terminal " + terminalId);
+        }
+        CassetteInventory cassettes = CassetteInventory.of(terminalId, denominationDetails);
+        this.registerInventoryGauges(cassettes);
+        return new Terminal(terminalId, cassettes);
+    }
+
+    /**
+     * Exports the cash and the note count per currency type held by the cassettes of a terminal.
+     *
+     * @param cassettes {@link CassetteInventory} of the terminal.
+     */
+    private void registerInventoryGauges(CassetteInventory cassettes) {
+        for (Character currencyType : cassettes.getCurrencyTypes()) {
+            Tags tags = Tags.of("terminal", cassettes.getTerminalId(), "currency", String.valueOf(currencyType));
+            Metrics.gauge("atm.inventory.amount", tags, cassettes, inventory -> inventory.getTotalAmount(currencyType));
+            Metrics.gauge("atm.inventory.notes", tags, cassettes, inventory -> inventory.getNoteCount(currencyType));
+        }
+    }
+
+    @PostConstruct
+    public void scheduleInventoryTasks() {
+        this.inventoryWorker.setCorePoolSize(Math.max(1, this.inventoryWorkerThreads));
+        this.inventoryWorker.scheduleWithFixedDelay(this::expireReservations, 1, 1, TimeUnit.SECONDS);
+        this.inventoryWorker.scheduleWithFixedDelay(this::verifyInventoryCache, this.cacheVerifyIntervalMillis, this.cacheVerifyIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void flushInventory() throws InterruptedException {
+        //Held reservations taken off the table would never be given back to it, the ones being committed are kept.
+        this.reservations.values().forEach(reservation -> {
+            if (reservation.takenFromTable && reservation.state.compareAndSet(Reservation.HELD, Reservation.EXPIRED)) {
+                this.closeReservation(reservation, () -> this.giveBack(reservation));
+            }
+        });
+        this.terminals.values().forEach(terminal -> {
+            //A terminal with a write behind pending is flushed by that write.
+            if (terminal.hasUnwrittenNotes() && terminal.writeBehindPending.compareAndSet(false, true)) {
+                this.inventoryWorker.execute(() -> this.writeBehind(terminal));
+            }
+        });
+        this.inventoryWorker.shutdown();
+        this.inventoryWorker.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Inventory of one terminal, its cassettes and everything derived from them.
+     */
+    private static final class Terminal {
+        private final String id;
+        private final CassetteInventory cassettes;
+        /**
+         * Set while a write behind or a cache check of the terminal is pending, so only one of them runs at a time.
+         */
+        private final AtomicBoolean writeBehindPending = new AtomicBoolean();
+        /**
+         * Notes of committed reservations not yet written to the ATM table, indexed by slot.
+         */
+        private final AtomicIntegerArray unwrittenNotes;
+        /**
+         * Reservations of the terminal being opened or closed, and the number of them done, so the cache check
+         * reads the cassettes, the unwritten notes and the open reservations as of one moment.
+         */
+        private final AtomicInteger changesInProgress = new AtomicInteger();
+        private final AtomicLong changesCompleted = new AtomicLong();
+        /**
+         * Failed writes in a row, only used by the pending write behind of the terminal.
+         */
+        private int failedWrites;
+        private volatile DispensableAmounts dispensableAmounts;
+
+        private Terminal(String id, CassetteInventory cassettes) {
+            this.id = id;
+            this.cassettes = cassettes;
+            this.unwrittenNotes = new AtomicIntegerArray(cassettes.size());
+        }
+
+        private void beginChange() {
+            this.changesInProgress.incrementAndGet();
+        }
+
+        private void endChange() {
+            //Counted as done before it stops being in progress, so a check seeing neither knows it missed one.
+            this.changesCompleted.incrementAndGet();
+            this.changesInProgress.decrementAndGet();
+        }
+
+        private void addUnwrittenNotes(int[] notes) {
+            for (int slot = 0; slot < notes.length; slot++) {
+                if (notes[slot] != 0) {
+                    this.unwrittenNotes.addAndGet(slot, notes[slot]);
                 }
+            }
+        }
 
-                currencyDetail.setCurrencyCount(currencyDetail.getCurrencyCount() - dispense.getCount());
-                return currencyDetail;
-            }).collect(Collectors.toList());
+        private int[] takeUnwrittenNotes() {
+            int[] notes = new int[this.unwrittenNotes.length()];
+            for (int slot = 0; slot < notes.length; slot++) {
+                notes[slot] = this.unwrittenNotes.getAndSet(slot, 0);
+            }
+            return notes;
+        }
 
-            updatedInventory = ATMInventory.of(remainingDenominationDetails, ATMInventoryStatus.DISPENSE_PERMITTED);
-        } catch (CurrencyDenominationNotAvailableException exp) {
-            updatedInventory = ATMInventory.of(exp.getMessage(), ATMInventoryStatus.DENOMINATION_NOT_AVAILABLE, denominationDetails);
-        } catch (CurrencyDenominationCountNotAvailableException exp) {
-            updatedInventory = ATMInventory.of(exp.getMessage(), ATMInventoryStatus.DENOMINATION_COUNT_NOT_AVAILABLE, denominationDetails);
+        private boolean hasUnwrittenNotes() {
+            for (int slot = 0; slot < this.unwrittenNotes.length(); slot++) {
+                if (this.unwrittenNotes.get(slot) != 0) {
+                    return true;
+                }
+            }
+            return false;
         }
+    }
 
-        return updatedInventory;
+    /**
+     * Notes taken out of the cassettes of a terminal for a withdrawal which is not yet committed or released.
+     */
+    private static final class Reservation {
+        private static final int HELD = 0;
+        private static final int COMMITTING = 1;
+        private static final int EXPIRED = 2;
+        private final String id;
+        private final Terminal terminal;
+        private final int[] plan;
+        /**
+         * Set if the notes were taken off the ATM table when the reservation was opened.
+         */
+        private final boolean takenFromTable;
+        private final long deadlineNanos;
+        private final AtomicInteger state = new AtomicInteger(HELD);
+
+        private Reservation(String id, Terminal terminal, int[] plan, boolean takenFromTable, long deadlineNanos) {
+            this.id = id;
+            this.terminal = terminal;
+            this.plan = plan;
+            this.takenFromTable = takenFromTable;
+            this.deadlineNanos = deadlineNanos;
+        }
     }
 
 }
@@ -0,0 +1,316 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.service.bussiness.atm;
+
+import com.abcbank.constant.StringConstants;
+import com.abcbank.data.entity.DenominationDetail;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * In memory model of the ATM cassettes. Each denomination has one slot holding its note count,
+ * slots are ordered by currency, highest first.
+ * </p>
+ * Notes are reserved with compare and set on the slots, so concurrent withdrawals never take the same notes
+ * and never block each other. A reservation is either committed, the notes are gone for good, or released,
+ * the notes are put back. The database table is only a write behind record of this model.
+ * <br>The total value and note count per currency type are kept up to date with every change of a slot,
+ * so they are read without summing the slots.
+ *
+ * @author himanshuupadhyay
+ */
+public class CassetteInventory {
+
+    private final String terminalId;
+
+    private final Long[] ids;
+
+    private final int[] denominations;
+
+    private final Character[] currencyTypes;
+
+    private final AtomicIntegerArray counts;
+
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Distinct currency types of the slots, the index into the totals.
+     */
+    private final List<Character> totalCurrencyTypes = new ArrayList<>();
+
+    private final int[] totalOfSlot;
+
+    private final AtomicLongArray totalAmounts;
+
+    private final AtomicLongArray totalNotes;
+
+    private CassetteInventory(String terminalId, Long[] ids, int[] denominations, Character[] currencyTypes, int[] counts) {
+        this.terminalId = terminalId;
+        this.ids = ids;
+        this.denominations = denominations;
+        this.currencyTypes = currencyTypes;
+        this.counts = new AtomicIntegerArray(counts);
+        this.totalOfSlot = new int[denominations.length];
+        for (int slot = 0; slot < denominations.length; slot++) {
+            if (!this.totalCurrencyTypes.contains(currencyTypes[slot])) {
+                this.totalCurrencyTypes.add(currencyTypes[slot]);
+            }
+            this.totalOfSlot[slot] = this.totalCurrencyTypes.indexOf(currencyTypes[slot]);
+        }
+        this.totalAmounts = new AtomicLongArray(this.totalCurrencyTypes.size());
+        this.totalNotes = new AtomicLongArray(this.totalCurrencyTypes.size());
+        for (int slot = 0; slot < denominations.length; slot++) {
+            this.addToTotals(slot, counts[slot]);
+        }
+    }
+
+    /**
+     * Builds the cassettes of the default terminal from the denomination rows.
+     *
+     * @param denominationDetails {@link DenominationDetail} rows of the ATM table.
+     * @return {@link CassetteInventory} with one slot per denomination, ordered by currency highest first.
+     */
+    public static CassetteInventory of(List<DenominationDetail> denominationDetails) {
+        return of(StringConstants.DefaultTerminalId, denominationDetails);
+    }
+
+    /**
+     * Builds the cassettes of a terminal from its denomination rows.
+     *
+     * @param terminalId          id of the ATM terminal.
+     * @param denominationDetails {@link DenominationDetail} rows of the terminal in the ATM table.
+     * @return {@link CassetteInventory} with one slot per denomination, ordered by currency highest first.
+     */
+    public static CassetteInventory of(String terminalId, List<DenominationDetail> denominationDetails) {
+        List<DenominationDetail> sorted = new ArrayList<>(denominationDetails);
+        sorted.sort(Comparator.comparing(DenominationDetail::getCurrency).reversed());
+        int size = sorted.size();
+        Long[] ids = new Long[size];
+        int[] denominations = new int[size];
+        Character[] currencyTypes = new Character[size];
+        int[] counts = new int[size];
+        for (int index = 0; index < size; index++) {
+            DenominationDetail denominationDetail = sorted.get(index);
+            ids[index] = denominationDetail.getId();
+            denominations[index] = denominationDetail.getCurrency();
+            currencyTypes[index] = denominationDetail.getCurrencyType();
+            counts[index] = denominationDetail.getCurrencyCount();
+        }
+        return new CassetteInventory(terminalId, ids, denominations, currencyTypes, counts);
+    }
+
+    /**
+     * @return id of the ATM terminal the cassettes belong to.
+     */
+    public String getTerminalId() {
+        return this.terminalId;
+    }
+
+    public int size() {
+        return this.denominations.length;
+    }
+
+    /**
+     * @param slot slot of a denomination.
+     * @return id of the ATM row of the slot.
+     */
+    public Long getId(int slot) {
+        return this.ids[slot];
+    }
+
+    public int getDenomination(int slot) {
+        return this.denominations[slot];
+    }
+
+    /**
+     * @return copy of the currency value of each slot, highest first.
+     */
+    public int[] getDenominations() {
+        return this.denominations.clone();
+    }
+
+    public int getCount(int slot) {
+        return this.counts.get(slot);
+    }
+
+    /**
+     * @return version of the cassette contents, incremented on every change of a note count.
+     */
+    public long getVersion() {
+        return this.version.get();
+    }
+
+    /**
+     * @return the currency types held by the cassettes.
+     */
+    public List<Character> getCurrencyTypes() {
+        return new ArrayList<>(this.totalCurrencyTypes);
+    }
+
+    /**
+     * @return total value of the notes of all currency types in the cassettes.
+     */
+    public long getTotalAmount() {
+        long totalAmount = 0;
+        for (int total = 0; total < this.totalAmounts.length(); total++) {
+            totalAmount += this.totalAmounts.get(total);
+        }
+        return totalAmount;
+    }
+
+    /**
+     * @param currencyType the currency type.
+     * @return total value of the notes of the currency type in the cassettes, 0 if there is no such currency type.
+     */
+    public long getTotalAmount(Character currencyType) {
+        int total = this.totalCurrencyTypes.indexOf(currencyType);
+        return total < 0 ? 0 : this.totalAmounts.get(total);
+    }
+
+    /**
+     * @param currencyType the currency type.
+     * @return number of notes of the currency type in the cassettes, 0 if there is no such currency type.
+     */
+    public long getNoteCount(Character currencyType) {
+        int total = this.totalCurrencyTypes.indexOf(currencyType);
+        return total < 0 ? 0 : this.totalNotes.get(total);
+    }
+
+    /**
+     * @param currency the currency value of a denomination.
+     * @return the slot of the denomination, -1 if the ATM has no such denomination.
+     */
+    public int slotOf(int currency) {
+        for (int slot = 0; slot < this.denominations.length; slot++) {
+            if (this.denominations[slot] == currency) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return copy of the current note counts, indexed by slot.
+     */
+    public int[] getCounts() {
+        int[] snapshot = new int[this.counts.length()];
+        for (int slot = 0; slot < snapshot.length; slot++) {
+            snapshot[slot] = this.counts.get(slot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * <p>Takes the notes of the plan out of the cassettes. Either all notes are reserved or none.</p>
+     *
+     * @param plan note count to take, indexed by slot.
+     * @return true if the notes are reserved, false if any cassette has not enough notes.
+     */
+    public boolean reserve(int[] plan) {
+        for (int slot = 0; slot < plan.length; slot++) {
+            if (plan[slot] > 0 && !this.take(slot, plan[slot])) {
+                //Put back what was already taken for this plan.
+                for (int taken = 0; taken < slot; taken++) {
+                    if (plan[taken] > 0) {
+                        this.counts.addAndGet(taken, plan[taken]);
+                        this.addToTotals(taken, plan[taken]);
+                    }
+                }
+                return false;
+            }
+        }
+        this.version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Puts the notes of a reserved plan back into the cassettes.
+     *
+     * @param plan note count to put back, indexed by slot.
+     */
+    public void release(int[] plan) {
+        for (int slot = 0; slot < plan.length; slot++) {
+            if (plan[slot] > 0) {
+                this.counts.addAndGet(slot, plan[slot]);
+                this.addToTotals(slot, plan[slot]);
+            }
+        }
+        this.version.incrementAndGet();
+    }
+
+    /**
+     * Corrects the note counts by the given differences, i.e. after they were found to differ from the ATM table.
+     * Reserved notes are not touched, the differences add to whatever the slots hold meanwhile.
+     *
+     * @param notes notes to add, negative to remove, indexed by slot.
+     */
+    public void adjust(int[] notes) {
+        for (int slot = 0; slot < notes.length; slot++) {
+            if (notes[slot] != 0) {
+                this.counts.addAndGet(slot, notes[slot]);
+                this.addToTotals(slot, notes[slot]);
+            }
+        }
+        this.version.incrementAndGet();
+    }
+
+    /**
+     * @return the cassette contents as {@link DenominationDetail}, ordered by currency highest first.
+     */
+    public List<DenominationDetail> toDenominationDetails() {
+        List<DenominationDetail> denominationDetails = new ArrayList<>(this.denominations.length);
+        for (int slot = 0; slot < this.denominations.length; slot++) {
+            denominationDetails.add(new DenominationDetail(this.ids[slot], this.denominations[slot], this.counts.get(slot), this.currencyTypes[slot], null, this.terminalId));
+        }
+        return denominationDetails;
+    }
+
+    private boolean take(int slot, int count) {
+        while (true) {
+            int available = this.counts.get(slot);
+            if (available < count) {
+                return false;
+            }
+            if (this.counts.compareAndSet(slot, available, available - count)) {
+                this.addToTotals(slot, -count);
+                return true;
+            }
+        }
+    }
+
+    private void addToTotals(int slot, int notes) {
+        int total = this.totalOfSlot[slot];
+        this.totalAmounts.addAndGet(total, (long) this.denominations[slot] * notes);
+        this.totalNotes.addAndGet(total, notes);
+    }
+}
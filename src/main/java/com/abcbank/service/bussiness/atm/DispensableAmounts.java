@@ -0,0 +1,146 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.service.bussiness.atm;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * <p>
+ * Every amount the cassette contents of one inventory version can make up, up to a cap.
+ * Amounts are kept as a bitset in units of the greatest common divisor of the available denominations,
+ * so a withdrawal which can never be dispensed is rejected with a single bit lookup.
+ * </p>
+ * Amounts above the cap are not known and are reported as possibly dispensable, the
+ * {@link DispenseStrategy} has the final word on them.
+ *
+ * @author himanshuupadhyay
+ */
+public class DispensableAmounts {
+
+    private final long version;
+
+    private final int unit;
+
+    private final long totalAmount;
+
+    private final long cap;
+
+    private final BitSet dispensableUnits;
+
+    private DispensableAmounts(long version, int unit, long totalAmount, long cap, BitSet dispensableUnits) {
+        this.version = version;
+        this.unit = unit;
+        this.totalAmount = totalAmount;
+        this.cap = cap;
+        this.dispensableUnits = dispensableUnits;
+    }
+
+    /**
+     * <p>Computes the dispensable amounts of the cassette counts, each cassette is added in O(units).</p>
+     *
+     * @param version       inventory version the counts were read at.
+     * @param denominations currency value of each cassette slot.
+     * @param counts        notes available in each cassette slot.
+     * @param cap           largest amount to be computed.
+     * @return {@link DispensableAmounts} of the counts.
+     */
+    public static DispensableAmounts of(long version, int[] denominations, int[] counts, long cap) {
+        int unit = 0;
+        long totalAmount = 0;
+        for (int slot = 0; slot < denominations.length; slot++) {
+            if (counts[slot] > 0) {
+                unit = gcd(unit, denominations[slot]);
+                totalAmount += (long) denominations[slot] * counts[slot];
+            }
+        }
+        BitSet dispensableUnits = new BitSet();
+        if (unit == 0) {
+            return new DispensableAmounts(version, 1, 0, cap, dispensableUnits);
+        }
+        int units = (int) (Math.min(totalAmount, cap) / unit);
+        dispensableUnits.set(0);
+        for (int slot = 0; slot < denominations.length; slot++) {
+            if (counts[slot] == 0) {
+                continue;
+            }
+            int step = denominations[slot] / unit;
+            int limit = counts[slot];
+            BitSet next = new BitSet(units + 1);
+            for (int remainder = 0; remainder < step && remainder <= units; remainder++) {
+                //A position is reachable if a reachable position of the same remainder is at most limit notes below it.
+                int lastReachable = Integer.MIN_VALUE;
+                for (int position = 0, value = remainder; value <= units; position++, value += step) {
+                    if (dispensableUnits.get(value)) {
+                        lastReachable = position;
+                    }
+                    if (lastReachable != Integer.MIN_VALUE && position - lastReachable <= limit) {
+                        next.set(value);
+                    }
+                }
+            }
+            dispensableUnits = next;
+        }
+        return new DispensableAmounts(version, unit, totalAmount, cap, dispensableUnits);
+    }
+
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @param amount the amount to be dispensed.
+     * @return false if the amount can not be dispensed, true if it can or if it is above the cap.
+     */
+    public boolean mayDispense(long amount) {
+        if (amount <= 0 || amount > this.totalAmount || amount % this.unit != 0) {
+            return false;
+        }
+        return amount > this.cap || this.dispensableUnits.get((int) (amount / this.unit));
+    }
+
+    /**
+     * @return all dispensable amounts up to the cap, in ascending order.
+     */
+    public List<Long> toAmounts() {
+        List<Long> amounts = new ArrayList<>(this.dispensableUnits.cardinality());
+        for (int units = this.dispensableUnits.nextSetBit(1); units >= 0; units = this.dispensableUnits.nextSetBit(units + 1)) {
+            amounts.add((long) units * this.unit);
+        }
+        return amounts;
+    }
+
+    static int gcd(int first, int second) {
+        while (second != 0) {
+            int remainder = first % second;
+            first = second;
+            second = remainder;
+        }
+        return first;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.service.bussiness.atm;
+
+/**
+ * <p>
+ * Strategy to split an amount into notes of the ATM cassettes.
+ * </p>
+ * The active strategy is chosen with {@code atm.dispense.strategy}, {@code optimal} (default) or {@code greedy}.
+ *
+ * @author himanshuupadhyay
+ */
+public interface DispenseStrategy {
+
+    /**
+     * <p>Finds the note count to dispense from each cassette for the amount.</p>
+     *
+     * @param denominations currency value of each cassette slot, highest first.
+     * @param counts        notes available in each cassette slot.
+     * @param amount        the amount to be dispensed, positive.
+     * @return note count to take, indexed by slot, null if the amount can not be dispensed from the counts.
+     */
+    int[] plan(int[] denominations, int[] counts, long amount);
+}
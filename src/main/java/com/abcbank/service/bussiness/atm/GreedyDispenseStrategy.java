@@ -0,0 +1,56 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.service.bussiness.atm;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * <p>
+ * {@link DispenseStrategy} which takes as many notes of the highest currency as possible before moving to the
+ * next one.
+ * </p>
+ * This is fast, but it rejects amounts which are dispensable with fewer high notes, e.g. 60 from one 50 and
+ * three 20 notes.
+ *
+ * @author himanshuupadhyay
+ */
+@Component
+@ConditionalOnProperty(name = "atm.dispense.strategy", havingValue = "greedy")
+public class GreedyDispenseStrategy implements DispenseStrategy {
+
+    @Override
+    public int[] plan(int[] denominations, int[] counts, long amount) {
+        int[] plan = new int[denominations.length];
+        for (int slot = 0; slot < denominations.length && amount != 0; slot++) {
+            int noteCount = (int) Math.min(amount / denominations[slot], counts[slot]);
+            plan[slot] = noteCount;
+            amount = amount - ((long) denominations[slot] * noteCount);
+        }
+        return amount == 0 ? plan : null;
+    }
+}
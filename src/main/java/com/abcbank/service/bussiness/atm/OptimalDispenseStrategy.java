@@ -0,0 +1,135 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.service.bussiness.atm;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * {@link DispenseStrategy} which finds the plan with the least number of notes, a bounded coin change solved by
+ * dynamic programming over the live note counts. An amount is rejected only if no combination of the available
+ * notes adds up to it.
+ * </p>
+ * Amounts are solved in units of the greatest common divisor of the denominations, each cassette is added in
+ * O(units) with a sliding window minimum per remainder of its currency. Amounts above {@link #MAX_PLAN_UNITS}
+ * units fall back to the {@link GreedyDispenseStrategy}.
+ *
+ * @author himanshuupadhyay
+ */
+@Component
+@ConditionalOnProperty(name = "atm.dispense.strategy", havingValue = "optimal", matchIfMissing = true)
+public class OptimalDispenseStrategy implements DispenseStrategy {
+
+    /**
+     * Largest amount, in units of the denomination divisor, solved by dynamic programming.
+     */
+    static final int MAX_PLAN_UNITS = 1 << 16;
+
+    private static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    private final GreedyDispenseStrategy greedyDispenseStrategy = new GreedyDispenseStrategy();
+
+    @Override
+    public int[] plan(int[] denominations, int[] counts, long amount) {
+        int unit = 0;
+        long totalAmount = 0;
+        for (int slot = 0; slot < denominations.length; slot++) {
+            if (counts[slot] > 0) {
+                unit = DispensableAmounts.gcd(unit, denominations[slot]);
+                totalAmount += (long) denominations[slot] * counts[slot];
+            }
+        }
+        if (unit == 0 || amount % unit != 0 || amount > totalAmount) {
+            return null;
+        }
+        if (amount / unit > MAX_PLAN_UNITS) {
+            return this.greedyDispenseStrategy.plan(denominations, counts, amount);
+        }
+        int units = (int) (amount / unit);
+
+        //notes[v] is the least number of notes adding up to v units with the cassettes added so far.
+        int[] notes = new int[units + 1];
+        Arrays.fill(notes, UNREACHABLE);
+        notes[0] = 0;
+        int[] nextNotes = new int[units + 1];
+        int[][] taken = new int[denominations.length][];
+        int[] window = new int[units + 1];
+
+        for (int slot = 0; slot < denominations.length; slot++) {
+            if (counts[slot] == 0 || denominations[slot] / unit > units) {
+                continue;
+            }
+            int step = denominations[slot] / unit;
+            int limit = counts[slot];
+            int[] takenFromSlot = new int[units + 1];
+            for (int remainder = 0; remainder < step; remainder++) {
+                //Sliding window minimum of notes[m] - m over the last limit + 1 positions of this remainder.
+                int head = 0;
+                int tail = 0;
+                for (int position = 0, value = remainder; value <= units; position++, value += step) {
+                    if (notes[value] != UNREACHABLE) {
+                        int key = notes[value] - position;
+                        while (tail > head && notes[remainder + window[tail - 1] * step] - window[tail - 1] >= key) {
+                            tail--;
+                        }
+                        window[tail++] = position;
+                    }
+                    while (tail > head && window[head] < position - limit) {
+                        head++;
+                    }
+                    if (tail > head) {
+                        int best = window[head];
+                        nextNotes[value] = notes[remainder + best * step] - best + position;
+                        takenFromSlot[value] = position - best;
+                    } else {
+                        nextNotes[value] = UNREACHABLE;
+                    }
+                }
+            }
+            taken[slot] = takenFromSlot;
+            int[] swap = notes;
+            notes = nextNotes;
+            nextNotes = swap;
+        }
+        if (notes[units] == UNREACHABLE) {
+            return null;
+        }
+
+        int[] plan = new int[denominations.length];
+        int remaining = units;
+        for (int slot = denominations.length - 1; slot >= 0 && remaining > 0; slot--) {
+            if (taken[slot] != null) {
+                plan[slot] = taken[slot][remaining];
+                remaining -= plan[slot] * (denominations[slot] / unit);
+            }
+        }
+        return plan;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.service.bussiness.bankacc;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * Striped lock manager keyed by the account user name.
+ * Operations on the same account are executed one at a time, while operations on
+ * different accounts only contend when their user names hash to the same stripe.
+ * </p>
+ * The action passed to {@link #executeWithLock(String, Supplier)} must include the transaction
+ * commit, so that the next operation on the same account always reads committed state.
+ *
+ * @author himanshuupadhyay
+ */
+@Component
+public class AccountLockManager {
+
+    private static final int DEFAULT_STRIPE_COUNT = 256;
+
+    private final ReentrantLock[] stripes;
+
+    public AccountLockManager() {
+        this(DEFAULT_STRIPE_COUNT);
+    }
+
+    /**
+     * @param stripeCount number of locks, rounded up to the next power of two.
+     */
+    public AccountLockManager(int stripeCount) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("stripe count must be positive : " + stripeCount);
+        }
+        int size = Integer.highestOneBit(stripeCount);
+        if (size < stripeCount) {
+            size = size << 1;
+        }
+        this.stripes = new ReentrantLock[size];
+        for (int index = 0; index < size; index++) {
+            this.stripes[index] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Executes the action while holding the lock of the account.
+     *
+     * @param userName user name of the account to lock.
+     * @param action   the work to be done, including its transaction commit.
+     * @return the result of the action.
+     */
+    public <T> T executeWithLock(String userName, Supplier<T> action) {
+        ReentrantLock lock = this.lockFor(userName);
+        lock.lock();
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getStripeCount() {
+        return this.stripes.length;
+    }
+
+    ReentrantLock lockFor(String userName) {
+        int hash = Objects.hashCode(userName);
+        //Spread the higher bits so that similar user names do not land on the same stripe.
+        hash ^= (hash >>> 16);
+        return this.stripes[hash & (this.stripes.length - 1)];
+    }
+}
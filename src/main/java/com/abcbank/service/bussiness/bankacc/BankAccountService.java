@@ -28,11 +28,14 @@ package com.abcbank.service.bussiness.bankacc;
 
 import com.abcbank.data.dto.BalanceEnquiry;
 import com.abcbank.data.dto.BalanceEnquiryResponse;
+import com.abcbank.data.dto.CardSessionRequest;
+import com.abcbank.data.dto.CardSessionResponse;
 import com.abcbank.data.dto.WithdrawalRequest;
 import com.abcbank.data.dto.WithdrawalResponse;
 import com.abcbank.data.entity.BankAccount;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * <p>
@@ -55,9 +58,29 @@ public interface BankAccountService {
      */
     List<BankAccount> getAccountsInventory();
 
+    /**
+     * This method should return one page of the bank inventory, ordered by account id, without the pins.
+     * <br> This is more for the audit purpose.
+     *
+     * @param afterId id of the last account of the previous page, null for the first page.
+     * @param limit   maximum number of accounts in the page, null for the default page size.
+     * @return
+     */
+    List<BankAccount> getAccountsInventoryPage(Long afterId, Integer limit);
+
+    /**
+     * This method should hand every account of the bank inventory to the consumer, ordered by account id,
+     * without the pins and without holding the entire inventory in memory.
+     * <br> This is more for the audit purpose.
+     *
+     * @param consumer receives the accounts one by one.
+     */
+    void streamAccountsInventory(Consumer<BankAccount> consumer);
+
     /**
      * <p>This method should return the details of the account as BalanceEnquiryResponse.</p>
      * <br>This method should check the ATM PIN from the balanceEnquiry request and authenticate against the user pin <br>
+     * or the card session token against the open sessions of the user. <br>
      * On successful authentication this method should provide the details of account <br>
      * else should respond with the BalanceEnquiryResponse as ATM pin not correct.
      *
@@ -68,8 +91,9 @@ public interface BankAccountService {
 
     /**
      * <p>This method should perform the withdraw from the user account
-     * This method should check the ATM PIN from the withdrawal request and authenticate against the user pin <br>
-     * This operation must be performed in the synchronized way.
+     * This method should check the ATM PIN from the withdrawal request and authenticate against the user pin, <br>
+     * or the card session token against the open sessions of the user. <br>
+     * This operation must be serialized per account, withdrawals on different accounts may run in parallel.
      * If the withdrawal request is invalid then an appropriate response should be returned.
      * this method should be able to handle the scenarios like
      * <ul>
@@ -85,4 +109,21 @@ public interface BankAccountService {
      * @return
      */
     WithdrawalResponse withDraw(WithdrawalRequest withdrawalRequest);
+
+    /**
+     * <p>This method should authenticate the ATM PIN once and open a card session for the user.
+     * The returned token is presented instead of the PIN by the later requests of the visit, until it expires.</p>
+     *
+     * @param cardSessionRequest user name and PIN.
+     * @return {@link CardSessionResponse} with the session token, or the reason no session was opened.
+     */
+    CardSessionResponse openSession(CardSessionRequest cardSessionRequest);
+
+    /**
+     * <p>This method should close the card session of the user, at the end of the visit.</p>
+     *
+     * @param cardSessionRequest user name and session token.
+     * @return {@link CardSessionResponse} telling if the session was closed.
+     */
+    CardSessionResponse closeSession(CardSessionRequest cardSessionRequest);
 }
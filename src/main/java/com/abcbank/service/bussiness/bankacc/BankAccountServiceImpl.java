@@ -30,17 +30,28 @@ import com.abcbank.aspects.CollectLog;
 import com.abcbank.constant.StringConstants;
 import com.abcbank.data.dto.*;
 import com.abcbank.data.entity.BankAccount;
+import com.abcbank.data.service.AccountBalanceView;
 import com.abcbank.data.service.BankAccountDataAccessService;
+import com.abcbank.data.service.TransactionLedgerWriter;
 import com.abcbank.exception.custom_exceptions.AccountNotFoundException;
+import com.abcbank.exception.custom_exceptions.InsufficientFundsException;
+import com.abcbank.exception.custom_exceptions.ReservationLostException;
 import com.abcbank.service.bussiness.atm.ATMService;
 import com.abcbank.service.security.AuthenticationService;
+import com.abcbank.service.security.CardSessionService;
+import com.abcbank.service.security.PinLockoutService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
 import lombok.Data;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import javax.transaction.Transactional;
 import java.util.List;
 import java.util.Objects;
+import java.util.function.Consumer;
 
 /**
  * <p>
@@ -60,9 +71,36 @@ public class BankAccountServiceImpl implements BankAccountService {
     @Autowired
     private AuthenticationService authenticationService;
 
+    @Autowired
+    private CardSessionService cardSessionService;
+
+    @Autowired
+    private PinLockoutService pinLockoutService;
+
     @Autowired
     private ATMService atmService;
 
+    @Autowired
+    private AccountLockManager accountLockManager;
+
+    @Autowired
+    private TransactionLedgerWriter transactionLedgerWriter;
+
+    @Autowired
+    private AccountBalanceView accountBalanceView;
+
+    @Value("${atm.accounts.page-size:500}")
+    private int accountsPageSize = 500;
+
+    @Value("${atm.accounts.max-page-size:5000}")
+    private int maxAccountsPageSize = 5000;
+
+    private final Counter withdrawAttempts = Metrics.counter("atm.withdraw.attempts");
+
+    private final Counter lostReservations = Metrics.counter("atm.withdraw.reservations.lost");
+
+    private final Logger logger = LogManager.getLogger(this.getClass());
+
     @Override
     public List<BankAccount> getAccountsInventory() {
         return this.bankAccountDataAccessService.getAllAccounts();
@@ -70,6 +108,41 @@ public class BankAccountServiceImpl implements BankAccountService {
 
     /**
      * {@inheritDoc}
+     * <br>The limit is capped at {@code atm.accounts.max-page-size}.
+     *
+     * @param afterId id of the last account of the previous page, null for the first page.
+     * @param limit   maximum number of accounts in the page, null for the default page size.
+     * @return
+     */
+    @Override
+    public List<BankAccount> getAccountsInventoryPage(Long afterId, Integer limit) {
+        int pageSize = Objects.isNull(limit) || limit <= 0 ? this.accountsPageSize : Math.min(limit, this.maxAccountsPageSize);
+        return this.bankAccountDataAccessService.getAccountsPage(Objects.isNull(afterId) ? 0L : afterId, pageSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <br>The accounts are read page by page, so no connection is held while the consumer writes them out.
+     *
+     * @param consumer receives the accounts one by one.
+     */
+    @Override
+    public void streamAccountsInventory(Consumer<BankAccount> consumer) {
+        long afterId = 0L;
+        List<BankAccount> page;
+        do {
+            page = this.bankAccountDataAccessService.getAccountsPage(afterId, this.accountsPageSize);
+            page.forEach(consumer);
+            if (!page.isEmpty()) {
+                afterId = page.get(page.size() - 1).getId();
+            }
+        } while (page.size() == this.accountsPageSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <br>Enquiries are answered from the {@link AccountBalanceView}, which also holds the stored pin hash for enquiries with the pin.
+     * <br>Enquiries of locked out accounts or terminals are rejected before the view is read.
      *
      * @param balanceEnquiry {@link BalanceEnquiry} details for getting account information.
      * @return
@@ -80,40 +153,186 @@ public class BankAccountServiceImpl implements BankAccountService {
         if (Objects.isNull(balanceEnquiry)) {
             return new BalanceEnquiryResponse(null, ' ', StringConstants.InvalidBalanceEnquiry);
         }
-        //Fetch bank details from DB.
-        BankAccount bankAccount = null;
+        //Locked out accounts and terminals are rejected before the account is read or the pin is hashed.
+        if (this.pinLockoutService.isLockedOut(balanceEnquiry.getUserName(), balanceEnquiry.getTerminalId())) {
+            return new BalanceEnquiryResponse(null, ' ', StringConstants.PinLocked);
+        }
+        //Fetch the balances from the read model, with the stored pin if the pin has to be checked.
+        boolean sessionRequest = hasSessionToken(balanceEnquiry.getSessionToken());
+        AccountSummary accountSummary = null;
         try {
-            bankAccount = this.bankAccountDataAccessService.getAccountDetailsForUserName(balanceEnquiry.getUserName());
+            accountSummary = sessionRequest ? this.accountBalanceView.getAccountSummary(balanceEnquiry.getUserName())
+                    : this.accountBalanceView.readAccountSummary(balanceEnquiry.getUserName());
         } catch (AccountNotFoundException exp) {
+            this.pinLockoutService.recordFailure(null, balanceEnquiry.getTerminalId());
             return new BalanceEnquiryResponse(null, ' ', StringConstants.BankAccountNotFound);
         }
 
-
-        //Authenticate
-        if (this.authenticationService.authenticateBankAccount(bankAccount, balanceEnquiry.getPin())) {
+        //Authenticate, with the card session if one is presented.
+        boolean authenticated = sessionRequest
+                ? this.cardSessionService.isValidSession(balanceEnquiry.getSessionToken(), balanceEnquiry.getUserName())
+                : this.authenticatePin(accountSummary, balanceEnquiry.getPin(), balanceEnquiry.getTerminalId());
+        if (authenticated) {
             //Respond Balance.
-            return new BalanceEnquiryResponse(bankAccount.getOpening_balance(), '£', "");
+            return new BalanceEnquiryResponse(accountSummary.getOpeningBalance(), '£', "");
         } else {
-            return new BalanceEnquiryResponse(null, ' ', StringConstants.InvalidPin);
+            return new BalanceEnquiryResponse(null, ' ', sessionRequest ? StringConstants.InvalidSession : StringConstants.InvalidPin);
         }
 
     }
 
     /**
      * {@inheritDoc}
+     * <br>Withdrawals are serialized per account only, so withdrawals on different accounts run in parallel.
+     * No transaction and no connection is held by the caller, the account is read and the pin is checked before
+     * the debit is queued, and the debit is committed by the group commit of the {@link com.abcbank.data.service.WithdrawalBatcher}.
+     * <br>The debit is guarded by the available funds and not by the row version, so an update from another
+     * instance never makes it fail and it is not retried.
+     * <br>Amounts the ATM can not make up, requests of locked out accounts or terminals, and requests with a session
+     * token which is not valid for the user, are rejected before the account lock is taken or the account is read.
+     * <br>Every withdrawal is recorded in the transaction ledger once it is completed, also when it ends with an exception.
      *
      * @param withdrawalRequest
      * @return
      */
-    @Transactional
     @Override
     @CollectLog
-    public synchronized WithdrawalResponse withDraw(WithdrawalRequest withdrawalRequest) {
+    public WithdrawalResponse withDraw(WithdrawalRequest withdrawalRequest) {
+        LedgerEntry ledgerEntry = LedgerEntry.of(withdrawalRequest);
+        try {
+            WithdrawalResponse withdrawalResponse = this.withDrawUnderLock(withdrawalRequest, ledgerEntry);
+            ledgerEntry.complete(withdrawalResponse);
+            return withdrawalResponse;
+        } finally {
+            //An entry without an outcome belongs to a withdrawal which ended with an exception.
+            if (Objects.isNull(ledgerEntry.getStatus())) {
+                ledgerEntry.fail();
+            }
+            //Recorded after the withdrawal is committed or has failed, the ledger is written in the background.
+            this.transactionLedgerWriter.record(ledgerEntry);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <br>The pin is verified like for a balance enquiry, the session is held by this node.
+     *
+     * @param cardSessionRequest user name and PIN.
+     * @return
+     */
+    @Override
+    @CollectLog
+    public CardSessionResponse openSession(CardSessionRequest cardSessionRequest) {
+        if (Objects.isNull(cardSessionRequest) || Objects.isNull(cardSessionRequest.getPin())) {
+            return new CardSessionResponse(null, null, StringConstants.InvalidPin);
+        }
+        if (this.pinLockoutService.isLockedOut(cardSessionRequest.getUserName(), cardSessionRequest.getTerminalId())) {
+            return new CardSessionResponse(null, null, StringConstants.PinLocked);
+        }
+        AccountSummary accountSummary = null;
+        try {
+            accountSummary = this.accountBalanceView.readAccountSummary(cardSessionRequest.getUserName());
+        } catch (AccountNotFoundException exp) {
+            this.pinLockoutService.recordFailure(null, cardSessionRequest.getTerminalId());
+            return new CardSessionResponse(null, null, StringConstants.BankAccountNotFound);
+        }
+        if (!this.authenticatePin(accountSummary, cardSessionRequest.getPin(), cardSessionRequest.getTerminalId())) {
+            return new CardSessionResponse(null, null, StringConstants.InvalidPin);
+        }
+        String sessionToken = this.cardSessionService.openSession(accountSummary.getUserName());
+        if (Objects.isNull(sessionToken)) {
+            return new CardSessionResponse(null, null, StringConstants.SessionLimitReached);
+        }
+        return new CardSessionResponse(sessionToken, this.cardSessionService.getTtlMillis(), "");
+    }
+
+    @Override
+    @CollectLog
+    public CardSessionResponse closeSession(CardSessionRequest cardSessionRequest) {
+        boolean closed = Objects.nonNull(cardSessionRequest)
+                && this.cardSessionService.closeSession(cardSessionRequest.getSessionToken(), cardSessionRequest.getUserName());
+        return new CardSessionResponse(null, null, closed ? StringConstants.SessionClosed : StringConstants.InvalidSession);
+    }
+
+    /**
+     * Verifies the pin and counts the result towards the lockout of the account and the terminal.
+     */
+    private boolean authenticatePin(AccountSummary accountSummary, String pin, String terminalId) {
+        return this.countPinAttempt(accountSummary.getUserName(), terminalId, this.authenticationService.authenticateBankAccount(accountSummary, pin));
+    }
+
+    private boolean countPinAttempt(String userName, String terminalId, boolean authenticated) {
+        if (authenticated) {
+            this.pinLockoutService.recordSuccess(userName);
+        } else {
+            this.pinLockoutService.recordFailure(userName, terminalId);
+        }
+        return authenticated;
+    }
+
+    private static boolean hasSessionToken(String sessionToken) {
+        return Objects.nonNull(sessionToken) && !sessionToken.isBlank();
+    }
+
+    private WithdrawalResponse withDrawUnderLock(WithdrawalRequest withdrawalRequest, LedgerEntry ledgerEntry) {
+        if (this.pinLockoutService.isLockedOut(withdrawalRequest.getUserName(), withdrawalRequest.getTerminalId())) {
+            WithdrawalResponse withdrawalResponse = new WithdrawalResponse();
+            withdrawalResponse.preparePinLockedResponse(withdrawalRequest, StringConstants.PinLocked);
+            return withdrawalResponse;
+        }
+        //A card session is checked in memory, before any lock or connection is taken for the request.
+        if (hasSessionToken(withdrawalRequest.getSessionToken())
+                && !this.cardSessionService.isValidSession(withdrawalRequest.getSessionToken(), withdrawalRequest.getUserName())) {
+            WithdrawalResponse withdrawalResponse = new WithdrawalResponse();
+            withdrawalResponse.prepareInvalidPinResponse(withdrawalRequest, StringConstants.InvalidSession);
+            return withdrawalResponse;
+        }
+        WithdrawalResponse rejection = this.rejectUndispensableAmount(withdrawalRequest);
+        if (Objects.nonNull(rejection)) {
+            return rejection;
+        }
+        this.withdrawAttempts.increment();
+        return this.accountLockManager.executeWithLock(withdrawalRequest.getUserName(), () -> this.withDrawFromAccount(withdrawalRequest, ledgerEntry));
+    }
+
+    /**
+     * <p>Rejects a withdrawal the ATM can not dispense, without touching the account.
+     * Invalid amounts are left to the withdrawal itself, so they are reported after authentication as before.</p>
+     *
+     * @param withdrawalRequest
+     * @return {@link WithdrawalResponse} with the rejection, null if the withdrawal may go on.
+     */
+    private WithdrawalResponse rejectUndispensableAmount(WithdrawalRequest withdrawalRequest) {
+        Long amount = withdrawalRequest.getWithDrawlAmount();
+        if (Objects.isNull(amount) || amount <= 0 || this.atmService.isAmountDispensable(withdrawalRequest.getTerminalId(), amount)) {
+            return null;
+        }
+        //Answered from the same precomputed amounts, this only picks the rejection message.
+        DispenseDetails dispenseDetails = this.atmService.canDispenseFromATM(withdrawalRequest.getTerminalId(), amount);
+        if (dispenseDetails.isDispensePermittedFromATM()) {
+            return null;
+        }
+        WithdrawalResponse withdrawalResponse = new WithdrawalResponse();
+        withdrawalResponse.prepareInSufficientMoneyInATMResponse(null, null, withdrawalRequest, dispenseDetails.getMessage());
+        return withdrawalResponse;
+    }
+
+    /**
+     * Performs the withdrawal, must be called with the account lock held and outside a transaction.
+     * Waiting for the group commit inside a transaction would hold a pooled connection for the whole batch.
+     *
+     * @param withdrawalRequest
+     * @param ledgerEntry       {@link LedgerEntry} of the withdrawal, gets the id of the account once it is read.
+     * @return
+     */
+    private WithdrawalResponse withDrawFromAccount(WithdrawalRequest withdrawalRequest, LedgerEntry ledgerEntry) {
         WithdrawalResponse withdrawalResponse = new WithdrawalResponse();
         BankAccount bankAccount = this.bankAccountDataAccessService.getAccountDetailsForUserName(withdrawalRequest.getUserName());
+        ledgerEntry.setAccountId(bankAccount.getId());
 
-        //[Contact 1]: Authenticate
-        if (!this.authenticationService.authenticateBankAccount(bankAccount, withdrawalRequest.getPin())) {
+        //[Contact 1]: Authenticate with the pin, a card session was checked before the account lock was taken.
+        if (!hasSessionToken(withdrawalRequest.getSessionToken()) && !this.countPinAttempt(bankAccount.getUser_name(), withdrawalRequest.getTerminalId(),
+                this.authenticationService.authenticateBankAccount(bankAccount, withdrawalRequest.getPin()))) {
             withdrawalResponse.prepareInvalidPinResponse(withdrawalRequest, StringConstants.InvalidPin);
             return withdrawalResponse;
         }
@@ -121,17 +340,26 @@ public class BankAccountServiceImpl implements BankAccountService {
         //Check if withdrawal can be made from bank account.
         if (this.canWithDrawFromAccount(bankAccount, withdrawalRequest.getWithDrawlAmount(), withdrawalRequest.getUseOverDraft())) {
 
-            //Get the DispenseDetails from ATM.
-            DispenseDetails dispenseDetails = this.atmService.canDispenseFromATM(withdrawalRequest.getWithDrawlAmount());
-
-            //If ATM permits dispense
-            if (dispenseDetails.isDispensePermittedFromATM()) {
+            //Plan and reserve the notes in the ATM before the account is debited.
+            DispenseReservation reservation = this.atmService.reserveAmount(withdrawalRequest.getTerminalId(), withdrawalRequest.getWithDrawlAmount());
+            if (reservation.isReserved() && !this.atmService.beginCommit(reservation.getReservationId())) {
+                //The reservation expired before the account was debited, nothing is dispensed or debited.
+                withdrawalResponse.prepareInSufficientMoneyInATMResponse(bankAccount.getOpening_balance(), bankAccount.getOverdraft(), withdrawalRequest, StringConstants.ReservationNotFound);
+            } else if (reservation.isReserved()) {
                 // [Contract 2]: Withdraw
-                bankAccount = this.performWithdrawalTransaction(bankAccount, withdrawalRequest, dispenseDetails.getCurrencyDispenseList());
-                withdrawalResponse.prepareSuccessFullWithdrawResponse(bankAccount.getOpening_balance(), bankAccount.getOverdraft(), dispenseDetails.getCurrencyDispenseList(), withdrawalRequest, StringConstants.CollectMoneyFromATMMessage);
+                try {
+                    bankAccount = this.performWithdrawalTransaction(bankAccount, withdrawalRequest, reservation.getReservationId());
+                    withdrawalResponse.prepareSuccessFullWithdrawResponse(bankAccount.getOpening_balance(), bankAccount.getOverdraft(), reservation.getCurrencyDispenseList(), withdrawalRequest, StringConstants.CollectMoneyFromATMMessage);
+                } catch (InsufficientFundsException exp) {
+                    // [Contract 4]: The funds guard of the debit failed, the balance was changed by another instance.
+                    withdrawalResponse.prepareLowBalanceResponse(bankAccount.getOpening_balance(), bankAccount.getOverdraft(), withdrawalRequest, StringConstants.InsufficientAmountInAccountMessage);
+                } catch (ReservationLostException exp) {
+                    //The debit was given back, the balances are the ones from before the withdrawal.
+                    withdrawalResponse.prepareInSufficientMoneyInATMResponse(bankAccount.getOpening_balance(), bankAccount.getOverdraft(), withdrawalRequest, StringConstants.ReservationNotFound);
+                }
             } else {
-                //Contract 3]: Dispense not permitted from ATM.
-                withdrawalResponse.prepareInSufficientMoneyInATMResponse(bankAccount.getOpening_balance(), bankAccount.getOverdraft(), withdrawalRequest, dispenseDetails.getMessage());
+                //Contract 3]: Dispense not permitted from ATM, or the notes were taken by concurrent withdrawals.
+                withdrawalResponse.prepareInSufficientMoneyInATMResponse(bankAccount.getOpening_balance(), bankAccount.getOverdraft(), withdrawalRequest, reservation.getMessage());
             }
         } else {
             if (withdrawalRequest.getWithDrawlAmount() <= 0) {
@@ -149,20 +377,39 @@ public class BankAccountServiceImpl implements BankAccountService {
     /**
      * This method performs the withdrawal by
      * <ul>
-     *  <li>Withdrawing the amount from ATM</li>
-     *  <li>Dispense the withdrawal amount from the ATM</li>
+     *  <li>Withdrawing the amount from the account</li>
+     *  <li>Committing the reserved notes in the ATM once the account debit is committed</li>
      * </ul>
+     * If the account debit fails, the reserved notes are released. The debit is group committed on its own, so the
+     * notes follow the outcome of the debit and not the surrounding transaction.
+     * <br>The reservation must be marked with {@link ATMService#beginCommit(String)}, so it can not expire meanwhile.
+     * If it is missing all the same, the debit is reversed.
      *
      * @param bankAccount       {@link BankAccount} from which the withdrawal to be made.
      * @param withdrawalRequest {@link WithdrawalRequest} containing the details of amount to be disposed.
-     * @param currencyDispenses A list of {@link CurrencyDispense} having details of denominations to be disposed.
+     * @param reservationId     id of the ATM reservation holding the notes to be disposed.
      * @return {@link BankAccount} with the updated details of withdrawals.
+     * @throws ReservationLostException if the reservation could not be committed, the account is not debited.
      */
     @CollectLog
-    private synchronized BankAccount performWithdrawalTransaction(BankAccount bankAccount, WithdrawalRequest withdrawalRequest, List<CurrencyDispense> currencyDispenses) {
-        this.bankAccountDataAccessService.withDraw(bankAccount, withdrawalRequest.getWithDrawlAmount(), withdrawalRequest.getUseOverDraft());
-        this.atmService.dispenseFormATM(currencyDispenses);
-        return this.bankAccountDataAccessService.getAccountDetailsForUserName(withdrawalRequest.getUserName());
+    private BankAccount performWithdrawalTransaction(BankAccount bankAccount, WithdrawalRequest withdrawalRequest, String reservationId) {
+        BankAccount updatedBankAccount;
+        try {
+            updatedBankAccount = this.bankAccountDataAccessService.withDraw(bankAccount, withdrawalRequest.getWithDrawlAmount(), withdrawalRequest.getUseOverDraft());
+        } catch (RuntimeException exp) {
+            this.atmService.releaseReservation(reservationId);
+            throw exp;
+        }
+        ATMInventory atmInventory = this.atmService.commitReservation(reservationId);
+        if (!atmInventory.getInventoryStatus().isHealthyWithdrawal()) {
+            //No notes are dispensed for the debit, so it is given back.
+            this.lostReservations.increment();
+            this.logger.error("ATM reservation " + reservationId + " could not be committed after account " + bankAccount.getId()
+                    + " was debited, reversing the debit : " + atmInventory.getMesssage());
+            this.bankAccountDataAccessService.reverseWithdrawal(bankAccount, updatedBankAccount);
+            throw new ReservationLostException("ATM reservation " + reservationId + " could not be committed : " + atmInventory.getMesssage());
+        }
+        return updatedBankAccount;
     }
 
     /**
@@ -0,0 +1,97 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.service.bussiness.bankacc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * Consistent hash ring of the service nodes. Every node is placed on the ring at a number of virtual
+ * points, a key belongs to the node of the first point at or after the hash of the key.
+ * </p>
+ * Adding or removing a node only moves the keys of the points next to it, all other keys keep their node.
+ * The ring is immutable and can be shared by any number of threads.
+ *
+ * @author himanshuupadhyay
+ */
+public final class ConsistentHashRing {
+
+    private final NavigableMap<Long, String> points = new TreeMap<>();
+
+    private final List<String> nodes;
+
+    /**
+     * @param nodes        ids of the nodes on the ring, not empty.
+     * @param virtualNodes number of points of every node on the ring.
+     */
+    public ConsistentHashRing(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty() || virtualNodes <= 0) {
+            throw new IllegalArgumentException("ring needs nodes and virtual nodes : " + nodes + ", " + virtualNodes);
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        for (String node : nodes) {
+            for (int point = 0; point < virtualNodes; point++) {
+                this.points.put(hash(node + "#" + point), node);
+            }
+        }
+    }
+
+    /**
+     * @param key the key to place, i.e. a user name.
+     * @return id of the node owning the key.
+     */
+    public String nodeFor(String key) {
+        Map.Entry<Long, String> point = this.points.ceilingEntry(hash(key));
+        return (Objects.isNull(point) ? this.points.firstEntry() : point).getValue();
+    }
+
+    public List<String> getNodes() {
+        return this.nodes;
+    }
+
+    /**
+     * First 8 bytes of the MD5 of the key, MD5 spreads similar keys evenly over the ring.
+     */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(String.valueOf(key).getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException exp) {
+            throw new IllegalStateException("MD5 is not available", exp);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.service.bussiness.bankacc;
+
+import com.abcbank.data.dto.BalanceEnquiry;
+import com.abcbank.data.dto.BalanceEnquiryResponse;
+import com.abcbank.data.dto.CardSessionRequest;
+import com.abcbank.data.dto.CardSessionResponse;
+import com.abcbank.data.dto.WithdrawalRequest;
+import com.abcbank.data.dto.WithdrawalResponse;
+import com.abcbank.data.entity.BankAccount;
+import com.abcbank.service.bussiness.atm.ATMService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.context.annotation.Primary;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * Partitions the accounts over the service nodes listed in {@code atm.partition.nodes}. Every user name
+ * is owned by one node, chosen by a {@link ConsistentHashRing}. Balance enquiries and withdrawals for
+ * accounts of this node are served by the local {@link BankAccountServiceImpl}, the others are forwarded
+ * over HTTP to the partition API of the owning node.
+ * </p>
+ * As an account is only ever served by its owner, the {@link AccountLockManager} of the owner is the lock of the
+ * account for the whole deployment and withdrawals need no distributed lock. Nodes are added by adding them to
+ * the list of every node, which moves only the accounts next to the new node on the ring.
+ * <br>Card sessions are opened and held by the owner as well, so a session token is valid wherever the request arrives.
+ * <br>Accounts are partitioned but terminals are not, every node hands out the notes of every terminal. With more than
+ * one node the ATM inventory is made shared, see {@link ATMService#setSharedInventory(boolean)}, so the notes are
+ * taken off the ATM table the nodes share and no two nodes hand out the same notes.
+ * <br>Without {@code atm.partition.nodes} every account is local. Audit methods always read the local database.
+ * <br>Forwarded requests carry the PIN in plain text, the links between the nodes must be trusted or use https.
+ *
+ * @author himanshuupadhyay
+ */
+@Primary
+@Service
+public class PartitionedBankAccountService implements BankAccountService {
+
+    /**
+     * Path of the partition API on every node, served by {@link com.abcbank.controller.PartitionController}.
+     */
+    public static final String PARTITION_API_PATH = "/atm/api/partition/";
+
+    private final Logger logger = LogManager.getLogger(this.getClass());
+
+    @Autowired
+    @Qualifier("bankAccountServiceImpl")
+    private BankAccountService localBankAccountService;
+
+    @Autowired
+    private ATMService atmService;
+
+    @Autowired
+    private RestTemplateBuilder restTemplateBuilder;
+
+    /**
+     * Comma separated base urls of all nodes, i.e. http://host-1:8080,http://host-2:8080. The same on every node.
+     */
+    @Value("${atm.partition.nodes:}")
+    private String nodes = "";
+
+    /**
+     * Base url of this node, as it is listed in {@code atm.partition.nodes}.
+     */
+    @Value("${atm.partition.self-url:}")
+    private volatile String selfUrl = "";
+
+    @Value("${atm.partition.virtual-nodes:128}")
+    private int virtualNodes = 128;
+
+    @Value("${atm.partition.forward-timeout-millis:5000}")
+    private long forwardTimeoutMillis = 5000;
+
+    private volatile ConsistentHashRing ring;
+
+    private volatile RestTemplate restTemplate;
+
+    private final Counter localRequests = Metrics.counter("atm.partition.requests", "route", "local");
+
+    private final Counter forwardedRequests = Metrics.counter("atm.partition.requests", "route", "forwarded");
+
+    @PostConstruct
+    public void buildRing() {
+        List<String> nodeUrls = new ArrayList<>();
+        for (String node : this.nodes.split(",")) {
+            if (!node.isBlank()) {
+                nodeUrls.add(node.trim());
+            }
+        }
+        if (nodeUrls.isEmpty()) {
+            this.logger.info("No partition nodes configured, all accounts are served locally");
+            return;
+        }
+        this.configureRing(nodeUrls, this.selfUrl);
+    }
+
+    /**
+     * <p>Places this node on a ring of the given nodes. Called at startup with {@code atm.partition.nodes}, and by
+     * deployments which only know the urls of the nodes once they have started, i.e. nodes on ephemeral ports.
+     * The ATM inventory is shared as soon as the ring has more than one node.</p>
+     *
+     * @param nodeUrls base urls of all nodes, the same on every node.
+     * @param selfUrl  base url of this node, one of the node urls.
+     */
+    public synchronized void configureRing(List<String> nodeUrls, String selfUrl) {
+        List<String> ringUrls = new ArrayList<>();
+        nodeUrls.forEach(nodeUrl -> ringUrls.add(withoutTrailingSlash(nodeUrl.trim())));
+        String ringSelfUrl = withoutTrailingSlash(selfUrl.trim());
+        if (!ringUrls.contains(ringSelfUrl)) {
+            throw new IllegalStateException("atm.partition.self-url " + ringSelfUrl + " is not one of atm.partition.nodes " + ringUrls);
+        }
+        if (Objects.isNull(this.restTemplate)) {
+            this.restTemplate = this.restTemplateBuilder.setConnectTimeout(Duration.ofMillis(this.forwardTimeoutMillis))
+                    .setReadTimeout(Duration.ofMillis(this.forwardTimeoutMillis)).build();
+        }
+        this.selfUrl = ringSelfUrl;
+        this.atmService.setSharedInventory(ringUrls.size() > 1);
+        this.ring = new ConsistentHashRing(ringUrls, this.virtualNodes);
+        this.logger.info("Serving the accounts of " + this.selfUrl + " on a ring of " + ringUrls.size() + " nodes");
+    }
+
+    /**
+     * @param userName user name of the account.
+     * @return base url of the node owning the account.
+     */
+    public String ownerOf(String userName) {
+        ConsistentHashRing ring = this.ring;
+        return Objects.isNull(ring) ? this.selfUrl : ring.nodeFor(userName);
+    }
+
+    /**
+     * @param userName user name of the account.
+     * @return true if the account is owned by this node.
+     */
+    public boolean isLocal(String userName) {
+        ConsistentHashRing ring = this.ring;
+        return Objects.isNull(ring) || this.selfUrl.equals(ring.nodeFor(userName));
+    }
+
+    @Override
+    public List<BankAccount> getAccountsInventory() {
+        return this.localBankAccountService.getAccountsInventory();
+    }
+
+    @Override
+    public List<BankAccount> getAccountsInventoryPage(Long afterId, Integer limit) {
+        return this.localBankAccountService.getAccountsInventoryPage(afterId, limit);
+    }
+
+    @Override
+    public void streamAccountsInventory(Consumer<BankAccount> consumer) {
+        this.localBankAccountService.streamAccountsInventory(consumer);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <br>Answered by the node owning the account.
+     *
+     * @param balanceEnquiry {@link BalanceEnquiry} details for getting account information.
+     * @return
+     */
+    @Override
+    public BalanceEnquiryResponse getBalanceForBalanceEnquiry(BalanceEnquiry balanceEnquiry) {
+        if (Objects.isNull(balanceEnquiry) || this.isLocal(balanceEnquiry.getUserName())) {
+            this.localRequests.increment();
+            return this.localBankAccountService.getBalanceForBalanceEnquiry(balanceEnquiry);
+        }
+        return this.forward(this.ownerOf(balanceEnquiry.getUserName()), "balance", balanceEnquiry, BalanceEnquiryResponse.class);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <br>Performed by the node owning the account, under the account lock of that node.
+     *
+     * @param withdrawalRequest
+     * @return
+     */
+    @Override
+    public WithdrawalResponse withDraw(WithdrawalRequest withdrawalRequest) {
+        if (Objects.isNull(withdrawalRequest) || this.isLocal(withdrawalRequest.getUserName())) {
+            this.localRequests.increment();
+            return this.localBankAccountService.withDraw(withdrawalRequest);
+        }
+        return this.forward(this.ownerOf(withdrawalRequest.getUserName()), "withdraw", withdrawalRequest, WithdrawalResponse.class);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <br>Opened on the node owning the account, which serves the later requests of the session.
+     *
+     * @param cardSessionRequest user name and PIN.
+     * @return
+     */
+    @Override
+    public CardSessionResponse openSession(CardSessionRequest cardSessionRequest) {
+        if (Objects.isNull(cardSessionRequest) || this.isLocal(cardSessionRequest.getUserName())) {
+            this.localRequests.increment();
+            return this.localBankAccountService.openSession(cardSessionRequest);
+        }
+        return this.forward(this.ownerOf(cardSessionRequest.getUserName()), "session", cardSessionRequest, CardSessionResponse.class);
+    }
+
+    @Override
+    public CardSessionResponse closeSession(CardSessionRequest cardSessionRequest) {
+        if (Objects.isNull(cardSessionRequest) || this.isLocal(cardSessionRequest.getUserName())) {
+            this.localRequests.increment();
+            return this.localBankAccountService.closeSession(cardSessionRequest);
+        }
+        return this.forward(this.ownerOf(cardSessionRequest.getUserName()), "session/close", cardSessionRequest, CardSessionResponse.class);
+    }
+
+    /**
+     * Posts the request to the partition API of the owning node. Errors of the owner are passed on with their status.
+     *
+     * @param node         base url of the owning node.
+     * @param operation    partition API operation.
+     * @param request      request body.
+     * @param responseType type of the response body.
+     * @return the response of the owning node.
+     */
+    private <T> T forward(String node, String operation, Object request, Class<T> responseType) {
+        this.forwardedRequests.increment();
+        try {
+            return this.restTemplate.postForObject(node + PARTITION_API_PATH + operation, request, responseType);
+        } catch (HttpStatusCodeException exp) {
+            throw new ResponseStatusException(exp.getStatusCode(), "Node " + node + " owning the account failed the request", exp);
+        } catch (ResourceAccessException exp) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Node " + node + " owning the account is not reachable", exp);
+        }
+    }
+
+    private static String withoutTrailingSlash(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+}
@@ -26,17 +26,149 @@
 
 package com.abcbank.service.security;
 
+import com.abcbank.data.dto.AccountSummary;
 import com.abcbank.data.entity.BankAccount;
+import com.abcbank.data.service.BankAccountDataAccessService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Authenticates the PIN of an account with the {@link PinVerifier} of the scheme the stored PIN is in.
+ * The verification runs on the crypto executor of the {@link EncryptionService}.
+ * </p>
+ * After a successful login a stored PIN which is not of {@code atm.pin.hash.scheme}, or was hashed with a lower
+ * cost, is rehashed from the entered PIN. The rehash runs on its own thread and in its own transaction, after the
+ * login has been answered, and only replaces the stored PIN if it was not changed in the meantime. The new hash is
+ * computed on the crypto executor like every other hash, so rehashes never add to the threads hashing PINs.
+ * When the rehash queue is full the rehash is dropped, the next login of the account tries again.
+ *
+ * @author himanshuupadhyay
+ */
 @Service
 public class AuthenticationService {
 
+    private final Logger logger = LogManager.getLogger(this.getClass());
+
     @Autowired
     private EncryptionService encryptionService;
 
+    @Autowired
+    private List<PinVerifier> pinVerifiers;
+
+    @Autowired
+    private BankAccountDataAccessService bankAccountDataAccessService;
+
+    @Value("${atm.pin.hash.scheme:" + Pbkdf2PinVerifier.SCHEME + "}")
+    private String pinHashScheme = Pbkdf2PinVerifier.SCHEME;
+
+    @Value("${atm.pin.rehash-on-login:true}")
+    private boolean rehashOnLogin = true;
+
+    @Value("${atm.pin.rehash.queue-capacity:1024}")
+    private int rehashQueueCapacity = 1024;
+
+    private final Counter rehashedPins = Metrics.counter("atm.pin.rehash", "result", "rehashed");
+
+    private final Counter droppedRehashes = Metrics.counter("atm.pin.rehash", "result", "dropped");
+
+    private PinVerifier pinHasher;
+
+    private ThreadPoolExecutor rehashExecutor;
+
+    @PostConstruct
+    public void startRehashExecutor() {
+        this.pinHasher = this.pinVerifiers.stream().filter(pinVerifier -> pinVerifier.getScheme().equals(this.pinHashScheme)).findFirst()
+                .orElseThrow(() -> new IllegalStateException("No PinVerifier for atm.pin.hash.scheme " + this.pinHashScheme));
+        this.rehashExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(this.rehashQueueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "atm-pin-rehash");
+            thread.setDaemon(true);
+            return thread;
+        }, (runnable, executor) -> this.droppedRehashes.increment());
+    }
+
+    @PreDestroy
+    public void stopRehashExecutor() throws InterruptedException {
+        this.rehashExecutor.shutdown();
+        this.rehashExecutor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
     public Boolean authenticateBankAccount(BankAccount bankAccount, String pinPlainText) {
-        return this.encryptionService.matchPlainTextWithEncryptedText(pinPlainText, bankAccount.getAtm_pin());
+        return this.authenticate(bankAccount.getId(), bankAccount.getAtm_pin(), pinPlainText);
+    }
+
+    public Boolean authenticateBankAccount(AccountSummary accountSummary, String pinPlainText) {
+        return this.authenticate(accountSummary.getId(), accountSummary.getAtmPin(), pinPlainText);
+    }
+
+    /**
+     * @return the {@link PinVerifier} of {@code atm.pin.hash.scheme}, which hashes new PINs.
+     */
+    public PinVerifier getPinHasher() {
+        return this.pinHasher;
+    }
+
+    /**
+     * @param pinPlainText PIN to hash.
+     * @return the PIN hashed as new PINs are stored.
+     */
+    public String hashPin(String pinPlainText) {
+        return this.encryptionService.executeCryptoTask(() -> this.pinHasher.hash(pinPlainText));
+    }
+
+    /**
+     * @param storedPin PIN as stored for an account.
+     * @return true if the stored PIN is to be rehashed to the current scheme and cost.
+     */
+    public boolean needsRehash(String storedPin) {
+        return !this.pinHasher.supports(storedPin) || this.pinHasher.needsRehash(storedPin);
+    }
+
+    private Boolean authenticate(Long accountId, String storedPin, String pinPlainText) {
+        PinVerifier pinVerifier = this.verifierFor(storedPin);
+        if (Objects.isNull(pinVerifier) || Objects.isNull(pinPlainText)) {
+            return false;
+        }
+        boolean matches = this.encryptionService.executeCryptoTask(() -> pinVerifier.matches(pinPlainText, storedPin));
+        if (matches && this.rehashOnLogin && Objects.nonNull(accountId) && this.needsRehash(storedPin)) {
+            this.rehashExecutor.execute(() -> this.rehash(accountId, storedPin, pinPlainText));
+        }
+        return matches;
+    }
+
+    private PinVerifier verifierFor(String storedPin) {
+        if (Objects.isNull(storedPin)) {
+            return null;
+        }
+        for (PinVerifier pinVerifier : this.pinVerifiers) {
+            if (pinVerifier.supports(storedPin)) {
+                return pinVerifier;
+            }
+        }
+        return null;
+    }
+
+    private void rehash(Long accountId, String storedPin, String pinPlainText) {
+        try {
+            String rehashedPin = this.hashPin(pinPlainText);
+            if (this.bankAccountDataAccessService.updatePin(accountId, storedPin, rehashedPin)) {
+                this.rehashedPins.increment();
+            }
+        } catch (RuntimeException exp) {
+            this.logger.warn("Failed to rehash the PIN of account " + accountId, exp);
+        }
     }
 }
@@ -0,0 +1,195 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.service.security;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Card sessions of the ATM visits, so a visit verifies the PIN once and its later operations present a session token.
+ * A token is bound to the account it was opened for and expires {@code atm.session.ttl-millis} after it was opened,
+ * however often it is used.
+ * </p>
+ * The sessions are held in memory only, by the node owning the account. A user has at most one session, opening
+ * a session closes the previous session of the user, so one card can not hold many sessions. At most
+ * {@code atm.session.max-sessions} are open at a time, further sessions of other users are refused until sessions
+ * expire or are closed, and the client goes on with the PIN. Expired sessions are removed when they are presented
+ * and by a periodic sweep.
+ *
+ * @author himanshuupadhyay
+ */
+@Service
+public class CardSessionService {
+
+    private static final int TOKEN_BYTES = 32;
+
+    @Value("${atm.session.ttl-millis:120000}")
+    private long ttlMillis = 120000;
+
+    @Value("${atm.session.max-sessions:10000}")
+    private int maxSessions = 10000;
+
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    private final Map<String, CardSession> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Token of the open session of every user.
+     */
+    private final Map<String, String> sessionTokensByUserName = new ConcurrentHashMap<>();
+
+    private final Counter openedSessions = Metrics.counter("atm.session.opened");
+
+    private final Counter refusedSessions = Metrics.counter("atm.session.refused");
+
+    private final Counter replacedSessions = Metrics.counter("atm.session.replaced");
+
+    private final ScheduledExecutorService sessionSweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "atm-session-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void scheduleSweep() {
+        Metrics.gauge("atm.session.active", this.sessions, Map::size);
+        this.sessionSweeper.scheduleWithFixedDelay(this::removeExpiredSessions, this.ttlMillis, this.ttlMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        this.sessionSweeper.shutdownNow();
+    }
+
+    public long getTtlMillis() {
+        return this.ttlMillis;
+    }
+
+    /**
+     * Opens a session for an authenticated account, the previous session of the user is closed.
+     *
+     * @param userName user name of the account.
+     * @return the session token, null if the maximum number of sessions is open.
+     */
+    public String openSession(String userName) {
+        //Replacing the session of the user does not add to the open sessions.
+        if (this.sessions.size() >= this.maxSessions && !this.sessionTokensByUserName.containsKey(userName)) {
+            this.removeExpiredSessions();
+            if (this.sessions.size() >= this.maxSessions) {
+                this.refusedSessions.increment();
+                return null;
+            }
+        }
+        byte[] tokenBytes = new byte[TOKEN_BYTES];
+        this.secureRandom.nextBytes(tokenBytes);
+        String sessionToken = Base64.getUrlEncoder().withoutPadding().encodeToString(tokenBytes);
+        this.sessions.put(sessionToken, new CardSession(userName, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.ttlMillis)));
+        String previousToken = this.sessionTokensByUserName.put(userName, sessionToken);
+        if (Objects.nonNull(previousToken) && Objects.nonNull(this.sessions.remove(previousToken))) {
+            this.replacedSessions.increment();
+        }
+        this.openedSessions.increment();
+        return sessionToken;
+    }
+
+    /**
+     * @param sessionToken token presented with the request.
+     * @param userName     user name of the request.
+     * @return true if the session is open, not expired and was opened for the user name.
+     */
+    public boolean isValidSession(String sessionToken, String userName) {
+        CardSession cardSession = Objects.isNull(sessionToken) ? null : this.sessions.get(sessionToken);
+        if (Objects.isNull(cardSession)) {
+            return false;
+        }
+        if (cardSession.isExpired(System.nanoTime())) {
+            this.remove(sessionToken, cardSession);
+            return false;
+        }
+        return cardSession.userName.equals(userName);
+    }
+
+    /**
+     * Closes the session, if it was opened for the user name.
+     *
+     * @param sessionToken token of the session.
+     * @param userName     user name of the request.
+     * @return true if an open session was closed.
+     */
+    public boolean closeSession(String sessionToken, String userName) {
+        CardSession cardSession = Objects.isNull(sessionToken) ? null : this.sessions.get(sessionToken);
+        return Objects.nonNull(cardSession) && cardSession.userName.equals(userName) && this.remove(sessionToken, cardSession);
+    }
+
+    private boolean remove(String sessionToken, CardSession cardSession) {
+        if (!this.sessions.remove(sessionToken, cardSession)) {
+            return false;
+        }
+        this.sessionTokensByUserName.remove(cardSession.userName, sessionToken);
+        return true;
+    }
+
+    private void removeExpiredSessions() {
+        long now = System.nanoTime();
+        this.sessions.forEach((sessionToken, cardSession) -> {
+            if (cardSession.isExpired(now)) {
+                this.remove(sessionToken, cardSession);
+            }
+        });
+    }
+
+    /**
+     * A session as held by the store.
+     */
+    private static final class CardSession {
+        private final String userName;
+        private final long expiresAtNanos;
+
+        private CardSession(String userName, long expiresAtNanos) {
+            this.userName = userName;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+
+        private boolean isExpired(long now) {
+            return now - this.expiresAtNanos >= 0;
+        }
+    }
+}
@@ -27,18 +27,146 @@
 package com.abcbank.service.security;
 
 import com.abcbank.aspects.CollectLog;
+import com.abcbank.config.AppConfigForJasyptStarter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import org.jasypt.encryption.StringEncryptor;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Verifies PINs against their encrypted value. The PIN is encrypted on a bounded crypto executor with one
+ * thread per cipher of the pooled encryptor, so no more encryptions run at a time than there are ciphers and
+ * request threads never contend on a cipher.
+ * </p>
+ * When the queue of the executor is full the caller waits up to {@code atm.crypto.verify-timeout-millis} for a
+ * place in the queue and is then rejected, crypto work never runs on the request threads, so no more of it runs at
+ * a time than the executor has threads. The queue depth, the verification latency and the rejections are exported.
+ *
+ * @author himanshuupadhyay
+ */
 @Service
 public class EncryptionService {
 
     @Autowired
     private StringEncryptor encryptor;
-    
+
+    @Value("${atm.crypto.pool-size:0}")
+    private int poolSize = 0;
+
+    @Value("${atm.crypto.queue-capacity:1024}")
+    private int queueCapacity = 1024;
+
+    @Value("${atm.crypto.verify-timeout-millis:5000}")
+    private long verifyTimeoutMillis = 5000;
+
+    private ThreadPoolExecutor cryptoExecutor;
+
+    private final Timer verifyLatency = Metrics.timer("atm.crypto.verify");
+
+    private final Counter rejections = Metrics.counter("atm.crypto.rejected");
+
+    @PostConstruct
+    public void startCryptoExecutor() {
+        int threads = AppConfigForJasyptStarter.cryptoPoolSize(this.poolSize);
+        AtomicInteger threadCount = new AtomicInteger();
+        BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(this.queueCapacity);
+        this.cryptoExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue, runnable -> {
+            Thread thread = new Thread(runnable, "atm-crypto-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, this::enqueueOrReject);
+        Metrics.gauge("atm.crypto.queue.depth", queue, BlockingQueue::size);
+        Metrics.gauge("atm.crypto.active", this.cryptoExecutor, ThreadPoolExecutor::getActiveCount);
+    }
+
+    @PreDestroy
+    public void stopCryptoExecutor() throws InterruptedException {
+        this.cryptoExecutor.shutdown();
+        this.cryptoExecutor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Waits for a place in the full queue of the executor, rejects the task if none is free in time or the executor
+     * is shut down.
+     */
+    private void enqueueOrReject(Runnable runnable, ThreadPoolExecutor executor) {
+        try {
+            if (!executor.isShutdown() && executor.getQueue().offer(runnable, this.verifyTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+        }
+        this.rejections.increment();
+        throw new RejectedExecutionException("Crypto executor is " + (executor.isShutdown() ? "shut down" : "saturated"));
+    }
+
+    /**
+     * Encrypts the plain text pin and compares it with the encrypted pin in constant time.
+     *
+     * @param plainTextPin  pin as entered.
+     * @param encryptedText pin as encrypted by the {@link StringEncryptor}.
+     * @return true if the pins match.
+     */
     @CollectLog
     public Boolean matchPlainTextWithEncryptedText(String plainTextPin, String encryptedText) {
-        return this.encryptor.encrypt(plainTextPin).equals(encryptedText);
+        if (Objects.isNull(plainTextPin) || Objects.isNull(encryptedText)) {
+            return false;
+        }
+        String encryptedPin = this.executeCryptoTask(() -> this.encryptor.encrypt(plainTextPin));
+        return MessageDigest.isEqual(encryptedPin.getBytes(StandardCharsets.UTF_8), encryptedText.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * <p>Runs crypto work on the crypto executor and waits for its result.</p>
+     * The task must not submit further tasks to this service, they would wait for the thread the task holds.
+     * <br>Fails with an {@link IllegalStateException} if the executor rejects the task.
+     *
+     * @param task the crypto work, i.e. hashing or encrypting a pin.
+     * @return the result of the task.
+     */
+    public <T> T executeCryptoTask(Callable<T> task) {
+        long start = System.nanoTime();
+        Future<T> result;
+        try {
+            result = this.cryptoExecutor.submit(task);
+        } catch (RejectedExecutionException exp) {
+            this.verifyLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            throw new IllegalStateException("PIN verification rejected, the crypto executor is busy", exp);
+        }
+        try {
+            return result.get(this.verifyTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exp) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while verifying the PIN", exp);
+        } catch (ExecutionException exp) {
+            throw new IllegalStateException("Failed to verify the PIN", exp.getCause());
+        } catch (TimeoutException exp) {
+            result.cancel(true);
+            throw new IllegalStateException("PIN verification timed out after " + this.verifyTimeoutMillis + " ms", exp);
+        } finally {
+            this.verifyLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
     }
-}
\ No newline at end of file
+}
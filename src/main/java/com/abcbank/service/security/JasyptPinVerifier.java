@@ -0,0 +1,89 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.service.security;
+
+import org.jasypt.encryption.StringEncryptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Objects;
+
+/**
+ * <p>
+ * Verifies the legacy PINs, encrypted by the Jasypt {@link StringEncryptor} with a fixed salt.
+ * Legacy PINs are plain Base64 and never start with '$', unlike the PINs of the hashing schemes.
+ * </p>
+ * The encryption is reversible, which is what lets the {@link PinMigrationJob} rehash accounts that never log in.
+ *
+ * @author himanshuupadhyay
+ */
+@Component
+public class JasyptPinVerifier implements PinVerifier {
+
+    public static final String SCHEME = "jasypt";
+
+    @Autowired
+    private StringEncryptor encryptor;
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public boolean supports(String storedPin) {
+        return Objects.nonNull(storedPin) && !storedPin.startsWith("$");
+    }
+
+    @Override
+    public boolean matches(String plainTextPin, String storedPin) {
+        if (Objects.isNull(plainTextPin) || Objects.isNull(storedPin)) {
+            return false;
+        }
+        return MessageDigest.isEqual(this.encryptor.encrypt(plainTextPin).getBytes(StandardCharsets.UTF_8), storedPin.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String hash(String plainTextPin) {
+        return this.encryptor.encrypt(plainTextPin);
+    }
+
+    @Override
+    public boolean needsRehash(String storedPin) {
+        return false;
+    }
+
+    /**
+     * @param storedPin legacy PIN as stored for the account.
+     * @return the PIN in plain text.
+     */
+    public String decrypt(String storedPin) {
+        return this.encryptor.decrypt(storedPin);
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.service.security;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Hashes PINs with PBKDF2 over HMAC-SHA256 and a random salt per PIN. A PIN is stored as
+ * {@code $pbkdf2-sha256$<iterations>$<salt>$<hash>}, so every stored PIN carries the cost it was hashed with.
+ * </p>
+ * The number of iterations is {@code atm.pin.hash.iterations}. When it is not set it is calibrated at startup,
+ * so one hash takes about {@code atm.pin.hash.target-millis} on this machine, and never less than
+ * {@link #MIN_ITERATIONS}.
+ * <br>PINs hashed with fewer iterations than {@code atm.pin.hash.rehash-below-iterations} are reported for rehash.
+ * When that is not set, the floor is {@code atm.pin.hash.iterations}, or {@link #MIN_ITERATIONS} for a calibrated
+ * cost. A calibrated cost differs a little on every start and on every node, so it never marks PINs for rehash itself.
+ *
+ * @author himanshuupadhyay
+ */
+@Component
+public class Pbkdf2PinVerifier implements PinVerifier {
+
+    public static final String SCHEME = "pbkdf2-sha256";
+
+    public static final int MIN_ITERATIONS = 10_000;
+
+    private static final String PREFIX = "$" + SCHEME + "$";
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+    private static final int SALT_BYTES = 16;
+
+    private static final int HASH_BITS = 256;
+
+    private static final int CALIBRATION_ROUNDS = 5;
+
+    private static final long CALIBRATION_WARM_UP_MILLIS = 500;
+
+    private final Logger logger = LogManager.getLogger(this.getClass());
+
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    /**
+     * Iterations of new hashes, 0 or less to calibrate them at startup.
+     */
+    @Value("${atm.pin.hash.iterations:0}")
+    private int iterations = 0;
+
+    @Value("${atm.pin.hash.target-millis:25}")
+    private long targetMillis = 25;
+
+    /**
+     * Stored PINs with fewer iterations are rehashed, 0 or less for the default floor.
+     */
+    @Value("${atm.pin.hash.rehash-below-iterations:0}")
+    private int rehashBelowIterations = 0;
+
+    private boolean calibrated;
+
+    @PostConstruct
+    public void calibrate() {
+        if (this.iterations <= 0) {
+            this.iterations = this.calibrateIterations(this.targetMillis);
+            this.calibrated = true;
+            this.logger.info("Calibrated PIN hashing to " + this.iterations + " iterations for " + this.targetMillis + " ms per hash");
+        } else {
+            this.logger.info("Hashing PINs with " + this.iterations + " iterations");
+        }
+    }
+
+    /**
+     * Times the fastest of a few hashes at {@link #MIN_ITERATIONS} and scales the iterations to the target time.
+     * The hashes are timed after a warm up, the first hashes run before the JIT compiled the hash function.
+     *
+     * @param targetMillis time one hash should take.
+     * @return iterations, rounded up to a thousand and at least {@link #MIN_ITERATIONS}.
+     */
+    public int calibrateIterations(long targetMillis) {
+        byte[] salt = this.newSalt();
+        long warmUpEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CALIBRATION_WARM_UP_MILLIS);
+        while (System.nanoTime() < warmUpEnd) {
+            derive("calibration".toCharArray(), salt, MIN_ITERATIONS);
+        }
+        long fastestNanos = Long.MAX_VALUE;
+        for (int round = 0; round < CALIBRATION_ROUNDS; round++) {
+            long start = System.nanoTime();
+            derive("calibration".toCharArray(), salt, MIN_ITERATIONS);
+            fastestNanos = Math.min(fastestNanos, System.nanoTime() - start);
+        }
+        long scaled = MIN_ITERATIONS * TimeUnit.MILLISECONDS.toNanos(targetMillis) / Math.max(fastestNanos, 1);
+        long rounded = (scaled + 999) / 1000 * 1000;
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_ITERATIONS, rounded));
+    }
+
+    public int getIterations() {
+        return this.iterations;
+    }
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public boolean supports(String storedPin) {
+        return Objects.nonNull(storedPin) && storedPin.startsWith(PREFIX);
+    }
+
+    @Override
+    public boolean matches(String plainTextPin, String storedPin) {
+        StoredHash storedHash = StoredHash.parse(storedPin);
+        if (Objects.isNull(plainTextPin) || Objects.isNull(storedHash)) {
+            return false;
+        }
+        byte[] hash = derive(plainTextPin.toCharArray(), storedHash.salt, storedHash.iterations);
+        return MessageDigest.isEqual(hash, storedHash.hash);
+    }
+
+    @Override
+    public String hash(String plainTextPin) {
+        byte[] salt = this.newSalt();
+        int currentIterations = this.iterations;
+        byte[] hash = derive(plainTextPin.toCharArray(), salt, currentIterations);
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return PREFIX + currentIterations + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(hash);
+    }
+
+    @Override
+    public boolean needsRehash(String storedPin) {
+        StoredHash storedHash = StoredHash.parse(storedPin);
+        return Objects.isNull(storedHash) || storedHash.iterations < this.rehashFloor();
+    }
+
+    /**
+     * @return iterations below which a stored PIN is rehashed.
+     */
+    private int rehashFloor() {
+        if (this.rehashBelowIterations > 0) {
+            return this.rehashBelowIterations;
+        }
+        return this.calibrated ? MIN_ITERATIONS : this.iterations;
+    }
+
+    private byte[] newSalt() {
+        byte[] salt = new byte[SALT_BYTES];
+        this.secureRandom.nextBytes(salt);
+        return salt;
+    }
+
+    private static byte[] derive(char[] pin, byte[] salt, int iterations) {
+        PBEKeySpec keySpec = new PBEKeySpec(pin, salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(keySpec).getEncoded();
+        } catch (GeneralSecurityException exp) {
+            throw new IllegalStateException("Failed to hash the PIN with " + ALGORITHM, exp);
+        } finally {
+            keySpec.clearPassword();
+        }
+    }
+
+    /**
+     * The parts of a stored PIN of this scheme.
+     */
+    private static final class StoredHash {
+        private final int iterations;
+        private final byte[] salt;
+        private final byte[] hash;
+
+        private StoredHash(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        /**
+         * @return the parts, null if the stored PIN is not a well formed PIN of this scheme.
+         */
+        private static StoredHash parse(String storedPin) {
+            if (Objects.isNull(storedPin) || !storedPin.startsWith(PREFIX)) {
+                return null;
+            }
+            String[] parts = storedPin.substring(PREFIX.length()).split("\\$");
+            if (parts.length != 3) {
+                return null;
+            }
+            try {
+                int iterations = Integer.parseInt(parts[0]);
+                byte[] salt = Base64.getDecoder().decode(parts[1]);
+                byte[] hash = Base64.getDecoder().decode(parts[2]);
+                return iterations > 0 && salt.length > 0 && hash.length > 0 ? new StoredHash(iterations, salt, hash) : null;
+            } catch (IllegalArgumentException exp) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.service.security;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Locks accounts and ATM terminals out after too many incorrect PINs, so brute force attempts are rejected
+ * before the account is read or the PIN is hashed. An account is locked out after
+ * {@code atm.lockout.max-account-failures} incorrect PINs within {@code atm.lockout.window-millis}, a terminal after
+ * {@code atm.lockout.max-terminal-failures}, both for {@code atm.lockout.lockout-millis}.
+ * </p>
+ * The failures are counted with atomic counters in concurrent maps, an account or terminal is only in the maps while
+ * its failures are counted or it is locked out. A correct PIN clears the failures of the account. At most
+ * {@code atm.lockout.max-tracked} accounts and as many terminals are tracked, failures of further ones are not counted
+ * until tracked entries expire. The lockouts and rejections are exported as metrics.
+ * <p>
+ * The terminal id is supplied by the client with the request and is not verified, the terminal lockout only throttles
+ * honest terminals and the account lockout is the protection against guessing. A request without terminal id is
+ * counted against its account only, it never locks out a terminal, in particular not the default terminal.
+ * </p>
+ *
+ * @author himanshuupadhyay
+ */
+@Service
+public class PinLockoutService {
+
+    @Value("${atm.lockout.max-account-failures:3}")
+    private int maxAccountFailures = 3;
+
+    @Value("${atm.lockout.max-terminal-failures:20}")
+    private int maxTerminalFailures = 20;
+
+    @Value("${atm.lockout.window-millis:900000}")
+    private long windowMillis = 900000;
+
+    @Value("${atm.lockout.lockout-millis:900000}")
+    private long lockoutMillis = 900000;
+
+    @Value("${atm.lockout.max-tracked:100000}")
+    private int maxTracked = 100000;
+
+    private final Map<String, FailureCounter> accountFailures = new ConcurrentHashMap<>();
+
+    private final Map<String, FailureCounter> terminalFailures = new ConcurrentHashMap<>();
+
+    private final Counter failedPins = Metrics.counter("atm.pin.failures");
+
+    private final Counter accountLockouts = Metrics.counter("atm.pin.lockouts", "scope", "account");
+
+    private final Counter terminalLockouts = Metrics.counter("atm.pin.lockouts", "scope", "terminal");
+
+    private final Counter rejectedForAccount = Metrics.counter("atm.pin.lockout.rejected", "scope", "account");
+
+    private final Counter rejectedForTerminal = Metrics.counter("atm.pin.lockout.rejected", "scope", "terminal");
+
+    private final ScheduledExecutorService lockoutSweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "atm-pin-lockout-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void scheduleSweep() {
+        Metrics.gauge("atm.pin.lockout.tracked", Tags.of("scope", "account"), this.accountFailures, Map::size);
+        Metrics.gauge("atm.pin.lockout.tracked", Tags.of("scope", "terminal"), this.terminalFailures, Map::size);
+        Metrics.gauge("atm.pin.lockout.locked", Tags.of("scope", "account"), this.accountFailures, PinLockoutService::countLocked);
+        Metrics.gauge("atm.pin.lockout.locked", Tags.of("scope", "terminal"), this.terminalFailures, PinLockoutService::countLocked);
+        long sweepMillis = Math.max(1000, Math.min(this.windowMillis, this.lockoutMillis));
+        this.lockoutSweeper.scheduleWithFixedDelay(this::removeExpired, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        this.lockoutSweeper.shutdownNow();
+    }
+
+    /**
+     * @param userName   user name of the request.
+     * @param terminalId terminal supplied by the client, null or blank if the request has none, then only the account is checked.
+     * @return true if the account or the terminal is locked out, the request is to be rejected without checking the PIN.
+     */
+    public boolean isLockedOut(String userName, String terminalId) {
+        long now = System.nanoTime();
+        if (isLocked(this.terminalFailures, terminalKey(terminalId), now)) {
+            this.rejectedForTerminal.increment();
+            return true;
+        }
+        if (isLocked(this.accountFailures, userName, now)) {
+            this.rejectedForAccount.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Counts an incorrect PIN, or a user name without account, against the account and the terminal.
+     *
+     * @param userName   user name of the request, null if no account exists for it.
+     * @param terminalId terminal supplied by the client, null or blank if the request has none, then no terminal is counted.
+     */
+    public void recordFailure(String userName, String terminalId) {
+        this.failedPins.increment();
+        long now = System.nanoTime();
+        String terminalKey = terminalKey(terminalId);
+        if (Objects.nonNull(terminalKey) && this.count(this.terminalFailures, terminalKey, this.maxTerminalFailures, now)) {
+            this.terminalLockouts.increment();
+        }
+        if (Objects.nonNull(userName) && this.count(this.accountFailures, userName, this.maxAccountFailures, now)) {
+            this.accountLockouts.increment();
+        }
+    }
+
+    /**
+     * Clears the failures of the account after a correct PIN. A lockout in force is not lifted.
+     *
+     * @param userName user name of the account.
+     */
+    public void recordSuccess(String userName) {
+        if (Objects.isNull(userName)) {
+            return;
+        }
+        this.accountFailures.computeIfPresent(userName, (name, failureCounter) -> failureCounter.isLocked(System.nanoTime()) ? failureCounter : null);
+    }
+
+    /**
+     * @return true if this failure locked the key out.
+     */
+    private boolean count(Map<String, FailureCounter> failures, String key, int maxFailures, long now) {
+        FailureCounter failureCounter = failures.get(key);
+        if (Objects.isNull(failureCounter)) {
+            if (failures.size() >= this.maxTracked) {
+                this.removeExpired();
+                if (failures.size() >= this.maxTracked) {
+                    return false;
+                }
+            }
+            failureCounter = failures.computeIfAbsent(key, newKey -> new FailureCounter(now));
+        }
+        return failureCounter.recordFailure(now, TimeUnit.MILLISECONDS.toNanos(this.windowMillis), maxFailures,
+                TimeUnit.MILLISECONDS.toNanos(this.lockoutMillis));
+    }
+
+    private void removeExpired() {
+        long now = System.nanoTime();
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(this.windowMillis);
+        this.accountFailures.values().removeIf(failureCounter -> failureCounter.isExpired(now, windowNanos));
+        this.terminalFailures.values().removeIf(failureCounter -> failureCounter.isExpired(now, windowNanos));
+    }
+
+    private static boolean isLocked(Map<String, FailureCounter> failures, String key, long now) {
+        FailureCounter failureCounter = Objects.isNull(key) ? null : failures.get(key);
+        return Objects.nonNull(failureCounter) && failureCounter.isLocked(now);
+    }
+
+    private static double countLocked(Map<String, FailureCounter> failures) {
+        long now = System.nanoTime();
+        return failures.values().stream().filter(failureCounter -> failureCounter.isLocked(now)).count();
+    }
+
+    /**
+     * @return the terminal id, null if the request has none so that no terminal is locked out on its behalf.
+     */
+    private static String terminalKey(String terminalId) {
+        return Objects.isNull(terminalId) || terminalId.isBlank() ? null : terminalId;
+    }
+
+    /**
+     * Failures of an account or terminal within the current window, and the end of its lockout.
+     */
+    private static final class FailureCounter {
+        private final AtomicInteger failures = new AtomicInteger();
+        private final AtomicLong windowStartNanos;
+        private volatile long lockedUntilNanos;
+        private volatile boolean locked;
+
+        private FailureCounter(long now) {
+            this.windowStartNanos = new AtomicLong(now);
+        }
+
+        private boolean recordFailure(long now, long windowNanos, int maxFailures, long lockoutNanos) {
+            long windowStart = this.windowStartNanos.get();
+            if (now - windowStart >= windowNanos && this.windowStartNanos.compareAndSet(windowStart, now)) {
+                this.failures.set(0);
+            }
+            if (this.failures.incrementAndGet() != maxFailures) {
+                return false;
+            }
+            //Exactly one failure reaches the maximum, it locks out and starts counting again.
+            this.lockedUntilNanos = now + lockoutNanos;
+            this.locked = true;
+            this.failures.set(0);
+            this.windowStartNanos.set(now);
+            return true;
+        }
+
+        private boolean isLocked(long now) {
+            return this.locked && now - this.lockedUntilNanos < 0;
+        }
+
+        private boolean isExpired(long now, long windowNanos) {
+            return !this.isLocked(now) && now - this.windowStartNanos.get() >= windowNanos;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.service.security;
+
+import com.abcbank.data.service.BankAccountDataAccessService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Rehashes the legacy PINs of accounts which do not log in, so the reversible legacy PINs can be retired.
+ * The BANK_ACCOUNT table is read page by page on the id, the legacy PINs of a page are decrypted and hashed
+ * on {@code atm.pin.migration.threads} workers and written with one batch of conditional updates per page.
+ * </p>
+ * The workers hand every PIN to the crypto executor of the {@link EncryptionService}, so the job shares its threads
+ * with the logins and never runs more hashes at a time than the executor has threads. Each worker waits for its PIN,
+ * so the job never holds more than one place per worker in the queue.
+ * A PIN is only replaced if it is still the one read, so the job never undoes a rehash on login or a PIN change.
+ * The job runs in the background after startup when {@code atm.pin.migration.enabled} is true. It can be run again
+ * at any time, accounts already rehashed are skipped.
+ *
+ * @author himanshuupadhyay
+ */
+@Component
+@ConditionalOnProperty(name = "atm.pin.migration.enabled", havingValue = "true")
+public class PinMigrationJob implements ApplicationRunner {
+
+    private static final String LEGACY_PINS_PAGE_QUERY = "SELECT id, atm_pin FROM BANK_ACCOUNT WHERE id > ? ORDER BY id LIMIT ?";
+
+    private final Logger logger = LogManager.getLogger(this.getClass());
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private JasyptPinVerifier jasyptPinVerifier;
+
+    @Autowired
+    private AuthenticationService authenticationService;
+
+    @Autowired
+    private EncryptionService encryptionService;
+
+    @Autowired
+    private BankAccountDataAccessService bankAccountDataAccessService;
+
+    /**
+     * Hashing workers, 0 or less for half of the cores so logins keep the other half.
+     */
+    @Value("${atm.pin.migration.threads:0}")
+    private int threads = 0;
+
+    @Value("${atm.pin.migration.page-size:500}")
+    private int pageSize = 500;
+
+    private final Counter migratedPins = Metrics.counter("atm.pin.migration.migrated");
+
+    private final ExecutorService jobThread = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "atm-pin-migration");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Override
+    public void run(ApplicationArguments args) {
+        this.jobThread.execute(() -> {
+            try {
+                this.migrate();
+            } catch (RuntimeException exp) {
+                this.logger.error("PIN migration failed, it resumes with the remaining accounts on the next run", exp);
+            } catch (InterruptedException exp) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        this.jobThread.shutdownNow();
+    }
+
+    /**
+     * Rehashes the legacy PINs of all accounts.
+     *
+     * @return number of PINs rehashed.
+     */
+    public long migrate() throws InterruptedException {
+        long start = System.nanoTime();
+        int workers = this.threads > 0 ? this.threads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger workerCount = new AtomicInteger();
+        ExecutorService hashWorkers = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "atm-pin-migration-" + workerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Deque<Future<Integer>> pendingPages = new ArrayDeque<>();
+        long migrated = 0;
+        try {
+            long afterId = 0L;
+            List<Object[]> page;
+            do {
+                page = this.jdbcTemplate.query(LEGACY_PINS_PAGE_QUERY, (resultSet, rowNum) -> new Object[]{resultSet.getLong("id"), resultSet.getString("atm_pin")},
+                        afterId, this.pageSize);
+                if (!page.isEmpty()) {
+                    afterId = (Long) page.get(page.size() - 1)[0];
+                }
+                List<Object[]> legacyPins = new ArrayList<>();
+                for (Object[] row : page) {
+                    if (this.jasyptPinVerifier.supports((String) row[1])) {
+                        legacyPins.add(row);
+                    }
+                }
+                if (!legacyPins.isEmpty()) {
+                    //At most two pages per worker are hashed or waiting, the reader never runs far ahead.
+                    if (pendingPages.size() >= workers * 2) {
+                        migrated += this.await(pendingPages.removeFirst());
+                    }
+                    pendingPages.addLast(hashWorkers.submit(() -> this.migratePage(legacyPins)));
+                }
+            } while (page.size() == this.pageSize);
+            while (!pendingPages.isEmpty()) {
+                migrated += this.await(pendingPages.removeFirst());
+            }
+        } finally {
+            hashWorkers.shutdownNow();
+        }
+        this.logger.info("Rehashed " + migrated + " legacy PINs with " + workers + " workers in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return migrated;
+    }
+
+    /**
+     * Hashes the legacy PINs of a page and writes them in one batch.
+     *
+     * @param legacyPins account id and legacy PIN of every account.
+     * @return number of PINs replaced.
+     */
+    private int migratePage(List<Object[]> legacyPins) {
+        PinVerifier pinHasher = this.authenticationService.getPinHasher();
+        List<Object[]> pinUpdates = new ArrayList<>(legacyPins.size());
+        for (Object[] legacyPin : legacyPins) {
+            String rehashedPin = this.encryptionService.executeCryptoTask(() -> pinHasher.hash(this.jasyptPinVerifier.decrypt((String) legacyPin[1])));
+            pinUpdates.add(new Object[]{rehashedPin, legacyPin[0], legacyPin[1]});
+        }
+        boolean[] updated = this.bankAccountDataAccessService.updatePins(pinUpdates);
+        int migrated = 0;
+        for (int update = 0; update < updated.length; update++) {
+            if (updated[update]) {
+                migrated++;
+            }
+        }
+        this.migratedPins.increment(migrated);
+        return migrated;
+    }
+
+    private int await(Future<Integer> pendingPage) throws InterruptedException {
+        try {
+            return pendingPage.get();
+        } catch (ExecutionException exp) {
+            throw new IllegalStateException("Failed to rehash a page of legacy PINs", exp.getCause());
+        }
+    }
+}
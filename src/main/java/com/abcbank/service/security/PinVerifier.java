@@ -0,0 +1,73 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.service.security;
+
+/**
+ * <p>
+ * Verifies entered PINs against stored PINs of one hashing scheme. Every verifier bean is offered the stored
+ * PINs and the first one {@link #supports(String) supporting} a stored PIN verifies it, so stored PINs of
+ * several schemes can live side by side in the BANK_ACCOUNT table.
+ * </p>
+ * The verifier of {@code atm.pin.hash.scheme} hashes new PINs. A stored PIN of another scheme, or one its
+ * verifier reports as {@link #needsRehash(String) weaker} than the current cost, is rehashed on the next login.
+ *
+ * @author himanshuupadhyay
+ */
+public interface PinVerifier {
+
+    /**
+     * @return name of the hashing scheme, as configured in {@code atm.pin.hash.scheme}.
+     */
+    String getScheme();
+
+    /**
+     * @param storedPin PIN as stored for the account.
+     * @return true if the stored PIN is of the scheme of this verifier.
+     */
+    boolean supports(String storedPin);
+
+    /**
+     * Compares the entered PIN with the stored PIN in time independent of where they differ.
+     *
+     * @param plainTextPin PIN as entered.
+     * @param storedPin    PIN as stored for the account, of the scheme of this verifier.
+     * @return true if the PINs match.
+     */
+    boolean matches(String plainTextPin, String storedPin);
+
+    /**
+     * @param plainTextPin PIN to hash.
+     * @return the PIN as it is to be stored for the account.
+     */
+    String hash(String plainTextPin);
+
+    /**
+     * @param storedPin PIN as stored for the account, of the scheme of this verifier.
+     * @return true if the stored PIN was hashed with a lower cost than new PINs are.
+     */
+    boolean needsRehash(String storedPin);
+}
@@ -0,0 +1,47 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.utils;
+
+/**
+ * <p>
+ * Conversion between whole currency units, used by the API and the services, and minor units, used to store
+ * the balances as integers.
+ * </p>
+ * Amounts are always whole units, so stored balances are always a multiple of {@link #MINOR_UNITS_PER_UNIT}.
+ */
+public class MinorUnits {
+
+    public static final long MINOR_UNITS_PER_UNIT = 100;
+
+    public static long toMinorUnits(long amount) {
+        return Math.multiplyExact(amount, MINOR_UNITS_PER_UNIT);
+    }
+
+    public static long toUnits(long minorUnits) {
+        return minorUnits / MINOR_UNITS_PER_UNIT;
+    }
+}
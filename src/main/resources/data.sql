@@ -25,12 +25,16 @@
  */
 
 INSERT INTO BANK_ACCOUNT (first_name, last_name, user_name, email, account_number, atm_pin, opening_balance, overdraft)
-VALUES ('clint', 'eastwood', 'clint_west', 'eastwood@wildwest.com', 123456789, 'gd6/yf/26JU=', 800, 200),
-       ('russell', 'crowe', 'russell_gladiator', 'maximus@gladiator.com', 987654321, '7jh4Sd0w2ZY=', 1230,
-        150);
+VALUES ('clint', 'eastwood', 'clint_west', 'eastwood@wildwest.com', 123456789, 'gd6/yf/26JU=', 80000, 20000),
+       ('russell', 'crowe', 'russell_gladiator', 'maximus@gladiator.com', 987654321, '7jh4Sd0w2ZY=', 123000,
+        15000);
 
-INSERT INTO ATM (currency, currency_count, currency_type)
-VALUES (50, 10, '£'),
-       (20, 30, '£'),
-       (10, 30, '£'),
-       (5, 20, '£');
\ No newline at end of file
+INSERT INTO ATM (currency, currency_count, currency_type, terminal_id)
+VALUES (50, 10, '£', 'ATM-1'),
+       (20, 30, '£', 'ATM-1'),
+       (10, 30, '£', 'ATM-1'),
+       (5, 20, '£', 'ATM-1'),
+       (50, 10, '£', 'ATM-2'),
+       (20, 30, '£', 'ATM-2'),
+       (10, 30, '£', 'ATM-2'),
+       (5, 20, '£', 'ATM-2');
\ No newline at end of file
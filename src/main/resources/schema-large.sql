@@ -0,0 +1,78 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+
+-- Schema of the large profile, created only if missing so the file backed database survives restarts.
+-- Balances are stored as integer minor units.
+CREATE TABLE IF NOT EXISTS BANK_ACCOUNT (
+                              id INT AUTO_INCREMENT  PRIMARY KEY,
+                              first_name VARCHAR(250) NOT NULL,
+                              last_name VARCHAR(250) NOT NULL,
+                              user_name VARCHAR(250) NOT NULL,
+                              email VARCHAR(250) DEFAULT NULL,
+                              account_number BIGINT,
+                              atm_pin VARCHAR(250),
+                              opening_balance BIGINT,
+                              overdraft BIGINT,
+                              version BIGINT DEFAULT 0 NOT NULL
+);
+CREATE UNIQUE INDEX IF NOT EXISTS email_uq ON BANK_ACCOUNT(email);
+CREATE UNIQUE INDEX IF NOT EXISTS account_number_uq ON BANK_ACCOUNT(account_number);
+-- Serves findByUserName and the account reads of the balance view by user name with one index seek.
+CREATE UNIQUE INDEX IF NOT EXISTS user_name_uq ON BANK_ACCOUNT(user_name);
+
+CREATE TABLE IF NOT EXISTS ATM (
+      id INT AUTO_INCREMENT  PRIMARY KEY,
+      currency INT,
+      currency_count INT,
+      currency_type CHAR(10),
+      version BIGINT DEFAULT 0 NOT NULL,
+      terminal_id VARCHAR(64) DEFAULT 'ATM-1' NOT NULL
+);
+-- Databases created before terminals were added get the column, their cassettes belong to the default terminal.
+ALTER TABLE ATM ADD COLUMN IF NOT EXISTS terminal_id VARCHAR(64) DEFAULT 'ATM-1' NOT NULL;
+DROP INDEX IF EXISTS currency_uq;
+CREATE UNIQUE INDEX IF NOT EXISTS terminal_currency_uq ON ATM(terminal_id, currency);
+
+CREATE TABLE IF NOT EXISTS TRANSACTION_LEDGER (
+      id BIGINT AUTO_INCREMENT  PRIMARY KEY,
+      account_id BIGINT,
+      user_name VARCHAR(250),
+      amount_minor BIGINT,
+      dispensed_notes VARCHAR(250),
+      status VARCHAR(50) NOT NULL,
+      created_at TIMESTAMP NOT NULL
+);
+-- Ledgers created before the account id was recorded get the columns, their old amount column keeps whole units.
+ALTER TABLE TRANSACTION_LEDGER ADD COLUMN IF NOT EXISTS account_id BIGINT;
+ALTER TABLE TRANSACTION_LEDGER ADD COLUMN IF NOT EXISTS amount_minor BIGINT;
+CREATE INDEX IF NOT EXISTS ledger_user_name_idx ON TRANSACTION_LEDGER(user_name, id);
+
+-- Journal segment of the last balance snapshot the tables are known to hold, so startup only replays the tail.
+CREATE TABLE IF NOT EXISTS JOURNAL_CHECKPOINT (
+      id INT PRIMARY KEY,
+      snapshot_segment BIGINT NOT NULL
+);
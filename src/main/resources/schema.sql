@@ -33,8 +33,9 @@ CREATE TABLE BANK_ACCOUNT (
                               email VARCHAR(250) DEFAULT NULL,
                               account_number BIGINT,
                               atm_pin VARCHAR(250),
-                              opening_balance DOUBLE,
-                              overdraft DOUBLE
+                              opening_balance BIGINT,
+                              overdraft BIGINT,
+                              version BIGINT DEFAULT 0 NOT NULL
 );
 ALTER TABLE BANK_ACCOUNT ADD CONSTRAINT email_uq UNIQUE(email);
 ALTER TABLE BANK_ACCOUNT ADD CONSTRAINT account_number_uq UNIQUE(account_number);
@@ -45,6 +46,26 @@ CREATE TABLE ATM (
       id INT AUTO_INCREMENT  PRIMARY KEY,
       currency INT,
       currency_count INT,
-      currency_type CHAR(10)
+      currency_type CHAR(10),
+      version BIGINT DEFAULT 0 NOT NULL,
+      terminal_id VARCHAR(64) DEFAULT 'ATM-1' NOT NULL
+);
+ALTER TABLE ATM ADD CONSTRAINT terminal_currency_uq UNIQUE(terminal_id, currency);
+
+DROP TABLE IF EXISTS TRANSACTION_LEDGER;
+CREATE TABLE TRANSACTION_LEDGER (
+      id BIGINT AUTO_INCREMENT  PRIMARY KEY,
+      account_id BIGINT,
+      user_name VARCHAR(250),
+      amount_minor BIGINT,
+      dispensed_notes VARCHAR(250),
+      status VARCHAR(50) NOT NULL,
+      created_at TIMESTAMP NOT NULL
+);
+CREATE INDEX ledger_user_name_idx ON TRANSACTION_LEDGER(user_name, id);
+
+DROP TABLE IF EXISTS JOURNAL_CHECKPOINT;
+CREATE TABLE JOURNAL_CHECKPOINT (
+      id INT PRIMARY KEY,
+      snapshot_segment BIGINT NOT NULL
 );
-ALTER TABLE ATM ADD CONSTRAINT currency_uq UNIQUE(currency);
@@ -30,22 +30,37 @@ import com.abcbank.constant.StringConstants;
 import com.abcbank.data.dto.ATMInventory;
 import com.abcbank.data.dto.CurrencyDispense;
 import com.abcbank.data.dto.DispenseDetails;
+import com.abcbank.data.dto.DispenseReservation;
 import com.abcbank.data.entity.DenominationDetail;
 import com.abcbank.data.service.ATMDataAccessService;
 import com.abcbank.enums.ATMInventoryStatus;
+import com.abcbank.exception.custom_exceptions.CurrencyDenominationCountNotAvailableException;
+import com.abcbank.exception.custom_exceptions.TerminalNotFoundException;
 import com.abcbank.service.bussiness.atm.ATMServiceImpl;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @SpringBootTest
@@ -60,7 +75,7 @@ public class ATMServiceTest {
 
     @BeforeEach
     public void setUp() {
-        when(atmDataAccessService.getATMInventory()).then(new Answer<List<DenominationDetail>>() {
+        Answer<List<DenominationDetail>> atmInventory = new Answer<List<DenominationDetail>>() {
             @Override
             public List<DenominationDetail> answer(InvocationOnMock invocationOnMock) throws Throwable {
                 List<DenominationDetail> atmDepositedMoney = new ArrayList<>();
@@ -70,6 +85,16 @@ public class ATMServiceTest {
                 atmDepositedMoney.add(new DenominationDetail(4L, 5, 20, '£'));
                 return atmDepositedMoney;
             }
+        };
+        when(atmDataAccessService.getATMInventory(StringConstants.DefaultTerminalId)).then(atmInventory);
+        when(atmDataAccessService.getATMInventory("ATM-2")).then(new Answer<List<DenominationDetail>>() {
+            @Override
+            public List<DenominationDetail> answer(InvocationOnMock invocationOnMock) throws Throwable {
+                List<DenominationDetail> atmDepositedMoney = new ArrayList<>();
+                atmDepositedMoney.add(new DenominationDetail(5L, 50, 2, '£', 0L, "ATM-2"));
+                atmDepositedMoney.add(new DenominationDetail(6L, 20, 5, '£', 0L, "ATM-2"));
+                return atmDepositedMoney;
+            }
         });
     }
 
@@ -165,4 +190,241 @@ public class ATMServiceTest {
         Assertions.assertTrue(StringConstants.ImproperAmountToWithDraw.equals(dd.getMessage()));
     }
 
+    @Test
+    public void testReserveAmount() {
+        DispenseReservation reservation = this.atmService.reserveAmount(1300L);
+        Assertions.assertTrue(reservation.isReserved());
+        Assertions.assertEquals(3, reservation.getCurrencyDispenseList().size());
+        Assertions.assertEquals(0, this.atmService.getATMInventory().get(0).getCurrencyCount());
+        Assertions.assertEquals(10, this.atmService.getATMInventory().get(2).getCurrencyCount());
+
+        DispenseReservation rejected = this.atmService.reserveAmount(300L);
+        Assertions.assertFalse(rejected.isReserved());
+        Assertions.assertTrue(ATMInventoryStatus.AMOUNT_NOT_DISPENSABLE.equals(rejected.getInventoryStatus()));
+        Assertions.assertTrue(StringConstants.InsufficientAmountInATMMessage.equals(rejected.getMessage()));
+
+        this.atmService.releaseReservation(reservation.getReservationId());
+        Assertions.assertEquals(10, this.atmService.getATMInventory().get(0).getCurrencyCount());
+    }
+
+    @Test
+    public void testReserveImproperAmount() {
+        DispenseReservation reservation = this.atmService.reserveAmount(123L);
+        Assertions.assertFalse(reservation.isReserved());
+        Assertions.assertTrue(StringConstants.ImproperAmountToWithDraw.equals(reservation.getMessage()));
+    }
+
+    @Test
+    public void testDispensableAmountsFollowInventory() {
+        Assertions.assertTrue(this.atmService.isAmountDispensable(1500L));
+        Assertions.assertFalse(this.atmService.isAmountDispensable(1505L));
+        Assertions.assertFalse(this.atmService.isAmountDispensable(123L));
+        Assertions.assertEquals(300, this.atmService.getDispensableAmounts().size());
+
+        List<CurrencyDispense> dispenses = new ArrayList<>();
+        dispenses.add(CurrencyDispense.of(5, 20));
+        Assertions.assertTrue(this.atmService.reserveDispense(dispenses).isReserved());
+        // Without 5 notes only multiples of 10 are left.
+        Assertions.assertFalse(this.atmService.isAmountDispensable(15L));
+        Assertions.assertFalse(this.atmService.isAmountDispensable(1500L));
+        Assertions.assertTrue(this.atmService.isAmountDispensable(1400L));
+        Assertions.assertEquals(140, this.atmService.getDispensableAmounts().size());
+    }
+
+    @Test
+    public void testCanDispenseWhenHighestNoteLeavesNoRemainder() {
+        List<CurrencyDispense> dispenses = new ArrayList<>();
+        dispenses.add(CurrencyDispense.of(50, 9));
+        dispenses.add(CurrencyDispense.of(10, 30));
+        dispenses.add(CurrencyDispense.of(5, 20));
+        Assertions.assertTrue(this.atmService.reserveDispense(dispenses).isReserved());
+
+        // One 50 note is left, but 60 can only be made of three 20 notes.
+        DispenseDetails dd = this.atmService.canDispenseFromATM(60L);
+        Assertions.assertTrue(StringConstants.CollectMoneyFromATMMessage.equals(dd.getMessage()));
+        Assertions.assertEquals(1, dd.getCurrencyDispenseList().size());
+        Assertions.assertEquals(20, dd.getCurrencyDispenseList().get(0).getCurrencyValue());
+        Assertions.assertEquals(3, dd.getCurrencyDispenseList().get(0).getCount());
+    }
+
+    @Test
+    public void testReservedNotesCannotBeReservedAgain() {
+        List<CurrencyDispense> dispenses = new ArrayList<>();
+        dispenses.add(CurrencyDispense.of(50, 10));
+
+        DispenseReservation reservation = this.atmService.reserveDispense(dispenses);
+        Assertions.assertTrue(reservation.isReserved());
+
+        DispenseReservation secondReservation = this.atmService.reserveDispense(dispenses);
+        Assertions.assertFalse(secondReservation.isReserved());
+        Assertions.assertTrue(ATMInventoryStatus.DENOMINATION_COUNT_NOT_AVAILABLE.equals(secondReservation.getInventoryStatus()));
+    }
+
+    @Test
+    public void testCommitReservation() {
+        List<CurrencyDispense> dispenses = new ArrayList<>();
+        dispenses.add(CurrencyDispense.of(50, 4));
+
+        DispenseReservation reservation = this.atmService.reserveDispense(dispenses);
+        ATMInventory updatedInventory = this.atmService.commitReservation(reservation.getReservationId());
+        Assertions.assertTrue(updatedInventory.getInventoryStatus().isHealthyWithdrawal());
+        Assertions.assertEquals(6, this.atmService.getATMInventory().get(0).getCurrencyCount());
+
+        // A committed reservation cannot be released or committed again.
+        this.atmService.releaseReservation(reservation.getReservationId());
+        Assertions.assertEquals(6, this.atmService.getATMInventory().get(0).getCurrencyCount());
+        Assertions.assertTrue(ATMInventoryStatus.RESERVATION_NOT_FOUND.equals(this.atmService.commitReservation(reservation.getReservationId()).getInventoryStatus()));
+    }
+
+    @Test
+    public void testReleaseReservation() {
+        List<CurrencyDispense> dispenses = new ArrayList<>();
+        dispenses.add(CurrencyDispense.of(20, 5));
+
+        DispenseReservation reservation = this.atmService.reserveDispense(dispenses);
+        Assertions.assertEquals(25, this.atmService.getATMInventory().get(1).getCurrencyCount());
+
+        this.atmService.releaseReservation(reservation.getReservationId());
+        Assertions.assertEquals(30, this.atmService.getATMInventory().get(1).getCurrencyCount());
+    }
+
+    @Test
+    public void testExpiredReservationIsReleased() {
+        ReflectionTestUtils.setField(this.atmService, "reservationTimeoutMillis", 0L);
+        List<CurrencyDispense> dispenses = new ArrayList<>();
+        dispenses.add(CurrencyDispense.of(10, 30));
+
+        DispenseReservation reservation = this.atmService.reserveDispense(dispenses);
+        Assertions.assertEquals(0, this.atmService.getATMInventory().get(2).getCurrencyCount());
+
+        this.atmService.expireReservations();
+        Assertions.assertEquals(30, this.atmService.getATMInventory().get(2).getCurrencyCount());
+        Assertions.assertTrue(ATMInventoryStatus.RESERVATION_NOT_FOUND.equals(this.atmService.commitReservation(reservation.getReservationId()).getInventoryStatus()));
+    }
+
+    @Test
+    public void testReservationBeingCommittedDoesNotExpire() {
+        ReflectionTestUtils.setField(this.atmService, "reservationTimeoutMillis", 0L);
+        List<CurrencyDispense> dispenses = new ArrayList<>();
+        dispenses.add(CurrencyDispense.of(10, 30));
+
+        DispenseReservation reservation = this.atmService.reserveDispense(dispenses);
+        Assertions.assertTrue(this.atmService.beginCommit(reservation.getReservationId()));
+
+        // The account debit is in flight, the notes stay reserved past the timeout.
+        this.atmService.expireReservations();
+        Assertions.assertEquals(0, this.atmService.getATMInventory().get(2).getCurrencyCount());
+        Assertions.assertTrue(this.atmService.commitReservation(reservation.getReservationId()).getInventoryStatus().isHealthyWithdrawal());
+    }
+
+    @Test
+    public void testExpiredReservationCannotBeginCommit() {
+        ReflectionTestUtils.setField(this.atmService, "reservationTimeoutMillis", 0L);
+        List<CurrencyDispense> dispenses = new ArrayList<>();
+        dispenses.add(CurrencyDispense.of(10, 30));
+
+        DispenseReservation reservation = this.atmService.reserveDispense(dispenses);
+        this.atmService.expireReservations();
+        Assertions.assertFalse(this.atmService.beginCommit(reservation.getReservationId()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFailedWriteBehindIsRetriedWithItsNotes() {
+        ReflectionTestUtils.setField(this.atmService, "writeBehindRetryInitialMillis", 1L);
+        when(this.atmDataAccessService.withdrawCurrencyCounts(eq(StringConstants.DefaultTerminalId), anyMap()))
+                .thenThrow(new DataAccessResourceFailureException("database down"))
+                .thenReturn(1);
+        List<CurrencyDispense> dispenses = new ArrayList<>();
+        dispenses.add(CurrencyDispense.of(50, 4));
+        DispenseReservation reservation = this.atmService.reserveDispense(dispenses);
+        this.atmService.commitReservation(reservation.getReservationId());
+
+        // The notes of the failed write are written again, as a relative update of the row.
+        ArgumentCaptor<Map<Long, Integer>> writtenNotes = ArgumentCaptor.forClass(Map.class);
+        verify(this.atmDataAccessService, timeout(5000).times(2)).withdrawCurrencyCounts(eq(StringConstants.DefaultTerminalId), writtenNotes.capture());
+        Assertions.assertEquals(Collections.singletonMap(1L, 4), writtenNotes.getAllValues().get(1));
+    }
+
+    @Test
+    public void testDriftedCassettesAreCorrectedFromTheTable() {
+        DispenseReservation reservation = this.atmService.reserveAmount(100L);
+        Assertions.assertEquals(8, this.atmService.getATMInventory().get(0).getCurrencyCount());
+        // The notes of the open reservation account for the difference to the table.
+        ReflectionTestUtils.invokeMethod(this.atmService, "verifyInventoryCache");
+        Assertions.assertEquals(8, this.atmService.getATMInventory().get(0).getCurrencyCount());
+
+        // Three notes were taken out of the table without the cassettes knowing.
+        when(this.atmDataAccessService.getATMInventory(StringConstants.DefaultTerminalId)).thenReturn(Arrays.asList(new DenominationDetail(1L, 50, 7, '£'),
+                new DenominationDetail(2L, 20, 30, '£'), new DenominationDetail(3L, 10, 30, '£'), new DenominationDetail(4L, 5, 20, '£')));
+        ReflectionTestUtils.invokeMethod(this.atmService, "verifyInventoryCache");
+        Assertions.assertEquals(5, this.atmService.getATMInventory().get(0).getCurrencyCount());
+        Assertions.assertEquals(30, this.atmService.getATMInventory().get(1).getCurrencyCount());
+        Assertions.assertFalse(this.atmService.isAmountDispensable(1300L));
+
+        // The reservation is still open and gives its notes back.
+        this.atmService.releaseReservation(reservation.getReservationId());
+        Assertions.assertEquals(7, this.atmService.getATMInventory().get(0).getCurrencyCount());
+        verify(this.atmDataAccessService, times(2)).verifyInventoryCache(StringConstants.DefaultTerminalId);
+    }
+
+    @Test
+    public void testSharedInventoryTakesTheReservedNotesOffTheTable() {
+        ReflectionTestUtils.setField(this.atmService, "sharedInventory", true);
+        DispenseReservation reservation = this.atmService.reserveAmount(100L);
+        verify(this.atmDataAccessService, times(1)).takeAvailableCurrencyCounts(StringConstants.DefaultTerminalId, Collections.singletonMap(1L, 2));
+        // The notes are already off the table, committing writes nothing.
+        Assertions.assertTrue(this.atmService.commitReservation(reservation.getReservationId()).getInventoryStatus().isHealthyWithdrawal());
+        Assertions.assertEquals(8, this.atmService.getATMInventory().get(0).getCurrencyCount());
+        verify(this.atmDataAccessService, after(200).never()).withdrawCurrencyCounts(eq(StringConstants.DefaultTerminalId), anyMap());
+
+        // Released notes are written back to the table.
+        reservation = this.atmService.reserveAmount(50L);
+        this.atmService.releaseReservation(reservation.getReservationId());
+        Assertions.assertEquals(8, this.atmService.getATMInventory().get(0).getCurrencyCount());
+        verify(this.atmDataAccessService, timeout(5000)).withdrawCurrencyCounts(StringConstants.DefaultTerminalId, Collections.singletonMap(1L, -1));
+    }
+
+    @Test
+    public void testSharedInventoryPlansAgainWhenAnotherInstanceTookTheNotes() {
+        ReflectionTestUtils.setField(this.atmService, "sharedInventory", true);
+        Assertions.assertEquals(10, this.atmService.getATMInventory().get(0).getCurrencyCount());
+        // Another instance took all the 50s off the table.
+        when(this.atmDataAccessService.getATMInventory(StringConstants.DefaultTerminalId)).thenReturn(Arrays.asList(new DenominationDetail(1L, 50, 0, '£'),
+                new DenominationDetail(2L, 20, 30, '£'), new DenominationDetail(3L, 10, 30, '£'), new DenominationDetail(4L, 5, 20, '£')));
+        when(this.atmDataAccessService.takeAvailableCurrencyCounts(eq(StringConstants.DefaultTerminalId), anyMap()))
+                .thenThrow(new CurrencyDenominationCountNotAvailableException("taken"))
+                .thenReturn(1);
+
+        // The cassettes are refreshed from the table and the amount is made up of the notes it still holds.
+        DispenseReservation reservation = this.atmService.reserveAmount(100L);
+        Assertions.assertTrue(reservation.isReserved());
+        Assertions.assertEquals(1, reservation.getCurrencyDispenseList().size());
+        Assertions.assertEquals(20, reservation.getCurrencyDispenseList().get(0).getCurrencyValue());
+        Assertions.assertEquals(0, this.atmService.getATMInventory().get(0).getCurrencyCount());
+        verify(this.atmDataAccessService, times(1)).verifyInventoryCache(StringConstants.DefaultTerminalId);
+        verify(this.atmDataAccessService, times(1)).takeAvailableCurrencyCounts(StringConstants.DefaultTerminalId, Collections.singletonMap(2L, 5));
+    }
+
+    @Test
+    public void testTerminalsHaveSeparateInventories() {
+        DispenseReservation reservation = this.atmService.reserveAmount("ATM-2", 200L);
+        Assertions.assertTrue(reservation.isReserved());
+        Assertions.assertEquals(0, this.atmService.getATMInventory("ATM-2").get(0).getCurrencyCount());
+        // The default terminal keeps all its notes.
+        Assertions.assertEquals(10, this.atmService.getATMInventory().get(0).getCurrencyCount());
+        Assertions.assertTrue(this.atmService.isAmountDispensable(500L));
+        Assertions.assertFalse(this.atmService.isAmountDispensable("ATM-2", 500L));
+
+        this.atmService.releaseReservation(reservation.getReservationId());
+        Assertions.assertEquals(2, this.atmService.getATMInventory("ATM-2").get(0).getCurrencyCount());
+        Assertions.assertEquals("ATM-2", this.atmService.getATMInventory("ATM-2").get(0).getTerminalId());
+    }
+
+    @Test
+    public void testUnknownTerminalIsNotFound() {
+        Assertions.assertThrows(TerminalNotFoundException.class, () -> this.atmService.reserveAmount("ATM-9", 100L));
+        Assertions.assertThrows(TerminalNotFoundException.class, () -> this.atmService.getDispensableAmounts("ATM-9"));
+    }
+
 }
@@ -0,0 +1,139 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.bussiness.atm;
+
+import com.abcbank.data.entity.DenominationDetail;
+import com.abcbank.service.bussiness.atm.CassetteInventory;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class CassetteInventoryTest {
+
+    private CassetteInventory cassetteInventory;
+
+    @BeforeEach
+    public void setUp() {
+        List<DenominationDetail> atmDepositedMoney = new ArrayList<>();
+        atmDepositedMoney.add(new DenominationDetail(4L, 5, 20, '£'));
+        atmDepositedMoney.add(new DenominationDetail(1L, 50, 10, '£'));
+        atmDepositedMoney.add(new DenominationDetail(3L, 10, 30, '£'));
+        atmDepositedMoney.add(new DenominationDetail(2L, 20, 30, '£'));
+        this.cassetteInventory = CassetteInventory.of(atmDepositedMoney);
+    }
+
+    @Test
+    public void testSlotsAreOrderedByCurrency() {
+        Assertions.assertEquals(50, this.cassetteInventory.getDenomination(0));
+        Assertions.assertEquals(5, this.cassetteInventory.getDenomination(3));
+        Assertions.assertEquals(1, this.cassetteInventory.slotOf(20));
+        Assertions.assertEquals(-1, this.cassetteInventory.slotOf(100));
+    }
+
+    @Test
+    public void testReserveAndRelease() {
+        Assertions.assertTrue(this.cassetteInventory.reserve(new int[]{2, 1, 0, 0}));
+        Assertions.assertEquals(8, this.cassetteInventory.getCount(0));
+        Assertions.assertEquals(29, this.cassetteInventory.getCount(1));
+
+        this.cassetteInventory.release(new int[]{2, 1, 0, 0});
+        Assertions.assertEquals(10, this.cassetteInventory.getCount(0));
+        Assertions.assertEquals(30, this.cassetteInventory.getCount(1));
+    }
+
+    @Test
+    public void testAdjustCorrectsCountsAndTotals() {
+        long version = this.cassetteInventory.getVersion();
+        this.cassetteInventory.adjust(new int[]{-3, 0, 2, 0});
+        Assertions.assertEquals(7, this.cassetteInventory.getCount(0));
+        Assertions.assertEquals(32, this.cassetteInventory.getCount(2));
+        Assertions.assertEquals(1500 - 150 + 20, this.cassetteInventory.getTotalAmount());
+        Assertions.assertEquals(89, this.cassetteInventory.getNoteCount('£'));
+        Assertions.assertTrue(this.cassetteInventory.getVersion() > version);
+    }
+
+    @Test
+    public void testTotalsFollowReserveAndRelease() {
+        Assertions.assertEquals(1500, this.cassetteInventory.getTotalAmount());
+        Assertions.assertEquals(1500, this.cassetteInventory.getTotalAmount('£'));
+        Assertions.assertEquals(90, this.cassetteInventory.getNoteCount('£'));
+        Assertions.assertEquals(0, this.cassetteInventory.getTotalAmount('$'));
+
+        Assertions.assertTrue(this.cassetteInventory.reserve(new int[]{2, 1, 0, 4}));
+        Assertions.assertEquals(1360, this.cassetteInventory.getTotalAmount());
+        Assertions.assertEquals(83, this.cassetteInventory.getNoteCount('£'));
+
+        // A failed reserve leaves the totals as they were.
+        Assertions.assertFalse(this.cassetteInventory.reserve(new int[]{1, 1, 1, 17}));
+        Assertions.assertEquals(1360, this.cassetteInventory.getTotalAmount());
+
+        this.cassetteInventory.release(new int[]{2, 1, 0, 4});
+        Assertions.assertEquals(1500, this.cassetteInventory.getTotalAmount());
+        Assertions.assertEquals(90, this.cassetteInventory.getNoteCount('£'));
+    }
+
+    @Test
+    public void testReserveIsAllOrNothing() {
+        Assertions.assertFalse(this.cassetteInventory.reserve(new int[]{5, 5, 5, 21}));
+        Assertions.assertArrayEquals(new int[]{10, 30, 30, 20}, this.cassetteInventory.getCounts());
+    }
+
+    @Test
+    public void testConcurrentReservesNeverTakeMoreNotesThanAvailable() throws Exception {
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                futures.add(executor.submit(() -> {
+                    int reserved = 0;
+                    while (this.cassetteInventory.reserve(new int[]{1, 1, 0, 0})) {
+                        reserved++;
+                    }
+                    return reserved;
+                }));
+            }
+            int totalReserved = 0;
+            for (Future<Integer> future : futures) {
+                totalReserved += future.get(30, TimeUnit.SECONDS);
+            }
+            // Only 10 notes of 50 are available, the 20 notes left over must still be in the cassette.
+            Assertions.assertEquals(10, totalReserved);
+            Assertions.assertArrayEquals(new int[]{0, 20, 30, 20}, this.cassetteInventory.getCounts());
+            Assertions.assertEquals(800, this.cassetteInventory.getTotalAmount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
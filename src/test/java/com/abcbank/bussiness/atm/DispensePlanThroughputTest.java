@@ -0,0 +1,167 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.bussiness.atm;
+
+import com.abcbank.constant.StringConstants;
+import com.abcbank.data.dto.CurrencyDispense;
+import com.abcbank.data.entity.DenominationDetail;
+import com.abcbank.service.bussiness.atm.CassetteInventory;
+import com.abcbank.service.bussiness.atm.DispenseStrategy;
+import com.abcbank.service.bussiness.atm.GreedyDispenseStrategy;
+import com.abcbank.service.bussiness.atm.OptimalDispenseStrategy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.LongPredicate;
+import java.util.stream.Collectors;
+
+/**
+ * Measures the latency and the allocation per withdrawal of planning and reserving notes on the primitive slot
+ * arrays of the {@link CassetteInventory}, against the boxed path it replaced: planning over the
+ * {@link DenominationDetail} rows into {@link CurrencyDispense} objects and taking them off the rows through
+ * a currency lookup map built for every withdrawal.
+ * <br>Tagged as a benchmark, it is excluded from the build and run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+public class DispensePlanThroughputTest {
+
+    private final Logger logger = LogManager.getLogger(this.getClass());
+
+    private static final long MEASURE_MILLIS = 1000;
+
+    private static final long[] AMOUNTS = {35, 60, 95, 120, 185, 240, 375, 460, 555, 1300};
+
+    private final List<DenominationDetail> atmInventory = Arrays.asList(new DenominationDetail(1L, 50, 10, '£', 0L),
+            new DenominationDetail(2L, 20, 30, '£', 0L), new DenominationDetail(3L, 10, 30, '£', 0L), new DenominationDetail(4L, 5, 20, '£', 0L));
+
+    @Test
+    public void measurePlanAndReserve() {
+        CassetteInventory cassettes = CassetteInventory.of(this.atmInventory);
+        DispenseStrategy greedyDispenseStrategy = new GreedyDispenseStrategy();
+        DispenseStrategy optimalDispenseStrategy = new OptimalDispenseStrategy();
+        LongPredicate boxed = amount -> this.planAndRemoveBoxed(amount);
+        LongPredicate greedy = amount -> this.planAndReserve(cassettes, greedyDispenseStrategy, amount);
+        LongPredicate optimal = amount -> this.planAndReserve(cassettes, optimalDispenseStrategy, amount);
+        //Warm up the JIT before measuring.
+        for (LongPredicate withdrawal : Arrays.asList(boxed, greedy, optimal)) {
+            this.measure(withdrawal, MEASURE_MILLIS / 2);
+        }
+        double[] boxedResult = this.report("Boxed rows and currency map", boxed);
+        double[] greedyResult = this.report("Primitive slots, greedy strategy", greedy);
+        this.report("Primitive slots, optimal strategy", optimal);
+        // The same greedy plan on primitive slots allocates less than on the boxed rows.
+        if (boxedResult[1] >= 0) {
+            Assertions.assertTrue(greedyResult[1] < boxedResult[1], "primitive " + greedyResult[1] + " bytes, boxed " + boxedResult[1] + " bytes per withdrawal");
+        }
+    }
+
+    /**
+     * @return nanoseconds and allocated bytes per withdrawal, the bytes are -1 if the JVM does not measure them.
+     */
+    private double[] report(String path, LongPredicate withdrawal) {
+        double[] result = this.measure(withdrawal, MEASURE_MILLIS);
+        this.logger.info(path + " : " + String.format("%.1f", result[0]) + " ns and " + String.format("%.1f", result[1]) + " bytes allocated per withdrawal");
+        return result;
+    }
+
+    /**
+     * Plans and reserves the amounts in turn on the current thread for the given time.
+     *
+     * @return nanoseconds and allocated bytes per withdrawal, the bytes are -1 if the JVM does not measure them.
+     */
+    private double[] measure(LongPredicate withdrawal, long millis) {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = threadMXBean instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threadMXBean : null;
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = Objects.isNull(allocations) ? 0 : allocations.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long deadline = start + millis * 1_000_000;
+        long withdrawals = 0;
+        while (System.nanoTime() < deadline) {
+            for (long amount : AMOUNTS) {
+                Assertions.assertTrue(withdrawal.test(amount));
+            }
+            withdrawals += AMOUNTS.length;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = Objects.isNull(allocations) ? -1 : allocations.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        return new double[]{(double) elapsed / withdrawals, allocated < 0 ? -1 : (double) allocated / withdrawals};
+    }
+
+    /**
+     * Plans the amount on the slot arrays and reserves it, then releases it so every run sees the same counts.
+     */
+    private boolean planAndReserve(CassetteInventory cassettes, DispenseStrategy dispenseStrategy, long amount) {
+        int[] plan = dispenseStrategy.plan(cassettes.getDenominations(), cassettes.getCounts(), amount);
+        if (Objects.isNull(plan) || !cassettes.reserve(plan)) {
+            return false;
+        }
+        cassettes.release(plan);
+        return true;
+    }
+
+    /**
+     * Plans the amount greedily over copies of the rows into {@link CurrencyDispense} objects and takes them off
+     * the rows through a currency lookup map, as withdrawals did before the slot arrays.
+     */
+    private boolean planAndRemoveBoxed(long amount) {
+        List<DenominationDetail> denominationDetails = new ArrayList<>(this.atmInventory.size());
+        this.atmInventory.forEach(row -> denominationDetails.add(new DenominationDetail(row.getId(), row.getCurrency(), row.getCurrencyCount(),
+                row.getCurrencyType(), row.getVersion())));
+        List<CurrencyDispense> dispenses = new ArrayList<>();
+        Long remaining = amount;
+        for (int index = 0; index < denominationDetails.size() && remaining != 0; index++) {
+            DenominationDetail denominationDetail = denominationDetails.get(index);
+            Long neededCount = Math.min(remaining / denominationDetail.getCurrency(), denominationDetail.getCurrencyCount());
+            if (neededCount > 0) {
+                dispenses.add(new CurrencyDispense(denominationDetail.getCurrency(), neededCount.intValue(), StringConstants.CurrencyFormat));
+                remaining = remaining - denominationDetail.getCurrency() * neededCount;
+            }
+        }
+        if (remaining != 0) {
+            return false;
+        }
+        Map<Integer, DenominationDetail> currencyLookup = denominationDetails.stream().collect(Collectors.toMap(DenominationDetail::getCurrency, row -> row));
+        List<DenominationDetail> remainingRows = dispenses.stream().map(dispense -> {
+            DenominationDetail currencyDetail = currencyLookup.get(dispense.getCurrencyValue());
+            currencyDetail.setCurrencyCount(currencyDetail.getCurrencyCount() - dispense.getCount());
+            return currencyDetail;
+        }).collect(Collectors.toList());
+        return !remainingRows.isEmpty();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.bussiness.atm;
+
+import com.abcbank.service.bussiness.atm.DispenseStrategy;
+import com.abcbank.service.bussiness.atm.GreedyDispenseStrategy;
+import com.abcbank.service.bussiness.atm.OptimalDispenseStrategy;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class DispenseStrategyTest {
+
+    private static final int[] DENOMINATIONS = {50, 20, 10, 5};
+
+    private final DispenseStrategy greedyDispenseStrategy = new GreedyDispenseStrategy();
+
+    private final DispenseStrategy optimalDispenseStrategy = new OptimalDispenseStrategy();
+
+    @Test
+    public void testGreedyRejectsDispensableAmount() {
+        Assertions.assertNull(this.greedyDispenseStrategy.plan(DENOMINATIONS, new int[]{1, 3, 0, 0}, 60));
+        Assertions.assertArrayEquals(new int[]{0, 3, 0, 0}, this.optimalDispenseStrategy.plan(DENOMINATIONS, new int[]{1, 3, 0, 0}, 60));
+    }
+
+    @Test
+    public void testOptimalUsesLeastNumberOfNotes() {
+        Assertions.assertArrayEquals(new int[]{10, 30, 20, 0}, this.optimalDispenseStrategy.plan(DENOMINATIONS, new int[]{10, 30, 30, 20}, 1300));
+        Assertions.assertArrayEquals(new int[]{1, 2, 0, 1}, this.optimalDispenseStrategy.plan(DENOMINATIONS, new int[]{3, 2, 0, 4}, 95));
+    }
+
+    @Test
+    public void testOptimalRejectsAmountWhichCanNotBeDispensed() {
+        Assertions.assertNull(this.optimalDispenseStrategy.plan(DENOMINATIONS, new int[]{10, 30, 30, 20}, 123));
+        Assertions.assertNull(this.optimalDispenseStrategy.plan(DENOMINATIONS, new int[]{1, 1, 0, 0}, 30));
+        Assertions.assertNull(this.optimalDispenseStrategy.plan(DENOMINATIONS, new int[]{1, 0, 0, 0}, 100));
+    }
+
+    @Test
+    public void testOptimalMatchesExhaustiveSearch() {
+        int[] counts = new int[DENOMINATIONS.length];
+        for (int fifties = 0; fifties <= 3; fifties++) {
+            for (int twenties = 0; twenties <= 3; twenties++) {
+                for (int tens = 0; tens <= 2; tens++) {
+                    for (int fives = 0; fives <= 2; fives++) {
+                        counts[0] = fifties;
+                        counts[1] = twenties;
+                        counts[2] = tens;
+                        counts[3] = fives;
+                        for (long amount = 5; amount <= 250; amount += 5) {
+                            int leastNotes = leastNotes(counts, amount, 0);
+                            int[] plan = this.optimalDispenseStrategy.plan(DENOMINATIONS, counts, amount);
+                            if (leastNotes == Integer.MAX_VALUE) {
+                                Assertions.assertNull(plan);
+                                continue;
+                            }
+                            Assertions.assertNotNull(plan, "amount : " + amount);
+                            long planned = 0;
+                            int notes = 0;
+                            for (int slot = 0; slot < plan.length; slot++) {
+                                Assertions.assertTrue(plan[slot] <= counts[slot]);
+                                planned += (long) plan[slot] * DENOMINATIONS[slot];
+                                notes += plan[slot];
+                            }
+                            Assertions.assertEquals(amount, planned);
+                            Assertions.assertEquals(leastNotes, notes);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static int leastNotes(int[] counts, long amount, int slot) {
+        if (amount == 0) {
+            return 0;
+        }
+        if (slot == DENOMINATIONS.length) {
+            return Integer.MAX_VALUE;
+        }
+        int least = Integer.MAX_VALUE;
+        for (int taken = 0; taken <= counts[slot] && (long) taken * DENOMINATIONS[slot] <= amount; taken++) {
+            int rest = leastNotes(counts, amount - (long) taken * DENOMINATIONS[slot], slot + 1);
+            if (rest != Integer.MAX_VALUE) {
+                least = Math.min(least, rest + taken);
+            }
+        }
+        return least;
+    }
+}
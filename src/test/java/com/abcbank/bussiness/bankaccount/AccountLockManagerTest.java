@@ -0,0 +1,130 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.bussiness.bankaccount;
+
+import com.abcbank.service.bussiness.bankacc.AccountLockManager;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class AccountLockManagerTest {
+
+    private final AccountLockManager accountLockManager = new AccountLockManager();
+
+    @Test
+    public void testDifferentAccountsAreNotSerialized() throws Exception {
+        // These user names map to different stripes.
+        String firstAccount = "clint_west";
+        String secondAccount = "russell_gladiator";
+
+        // Both threads have to be inside their critical section at the same time to pass the barrier.
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Integer> first = executor.submit(() -> this.accountLockManager.executeWithLock(firstAccount, () -> this.await(barrier)));
+            Future<Integer> second = executor.submit(() -> this.accountLockManager.executeWithLock(secondAccount, () -> this.await(barrier)));
+            first.get(5, TimeUnit.SECONDS);
+            second.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSameAccountIsSerialized() throws Exception {
+        int threads = 8;
+        int iterations = 10_000;
+        long[] balance = {0};
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                futures.add(executor.submit(() -> {
+                    for (int iteration = 0; iteration < iterations; iteration++) {
+                        this.accountLockManager.executeWithLock("clint_west", () -> balance[0]++);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assertions.assertEquals((long) threads * iterations, balance[0]);
+    }
+
+    @Test
+    public void testManyDifferentAccountsHoldTheirLocksAtOnce() throws Exception {
+        int threads = 8;
+        // user_0 to user_7 only differ in the last character, so they land on different stripes.
+        AccountLockManager lockManager = new AccountLockManager(1 << 16);
+        CountDownLatch allInside = new CountDownLatch(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                String userName = "user_" + thread;
+                futures.add(executor.submit(() -> lockManager.executeWithLock(userName, () -> {
+                    allInside.countDown();
+                    // Only returns true if every thread holds its account lock at the same time.
+                    return this.await(allInside);
+                })));
+            }
+            for (Future<Boolean> future : futures) {
+                Assertions.assertTrue(future.get(10, TimeUnit.SECONDS), "accounts were serialized");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Integer await(CyclicBarrier barrier) {
+        try {
+            return barrier.await(5, TimeUnit.SECONDS);
+        } catch (Exception exp) {
+            throw new IllegalStateException("accounts were serialized", exp);
+        }
+    }
+
+    private Boolean await(CountDownLatch latch) {
+        try {
+            return latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
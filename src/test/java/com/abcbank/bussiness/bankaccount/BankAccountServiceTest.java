@@ -29,25 +29,45 @@ package com.abcbank.bussiness.bankaccount;
 import com.abcbank.constant.StringConstants;
 import com.abcbank.data.dto.*;
 import com.abcbank.data.entity.BankAccount;
+import com.abcbank.data.service.AccountBalanceView;
 import com.abcbank.data.service.BankAccountDataAccessService;
+import com.abcbank.data.service.TransactionLedgerWriter;
+import com.abcbank.enums.ATMInventoryStatus;
 import com.abcbank.enums.WithDrawStatus;
 import com.abcbank.exception.custom_exceptions.AccountNotFoundException;
+import com.abcbank.exception.custom_exceptions.InsufficientFundsException;
 import com.abcbank.service.bussiness.atm.ATMService;
+import com.abcbank.service.bussiness.bankacc.AccountLockManager;
 import com.abcbank.service.bussiness.bankacc.BankAccountServiceImpl;
 import com.abcbank.service.security.AuthenticationService;
+import com.abcbank.service.security.CardSessionService;
+import com.abcbank.service.security.PinLockoutService;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
 
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @SpringBootTest
@@ -59,6 +79,21 @@ public class BankAccountServiceTest {
     @Mock
     private ATMService atmService;
 
+    @Spy
+    private AccountLockManager accountLockManager = new AccountLockManager();
+
+    @Mock
+    private TransactionLedgerWriter transactionLedgerWriter;
+
+    @Mock
+    private AccountBalanceView accountBalanceView;
+
+    @Spy
+    private CardSessionService cardSessionService = new CardSessionService();
+
+    @Spy
+    private PinLockoutService pinLockoutService = new PinLockoutService();
+
     @InjectMocks
     private BankAccountServiceImpl bankAccountService;
 
@@ -99,14 +134,22 @@ public class BankAccountServiceTest {
             }
         });
 
-        when(this.atmService.canDispenseFromATM(1800L)).then(new Answer<DispenseDetails>() {
+        when(accountBalanceView.getAccountSummary("clint_west")).thenReturn(new AccountSummary(1L, "clint_west", null, 800L, 200L));
+
+        when(accountBalanceView.getAccountSummary("unknown")).thenThrow(new AccountNotFoundException("Account not exists for username unknown"));
+
+        when(accountBalanceView.readAccountSummary("clint_west")).thenReturn(new AccountSummary(1L, "clint_west", "gd6/yf/26JU=", 800L, 200L));
+
+        when(accountBalanceView.readAccountSummary("unknown")).thenThrow(new AccountNotFoundException("Account not exists for username unknown"));
+
+        when(this.atmService.canDispenseFromATM(any(), eq(1800L))).then(new Answer<DispenseDetails>() {
             @Override
             public DispenseDetails answer(InvocationOnMock invocationOnMock) throws Throwable {
                 return new DispenseDetails(null, StringConstants.InsufficientAmountInATMMessage);
             }
         });
 
-        when(this.atmService.canDispenseFromATM(1000L)).then(new Answer<DispenseDetails>() {
+        when(this.atmService.canDispenseFromATM(any(), eq(1000L))).then(new Answer<DispenseDetails>() {
             @Override
             public DispenseDetails answer(InvocationOnMock invocationOnMock) throws Throwable {
                 ArrayList<CurrencyDispense> cdl = new ArrayList<>();
@@ -116,7 +159,7 @@ public class BankAccountServiceTest {
             }
         });
 
-        when(this.atmService.canDispenseFromATM(800L)).then(new Answer<DispenseDetails>() {
+        when(this.atmService.canDispenseFromATM(any(), eq(800L))).then(new Answer<DispenseDetails>() {
             @Override
             public DispenseDetails answer(InvocationOnMock invocationOnMock) throws Throwable {
                 ArrayList<CurrencyDispense> cdl = new ArrayList<>();
@@ -126,6 +169,30 @@ public class BankAccountServiceTest {
             }
         });
 
+        when(this.atmService.isAmountDispensable(any(), any())).thenReturn(true);
+
+        when(bankAccountDataAccessService.withDraw(any(BankAccount.class), any(), any())).then(returnsFirstArg());
+
+        when(this.atmService.reserveAmount(any(), any())).then(new Answer<DispenseReservation>() {
+            @Override
+            public DispenseReservation answer(InvocationOnMock invocationOnMock) throws Throwable {
+                DispenseDetails dispenseDetails = atmService.canDispenseFromATM(invocationOnMock.getArgument(0), invocationOnMock.getArgument(1));
+                if (!dispenseDetails.isDispensePermittedFromATM()) {
+                    return DispenseReservation.of(dispenseDetails.getMessage(), ATMInventoryStatus.AMOUNT_NOT_DISPENSABLE, null);
+                }
+                return DispenseReservation.of(UUID.randomUUID().toString(), dispenseDetails.getCurrencyDispenseList());
+            }
+        });
+
+        when(this.atmService.commitReservation(any())).then(new Answer<ATMInventory>() {
+            @Override
+            public ATMInventory answer(InvocationOnMock invocationOnMock) throws Throwable {
+                return ATMInventory.of(new ArrayList<>(), ATMInventoryStatus.DISPENSE_PERMITTED);
+            }
+        });
+
+        when(this.atmService.beginCommit(any())).thenReturn(true);
+
         this.bankAccountService.setAuthenticationService(this.authenticationService);
     }
 
@@ -135,11 +202,34 @@ public class BankAccountServiceTest {
         Assertions.assertEquals(2, listOfAccounts.size());
     }
 
+    @Test
+    public void testAccountsInventoryIsStreamedPageByPage() {
+        ReflectionTestUtils.setField(this.bankAccountService, "accountsPageSize", 2);
+        when(this.bankAccountDataAccessService.getAccountsPage(0L, 2)).thenReturn(Arrays.asList(
+                new BankAccount(1L, "clint", "eastwood", "clint_west", "eastwood@wildwest.com", "123456789", null, 800L, 200L),
+                new BankAccount(2L, "russell", "crowe", "russell_gladiator", "maximus@gladiator.com", "987654321", null, 1800L, 150L)));
+        when(this.bankAccountDataAccessService.getAccountsPage(2L, 2)).thenReturn(Collections.singletonList(
+                new BankAccount(5L, "john", "wayne", "duke", "duke@wildwest.com", "555555555", null, 100L, 0L)));
+
+        List<Long> streamedIds = new ArrayList<>();
+        this.bankAccountService.streamAccountsInventory(bankAccount -> streamedIds.add(bankAccount.getId()));
+        Assertions.assertEquals(Arrays.asList(1L, 2L, 5L), streamedIds);
+        verify(this.bankAccountDataAccessService, times(2)).getAccountsPage(any(), anyInt());
+    }
+
+    @Test
+    public void testAccountsInventoryPageSizeIsCapped() {
+        when(this.bankAccountDataAccessService.getAccountsPage(10L, 5000)).thenReturn(Collections.emptyList());
+        Assertions.assertTrue(this.bankAccountService.getAccountsInventoryPage(10L, 1000000).isEmpty());
+        verify(this.bankAccountDataAccessService, times(1)).getAccountsPage(10L, 5000);
+    }
+
     @Test
     public void testSuccessBalanceEnquiry() {
         BalanceEnquiry be = new BalanceEnquiry("1234", "clint_west");
         BalanceEnquiryResponse ber = this.bankAccountService.getBalanceForBalanceEnquiry(be);
         Assertions.assertEquals(800, ber.getBalance());
+        verify(this.bankAccountDataAccessService, never()).getAccountDetailsForUserName(any());
     }
 
     @Test
@@ -168,6 +258,40 @@ public class BankAccountServiceTest {
         WithdrawalRequest wdr = new WithdrawalRequest("clint_west", "1234", 800L, false);
         WithdrawalResponse wdresp = this.bankAccountService.withDraw(wdr);
         Assertions.assertTrue(WithDrawStatus.SUCCESS.equals(wdresp.getWithDrawlStatus()));
+
+        ArgumentCaptor<LedgerEntry> ledgerEntry = ArgumentCaptor.forClass(LedgerEntry.class);
+        verify(this.transactionLedgerWriter, times(1)).record(ledgerEntry.capture());
+        Assertions.assertEquals("clint_west", ledgerEntry.getValue().getUserName());
+        Assertions.assertEquals(1L, ledgerEntry.getValue().getAccountId());
+        Assertions.assertEquals(80000L, ledgerEntry.getValue().getAmountMinorUnits());
+        Assertions.assertEquals("50x10,20x15", ledgerEntry.getValue().getDispensedNotes());
+        Assertions.assertTrue(WithDrawStatus.SUCCESS.equals(ledgerEntry.getValue().getStatus()));
+    }
+
+    @Test
+    public void testFailedWithDrawIsRecorded() {
+        when(this.bankAccountDataAccessService.withDraw(any(BankAccount.class), eq(800L), eq(false)))
+                .thenThrow(new IllegalStateException("database is down"));
+        WithdrawalRequest wdr = new WithdrawalRequest("clint_west", "1234", 800L, false);
+        Assertions.assertThrows(IllegalStateException.class, () -> this.bankAccountService.withDraw(wdr));
+
+        ArgumentCaptor<LedgerEntry> ledgerEntry = ArgumentCaptor.forClass(LedgerEntry.class);
+        verify(this.transactionLedgerWriter, times(1)).record(ledgerEntry.capture());
+        Assertions.assertEquals(1L, ledgerEntry.getValue().getAccountId());
+        Assertions.assertTrue(WithDrawStatus.FAILED.equals(ledgerEntry.getValue().getStatus()));
+        Assertions.assertNull(ledgerEntry.getValue().getDispensedNotes());
+    }
+
+    @Test
+    public void testWithDrawOfUnknownAccountIsRecorded() {
+        WithdrawalRequest wdr = new WithdrawalRequest("unknown", "1234", 800L, false);
+        Assertions.assertThrows(AccountNotFoundException.class, () -> this.bankAccountService.withDraw(wdr));
+
+        ArgumentCaptor<LedgerEntry> ledgerEntry = ArgumentCaptor.forClass(LedgerEntry.class);
+        verify(this.transactionLedgerWriter, times(1)).record(ledgerEntry.capture());
+        Assertions.assertNull(ledgerEntry.getValue().getAccountId());
+        Assertions.assertEquals("unknown", ledgerEntry.getValue().getUserName());
+        Assertions.assertTrue(WithDrawStatus.FAILED.equals(ledgerEntry.getValue().getStatus()));
     }
 
     @Test
@@ -175,6 +299,7 @@ public class BankAccountServiceTest {
         WithdrawalRequest wdr = new WithdrawalRequest("clint_west", "12343", 500L, false);
         WithdrawalResponse wdresp = this.bankAccountService.withDraw(wdr);
         Assertions.assertTrue(WithDrawStatus.INVALID_PIN.equals(wdresp.getWithDrawlStatus()));
+        verify(this.transactionLedgerWriter, times(1)).record(any(LedgerEntry.class));
     }
 
     @Test
@@ -205,4 +330,118 @@ public class BankAccountServiceTest {
         Assertions.assertTrue(WithDrawStatus.INVALID_REQUEST_AMOUNT.equals(wdresp.getWithDrawlStatus()));
     }
 
+    @Test
+    public void testWithDrawWhenNotesTakenByConcurrentWithdrawal() {
+        when(this.atmService.reserveAmount(any(), any())).then(new Answer<DispenseReservation>() {
+            @Override
+            public DispenseReservation answer(InvocationOnMock invocationOnMock) throws Throwable {
+                return DispenseReservation.of("Count for Denominations is not available in ATM", ATMInventoryStatus.DENOMINATION_COUNT_NOT_AVAILABLE, null);
+            }
+        });
+        WithdrawalRequest wdr = new WithdrawalRequest("clint_west", "1234", 800L, false);
+        WithdrawalResponse wdresp = this.bankAccountService.withDraw(wdr);
+        Assertions.assertTrue(WithDrawStatus.LOW_BALANCE_IN_ATM.equals(wdresp.getWithDrawlStatus()));
+        // The account must not be debited when the notes cannot be reserved.
+        verify(this.bankAccountDataAccessService, never()).withDraw(any(BankAccount.class), any(), any());
+    }
+
+    @Test
+    public void testWithDrawOfUndispensableAmountIsRejectedBeforeAccountLookup() {
+        when(this.atmService.isAmountDispensable(any(), eq(1234L))).thenReturn(false);
+        when(this.atmService.canDispenseFromATM(any(), eq(1234L))).thenReturn(new DispenseDetails(null, StringConstants.ImproperAmountToWithDraw));
+        WithdrawalRequest wdr = new WithdrawalRequest("clint_west", "1234", 1234L, false);
+        WithdrawalResponse wdresp = this.bankAccountService.withDraw(wdr);
+        Assertions.assertTrue(WithDrawStatus.LOW_BALANCE_IN_ATM.equals(wdresp.getWithDrawlStatus()));
+        Assertions.assertEquals(StringConstants.ImproperAmountToWithDraw, wdresp.getMessage());
+        verify(this.bankAccountDataAccessService, never()).getAccountDetailsForUserName(any());
+    }
+
+    @Test
+    public void testWithDrawWhenFundsGuardFails() {
+        when(this.bankAccountDataAccessService.withDraw(any(BankAccount.class), eq(800L), eq(false)))
+                .thenThrow(new InsufficientFundsException("insufficient funds"));
+        WithdrawalRequest wdr = new WithdrawalRequest("clint_west", "1234", 800L, false);
+        WithdrawalResponse wdresp = this.bankAccountService.withDraw(wdr);
+        Assertions.assertTrue(WithDrawStatus.LOW_BALANCE_IN_ACCOUNT.equals(wdresp.getWithDrawlStatus()));
+        // The notes reserved for the withdrawal go back to the ATM.
+        verify(this.atmService, times(1)).releaseReservation(any());
+        verify(this.atmService, never()).commitReservation(any());
+    }
+
+    @Test
+    public void testWithDrawIsNotDebitedWhenReservationExpired() {
+        when(this.atmService.beginCommit(any())).thenReturn(false);
+        WithdrawalRequest wdr = new WithdrawalRequest("clint_west", "1234", 800L, false);
+        WithdrawalResponse wdresp = this.bankAccountService.withDraw(wdr);
+        Assertions.assertTrue(WithDrawStatus.LOW_BALANCE_IN_ATM.equals(wdresp.getWithDrawlStatus()));
+        Assertions.assertEquals(StringConstants.ReservationNotFound, wdresp.getMessage());
+        verify(this.bankAccountDataAccessService, never()).withDraw(any(BankAccount.class), any(), any());
+    }
+
+    @Test
+    public void testWithDrawIsReversedWhenReservationIsLost() {
+        when(this.atmService.commitReservation(any())).thenReturn(ATMInventory.of(StringConstants.ReservationNotFound,
+                ATMInventoryStatus.RESERVATION_NOT_FOUND, Collections.emptyList()));
+        WithdrawalRequest wdr = new WithdrawalRequest("clint_west", "1234", 800L, false);
+        WithdrawalResponse wdresp = this.bankAccountService.withDraw(wdr);
+        Assertions.assertTrue(WithDrawStatus.LOW_BALANCE_IN_ATM.equals(wdresp.getWithDrawlStatus()));
+        Assertions.assertEquals(StringConstants.ReservationNotFound, wdresp.getMessage());
+        // No notes are dispensed, so the debit is given back.
+        verify(this.bankAccountDataAccessService, times(1)).reverseWithdrawal(any(BankAccount.class), any(BankAccount.class));
+    }
+
+    @Test
+    public void testSessionReplacesThePin() {
+        CardSessionResponse cardSessionResponse = this.bankAccountService.openSession(new CardSessionRequest("clint_west", "1234", null));
+        Assertions.assertNotNull(cardSessionResponse.getSessionToken());
+
+        BalanceEnquiry be = new BalanceEnquiry(null, "clint_west", cardSessionResponse.getSessionToken());
+        Assertions.assertEquals(800, this.bankAccountService.getBalanceForBalanceEnquiry(be).getBalance());
+        WithdrawalRequest wdr = new WithdrawalRequest("clint_west", null, 800L, false, null, cardSessionResponse.getSessionToken());
+        WithdrawalResponse wdresp = this.bankAccountService.withDraw(wdr);
+        Assertions.assertTrue(WithDrawStatus.SUCCESS.equals(wdresp.getWithDrawlStatus()));
+        Assertions.assertEquals("*****", wdresp.getWithdrawalRequest().getSessionToken());
+
+        Assertions.assertEquals(StringConstants.SessionClosed, this.bankAccountService.closeSession(
+                new CardSessionRequest("clint_west", null, cardSessionResponse.getSessionToken())).getMessage());
+        Assertions.assertEquals(StringConstants.InvalidSession, this.bankAccountService.getBalanceForBalanceEnquiry(be).getMessage());
+    }
+
+    @Test
+    public void testSessionIsNotOpenedWithInvalidPin() {
+        CardSessionResponse cardSessionResponse = this.bankAccountService.openSession(new CardSessionRequest("clint_west", "4321", null));
+        Assertions.assertNull(cardSessionResponse.getSessionToken());
+        Assertions.assertEquals(StringConstants.InvalidPin, cardSessionResponse.getMessage());
+        verify(this.cardSessionService, never()).openSession(any());
+    }
+
+    @Test
+    public void testSessionOfAnotherUserIsRejected() {
+        String sessionToken = this.bankAccountService.openSession(new CardSessionRequest("clint_west", "1234", null)).getSessionToken();
+        WithdrawalRequest wdr = new WithdrawalRequest("russell_gladiator", null, 100L, false, null, sessionToken);
+        WithdrawalResponse wdresp = this.bankAccountService.withDraw(wdr);
+        Assertions.assertTrue(WithDrawStatus.INVALID_PIN.equals(wdresp.getWithDrawlStatus()));
+        Assertions.assertEquals(StringConstants.InvalidSession, wdresp.getMessage());
+        verify(this.bankAccountDataAccessService, never()).withDraw(any(BankAccount.class), any(), any());
+        // Rejected before the account lock is taken or the account is read.
+        verify(this.accountLockManager, never()).executeWithLock(any(), any());
+        verify(this.bankAccountDataAccessService, never()).getAccountDetailsForUserName(any());
+    }
+
+    @Test
+    public void testAccountIsLockedOutAfterIncorrectPins() {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Assertions.assertEquals(StringConstants.InvalidPin, this.bankAccountService.getBalanceForBalanceEnquiry(new BalanceEnquiry("4321", "clint_west")).getMessage());
+        }
+        // Even the correct pin is rejected, without reading the account or hashing the pin.
+        Assertions.assertEquals(StringConstants.PinLocked, this.bankAccountService.getBalanceForBalanceEnquiry(new BalanceEnquiry("1234", "clint_west")).getMessage());
+        WithdrawalResponse wdresp = this.bankAccountService.withDraw(new WithdrawalRequest("clint_west", "1234", 100L, false));
+        Assertions.assertTrue(WithDrawStatus.PIN_LOCKED.equals(wdresp.getWithDrawlStatus()));
+        verify(this.accountBalanceView, times(3)).readAccountSummary("clint_west");
+        verify(this.bankAccountDataAccessService, never()).getAccountDetailsForUserName(any());
+        // Other accounts at other terminals are not affected.
+        when(this.accountBalanceView.readAccountSummary("russell_gladiator")).thenReturn(new AccountSummary(2L, "russell_gladiator", "7jh4Sd0w2ZY=", 1800L, 150L));
+        Assertions.assertEquals(1800, this.bankAccountService.getBalanceForBalanceEnquiry(new BalanceEnquiry("4321", "russell_gladiator", null, "ATM-2")).getBalance());
+    }
+
 }
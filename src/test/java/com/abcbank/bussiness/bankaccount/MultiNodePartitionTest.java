@@ -0,0 +1,151 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.bussiness.bankaccount;
+
+import com.abcbank.AtmMachineApplication;
+import com.abcbank.data.dto.BalanceEnquiry;
+import com.abcbank.data.dto.BalanceEnquiryResponse;
+import com.abcbank.data.dto.CardSessionRequest;
+import com.abcbank.data.dto.CardSessionResponse;
+import com.abcbank.data.dto.WithdrawalRequest;
+import com.abcbank.data.dto.WithdrawalResponse;
+import com.abcbank.enums.WithDrawStatus;
+import com.abcbank.service.bussiness.bankacc.PartitionedBankAccountService;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts several nodes of the application on localhost, each with its own in memory database,
+ * and checks that every account is served by one node whichever node the request is sent to.
+ */
+public class MultiNodePartitionTest {
+
+    private static final int NODES = 3;
+
+    private static final List<String> nodeUrls = new ArrayList<>();
+
+    private static final List<ConfigurableApplicationContext> nodes = new ArrayList<>();
+
+    private final RestTemplate restTemplate = new RestTemplate();
+
+    @BeforeAll
+    public static void startNodes() {
+        Security.setProperty("crypto.policy", "unlimited");
+        // Every node binds a free port itself, the ring is built once all ports are known.
+        for (int node = 0; node < NODES; node++) {
+            ConfigurableApplicationContext context = new SpringApplicationBuilder(AtmMachineApplication.class).properties(
+                    "server.port=0",
+                    "spring.datasource.url=jdbc:h2:mem:partition-node-" + node).run();
+            nodes.add(context);
+            nodeUrls.add("http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort());
+        }
+        for (int node = 0; node < NODES; node++) {
+            nodes.get(node).getBean(PartitionedBankAccountService.class).configureRing(nodeUrls, nodeUrls.get(node));
+        }
+    }
+
+    @AfterAll
+    public static void stopNodes() {
+        nodes.forEach(ConfigurableApplicationContext::close);
+    }
+
+    @Test
+    public void testWithdrawalsThroughEveryNodeDebitTheOwningNode() {
+        for (String nodeUrl : nodeUrls) {
+            WithdrawalResponse withdrawalResponse = this.restTemplate.postForObject(nodeUrl + "/atm/api/withdraw",
+                    new WithdrawalRequest("clint_west", "1234", 100L, false), WithdrawalResponse.class);
+            Assertions.assertEquals(WithDrawStatus.SUCCESS, withdrawalResponse.getWithDrawlStatus());
+        }
+        // Every node has its own database, the balance only adds up if all withdrawals were made by the owner.
+        for (String nodeUrl : nodeUrls) {
+            BalanceEnquiryResponse balanceEnquiryResponse = this.restTemplate.postForObject(nodeUrl + "/atm/api/balance",
+                    new BalanceEnquiry("1234", "clint_west"), BalanceEnquiryResponse.class);
+            Assertions.assertEquals(500L, balanceEnquiryResponse.getBalance());
+        }
+    }
+
+    @Test
+    public void testEveryNodeAgreesOnTheOwner() {
+        for (String userName : new String[]{"clint_west", "russell_gladiator"}) {
+            String owner = nodes.get(0).getBean(PartitionedBankAccountService.class).ownerOf(userName);
+            long owners = nodes.stream().filter(node -> node.getBean(PartitionedBankAccountService.class).isLocal(userName)).count();
+            Assertions.assertEquals(1, owners);
+            for (ConfigurableApplicationContext node : nodes) {
+                Assertions.assertEquals(owner, node.getBean(PartitionedBankAccountService.class).ownerOf(userName));
+            }
+        }
+    }
+
+    @Test
+    public void testSessionOpenedThroughOneNodeIsValidThroughEveryNode() {
+        CardSessionResponse cardSessionResponse = this.restTemplate.postForObject(nodeUrls.get(0) + "/atm/api/session",
+                new CardSessionRequest("russell_gladiator", "4321", null), CardSessionResponse.class);
+        Assertions.assertNotNull(cardSessionResponse.getSessionToken());
+        for (String nodeUrl : nodeUrls) {
+            BalanceEnquiryResponse balanceEnquiryResponse = this.restTemplate.postForObject(nodeUrl + "/atm/api/balance",
+                    new BalanceEnquiry(null, "russell_gladiator", cardSessionResponse.getSessionToken()), BalanceEnquiryResponse.class);
+            Assertions.assertEquals(1230L, balanceEnquiryResponse.getBalance());
+        }
+    }
+
+    @Test
+    public void testPartitionApiRejectsAccountsOfOtherNodes() {
+        for (String userName : new String[]{"clint_west", "russell_gladiator"}) {
+            for (int node = 0; node < NODES; node++) {
+                if (nodes.get(node).getBean(PartitionedBankAccountService.class).isLocal(userName)) {
+                    continue;
+                }
+                String partitionUrl = nodeUrls.get(node) + PartitionedBankAccountService.PARTITION_API_PATH;
+                assertConflict(() -> this.restTemplate.postForObject(partitionUrl + "balance",
+                        new BalanceEnquiry("1234", userName), BalanceEnquiryResponse.class));
+                assertConflict(() -> this.restTemplate.postForObject(partitionUrl + "withdraw",
+                        new WithdrawalRequest(userName, "1234", 100L, false), WithdrawalResponse.class));
+                assertConflict(() -> this.restTemplate.postForObject(partitionUrl + "session",
+                        new CardSessionRequest(userName, "1234", null), CardSessionResponse.class));
+                assertConflict(() -> this.restTemplate.postForObject(partitionUrl + "session/close",
+                        new CardSessionRequest(userName, null, "token"), CardSessionResponse.class));
+            }
+        }
+    }
+
+    private static void assertConflict(Runnable request) {
+        HttpClientErrorException exp = Assertions.assertThrows(HttpClientErrorException.class, request::run);
+        Assertions.assertEquals(HttpStatus.CONFLICT, exp.getStatusCode());
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.bussiness.bankaccount;
+
+import com.abcbank.data.dto.BalanceEnquiry;
+import com.abcbank.data.dto.BalanceEnquiryResponse;
+import com.abcbank.data.dto.WithdrawalRequest;
+import com.abcbank.data.dto.WithdrawalResponse;
+import com.abcbank.service.bussiness.atm.ATMService;
+import com.abcbank.service.bussiness.bankacc.BankAccountService;
+import com.abcbank.service.bussiness.bankacc.ConsistentHashRing;
+import com.abcbank.service.bussiness.bankacc.PartitionedBankAccountService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PartitionedBankAccountServiceTest {
+
+    private static final List<String> NODES = Arrays.asList("http://node-1:8080", "http://node-2:8080", "http://node-3:8080");
+
+    @Mock
+    private BankAccountService localBankAccountService;
+
+    @Mock
+    private RestTemplate restTemplate;
+
+    @Mock
+    private ATMService atmService;
+
+    @InjectMocks
+    private PartitionedBankAccountService partitionedBankAccountService;
+
+    private AutoCloseable mocks;
+
+    @BeforeEach
+    public void setUp() {
+        this.mocks = MockitoAnnotations.openMocks(this);
+        ReflectionTestUtils.setField(this.partitionedBankAccountService, "restTemplateBuilder", new RestTemplateBuilder());
+        ReflectionTestUtils.setField(this.partitionedBankAccountService, "nodes", String.join(",", NODES));
+        ReflectionTestUtils.setField(this.partitionedBankAccountService, "selfUrl", NODES.get(0));
+        this.partitionedBankAccountService.buildRing();
+        ReflectionTestUtils.setField(this.partitionedBankAccountService, "restTemplate", this.restTemplate);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        this.mocks.close();
+    }
+
+    @Test
+    public void testLocalAccountIsServedLocally() {
+        String userName = this.userOwnedBy(NODES.get(0));
+        WithdrawalRequest withdrawalRequest = new WithdrawalRequest(userName, "1234", 100L, false);
+        when(this.localBankAccountService.withDraw(withdrawalRequest)).thenReturn(new WithdrawalResponse());
+
+        Assertions.assertNotNull(this.partitionedBankAccountService.withDraw(withdrawalRequest));
+        verify(this.localBankAccountService, times(1)).withDraw(withdrawalRequest);
+        verify(this.restTemplate, never()).postForObject(any(String.class), any(), any());
+    }
+
+    @Test
+    public void testRemoteAccountIsForwardedToOwner() {
+        String userName = this.userOwnedBy(NODES.get(2));
+        BalanceEnquiry balanceEnquiry = new BalanceEnquiry("1234", userName);
+        when(this.restTemplate.postForObject(eq(NODES.get(2) + PartitionedBankAccountService.PARTITION_API_PATH + "balance"), eq(balanceEnquiry), eq(BalanceEnquiryResponse.class)))
+                .thenReturn(new BalanceEnquiryResponse(500L, '£', ""));
+
+        Assertions.assertEquals(500L, this.partitionedBankAccountService.getBalanceForBalanceEnquiry(balanceEnquiry).getBalance());
+        verify(this.localBankAccountService, never()).getBalanceForBalanceEnquiry(any());
+    }
+
+    @Test
+    public void testWithoutNodesEveryAccountIsLocal() {
+        ReflectionTestUtils.setField(this.partitionedBankAccountService, "ring", null);
+        ReflectionTestUtils.setField(this.partitionedBankAccountService, "nodes", "");
+        this.partitionedBankAccountService.buildRing();
+        Assertions.assertTrue(this.partitionedBankAccountService.isLocal(this.userOwnedBy(NODES.get(1))));
+    }
+
+    @Test
+    public void testInventoryIsSharedOnlyWithOtherNodes() {
+        verify(this.atmService, times(1)).setSharedInventory(true);
+        this.partitionedBankAccountService.configureRing(NODES.subList(0, 1), NODES.get(0));
+        verify(this.atmService, times(1)).setSharedInventory(false);
+    }
+
+    @Test
+    public void testRingSpreadsAccountsAndMovesFewOnResize() {
+        ConsistentHashRing ring = new ConsistentHashRing(NODES, 128);
+        List<String> grownNodes = new ArrayList<>(NODES);
+        grownNodes.add("http://node-4:8080");
+        ConsistentHashRing grownRing = new ConsistentHashRing(grownNodes, 128);
+
+        int accounts = 30_000;
+        Map<String, Integer> accountsPerNode = new HashMap<>();
+        int movedAccounts = 0;
+        for (int account = 0; account < accounts; account++) {
+            String userName = "user_" + account;
+            String node = ring.nodeFor(userName);
+            accountsPerNode.merge(node, 1, Integer::sum);
+            String grownNode = grownRing.nodeFor(userName);
+            if (!node.equals(grownNode)) {
+                movedAccounts++;
+                // Accounts only ever move to the new node.
+                Assertions.assertEquals("http://node-4:8080", grownNode);
+            }
+        }
+        for (String node : NODES) {
+            Assertions.assertTrue(accountsPerNode.get(node) > accounts / NODES.size() * 0.8, "unbalanced ring " + accountsPerNode);
+        }
+        Assertions.assertTrue(movedAccounts < accounts * 0.35, "too many accounts moved " + movedAccounts);
+    }
+
+    private String userOwnedBy(String node) {
+        for (int account = 0; ; account++) {
+            String userName = "user_" + account;
+            if (node.equals(this.partitionedBankAccountService.ownerOf(userName))) {
+                return userName;
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.bussiness.bankaccount;
+
+import com.abcbank.AtmMachineApplication;
+import com.abcbank.data.dto.WithdrawalRequest;
+import com.abcbank.data.dto.WithdrawalResponse;
+import com.abcbank.enums.WithDrawStatus;
+import com.abcbank.service.bussiness.bankacc.PartitionedBankAccountService;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.web.client.RestTemplate;
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Starts several nodes of the application on localhost sharing one in memory database, and checks that withdrawals
+ * of accounts owned by different nodes never hand out the same notes of a terminal.
+ */
+public class SharedDatabasePartitionTest {
+
+    private static final int NODES = 3;
+
+    private static final String DATABASE_URL = "jdbc:h2:mem:partition-shared;DB_CLOSE_DELAY=-1";
+
+    /**
+     * Cash of the default terminal in data.sql.
+     */
+    private static final long TERMINAL_CASH = 1500L;
+
+    private static final List<String> nodeUrls = new ArrayList<>();
+
+    private static final List<ConfigurableApplicationContext> nodes = new ArrayList<>();
+
+    private final RestTemplate restTemplate = new RestTemplate();
+
+    @BeforeAll
+    public static void startNodes() {
+        Security.setProperty("crypto.policy", "unlimited");
+        for (int node = 0; node < NODES; node++) {
+            // Only the first node creates and fills the database, the others use it as it is.
+            SpringApplicationBuilder application = new SpringApplicationBuilder(AtmMachineApplication.class).properties(
+                    "server.port=0",
+                    "spring.datasource.url=" + DATABASE_URL);
+            if (node > 0) {
+                application.properties("spring.sql.init.mode=never", "spring.jpa.hibernate.ddl-auto=none");
+            }
+            ConfigurableApplicationContext context = application.run();
+            nodes.add(context);
+            nodeUrls.add("http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort());
+        }
+        for (int node = 0; node < NODES; node++) {
+            nodes.get(node).getBean(PartitionedBankAccountService.class).configureRing(nodeUrls, nodeUrls.get(node));
+        }
+    }
+
+    @AfterAll
+    public static void stopNodes() {
+        // The first node drops the tables when it is closed.
+        Collections.reverse(nodes);
+        nodes.forEach(ConfigurableApplicationContext::close);
+    }
+
+    @Test
+    public void testConcurrentWithdrawalsOfDifferentOwnersNeverDispenseTheSameNotes() throws Exception {
+        JdbcTemplate jdbcTemplate = nodes.get(0).getBean(JdbcTemplate.class);
+        PartitionedBankAccountService partitionedBankAccountService = nodes.get(0).getBean(PartitionedBankAccountService.class);
+        // One account owned by every node, with the pin 1234 of clint_west and funds for more than the terminal holds.
+        List<String> userNames = new ArrayList<>();
+        for (String nodeUrl : nodeUrls) {
+            for (int account = 0; ; account++) {
+                String userName = "shared_user_" + account;
+                if (!userNames.contains(userName) && nodeUrl.equals(partitionedBankAccountService.ownerOf(userName))) {
+                    jdbcTemplate.update("INSERT INTO BANK_ACCOUNT (first_name, last_name, user_name, email, account_number, atm_pin, opening_balance, overdraft) "
+                            + "VALUES ('shared', 'user', ?, ?, ?, 'gd6/yf/26JU=', 1000000, 0)", userName, userName + "@abcbank.com", 100000000L + account);
+                    userNames.add(userName);
+                    break;
+                }
+            }
+        }
+
+        // Every owner alone would dispense all notes of the terminal from its own cassettes.
+        int withdrawalsPerAccount = (int) (TERMINAL_CASH / 100);
+        ExecutorService clients = Executors.newFixedThreadPool(userNames.size() * 4);
+        List<Future<WithdrawalResponse>> withdrawals = new ArrayList<>();
+        try {
+            for (int withdrawal = 0; withdrawal < withdrawalsPerAccount; withdrawal++) {
+                for (int account = 0; account < userNames.size(); account++) {
+                    String userName = userNames.get(account);
+                    String nodeUrl = nodeUrls.get((withdrawal + account) % NODES);
+                    withdrawals.add(clients.submit(() -> this.restTemplate.postForObject(nodeUrl + "/atm/api/withdraw",
+                            new WithdrawalRequest(userName, "1234", 100L, false), WithdrawalResponse.class)));
+                }
+            }
+            long dispensed = 0;
+            for (Future<WithdrawalResponse> withdrawal : withdrawals) {
+                if (WithDrawStatus.SUCCESS == withdrawal.get().getWithDrawlStatus()) {
+                    dispensed += 100;
+                }
+            }
+
+            // The table decides which owner gets the notes, it never goes below zero and holds what was not dispensed.
+            Assertions.assertTrue(dispensed > 0);
+            Assertions.assertTrue(dispensed <= TERMINAL_CASH, "dispensed " + dispensed + " from a terminal holding " + TERMINAL_CASH);
+            Assertions.assertEquals(0, jdbcTemplate.queryForObject("SELECT COUNT(*) FROM ATM WHERE terminal_id = 'ATM-1' AND currency_count < 0", Integer.class));
+            Assertions.assertEquals(TERMINAL_CASH - dispensed,
+                    jdbcTemplate.queryForObject("SELECT SUM(currency * currency_count) FROM ATM WHERE terminal_id = 'ATM-1'", Long.class));
+            Assertions.assertEquals(userNames.size() * 1000000L - dispensed * 100, jdbcTemplate.queryForObject(
+                    "SELECT SUM(opening_balance) FROM BANK_ACCOUNT WHERE user_name LIKE 'shared_user_%'", Long.class));
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+}
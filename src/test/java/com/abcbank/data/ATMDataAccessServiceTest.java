@@ -0,0 +1,374 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.data;
+
+import com.abcbank.constant.StringConstants;
+import com.abcbank.data.dto.InventorySnapshot;
+import com.abcbank.data.entity.DenominationDetail;
+import com.abcbank.data.repository.DenominationDetailRepository;
+import com.abcbank.data.service.ATMDataAccessService;
+import com.abcbank.data.service.WithdrawalJournal;
+import com.abcbank.exception.custom_exceptions.CurrencyDenominationCountNotAvailableException;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityManager;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ATMDataAccessServiceTest {
+
+    @Mock
+    private DenominationDetailRepository denominationDetailRepository;
+
+    @Mock
+    private WithdrawalJournal withdrawalJournal;
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @Mock
+    private EntityManager entityManager;
+
+    @InjectMocks
+    private ATMDataAccessService atmDataAccessService;
+
+    private final List<DenominationDetail> atmTable = new ArrayList<>();
+
+    private AutoCloseable mocks;
+
+    @BeforeEach
+    public void setUp() {
+        this.mocks = MockitoAnnotations.openMocks(this);
+        this.atmTable.add(new DenominationDetail(1L, 50, 10, '£', 0L));
+        this.atmTable.add(new DenominationDetail(2L, 20, 30, '£', 0L));
+        this.atmTable.add(new DenominationDetail(3L, 10, 30, '£', 0L));
+        this.atmTable.add(new DenominationDetail(4L, 5, 20, '£', 0L));
+        when(this.denominationDetailRepository.findAllByTerminalIdOrderByCurrencyDesc(anyString())).then(new Answer<List<DenominationDetail>>() {
+            @Override
+            public List<DenominationDetail> answer(InvocationOnMock invocationOnMock) throws Throwable {
+                String terminalId = invocationOnMock.getArgument(0);
+                List<DenominationDetail> rows = new ArrayList<>();
+                atmTable.stream().filter(row -> row.getTerminalId().equals(terminalId)).forEach(row -> rows.add(new DenominationDetail(row.getId(),
+                        row.getCurrency(), row.getCurrencyCount(), row.getCurrencyType(), row.getVersion(), row.getTerminalId())));
+                return rows;
+            }
+        });
+        when(this.denominationDetailRepository.findTerminalIds()).then(invocationOnMock ->
+                atmTable.stream().map(DenominationDetail::getTerminalId).distinct().sorted().collect(Collectors.toList()));
+        when(this.denominationDetailRepository.saveAll(any())).then(returnsFirstArg());
+        // Takes the batched notes off the table rows of the terminal the statement is bound to.
+        when(this.jdbcTemplate.batchUpdate(anyString(), anyCollection(), anyInt(), any())).then(new Answer<int[][]>() {
+            @Override
+            public int[][] answer(InvocationOnMock invocationOnMock) throws Throwable {
+                boolean available = invocationOnMock.<String>getArgument(0).contains("currency_count >= ?");
+                Collection<Map.Entry<Long, Integer>> rows = invocationOnMock.getArgument(1);
+                ParameterizedPreparedStatementSetter<Map.Entry<Long, Integer>> statementSetter = invocationOnMock.getArgument(3);
+                int[] updateCounts = new int[rows.size()];
+                int row = 0;
+                for (Map.Entry<Long, Integer> taken : rows) {
+                    PreparedStatement preparedStatement = mock(PreparedStatement.class);
+                    statementSetter.setValues(preparedStatement, taken);
+                    ArgumentCaptor<String> terminalId = ArgumentCaptor.forClass(String.class);
+                    verify(preparedStatement).setString(eq(3), terminalId.capture());
+                    for (DenominationDetail tableRow : atmTable) {
+                        if (tableRow.getId().equals(taken.getKey()) && tableRow.getTerminalId().equals(terminalId.getValue())
+                                && (!available || tableRow.getCurrencyCount() >= taken.getValue())) {
+                            tableRow.setCurrencyCount(tableRow.getCurrencyCount() - taken.getValue());
+                            tableRow.setVersion(tableRow.getVersion() + 1);
+                            updateCounts[row] = 1;
+                        }
+                    }
+                    row++;
+                }
+                return new int[][]{updateCounts};
+            }
+        });
+        // Reads the written rows back from the table.
+        when(this.jdbcTemplate.query(anyString(), any(PreparedStatementSetter.class), any(RowMapper.class))).then(invocationOnMock -> {
+            PreparedStatement preparedStatement = mock(PreparedStatement.class);
+            ((PreparedStatementSetter) invocationOnMock.getArgument(1)).setValues(preparedStatement);
+            ArgumentCaptor<Long> ids = ArgumentCaptor.forClass(Long.class);
+            verify(preparedStatement, atLeastOnce()).setLong(anyInt(), ids.capture());
+            List<DenominationDetail> rows = new ArrayList<>();
+            atmTable.stream().filter(row -> ids.getAllValues().contains(row.getId())).forEach(row -> rows.add(new DenominationDetail(row.getId(), row.getCurrency(),
+                    row.getCurrencyCount(), row.getCurrencyType(), row.getVersion(), row.getTerminalId())));
+            return rows;
+        });
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        this.mocks.close();
+    }
+
+    @Test
+    public void testInventoryIsReadFromTableOnce() {
+        this.atmDataAccessService.getATMInventory();
+        this.atmDataAccessService.getATMInventory();
+        Assertions.assertEquals(4, this.atmDataAccessService.getInventorySnapshot().getDenominationDetails().size());
+        verify(this.denominationDetailRepository, times(1)).findAllByTerminalIdOrderByCurrencyDesc(StringConstants.DefaultTerminalId);
+    }
+
+    @Test
+    public void testInventoryIsReadPerTerminal() {
+        this.atmTable.add(1, new DenominationDetail(5L, 50, 3, '£', 0L, "ATM-2"));
+        List<DenominationDetail> terminalInventory = this.atmDataAccessService.getATMInventory("ATM-2");
+        Assertions.assertEquals(1, terminalInventory.size());
+        Assertions.assertEquals(4, this.atmDataAccessService.getATMInventory(StringConstants.DefaultTerminalId).size());
+        Assertions.assertEquals(2, this.atmDataAccessService.getTerminalIds().size());
+
+        terminalInventory.get(0).setCurrencyCount(1);
+        Assertions.assertEquals(1, this.atmDataAccessService.saveChangedCurrencyCounts(terminalInventory));
+        Assertions.assertEquals(1, this.atmDataAccessService.getATMInventory("ATM-2").get(0).getCurrencyCount());
+        Assertions.assertEquals(10, this.atmDataAccessService.getATMInventory(StringConstants.DefaultTerminalId).get(0).getCurrencyCount());
+        Assertions.assertTrue(this.atmDataAccessService.verifyInventoryCache());
+        // Each terminal loads only its own rows, once.
+        verify(this.denominationDetailRepository, times(1)).findAllByTerminalIdOrderByCurrencyDesc("ATM-2");
+        verify(this.denominationDetailRepository, never()).findAllByOrderByCurrencyDesc();
+    }
+
+    @Test
+    public void testWriteOfOneTerminalKeepsTheSnapshotOfAnother() {
+        this.atmTable.add(1, new DenominationDetail(5L, 50, 3, '£', 0L, "ATM-2"));
+        InventorySnapshot defaultSnapshot = this.atmDataAccessService.getInventorySnapshot(StringConstants.DefaultTerminalId);
+        List<DenominationDetail> terminalInventory = this.atmDataAccessService.getATMInventory("ATM-2");
+        terminalInventory.get(0).setCurrencyCount(1);
+        this.atmDataAccessService.saveChangedCurrencyCounts(terminalInventory);
+        Assertions.assertSame(defaultSnapshot, this.atmDataAccessService.getInventorySnapshot(StringConstants.DefaultTerminalId));
+
+        // A change behind the cache of one terminal reloads only that terminal.
+        this.atmTable.get(1).setCurrencyCount(0);
+        Assertions.assertFalse(this.atmDataAccessService.verifyInventoryCache("ATM-2"));
+        Assertions.assertEquals(0, this.atmDataAccessService.getATMInventory("ATM-2").get(0).getCurrencyCount());
+        Assertions.assertSame(defaultSnapshot, this.atmDataAccessService.getInventorySnapshot(StringConstants.DefaultTerminalId));
+        verify(this.denominationDetailRepository, times(1)).findAllByTerminalIdOrderByCurrencyDesc(StringConstants.DefaultTerminalId);
+    }
+
+    @Test
+    public void testUnknownTerminalIsNotCached() {
+        Assertions.assertTrue(this.atmDataAccessService.getATMInventory("ATM-X").isEmpty());
+        Assertions.assertTrue(this.atmDataAccessService.getATMInventory("ATM-X").isEmpty());
+        verify(this.denominationDetailRepository, times(2)).findAllByTerminalIdOrderByCurrencyDesc("ATM-X");
+        Assertions.assertTrue(this.atmDataAccessService.verifyInventoryCache("ATM-X"));
+    }
+
+    @Test
+    public void testSnapshotCannotBeChangedByReaders() {
+        InventorySnapshot snapshot = this.atmDataAccessService.getInventorySnapshot();
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> snapshot.getDenominationDetails().clear());
+
+        this.atmDataAccessService.getATMInventory().get(0).setCurrencyCount(0);
+        Assertions.assertEquals(10, this.atmDataAccessService.getInventorySnapshot().getDenominationDetails().get(0).getCurrencyCount());
+    }
+
+    @Test
+    public void testSaveWritesThroughToSnapshot() {
+        long version = this.atmDataAccessService.getInventorySnapshot().getVersion();
+        this.atmDataAccessService.saveAllCurrencyDetails(Collections.singletonList(new DenominationDetail(2L, 20, 25, '£')));
+
+        InventorySnapshot snapshot = this.atmDataAccessService.getInventorySnapshot();
+        Assertions.assertTrue(snapshot.getVersion() > version);
+        Assertions.assertEquals(20, snapshot.getDenominationDetails().get(1).getCurrency());
+        Assertions.assertEquals(25, snapshot.getDenominationDetails().get(1).getCurrencyCount());
+        Assertions.assertEquals(10, snapshot.getDenominationDetails().get(0).getCurrencyCount());
+        verify(this.denominationDetailRepository, times(1)).findAllByTerminalIdOrderByCurrencyDesc(StringConstants.DefaultTerminalId);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testOnlyChangedCountsAreWrittenInOneBatch() {
+        List<DenominationDetail> inventory = this.atmDataAccessService.getATMInventory();
+        inventory.get(0).setCurrencyCount(8);
+        inventory.get(2).setCurrencyCount(25);
+        Assertions.assertEquals(2, this.atmDataAccessService.saveChangedCurrencyCounts(inventory));
+
+        ArgumentCaptor<Collection<Map.Entry<Long, Integer>>> writtenRows = ArgumentCaptor.forClass(Collection.class);
+        verify(this.jdbcTemplate, times(1)).batchUpdate(anyString(), writtenRows.capture(), anyInt(), any());
+        Assertions.assertEquals(2, writtenRows.getValue().size());
+        // The rows are moved by the notes taken, not set to the counts.
+        Assertions.assertEquals(Arrays.asList(2, 5), writtenRows.getValue().stream().map(Map.Entry::getValue).collect(Collectors.toList()));
+        verify(this.denominationDetailRepository, never()).saveAll(any());
+        verify(this.denominationDetailRepository, times(1)).findAllByTerminalIdOrderByCurrencyDesc(StringConstants.DefaultTerminalId);
+
+        InventorySnapshot snapshot = this.atmDataAccessService.getInventorySnapshot();
+        Assertions.assertEquals(8, snapshot.getDenominationDetails().get(0).getCurrencyCount());
+        Assertions.assertEquals(1L, snapshot.getDenominationDetails().get(0).getVersion());
+        Assertions.assertEquals(0L, snapshot.getDenominationDetails().get(1).getVersion());
+        Assertions.assertTrue(this.atmDataAccessService.verifyInventoryCache());
+    }
+
+    @Test
+    public void testSavedCountsAreJournaledBeforeTheTransactionCommits() {
+        when(this.withdrawalJournal.isEnabled()).thenReturn(true);
+        List<DenominationDetail> inventory = this.atmDataAccessService.getATMInventory();
+        inventory.get(0).setCurrencyCount(8);
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            this.atmDataAccessService.saveChangedCurrencyCounts(inventory);
+            verify(this.withdrawalJournal, times(1)).appendDenominations(new long[]{1L, 8L, 1L});
+            // The snapshot only changes once the transaction has committed.
+            Assertions.assertEquals(10, this.atmDataAccessService.getInventorySnapshot().getDenominationDetails().get(0).getCurrencyCount());
+            TransactionSynchronizationManager.getSynchronizations().forEach(synchronization -> synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED));
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        Assertions.assertEquals(8, this.atmDataAccessService.getInventorySnapshot().getDenominationDetails().get(0).getCurrencyCount());
+    }
+
+    @Test
+    public void testUnchangedCountsAreNotWritten() {
+        Assertions.assertEquals(0, this.atmDataAccessService.saveChangedCurrencyCounts(this.atmDataAccessService.getATMInventory()));
+        verify(this.jdbcTemplate, never()).batchUpdate(anyString(), anyCollection(), anyInt(), any());
+        verify(this.denominationDetailRepository, never()).saveAll(any());
+    }
+
+    @Test
+    public void testConcurrentlyUpdatedCountIsNotOverwritten() {
+        List<DenominationDetail> inventory = this.atmDataAccessService.getATMInventory();
+        // Another instance takes 3 notes after the row was cached.
+        this.atmTable.get(0).setCurrencyCount(7);
+        this.atmTable.get(0).setVersion(1L);
+        inventory.get(0).setCurrencyCount(8);
+        Assertions.assertEquals(1, this.atmDataAccessService.saveChangedCurrencyCounts(inventory));
+
+        // Both writes are kept and the snapshot gets the count the row was left with.
+        Assertions.assertEquals(5, this.atmTable.get(0).getCurrencyCount());
+        Assertions.assertEquals(5, this.atmDataAccessService.getInventorySnapshot().getDenominationDetails().get(0).getCurrencyCount());
+        Assertions.assertEquals(2L, this.atmDataAccessService.getInventorySnapshot().getDenominationDetails().get(0).getVersion());
+    }
+
+    @Test
+    public void testRowReadFromAnOlderSnapshotIsRejected() {
+        List<DenominationDetail> inventory = this.atmDataAccessService.getATMInventory();
+        inventory.get(0).setCurrencyCount(9);
+        this.atmDataAccessService.saveChangedCurrencyCounts(inventory);
+
+        // The copy still holds the version it was read at, the notes it took are unknown.
+        inventory.get(0).setCurrencyCount(8);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        Metrics.addRegistry(meterRegistry);
+        try {
+            Assertions.assertThrows(OptimisticLockingFailureException.class, () -> this.atmDataAccessService.saveChangedCurrencyCounts(inventory));
+            Assertions.assertEquals(1.0, meterRegistry.counter("atm.inventory.conflicts", "source", "save").count());
+        } finally {
+            Metrics.removeRegistry(meterRegistry);
+        }
+        Assertions.assertEquals(9, this.atmTable.get(0).getCurrencyCount());
+    }
+
+    @Test
+    public void testRowsOfAnotherTerminalAreNotTaken() {
+        this.atmTable.add(1, new DenominationDetail(5L, 50, 3, '£', 0L, "ATM-2"));
+        Map<Long, Integer> dispensedNotes = new HashMap<>();
+        dispensedNotes.put(5L, 1);
+        Assertions.assertThrows(EmptyResultDataAccessException.class, () -> this.atmDataAccessService.withdrawCurrencyCounts(StringConstants.DefaultTerminalId, dispensedNotes));
+        Assertions.assertEquals(3, this.atmTable.get(1).getCurrencyCount());
+
+        Assertions.assertEquals(1, this.atmDataAccessService.withdrawCurrencyCounts("ATM-2", dispensedNotes));
+        Assertions.assertEquals(2, this.atmTable.get(1).getCurrencyCount());
+    }
+
+    @Test
+    public void testNotesAreOnlyTakenIfTheRowsHoldThem() {
+        Map<Long, Integer> takenNotes = new HashMap<>();
+        takenNotes.put(1L, 11);
+        Assertions.assertThrows(CurrencyDenominationCountNotAvailableException.class,
+                () -> this.atmDataAccessService.takeAvailableCurrencyCounts(StringConstants.DefaultTerminalId, takenNotes));
+        Assertions.assertEquals(10, this.atmTable.get(0).getCurrencyCount());
+
+        takenNotes.put(1L, 10);
+        Assertions.assertEquals(1, this.atmDataAccessService.takeAvailableCurrencyCounts(StringConstants.DefaultTerminalId, takenNotes));
+        Assertions.assertEquals(0, this.atmTable.get(0).getCurrencyCount());
+        Assertions.assertEquals(0, this.atmDataAccessService.getInventorySnapshot().getDenominationDetails().get(0).getCurrencyCount());
+    }
+
+    @Test
+    public void testChangedCountsOfSeveralTerminalsAreWrittenPerTerminal() {
+        this.atmTable.add(1, new DenominationDetail(5L, 50, 3, '£', 0L, "ATM-2"));
+        List<DenominationDetail> inventory = new ArrayList<>(this.atmDataAccessService.getATMInventory());
+        inventory.addAll(this.atmDataAccessService.getATMInventory("ATM-2"));
+        inventory.get(0).setCurrencyCount(8);
+        inventory.get(4).setCurrencyCount(1);
+        Assertions.assertEquals(2, this.atmDataAccessService.saveChangedCurrencyCounts(inventory));
+
+        verify(this.jdbcTemplate, times(2)).batchUpdate(anyString(), anyCollection(), anyInt(), any());
+        Assertions.assertEquals(8, this.atmTable.get(0).getCurrencyCount());
+        Assertions.assertEquals(1, this.atmTable.get(1).getCurrencyCount());
+        Assertions.assertTrue(this.atmDataAccessService.verifyInventoryCache());
+    }
+
+    @Test
+    public void testConsistencyCheckReloadsChangedTable() {
+        this.atmDataAccessService.getInventorySnapshot();
+        Assertions.assertTrue(this.atmDataAccessService.verifyInventoryCache());
+
+        // The table is changed behind the cache.
+        this.atmTable.get(3).setCurrencyCount(0);
+        Assertions.assertFalse(this.atmDataAccessService.verifyInventoryCache());
+        Assertions.assertEquals(0, this.atmDataAccessService.getInventorySnapshot().getDenominationDetails().get(3).getCurrencyCount());
+        Assertions.assertTrue(this.atmDataAccessService.verifyInventoryCache());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.data;
+
+import com.abcbank.constant.StringConstants;
+import com.abcbank.data.entity.DenominationDetail;
+import com.abcbank.data.service.ATMDataAccessService;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the statements the ATM inventory writes actually send to the database, through a proxy of the data source.
+ */
+@SpringBootTest(properties = {"spring.datasource.url=jdbc:h2:mem:atm-statement-counts", "spring.jpa.properties.hibernate.generate_statistics=true"})
+public class ATMInventoryStatementCountTest {
+
+    private static final List<String> preparedUpdates = Collections.synchronizedList(new ArrayList<>());
+
+    private static final AtomicInteger executedBatches = new AtomicInteger();
+
+    private static final AtomicInteger executedUpdates = new AtomicInteger();
+
+    @Autowired
+    private ATMDataAccessService atmDataAccessService;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private Statistics statistics;
+
+    @BeforeEach
+    public void setUp() {
+        // Loads the snapshot before anything is counted.
+        this.atmDataAccessService.getInventorySnapshot();
+        this.statistics = this.entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        this.statistics.clear();
+        preparedUpdates.clear();
+        executedBatches.set(0);
+        executedUpdates.set(0);
+    }
+
+    @Test
+    public void testChangedCountsAreOneBatchedDeltaStatement() {
+        List<DenominationDetail> inventory = this.atmDataAccessService.getATMInventory(StringConstants.DefaultTerminalId);
+        inventory.get(0).setCurrencyCount(inventory.get(0).getCurrencyCount() - 2);
+        inventory.get(2).setCurrencyCount(inventory.get(2).getCurrencyCount() - 1);
+        Assertions.assertEquals(2, this.atmDataAccessService.saveChangedCurrencyCounts(inventory));
+
+        Assertions.assertEquals(1, preparedUpdates.size(), "prepared updates : " + preparedUpdates);
+        Assertions.assertTrue(preparedUpdates.get(0).contains("currency_count = currency_count - ?"));
+        Assertions.assertEquals(1, executedBatches.get());
+        Assertions.assertEquals(0, executedUpdates.get());
+        Assertions.assertTrue(this.atmDataAccessService.verifyInventoryCache());
+    }
+
+    @Test
+    public void testUnchangedCountsSendNoStatement() {
+        Assertions.assertEquals(0, this.atmDataAccessService.saveChangedCurrencyCounts(this.atmDataAccessService.getATMInventory()));
+        Assertions.assertTrue(preparedUpdates.isEmpty(), "prepared updates : " + preparedUpdates);
+        Assertions.assertEquals(0, executedBatches.get());
+    }
+
+    @Test
+    public void testRepositorySaveIsSentAsOneJdbcBatch() {
+        List<DenominationDetail> inventory = this.atmDataAccessService.getATMInventory(StringConstants.DefaultTerminalId);
+        inventory.forEach(denominationDetail -> denominationDetail.setCurrencyCount(denominationDetail.getCurrencyCount() + 1));
+        this.atmDataAccessService.saveAllCurrencyDetails(inventory);
+
+        // hibernate.jdbc.batch_size, batch_versioned_data and order_updates send the versioned updates as one batch.
+        Assertions.assertEquals(inventory.size(), this.statistics.getEntityUpdateCount());
+        Assertions.assertEquals(1, preparedUpdates.size(), "prepared updates : " + preparedUpdates);
+        Assertions.assertEquals(1, executedBatches.get());
+        Assertions.assertEquals(0, executedUpdates.get());
+        Assertions.assertTrue(this.atmDataAccessService.verifyInventoryCache());
+    }
+
+    @TestConfiguration
+    static class StatementCountingConfiguration {
+
+        @Bean
+        static BeanPostProcessor statementCountingDataSource() {
+            return new BeanPostProcessor() {
+                @Override
+                public Object postProcessAfterInitialization(Object bean, String beanName) {
+                    return bean instanceof DataSource ? countingProxy(DataSource.class, bean) : bean;
+                }
+            };
+        }
+    }
+
+    /**
+     * Proxies the data source, its connections and the prepared statements updating the ATM table.
+     */
+    private static <T> T countingProxy(Class<T> type, Object target) {
+        return type.cast(Proxy.newProxyInstance(ATMInventoryStatementCountTest.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException exp) {
+                throw exp.getCause();
+            }
+            if (result instanceof Connection && method.getName().equals("getConnection")) {
+                return countingProxy(Connection.class, result);
+            }
+            if (result instanceof PreparedStatement && method.getName().equals("prepareStatement") && ((String) args[0]).trim().toUpperCase().startsWith("UPDATE ATM")) {
+                preparedUpdates.add((String) args[0]);
+                return countingProxy(PreparedStatement.class, result);
+            }
+            if (target instanceof PreparedStatement && method.getName().equals("executeBatch")) {
+                executedBatches.incrementAndGet();
+            }
+            if (target instanceof PreparedStatement && method.getName().equals("executeUpdate")) {
+                executedUpdates.incrementAndGet();
+            }
+            return result;
+        }));
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.data;
+
+import com.abcbank.data.dto.AccountSummary;
+import com.abcbank.data.service.AccountBalanceView;
+import com.abcbank.exception.custom_exceptions.AccountNotFoundException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AccountBalanceViewTest {
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @InjectMocks
+    private AccountBalanceView accountBalanceView;
+
+    /**
+     * BANK_ACCOUNT rows as id, user name, pin, opening balance and overdraft in minor units, version.
+     */
+    private final List<Object[]> accountTable = new ArrayList<>();
+
+    private AutoCloseable mocks;
+
+    @BeforeEach
+    public void setUp() {
+        this.mocks = MockitoAnnotations.openMocks(this);
+        this.accountTable.add(new Object[]{1L, "clint_west", "gd6/yf/26JU=", 80000L, 20000L, 0L});
+        this.accountTable.add(new Object[]{2L, "russell_gladiator", "7jh4Sd0w2ZY=", 123000L, 15000L, 0L});
+        this.accountTable.add(new Object[]{3L, "bruce_wayne", "gd6/yf/26JU=", 50000L, 0L, 0L});
+        doAnswer(invocationOnMock -> {
+            String userName = invocationOnMock.getArgument(2);
+            List<Object> accounts = new ArrayList<>();
+            for (Object[] row : this.accountTable) {
+                if (row[1].equals(userName)) {
+                    accounts.add(mapRow(invocationOnMock.getArgument(1), row));
+                }
+            }
+            return accounts;
+        }).when(this.jdbcTemplate).query(contains("WHERE user_name = ?"), any(RowMapper.class), anyString());
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        this.accountBalanceView.stop();
+        this.mocks.close();
+    }
+
+    @Test
+    public void testAccountIsReadOnceAndThenServedFromTheView() {
+        AccountSummary accountSummary = this.accountBalanceView.getAccountSummary("russell_gladiator");
+        Assertions.assertEquals(1230L, accountSummary.getOpeningBalance());
+        Assertions.assertEquals(150L, accountSummary.getOverdraft());
+        Assertions.assertEquals(1230L, this.accountBalanceView.getAccountSummary("russell_gladiator").getOpeningBalance());
+
+        // Only the asked for account is read, nothing is scanned up front.
+        verify(this.jdbcTemplate, times(1)).query(contains("WHERE user_name = ?"), any(RowMapper.class), eq("russell_gladiator"));
+        verify(this.jdbcTemplate, never()).query(contains("WHERE user_name = ?"), any(RowMapper.class), eq("clint_west"));
+    }
+
+    @Test
+    public void testPinIsServedFromTheViewToPinRequestsOnly() {
+        Assertions.assertNull(this.accountBalanceView.getAccountSummary("clint_west").getAtmPin());
+
+        // The pin is read with the balances, pin requests are then answered without the table.
+        Assertions.assertEquals("gd6/yf/26JU=", this.accountBalanceView.readAccountSummary("clint_west").getAtmPin());
+        Assertions.assertEquals("gd6/yf/26JU=", this.accountBalanceView.readAccountSummary("clint_west").getAtmPin());
+        verify(this.jdbcTemplate, times(1)).query(contains("WHERE user_name = ?"), any(RowMapper.class), eq("clint_west"));
+        Assertions.assertNull(this.accountBalanceView.getAccountSummary("clint_west").getAtmPin());
+
+        // A debit keeps the pin of the entry.
+        this.accountBalanceView.applyDebit(1L, 300L, 200L, 1L);
+        Assertions.assertEquals("gd6/yf/26JU=", this.accountBalanceView.readAccountSummary("clint_west").getAtmPin());
+        Assertions.assertEquals(300L, this.accountBalanceView.readAccountSummary("clint_west").getOpeningBalance());
+    }
+
+    @Test
+    public void testReplacedPinsAreApplied() {
+        this.accountBalanceView.readAccountSummary("clint_west");
+        this.accountBalanceView.applyPin(1L, "gd6/yf/26JU=", "$2a$10$rehashed");
+        Assertions.assertEquals("$2a$10$rehashed", this.accountBalanceView.readAccountSummary("clint_west").getAtmPin());
+
+        // A replacement of a hash the entry no longer holds is ignored.
+        this.accountBalanceView.applyPin(1L, "gd6/yf/26JU=", "$2a$10$other");
+        Assertions.assertEquals("$2a$10$rehashed", this.accountBalanceView.readAccountSummary("clint_west").getAtmPin());
+        verify(this.jdbcTemplate, times(1)).query(contains("WHERE user_name = ?"), any(RowMapper.class), eq("clint_west"));
+    }
+
+    @Test
+    public void testCommittedDebitsUpdateTheView() {
+        this.accountBalanceView.getAccountSummary("clint_west");
+        this.accountBalanceView.applyDebit(1L, 0L, 100L, 1L);
+        AccountSummary accountSummary = this.accountBalanceView.getAccountSummary("clint_west");
+        Assertions.assertEquals(0L, accountSummary.getOpeningBalance());
+        Assertions.assertEquals(100L, accountSummary.getOverdraft());
+        Assertions.assertNull(accountSummary.getAtmPin());
+
+        // Debits of accounts not in the view are not added to it.
+        this.accountBalanceView.applyDebit(2L, 0L, 0L, 1L);
+        Assertions.assertEquals(1230L, this.accountBalanceView.getAccountSummary("russell_gladiator").getOpeningBalance());
+    }
+
+    @Test
+    public void testOlderReadDoesNotUndoNewerDebits() {
+        this.accountBalanceView.getAccountSummary("clint_west");
+        // The read below saw the row before the debit was committed.
+        this.accountBalanceView.applyDebit(1L, 300L, 200L, 1L);
+        ReflectionTestUtils.invokeMethod(this.accountBalanceView, "read", "clint_west");
+        Assertions.assertEquals(300L, this.accountBalanceView.getAccountSummary("clint_west").getOpeningBalance());
+
+        // A newer version from the table replaces the view.
+        this.accountTable.get(0)[3] = 10000L;
+        this.accountTable.get(0)[5] = 2L;
+        ReflectionTestUtils.invokeMethod(this.accountBalanceView, "read", "clint_west");
+        Assertions.assertEquals(100L, this.accountBalanceView.getAccountSummary("clint_west").getOpeningBalance());
+    }
+
+    @Test
+    public void testExpiredEntriesAreReadAgain() throws InterruptedException {
+        ReflectionTestUtils.setField(this.accountBalanceView, "ttlMillis", 20L);
+        this.accountBalanceView.getAccountSummary("bruce_wayne");
+        // Changed by another instance.
+        this.accountTable.get(2)[3] = 40000L;
+        this.accountTable.get(2)[5] = 1L;
+        Thread.sleep(50);
+        Assertions.assertEquals(400L, this.accountBalanceView.getAccountSummary("bruce_wayne").getOpeningBalance());
+        verify(this.jdbcTemplate, times(2)).query(contains("WHERE user_name = ?"), any(RowMapper.class), eq("bruce_wayne"));
+    }
+
+    @Test
+    public void testDeletedAccountsAreEvicted() throws InterruptedException {
+        ReflectionTestUtils.setField(this.accountBalanceView, "ttlMillis", 20L);
+        this.accountBalanceView.getAccountSummary("bruce_wayne");
+        this.accountTable.remove(2);
+        Thread.sleep(50);
+        Assertions.assertThrows(AccountNotFoundException.class, () -> this.accountBalanceView.getAccountSummary("bruce_wayne"));
+        Assertions.assertThrows(AccountNotFoundException.class, () -> this.accountBalanceView.getAccountSummary("unknown"));
+
+        this.accountBalanceView.getAccountSummary("clint_west");
+        this.accountBalanceView.evict(1L);
+        this.accountBalanceView.getAccountSummary("clint_west");
+        verify(this.jdbcTemplate, times(2)).query(contains("WHERE user_name = ?"), any(RowMapper.class), eq("clint_west"));
+    }
+
+    @Test
+    public void testViewIsBounded() {
+        ReflectionTestUtils.setField(this.accountBalanceView, "maxEntries", 2);
+        this.accountBalanceView.getAccountSummary("clint_west");
+        this.accountBalanceView.getAccountSummary("russell_gladiator");
+        // The view is full, so the third account is read on every request.
+        this.accountBalanceView.getAccountSummary("bruce_wayne");
+        this.accountBalanceView.getAccountSummary("bruce_wayne");
+        this.accountBalanceView.getAccountSummary("clint_west");
+        verify(this.jdbcTemplate, times(2)).query(contains("WHERE user_name = ?"), any(RowMapper.class), eq("bruce_wayne"));
+        verify(this.jdbcTemplate, times(1)).query(contains("WHERE user_name = ?"), any(RowMapper.class), eq("clint_west"));
+    }
+
+    private static Object mapRow(RowMapper<?> rowMapper, Object[] row) throws Exception {
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.getLong("id")).thenReturn((Long) row[0]);
+        when(resultSet.getString("user_name")).thenReturn((String) row[1]);
+        when(resultSet.getString("atm_pin")).thenReturn((String) row[2]);
+        when(resultSet.getLong("opening_balance")).thenReturn((Long) row[3]);
+        when(resultSet.getLong("overdraft")).thenReturn((Long) row[4]);
+        when(resultSet.getLong("version")).thenReturn((Long) row[5]);
+        return rowMapper.mapRow(resultSet, 0);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.data;
+
+import com.abcbank.data.dto.LedgerEntry;
+import com.abcbank.data.service.TransactionLedgerWriter;
+import com.abcbank.enums.WithDrawStatus;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+
+public class TransactionLedgerWriterTest {
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @InjectMocks
+    private TransactionLedgerWriter transactionLedgerWriter;
+
+    private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger writtenEntries = new AtomicInteger();
+
+    private AutoCloseable mocks;
+
+    @BeforeEach
+    public void setUp() {
+        this.mocks = MockitoAnnotations.openMocks(this);
+        ReflectionTestUtils.setField(this.transactionLedgerWriter, "flushIntervalMillis", 20L);
+        doAnswer(invocationOnMock -> {
+            Collection<?> batch = invocationOnMock.getArgument(1);
+            batchSizes.add(batch.size());
+            writtenEntries.addAndGet(batch.size());
+            return new int[0][0];
+        }).when(this.jdbcTemplate).batchUpdate(anyString(), anyCollection(), anyInt(), any());
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        this.transactionLedgerWriter.stop();
+        this.mocks.close();
+    }
+
+    @Test
+    public void testQueuedEntriesAreWrittenInBatches() throws Exception {
+        ReflectionTestUtils.setField(this.transactionLedgerWriter, "batchSize", 10);
+        this.transactionLedgerWriter.start();
+        for (int entry = 0; entry < 25; entry++) {
+            Assertions.assertTrue(this.transactionLedgerWriter.record(ledgerEntry()));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (this.writtenEntries.get() < 25 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        Assertions.assertEquals(25, this.writtenEntries.get());
+        Assertions.assertTrue(this.batchSizes.stream().allMatch(size -> size <= 10));
+    }
+
+    @Test
+    public void testEntriesAreDroppedWhenTheQueueIsFull() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocationOnMock -> {
+            writing.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return new int[0][0];
+        }).when(this.jdbcTemplate).batchUpdate(anyString(), anyCollection(), anyInt(), any());
+        ReflectionTestUtils.setField(this.transactionLedgerWriter, "queueCapacity", 2);
+        this.transactionLedgerWriter.start();
+
+        // The writer holds the first entry while the next two fill the queue.
+        Assertions.assertTrue(this.transactionLedgerWriter.record(ledgerEntry()));
+        Assertions.assertTrue(writing.await(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(this.transactionLedgerWriter.record(ledgerEntry()));
+        Assertions.assertTrue(this.transactionLedgerWriter.record(ledgerEntry()));
+        Assertions.assertFalse(this.transactionLedgerWriter.record(ledgerEntry()));
+        release.countDown();
+    }
+
+    @Test
+    public void testQueuedEntriesAreWrittenOnStop() throws Exception {
+        ReflectionTestUtils.setField(this.transactionLedgerWriter, "flushIntervalMillis", 60000L);
+        this.transactionLedgerWriter.start();
+        this.transactionLedgerWriter.record(ledgerEntry());
+        this.transactionLedgerWriter.record(ledgerEntry());
+        this.transactionLedgerWriter.stop();
+        Assertions.assertEquals(2, this.writtenEntries.get());
+    }
+
+    private static LedgerEntry ledgerEntry() {
+        return new LedgerEntry(1L, "clint_west", 80000L, "50x10,20x15", WithDrawStatus.SUCCESS, Instant.now());
+    }
+}
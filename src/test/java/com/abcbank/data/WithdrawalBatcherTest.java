@@ -0,0 +1,286 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.data;
+
+import com.abcbank.data.service.AccountBalanceView;
+import com.abcbank.data.service.WithdrawalBatcher;
+import com.abcbank.data.service.WithdrawalJournal;
+import com.abcbank.utils.MinorUnits;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionOperations;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WithdrawalBatcherTest {
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @Mock
+    private TransactionOperations transactionOperations;
+
+    @Mock
+    private WithdrawalJournal withdrawalJournal;
+
+    @Mock
+    private AccountBalanceView accountBalanceView;
+
+    @InjectMocks
+    private WithdrawalBatcher withdrawalBatcher;
+
+    private final AtomicInteger committedBatches = new AtomicInteger();
+
+    private final AtomicInteger debits = new AtomicInteger();
+
+    private final AtomicInteger batchUpdates = new AtomicInteger();
+
+    private final Map<Long, Long> funds = new ConcurrentHashMap<>();
+
+    private volatile boolean inTransaction;
+
+    private AutoCloseable mocks;
+
+    @BeforeEach
+    public void setUp() {
+        this.mocks = MockitoAnnotations.openMocks(this);
+        ReflectionTestUtils.setField(this.withdrawalBatcher, "maxLingerMillis", 20L);
+
+        // Account 2 has 100 in funds, every other account has 1000. The debits of a batch are applied by one JDBC batch.
+        when(this.jdbcTemplate.batchUpdate(anyString(), anyCollection(), anyInt(), any())).then(new Answer<int[][]>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public int[][] answer(InvocationOnMock invocationOnMock) throws Throwable {
+                Collection<Object> accountDebits = invocationOnMock.getArgument(1);
+                ParameterizedPreparedStatementSetter<Object> setter = invocationOnMock.getArgument(3);
+                int[] updateCounts = new int[accountDebits.size()];
+                int row = 0;
+                for (Object accountDebit : accountDebits) {
+                    PreparedStatement preparedStatement = mock(PreparedStatement.class);
+                    setter.setValues(preparedStatement, accountDebit);
+                    ArgumentCaptor<Long> parameters = ArgumentCaptor.forClass(Long.class);
+                    verify(preparedStatement, times(6)).setLong(anyInt(), parameters.capture());
+                    long amount = MinorUnits.toUnits(parameters.getAllValues().get(0));
+                    long accountId = parameters.getAllValues().get(4);
+                    debits.incrementAndGet();
+                    long available = funds.computeIfAbsent(accountId, id -> id == 2L ? 100L : 1000L);
+                    if (amount <= available) {
+                        funds.put(accountId, available - amount);
+                        updateCounts[row] = 1;
+                    }
+                    row++;
+                }
+                batchUpdates.incrementAndGet();
+                return new int[][]{updateCounts};
+            }
+        });
+        // The balances of the debited accounts are read back with one query.
+        doAnswer(invocationOnMock -> {
+            PreparedStatement preparedStatement = mock(PreparedStatement.class);
+            ((PreparedStatementSetter) invocationOnMock.getArgument(1)).setValues(preparedStatement);
+            ArgumentCaptor<Long> accountIds = ArgumentCaptor.forClass(Long.class);
+            verify(preparedStatement, atLeastOnce()).setLong(anyInt(), accountIds.capture());
+            for (Long accountId : accountIds.getAllValues()) {
+                ResultSet resultSet = mock(ResultSet.class);
+                when(resultSet.getLong(1)).thenReturn(accountId);
+                when(resultSet.getLong(2)).thenReturn(MinorUnits.toMinorUnits(funds.get(accountId)));
+                when(resultSet.getLong(4)).thenReturn(1L);
+                ((RowCallbackHandler) invocationOnMock.getArgument(2)).processRow(resultSet);
+            }
+            return null;
+        }).when(this.jdbcTemplate).query(anyString(), any(PreparedStatementSetter.class), any(RowCallbackHandler.class));
+        doAnswer(invocationOnMock -> {
+            inTransaction = true;
+            try {
+                Object result = ((TransactionCallback<?>) invocationOnMock.getArgument(0)).doInTransaction(null);
+                committedBatches.incrementAndGet();
+                return result;
+            } finally {
+                inTransaction = false;
+            }
+        }).when(this.transactionOperations).execute(any());
+        this.withdrawalBatcher.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        this.withdrawalBatcher.stop();
+        this.mocks.close();
+    }
+
+    @Test
+    public void testSingleDebitIsCommitted() {
+        WithdrawalBatcher.DebitedAccount debitedAccount = this.withdrawalBatcher.debit(1L, 300L, false);
+        Assertions.assertEquals(700L, debitedAccount.getOpeningBalance());
+        Assertions.assertEquals(1, this.committedBatches.get());
+    }
+
+    @Test
+    public void testEveryCallerGetsItsOwnOutcome() {
+        Assertions.assertNull(this.withdrawalBatcher.debit(2L, 500L, true));
+        Assertions.assertEquals(50L, this.withdrawalBatcher.debit(2L, 50L, true).getOpeningBalance());
+    }
+
+    @Test
+    public void testConcurrentDebitsAreGroupCommitted() throws Exception {
+        int withdrawals = 32;
+        ExecutorService executor = Executors.newFixedThreadPool(withdrawals);
+        try {
+            List<Future<WithdrawalBatcher.DebitedAccount>> outcomes = new ArrayList<>();
+            for (int withdrawal = 0; withdrawal < withdrawals; withdrawal++) {
+                long accountId = 100L + withdrawal;
+                outcomes.add(executor.submit(() -> this.withdrawalBatcher.debit(accountId, 10L, false)));
+            }
+            for (Future<WithdrawalBatcher.DebitedAccount> outcome : outcomes) {
+                Assertions.assertEquals(990L, outcome.get(10, TimeUnit.SECONDS).getOpeningBalance());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assertions.assertEquals(withdrawals, this.debits.get());
+        Assertions.assertTrue(this.committedBatches.get() < withdrawals, "expected debits to share batches, batches : " + this.committedBatches.get());
+        // Every batch is sent to the database as one JDBC batch.
+        Assertions.assertEquals(this.committedBatches.get(), this.batchUpdates.get());
+    }
+
+    @Test
+    public void testBatchIsJournaledBeforeItCommits() {
+        when(this.withdrawalJournal.isEnabled()).thenReturn(true);
+        AtomicInteger journaledInTransaction = new AtomicInteger();
+        when(this.withdrawalJournal.appendAccounts(any())).then(invocationOnMock -> {
+            if (inTransaction && committedBatches.get() == 0) {
+                journaledInTransaction.incrementAndGet();
+            }
+            return 0L;
+        });
+        this.withdrawalBatcher.debit(1L, 300L, false);
+
+        ArgumentCaptor<long[]> accounts = ArgumentCaptor.forClass(long[].class);
+        verify(this.withdrawalJournal, times(1)).appendAccounts(accounts.capture());
+        Assertions.assertArrayEquals(new long[]{1L, MinorUnits.toMinorUnits(700L), 0L, 1L}, accounts.getValue());
+        Assertions.assertEquals(1, journaledInTransaction.get());
+    }
+
+    @Test
+    public void testFailedJournalAppendFailsTheBatch() {
+        when(this.withdrawalJournal.isEnabled()).thenReturn(true);
+        when(this.withdrawalJournal.appendAccounts(any())).thenThrow(new UncheckedIOException(new IOException("disk full")));
+        Assertions.assertThrows(UncheckedIOException.class, () -> this.withdrawalBatcher.debit(1L, 300L, false));
+        Assertions.assertEquals(0, this.committedBatches.get());
+    }
+
+    @Test
+    public void testCommittedDebitIsReturnedWhenTheBalanceViewFails() {
+        doThrow(new IllegalStateException("view failed")).when(this.accountBalanceView).applyDebit(any(), any(), any(), any());
+        Assertions.assertEquals(700L, this.withdrawalBatcher.debit(1L, 300L, false).getOpeningBalance());
+    }
+
+    @Test
+    public void testDebitNotCommittedInTimeFailsItsCaller() throws Exception {
+        ReflectionTestUtils.setField(this.withdrawalBatcher, "waitTimeoutMillis", 100L);
+        CountDownLatch committing = new CountDownLatch(1);
+        CountDownLatch database = new CountDownLatch(1);
+        doAnswer(invocationOnMock -> {
+            committing.countDown();
+            database.await(10, TimeUnit.SECONDS);
+            return ((TransactionCallback<?>) invocationOnMock.getArgument(0)).doInTransaction(null);
+        }).when(this.transactionOperations).execute(any());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<WithdrawalBatcher.DebitedAccount> committed = executor.submit(() -> this.withdrawalBatcher.debit(1L, 300L, false));
+            Assertions.assertTrue(committing.await(10, TimeUnit.SECONDS));
+            // Queued behind the stuck commit, the debit is cancelled and never reaches the database.
+            long start = System.nanoTime();
+            Assertions.assertThrows(IllegalStateException.class, () -> this.withdrawalBatcher.debit(3L, 300L, false));
+            Assertions.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            // The debit being committed is waited for twice the timeout, then its caller fails as well.
+            ExecutionException failure = Assertions.assertThrows(ExecutionException.class, () -> committed.get(10, TimeUnit.SECONDS));
+            Assertions.assertTrue(failure.getCause() instanceof IllegalStateException);
+        } finally {
+            database.countDown();
+            executor.shutdownNow();
+        }
+        verify(this.transactionOperations, timeout(5000).times(1)).execute(any());
+        Thread.sleep(200);
+        Assertions.assertEquals(1, this.debits.get());
+    }
+
+    @Test
+    public void testDebitAfterStopFailsWithoutWaiting() throws Exception {
+        this.withdrawalBatcher.stop();
+        Assertions.assertThrows(IllegalStateException.class, () -> this.withdrawalBatcher.debit(1L, 300L, false));
+        Assertions.assertEquals(0, this.debits.get());
+    }
+
+    @Test
+    public void testFailedBatchIsReportedToEveryCaller() {
+        doThrow(new IllegalStateException("database is down")).when(this.transactionOperations).execute(any());
+        Assertions.assertThrows(IllegalStateException.class, () -> this.withdrawalBatcher.debit(1L, 300L, false));
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.data;
+
+import com.abcbank.data.service.WithdrawalJournal;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WithdrawalJournalTest {
+
+    @TempDir
+    Path journalDirectory;
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    private AutoCloseable mocks;
+
+    @BeforeEach
+    public void setUp() {
+        this.mocks = MockitoAnnotations.openMocks(this);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        this.mocks.close();
+    }
+
+    @Test
+    public void testDisabledJournalWritesNothing() throws Exception {
+        WithdrawalJournal withdrawalJournal = new WithdrawalJournal();
+        ReflectionTestUtils.setField(withdrawalJournal, "jdbcTemplate", this.jdbcTemplate);
+        ReflectionTestUtils.setField(withdrawalJournal, "directory", this.journalDirectory.toString());
+        withdrawalJournal.start();
+        withdrawalJournal.appendAccounts(new long[]{1L, 700L, 0L, 1L});
+        withdrawalJournal.stop();
+        try (Stream<Path> segments = Files.list(this.journalDirectory)) {
+            Assertions.assertEquals(0, segments.count());
+        }
+    }
+
+    @Test
+    public void testLatestStateIsReplayedOnStart() throws Exception {
+        WithdrawalJournal withdrawalJournal = this.journal(4096);
+        withdrawalJournal.appendAccounts(new long[]{1L, 700L, 0L, 1L});
+        withdrawalJournal.appendAccounts(new long[]{1L, 400L, 0L, 2L});
+        withdrawalJournal.appendAccounts(new long[]{2L, 0L, 50L, 5L});
+        withdrawalJournal.appendDenominations(new long[]{10L, 95L, 3L});
+        withdrawalJournal.stop();
+
+        this.journal(4096).stop();
+
+        List<Object[]> accounts = this.replayed("BANK_ACCOUNT");
+        Assertions.assertEquals(2, accounts.size());
+        Assertions.assertArrayEquals(new Object[]{400L, 0L, 2L, 1L, 2L}, accounts.get(0));
+        Assertions.assertArrayEquals(new Object[]{0L, 50L, 5L, 2L, 5L}, accounts.get(1));
+        List<Object[]> denominations = this.replayed("ATM");
+        Assertions.assertEquals(1, denominations.size());
+        Assertions.assertArrayEquals(new Object[]{95, 3L, 10L, 3L}, denominations.get(0));
+    }
+
+    @Test
+    public void testAppendsRollOverToNewSegments() throws Exception {
+        // Room for two account records per segment.
+        WithdrawalJournal withdrawalJournal = this.journal(100);
+        for (long version = 1; version <= 5; version++) {
+            withdrawalJournal.appendAccounts(new long[]{1L, 1000L - version * 100, 0L, version});
+        }
+        withdrawalJournal.stop();
+        try (Stream<Path> segments = Files.list(this.journalDirectory)) {
+            Assertions.assertEquals(3, segments.count());
+        }
+
+        this.journal(100).stop();
+
+        List<Object[]> accounts = this.replayed("BANK_ACCOUNT");
+        Assertions.assertEquals(1, accounts.size());
+        Assertions.assertArrayEquals(new Object[]{500L, 0L, 5L, 1L, 5L}, accounts.get(0));
+    }
+
+    @Test
+    public void testReplayStopsAtCorruptRecord() throws Exception {
+        WithdrawalJournal withdrawalJournal = this.journal(4096);
+        withdrawalJournal.appendAccounts(new long[]{1L, 700L, 0L, 1L});
+        withdrawalJournal.appendAccounts(new long[]{1L, 400L, 0L, 2L});
+        withdrawalJournal.stop();
+        Path segment;
+        try (Stream<Path> segments = Files.list(this.journalDirectory)) {
+            segment = segments.collect(Collectors.toList()).get(0);
+        }
+        // Flip the last byte of the second record, as a write torn by a crash would leave it.
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(8 + 2 * (8 + 37) - 1);
+            file.write(0x7f);
+        }
+
+        this.journal(4096).stop();
+
+        List<Object[]> accounts = this.replayed("BANK_ACCOUNT");
+        Assertions.assertEquals(1, accounts.size());
+        Assertions.assertArrayEquals(new Object[]{700L, 0L, 1L, 1L, 1L}, accounts.get(0));
+        verify(this.jdbcTemplate, never()).batchUpdate(contains("UPDATE ATM"), anyList());
+    }
+
+    @Test
+    public void testAbortedRecordIsNotReplayed() throws Exception {
+        WithdrawalJournal withdrawalJournal = this.journal(4096);
+        withdrawalJournal.appendAccounts(new long[]{1L, 700L, 0L, 1L, 2L, 500L, 0L, 1L});
+        withdrawalJournal.abort(withdrawalJournal.appendAccounts(new long[]{1L, 400L, 0L, 2L}));
+        withdrawalJournal.stop();
+
+        this.journal(4096).stop();
+
+        List<Object[]> accounts = this.replayed("BANK_ACCOUNT");
+        Assertions.assertEquals(2, accounts.size());
+        Assertions.assertArrayEquals(new Object[]{700L, 0L, 1L, 1L, 1L}, accounts.get(0));
+        Assertions.assertArrayEquals(new Object[]{500L, 0L, 1L, 2L, 1L}, accounts.get(1));
+    }
+
+    @Test
+    public void testRecordOfRolledBackTransactionIsAborted() throws Exception {
+        WithdrawalJournal withdrawalJournal = this.journal(4096);
+        this.inTransaction(TransactionSynchronization.STATUS_COMMITTED, () -> withdrawalJournal.appendAccounts(new long[]{1L, 700L, 0L, 1L}));
+        this.inTransaction(TransactionSynchronization.STATUS_ROLLED_BACK, () -> withdrawalJournal.appendAccounts(new long[]{1L, 400L, 0L, 2L}));
+        withdrawalJournal.stop();
+
+        this.journal(4096).stop();
+
+        List<Object[]> accounts = this.replayed("BANK_ACCOUNT");
+        Assertions.assertEquals(1, accounts.size());
+        Assertions.assertArrayEquals(new Object[]{700L, 0L, 1L, 1L, 1L}, accounts.get(0));
+    }
+
+    @Test
+    public void testSnapshotReplaysFromTheSegmentOfAnOpenTransaction() throws Exception {
+        this.stubTables();
+        WithdrawalJournal withdrawalJournal = this.journal(4096);
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            withdrawalJournal.appendAccounts(new long[]{1L, 700L, 0L, 1L});
+            // The transaction may commit after the snapshot read the tables, so its segment is kept for replay.
+            Assertions.assertTrue(withdrawalJournal.writeSnapshot().endsWith("balances-00000000000000000000.snapshot"));
+            TransactionSynchronizationManager.getSynchronizations().forEach(synchronization -> synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED));
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        Assertions.assertTrue(withdrawalJournal.writeSnapshot().endsWith("balances-00000000000000000002.snapshot"));
+        withdrawalJournal.stop();
+    }
+
+    @Test
+    public void testSegmentOfAnotherFormatIsRefused() throws Exception {
+        // A format 1 segment starts with the length of its first record.
+        try (RandomAccessFile file = new RandomAccessFile(this.journalDirectory.resolve("withdrawals-00000000000000000000.journal").toFile(), "rw")) {
+            file.writeInt(33);
+            file.writeInt(0);
+        }
+        Assertions.assertThrows(IllegalStateException.class, () -> this.journal(4096));
+    }
+
+    @Test
+    public void testSnapshotIsRestoredAndOnlyTheTailIsReplayed() throws Exception {
+        this.stubTables();
+        WithdrawalJournal withdrawalJournal = this.journal(4096);
+        withdrawalJournal.appendAccounts(new long[]{1L, 700L, 0L, 1L});
+        withdrawalJournal.appendAccounts(new long[]{1L, 400L, 0L, 2L});
+        withdrawalJournal.writeSnapshot();
+        withdrawalJournal.appendAccounts(new long[]{1L, 300L, 0L, 3L});
+        withdrawalJournal.stop();
+
+        this.journal(4096).stop();
+
+        List<Object[]> accounts = this.replayed("BANK_ACCOUNT");
+        Assertions.assertEquals(3, accounts.size());
+        Assertions.assertArrayEquals(new Object[]{400L, 0L, 2L, 1L, 2L}, accounts.get(0));
+        Assertions.assertArrayEquals(new Object[]{900L, 0L, 1L, 2L, 1L}, accounts.get(1));
+        // Only the debit after the snapshot is replayed from the journal.
+        Assertions.assertArrayEquals(new Object[]{300L, 0L, 3L, 1L, 3L}, accounts.get(2));
+        List<Object[]> denominations = this.replayed("ATM");
+        Assertions.assertEquals(1, denominations.size());
+        Assertions.assertArrayEquals(new Object[]{95, 3L, 10L, 3L}, denominations.get(0));
+    }
+
+    @Test
+    public void testSnapshotHeldByTheTablesIsNotRestored() throws Exception {
+        this.stubTables();
+        WithdrawalJournal withdrawalJournal = this.journal(4096);
+        withdrawalJournal.appendAccounts(new long[]{1L, 400L, 0L, 2L});
+        withdrawalJournal.writeSnapshot();
+        withdrawalJournal.appendAccounts(new long[]{1L, 300L, 0L, 3L});
+        withdrawalJournal.stop();
+        verify(this.jdbcTemplate).update(contains("JOURNAL_CHECKPOINT"), eq(1L));
+        // A persistent database keeps the checkpoint written with the snapshot.
+        when(this.jdbcTemplate.queryForList(contains("JOURNAL_CHECKPOINT"), eq(Long.class))).thenReturn(Collections.singletonList(1L));
+
+        this.journal(4096).stop();
+
+        List<Object[]> accounts = this.replayed("BANK_ACCOUNT");
+        Assertions.assertEquals(1, accounts.size());
+        Assertions.assertArrayEquals(new Object[]{300L, 0L, 3L, 1L, 3L}, accounts.get(0));
+        verify(this.jdbcTemplate, never()).batchUpdate(contains("UPDATE ATM"), anyList());
+    }
+
+    @Test
+    public void testSnapshotsReleaseOlderSegments() throws Exception {
+        this.stubTables();
+        WithdrawalJournal withdrawalJournal = this.journal(4096);
+        for (int snapshot = 0; snapshot < 3; snapshot++) {
+            withdrawalJournal.appendAccounts(new long[]{1L, 700L, 0L, snapshot + 1});
+            withdrawalJournal.writeSnapshot();
+        }
+        withdrawalJournal.stop();
+        Assertions.assertEquals(Arrays.asList("balances-00000000000000000002.snapshot", "balances-00000000000000000003.snapshot",
+                "withdrawals-00000000000000000002.journal", "withdrawals-00000000000000000003.journal"), this.journalFiles());
+    }
+
+    @Test
+    public void testCorruptSnapshotFallsBackToTheOlderOne() throws Exception {
+        this.stubTables();
+        WithdrawalJournal withdrawalJournal = this.journal(4096);
+        withdrawalJournal.writeSnapshot();
+        withdrawalJournal.appendAccounts(new long[]{1L, 300L, 0L, 3L});
+        Path latestSnapshot = withdrawalJournal.writeSnapshot();
+        withdrawalJournal.stop();
+        try (RandomAccessFile file = new RandomAccessFile(latestSnapshot.toFile(), "rw")) {
+            file.seek(20);
+            file.write(0x7f);
+        }
+
+        this.journal(4096).stop();
+
+        List<Object[]> accounts = this.replayed("BANK_ACCOUNT");
+        Assertions.assertEquals(3, accounts.size());
+        Assertions.assertArrayEquals(new Object[]{300L, 0L, 3L, 1L, 3L}, accounts.get(2));
+    }
+
+    private WithdrawalJournal journal(int segmentSizeBytes) throws Exception {
+        WithdrawalJournal withdrawalJournal = new WithdrawalJournal();
+        ReflectionTestUtils.setField(withdrawalJournal, "jdbcTemplate", this.jdbcTemplate);
+        ReflectionTestUtils.setField(withdrawalJournal, "enabled", true);
+        ReflectionTestUtils.setField(withdrawalJournal, "directory", this.journalDirectory.toString());
+        ReflectionTestUtils.setField(withdrawalJournal, "segmentSizeBytes", segmentSizeBytes);
+        withdrawalJournal.start();
+        return withdrawalJournal;
+    }
+
+    private void inTransaction(int status, Runnable append) {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            append.run();
+            TransactionSynchronizationManager.getSynchronizations().forEach(synchronization -> synchronization.afterCompletion(status));
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    /**
+     * @return the rows of every batch update of the table, in order.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Object[]> replayed(String table) {
+        ArgumentCaptor<List<Object[]>> rows = ArgumentCaptor.forClass(List.class);
+        verify(this.jdbcTemplate, atLeastOnce()).batchUpdate(contains("UPDATE " + table + " "), rows.capture());
+        return rows.getAllValues().stream().flatMap(List::stream).collect(Collectors.toList());
+    }
+
+    private void stubTables() {
+        doAnswer(invocationOnMock -> {
+            ResultSet resultSet = mock(ResultSet.class);
+            when(resultSet.getLong(1)).thenReturn(1L, 2L);
+            when(resultSet.getLong(2)).thenReturn(400L, 900L);
+            when(resultSet.getLong(3)).thenReturn(0L, 0L);
+            when(resultSet.getLong(4)).thenReturn(2L, 1L);
+            RowCallbackHandler rowCallbackHandler = invocationOnMock.getArgument(1);
+            rowCallbackHandler.processRow(resultSet);
+            rowCallbackHandler.processRow(resultSet);
+            return null;
+        }).when(this.jdbcTemplate).query(contains("FROM BANK_ACCOUNT"), any(RowCallbackHandler.class));
+        doAnswer(invocationOnMock -> {
+            ResultSet resultSet = mock(ResultSet.class);
+            when(resultSet.getLong(1)).thenReturn(10L);
+            when(resultSet.getLong(2)).thenReturn(95L);
+            when(resultSet.getLong(3)).thenReturn(3L);
+            ((RowCallbackHandler) invocationOnMock.getArgument(1)).processRow(resultSet);
+            return null;
+        }).when(this.jdbcTemplate).query(contains("FROM ATM"), any(RowCallbackHandler.class));
+    }
+
+    private List<String> journalFiles() throws Exception {
+        try (Stream<Path> files = Files.list(this.journalDirectory)) {
+            return files.map(path -> path.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.data;
+
+import com.abcbank.data.entity.BankAccount;
+import com.abcbank.data.repository.BankAccountRepository;
+import com.abcbank.data.service.BalanceSnapshot;
+import com.abcbank.data.service.WithdrawalJournal;
+import com.abcbank.utils.MinorUnits;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Measures rows written per second by {@link WithdrawalJournal} appends, each forced to disk, against saving the
+ * same rows through the repository {@code save} and {@code saveAll}, each in a transaction of its own.
+ * <br>Tagged as a benchmark, it is excluded from the build and run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+@SpringBootTest(properties = "spring.datasource.url=jdbc:h2:mem:atm-journal-throughput")
+public class WithdrawalJournalThroughputTest {
+
+    private final Logger logger = LogManager.getLogger(this.getClass());
+
+    private static final long MEASURE_MILLIS = 1000;
+
+    private static final int BATCH_SIZE = 64;
+
+    @TempDir
+    Path journalDirectory;
+
+    @Autowired
+    private BankAccountRepository bankAccountRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private WithdrawalJournal withdrawalJournal;
+
+    private final List<BankAccount> bankAccounts = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        this.withdrawalJournal = new WithdrawalJournal();
+        ReflectionTestUtils.setField(this.withdrawalJournal, "jdbcTemplate", this.jdbcTemplate);
+        ReflectionTestUtils.setField(this.withdrawalJournal, "enabled", true);
+        ReflectionTestUtils.setField(this.withdrawalJournal, "directory", this.journalDirectory.toString());
+        ReflectionTestUtils.setField(this.withdrawalJournal, "snapshotIntervalMillis", 0L);
+        this.withdrawalJournal.start();
+        this.bankAccountRepository.findAll().forEach(this.bankAccounts::add);
+        Assertions.assertFalse(this.bankAccounts.isEmpty());
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        this.withdrawalJournal.stop();
+    }
+
+    @Test
+    public void measureRowsWrittenPerSecond() {
+        IntSupplier journalAppend = () -> {
+            BankAccount bankAccount = this.bankAccounts.get(0);
+            this.withdrawalJournal.appendAccounts(this.journalRows(bankAccount));
+            return 1;
+        };
+        IntSupplier journalBatch = () -> {
+            List<BankAccount> batch = this.batch();
+            long[] accounts = new long[batch.size() * BalanceSnapshot.ACCOUNT_FIELDS];
+            for (int index = 0; index < batch.size(); index++) {
+                System.arraycopy(this.journalRows(batch.get(index)), 0, accounts, index * BalanceSnapshot.ACCOUNT_FIELDS, BalanceSnapshot.ACCOUNT_FIELDS);
+            }
+            this.withdrawalJournal.appendAccounts(accounts);
+            return batch.size();
+        };
+        IntSupplier repositorySave = () -> {
+            BankAccount bankAccount = this.bankAccounts.get(0);
+            this.changeBalance(bankAccount);
+            this.bankAccounts.set(0, this.bankAccountRepository.save(bankAccount));
+            return 1;
+        };
+        IntSupplier repositorySaveAll = () -> {
+            List<BankAccount> batch = this.batch();
+            batch.forEach(this::changeBalance);
+            List<BankAccount> saved = new ArrayList<>();
+            this.bankAccountRepository.saveAll(batch).forEach(saved::add);
+            for (int index = 0; index < saved.size(); index++) {
+                this.bankAccounts.set(index, saved.get(index));
+            }
+            return saved.size();
+        };
+        //Warm up the mapped segments, the persistence context and the JIT before measuring.
+        this.measure(journalAppend, MEASURE_MILLIS / 2);
+        this.measure(repositorySave, MEASURE_MILLIS / 2);
+        long journalRows = this.report("Journal append of one account", journalAppend);
+        this.report("Journal append of " + BATCH_SIZE + " accounts", journalBatch);
+        long savedRows = this.report("Repository save of one account", repositorySave);
+        this.report("Repository saveAll of " + BATCH_SIZE + " accounts", repositorySaveAll);
+        Assertions.assertTrue(journalRows > 0 && savedRows > 0);
+    }
+
+    private long report(String path, IntSupplier write) {
+        long rows = this.measure(write, MEASURE_MILLIS);
+        this.logger.info(path + " : " + rows * 1000 / MEASURE_MILLIS + " rows per second");
+        return rows;
+    }
+
+    /**
+     * Writes on the current thread for the given time.
+     *
+     * @return number of rows written.
+     */
+    private long measure(IntSupplier write, long millis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long rows = 0;
+        while (System.nanoTime() < deadline) {
+            rows += write.getAsInt();
+        }
+        return rows;
+    }
+
+    /**
+     * Moves the balance up and down by one, so it stays where the data scripts put it.
+     */
+    private void changeBalance(BankAccount bankAccount) {
+        bankAccount.setOpening_balance(bankAccount.getOpening_balance() + (bankAccount.getVersion() % 2 == 0 ? 1 : -1));
+    }
+
+    private List<BankAccount> batch() {
+        return new ArrayList<>(this.bankAccounts.subList(0, Math.min(BATCH_SIZE, this.bankAccounts.size())));
+    }
+
+    private long[] journalRows(BankAccount bankAccount) {
+        return new long[]{bankAccount.getId(), MinorUnits.toMinorUnits(bankAccount.getOpening_balance()),
+                MinorUnits.toMinorUnits(bankAccount.getOverdraft()), bankAccount.getVersion()};
+    }
+}
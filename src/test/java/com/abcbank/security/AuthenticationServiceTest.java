@@ -55,4 +55,13 @@ public class AuthenticationServiceTest {
         Assertions.assertFalse(isAccountAuthentic);
     }
 
+    @Test
+    public void validateHashedPinAuthenticationTest() {
+        BankAccount bankAccount = new BankAccount();
+        bankAccount.setAtm_pin(this.authenticationService.hashPin("4321"));
+        Assertions.assertTrue(bankAccount.getAtm_pin().startsWith("$pbkdf2-sha256$"));
+        Assertions.assertTrue(this.authenticationService.authenticateBankAccount(bankAccount, "4321"));
+        Assertions.assertFalse(this.authenticationService.authenticateBankAccount(bankAccount, "1234"));
+    }
+
 }
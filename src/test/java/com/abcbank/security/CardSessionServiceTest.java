@@ -0,0 +1,99 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.security;
+
+import com.abcbank.service.security.CardSessionService;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class CardSessionServiceTest {
+
+    private final CardSessionService cardSessionService = new CardSessionService();
+
+    @Test
+    public void testSessionIsBoundToItsUser() {
+        String sessionToken = this.cardSessionService.openSession("clint_west");
+        Assertions.assertTrue(this.cardSessionService.isValidSession(sessionToken, "clint_west"));
+        Assertions.assertFalse(this.cardSessionService.isValidSession(sessionToken, "russell_gladiator"));
+        Assertions.assertFalse(this.cardSessionService.isValidSession("unknown", "clint_west"));
+        Assertions.assertFalse(this.cardSessionService.isValidSession(null, "clint_west"));
+    }
+
+    @Test
+    public void testNewSessionReplacesThePreviousSessionOfTheUser() {
+        String firstToken = this.cardSessionService.openSession("clint_west");
+        String otherUserToken = this.cardSessionService.openSession("russell_gladiator");
+        String secondToken = this.cardSessionService.openSession("clint_west");
+        Assertions.assertNotEquals(firstToken, secondToken);
+        Assertions.assertFalse(this.cardSessionService.isValidSession(firstToken, "clint_west"));
+        Assertions.assertTrue(this.cardSessionService.isValidSession(secondToken, "clint_west"));
+        Assertions.assertTrue(this.cardSessionService.isValidSession(otherUserToken, "russell_gladiator"));
+
+        // Closing the replaced session does not close the current one.
+        Assertions.assertFalse(this.cardSessionService.closeSession(firstToken, "clint_west"));
+        Assertions.assertTrue(this.cardSessionService.isValidSession(secondToken, "clint_west"));
+    }
+
+    @Test
+    public void testUserWithASessionCanReplaceItWhenTheSessionsAreFull() {
+        ReflectionTestUtils.setField(this.cardSessionService, "maxSessions", 1);
+        Assertions.assertNotNull(this.cardSessionService.openSession("clint_west"));
+        Assertions.assertNull(this.cardSessionService.openSession("russell_gladiator"));
+        Assertions.assertNotNull(this.cardSessionService.openSession("clint_west"));
+    }
+
+    @Test
+    public void testSessionExpires() throws InterruptedException {
+        ReflectionTestUtils.setField(this.cardSessionService, "ttlMillis", 50L);
+        String sessionToken = this.cardSessionService.openSession("clint_west");
+        Assertions.assertTrue(this.cardSessionService.isValidSession(sessionToken, "clint_west"));
+        Thread.sleep(100);
+        Assertions.assertFalse(this.cardSessionService.isValidSession(sessionToken, "clint_west"));
+    }
+
+    @Test
+    public void testSessionsAreBounded() throws InterruptedException {
+        ReflectionTestUtils.setField(this.cardSessionService, "maxSessions", 2);
+        ReflectionTestUtils.setField(this.cardSessionService, "ttlMillis", 50L);
+        Assertions.assertNotNull(this.cardSessionService.openSession("clint_west"));
+        Assertions.assertNotNull(this.cardSessionService.openSession("russell_gladiator"));
+        Assertions.assertNull(this.cardSessionService.openSession("bruce_wayne"));
+        // Expired sessions make room for new ones.
+        Thread.sleep(100);
+        Assertions.assertNotNull(this.cardSessionService.openSession("bruce_wayne"));
+    }
+
+    @Test
+    public void testClosedSessionIsInvalid() {
+        String sessionToken = this.cardSessionService.openSession("clint_west");
+        Assertions.assertFalse(this.cardSessionService.closeSession(sessionToken, "russell_gladiator"));
+        Assertions.assertTrue(this.cardSessionService.closeSession(sessionToken, "clint_west"));
+        Assertions.assertFalse(this.cardSessionService.isValidSession(sessionToken, "clint_west"));
+        Assertions.assertFalse(this.cardSessionService.closeSession(sessionToken, "clint_west"));
+    }
+}
@@ -31,6 +31,11 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 
 @SpringBootTest
@@ -50,4 +55,30 @@ public class EncryptionServiceTest {
         Boolean isMatch = this.encryptionService.matchPlainTextWithEncryptedText("1234", "7jh4Sd0w2ZY=");
         Assertions.assertFalse(isMatch);
     }
+
+    @Test
+    public void checkCryptoWorkIsRejectedWhenTheExecutorIsSaturated() throws Exception {
+        EncryptionService saturatedService = new EncryptionService();
+        ReflectionTestUtils.setField(saturatedService, "poolSize", 1);
+        ReflectionTestUtils.setField(saturatedService, "queueCapacity", 1);
+        ReflectionTestUtils.setField(saturatedService, "verifyTimeoutMillis", 200L);
+        saturatedService.startCryptoExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            // One task holds the thread, one waits in the queue.
+            CompletableFuture<Boolean> running = CompletableFuture.supplyAsync(() -> saturatedService.executeCryptoTask(() -> release.await(5, TimeUnit.SECONDS)));
+            CompletableFuture<Boolean> queued = CompletableFuture.supplyAsync(() -> saturatedService.executeCryptoTask(() -> release.await(5, TimeUnit.SECONDS)));
+            Thread.sleep(50);
+            // The third waits for a place in the queue and is rejected, instead of running on the calling thread.
+            IllegalStateException exp = Assertions.assertThrows(IllegalStateException.class,
+                    () -> saturatedService.executeCryptoTask(() -> true));
+            Assertions.assertTrue(exp.getMessage().contains("rejected"));
+            release.countDown();
+            Assertions.assertTrue(running.get(5, TimeUnit.SECONDS));
+            Assertions.assertTrue(queued.get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            saturatedService.stopCryptoExecutor();
+        }
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.security;
+
+import com.abcbank.config.AppConfigForJasyptStarter;
+import com.abcbank.service.security.EncryptionService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures PIN verifications per second at 1, 4 and 16 request threads against the pooled encryptor
+ * and the crypto executor, as they are configured for the application.
+ * <br>Tagged as a benchmark, it is excluded from the build and run with {@code mvn test -Pbenchmark}.
+ */
+@Tag("benchmark")
+public class EncryptionThroughputTest {
+
+    private final Logger logger = LogManager.getLogger(this.getClass());
+
+    private static final long MEASURE_MILLIS = 1000;
+
+    private final EncryptionService encryptionService = new EncryptionService();
+
+    @BeforeEach
+    public void setUp() {
+        ReflectionTestUtils.setField(this.encryptionService, "encryptor", new AppConfigForJasyptStarter().stringEncryptor(0));
+        this.encryptionService.startCryptoExecutor();
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        this.encryptionService.stopCryptoExecutor();
+    }
+
+    @Test
+    public void measureAuthenticationsPerSecond() throws Exception {
+        //Warm up the ciphers and the JIT before measuring.
+        this.authenticate(4, MEASURE_MILLIS / 2);
+        for (int threads : new int[]{1, 4, 16}) {
+            long authentications = this.authenticate(threads, MEASURE_MILLIS);
+            this.logger.info("PIN verifications with " + threads + " threads : " + authentications * 1000 / MEASURE_MILLIS + " per second");
+            Assertions.assertTrue(authentications > 0);
+        }
+    }
+
+    /**
+     * Verifies PINs from the given number of threads for the given time.
+     *
+     * @return number of verifications completed.
+     */
+    private long authenticate(int threads, long millis) throws Exception {
+        ExecutorService requestThreads = Executors.newFixedThreadPool(threads);
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            List<Future<Long>> results = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                results.add(requestThreads.submit(() -> {
+                    long verified = 0;
+                    while (System.nanoTime() < deadline) {
+                        Assertions.assertTrue(this.encryptionService.matchPlainTextWithEncryptedText("1234", "gd6/yf/26JU="));
+                        verified++;
+                    }
+                    return verified;
+                }));
+            }
+            long authentications = 0;
+            for (Future<Long> result : results) {
+                authentications += result.get();
+            }
+            return authentications;
+        } finally {
+            requestThreads.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.security;
+
+import com.abcbank.service.security.PinLockoutService;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class PinLockoutServiceTest {
+
+    private final PinLockoutService pinLockoutService = new PinLockoutService();
+
+    @Test
+    public void testAccountIsLockedOutAfterMaxFailures() {
+        this.pinLockoutService.recordFailure("clint_west", "ATM-1");
+        this.pinLockoutService.recordFailure("clint_west", "ATM-2");
+        Assertions.assertFalse(this.pinLockoutService.isLockedOut("clint_west", "ATM-1"));
+        this.pinLockoutService.recordFailure("clint_west", "ATM-3");
+        Assertions.assertTrue(this.pinLockoutService.isLockedOut("clint_west", "ATM-4"));
+        Assertions.assertFalse(this.pinLockoutService.isLockedOut("russell_gladiator", "ATM-1"));
+        // A correct pin does not lift a lockout in force.
+        this.pinLockoutService.recordSuccess("clint_west");
+        Assertions.assertTrue(this.pinLockoutService.isLockedOut("clint_west", "ATM-1"));
+    }
+
+    @Test
+    public void testCorrectPinClearsTheFailures() {
+        this.pinLockoutService.recordFailure("clint_west", null);
+        this.pinLockoutService.recordFailure("clint_west", null);
+        this.pinLockoutService.recordSuccess("clint_west");
+        this.pinLockoutService.recordFailure("clint_west", null);
+        this.pinLockoutService.recordFailure("clint_west", null);
+        Assertions.assertFalse(this.pinLockoutService.isLockedOut("clint_west", null));
+    }
+
+    @Test
+    public void testTerminalIsLockedOutForEveryAccount() {
+        for (int attempt = 0; attempt < 20; attempt++) {
+            this.pinLockoutService.recordFailure("user_" + attempt, "ATM-2");
+        }
+        Assertions.assertTrue(this.pinLockoutService.isLockedOut("russell_gladiator", "ATM-2"));
+        Assertions.assertFalse(this.pinLockoutService.isLockedOut("russell_gladiator", "ATM-1"));
+        Assertions.assertFalse(this.pinLockoutService.isLockedOut("russell_gladiator", null));
+    }
+
+    @Test
+    public void testFailuresWithoutTerminalLockOutNoTerminal() {
+        for (int attempt = 0; attempt < 40; attempt++) {
+            this.pinLockoutService.recordFailure("user_" + attempt, attempt % 2 == 0 ? null : " ");
+        }
+        // The failures count against the accounts only, they do not lock out the default terminal.
+        Assertions.assertFalse(this.pinLockoutService.isLockedOut("russell_gladiator", "ATM-1"));
+        Assertions.assertFalse(this.pinLockoutService.isLockedOut("russell_gladiator", null));
+        Assertions.assertFalse(this.pinLockoutService.isLockedOut("russell_gladiator", " "));
+        Assertions.assertFalse(this.pinLockoutService.isLockedOut("user_0", null));
+        for (int attempt = 0; attempt < 2; attempt++) {
+            this.pinLockoutService.recordFailure("user_0", null);
+        }
+        Assertions.assertTrue(this.pinLockoutService.isLockedOut("user_0", "ATM-1"));
+    }
+
+    @Test
+    public void testFailuresWithTerminalLockOutThatTerminal() {
+        for (int attempt = 0; attempt < 19; attempt++) {
+            this.pinLockoutService.recordFailure("user_" + attempt, "ATM-1");
+        }
+        Assertions.assertFalse(this.pinLockoutService.isLockedOut("russell_gladiator", "ATM-1"));
+        this.pinLockoutService.recordFailure("user_19", "ATM-1");
+        Assertions.assertTrue(this.pinLockoutService.isLockedOut("russell_gladiator", "ATM-1"));
+        Assertions.assertFalse(this.pinLockoutService.isLockedOut("russell_gladiator", null));
+    }
+
+    @Test
+    public void testLockoutExpires() throws InterruptedException {
+        ReflectionTestUtils.setField(this.pinLockoutService, "lockoutMillis", 50L);
+        for (int attempt = 0; attempt < 3; attempt++) {
+            this.pinLockoutService.recordFailure("clint_west", null);
+        }
+        Assertions.assertTrue(this.pinLockoutService.isLockedOut("clint_west", null));
+        Thread.sleep(100);
+        Assertions.assertFalse(this.pinLockoutService.isLockedOut("clint_west", null));
+    }
+
+    @Test
+    public void testConcurrentFailuresLockOutOnce() throws Exception {
+        ReflectionTestUtils.setField(this.pinLockoutService, "maxAccountFailures", 1000);
+        ReflectionTestUtils.setField(this.pinLockoutService, "maxTerminalFailures", Integer.MAX_VALUE);
+        ExecutorService requestThreads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                results.add(requestThreads.submit(() -> {
+                    for (int attempt = 0; attempt < 124; attempt++) {
+                        this.pinLockoutService.recordFailure("clint_west", null);
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            requestThreads.shutdownNow();
+        }
+        // 992 failures stay below the maximum, none of them was lost so the next eight reach it.
+        Assertions.assertFalse(this.pinLockoutService.isLockedOut("clint_west", null));
+        for (int attempt = 0; attempt < 8; attempt++) {
+            this.pinLockoutService.recordFailure("clint_west", null);
+        }
+        Assertions.assertTrue(this.pinLockoutService.isLockedOut("clint_west", null));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * *
+ *  * The MIT License (MIT)
+ *  * <p>
+ *  * Copyright (c) 2022
+ *  * <p>
+ *  * Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  * of this software and associated documentation files (the "Software"), to deal
+ *  * in the Software without restriction, including without limitation the rights
+ *  * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  * copies of the Software, and to permit persons to whom the Software is
+ *  * furnished to do so, subject to the following conditions:
+ *  * <p>
+ *  * The above copyright notice and this permission notice shall be included in all
+ *  * copies or substantial portions of the Software.
+ *  * <p>
+ *  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  * SOFTWARE.
+ *
+ */
+
+package com.abcbank.security;
+
+import com.abcbank.config.AppConfigForJasyptStarter;
+import com.abcbank.data.dto.AccountSummary;
+import com.abcbank.data.service.BankAccountDataAccessService;
+import com.abcbank.service.security.AuthenticationService;
+import com.abcbank.service.security.EncryptionService;
+import com.abcbank.service.security.JasyptPinVerifier;
+import com.abcbank.service.security.Pbkdf2PinVerifier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PinVerifierTest {
+
+    private static final String LEGACY_PIN_1234 = "gd6/yf/26JU=";
+
+    @Mock
+    private EncryptionService encryptionService;
+
+    @Mock
+    private BankAccountDataAccessService bankAccountDataAccessService;
+
+    @InjectMocks
+    private AuthenticationService authenticationService;
+
+    private final Pbkdf2PinVerifier pbkdf2PinVerifier = new Pbkdf2PinVerifier();
+
+    private final JasyptPinVerifier jasyptPinVerifier = new JasyptPinVerifier();
+
+    private AutoCloseable mocks;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        this.mocks = MockitoAnnotations.openMocks(this);
+        ReflectionTestUtils.setField(this.pbkdf2PinVerifier, "iterations", Pbkdf2PinVerifier.MIN_ITERATIONS);
+        ReflectionTestUtils.setField(this.jasyptPinVerifier, "encryptor", new AppConfigForJasyptStarter().stringEncryptor(1));
+        ReflectionTestUtils.setField(this.authenticationService, "pinVerifiers", Arrays.asList(this.pbkdf2PinVerifier, this.jasyptPinVerifier));
+        when(this.encryptionService.executeCryptoTask(any())).thenAnswer(invocation -> ((Callable<?>) invocation.getArgument(0)).call());
+        this.authenticationService.startRehashExecutor();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        this.authenticationService.stopRehashExecutor();
+        this.mocks.close();
+    }
+
+    @Test
+    public void testHashedPinMatchesOnlyItsPin() {
+        String hashedPin = this.pbkdf2PinVerifier.hash("1234");
+        Assertions.assertTrue(hashedPin.startsWith("$pbkdf2-sha256$" + Pbkdf2PinVerifier.MIN_ITERATIONS + "$"));
+        Assertions.assertTrue(this.pbkdf2PinVerifier.matches("1234", hashedPin));
+        Assertions.assertFalse(this.pbkdf2PinVerifier.matches("4321", hashedPin));
+        // Salted, the same pin hashes differently every time.
+        Assertions.assertNotEquals(hashedPin, this.pbkdf2PinVerifier.hash("1234"));
+    }
+
+    @Test
+    public void testMalformedPinNeverMatches() {
+        Assertions.assertFalse(this.pbkdf2PinVerifier.matches("1234", "$pbkdf2-sha256$abc$$"));
+        Assertions.assertFalse(this.pbkdf2PinVerifier.matches("1234", "$pbkdf2-sha256$10000$c2FsdA"));
+        Assertions.assertFalse(this.pbkdf2PinVerifier.matches(null, this.pbkdf2PinVerifier.hash("1234")));
+    }
+
+    @Test
+    public void testPinOfLowerCostNeedsRehash() {
+        String hashedPin = this.pbkdf2PinVerifier.hash("1234");
+        Assertions.assertFalse(this.pbkdf2PinVerifier.needsRehash(hashedPin));
+        ReflectionTestUtils.setField(this.pbkdf2PinVerifier, "iterations", Pbkdf2PinVerifier.MIN_ITERATIONS * 2);
+        Assertions.assertTrue(this.pbkdf2PinVerifier.needsRehash(hashedPin));
+        Assertions.assertTrue(this.pbkdf2PinVerifier.matches("1234", hashedPin));
+    }
+
+    @Test
+    public void testCalibratedCostOnlyRehashesBelowTheFloor() {
+        String hashedPin = this.pbkdf2PinVerifier.hash("1234");
+        // Another start calibrated a higher cost, the PINs hashed before are kept.
+        ReflectionTestUtils.setField(this.pbkdf2PinVerifier, "iterations", Pbkdf2PinVerifier.MIN_ITERATIONS * 3);
+        ReflectionTestUtils.setField(this.pbkdf2PinVerifier, "calibrated", true);
+        Assertions.assertFalse(this.pbkdf2PinVerifier.needsRehash(hashedPin));
+
+        ReflectionTestUtils.setField(this.pbkdf2PinVerifier, "rehashBelowIterations", Pbkdf2PinVerifier.MIN_ITERATIONS * 2);
+        Assertions.assertTrue(this.pbkdf2PinVerifier.needsRehash(hashedPin));
+        Assertions.assertFalse(this.pbkdf2PinVerifier.needsRehash(this.pbkdf2PinVerifier.hash("1234")));
+    }
+
+    @Test
+    public void testCalibrationKeepsTheMinimumCost() {
+        Assertions.assertEquals(Pbkdf2PinVerifier.MIN_ITERATIONS, this.pbkdf2PinVerifier.calibrateIterations(0));
+        Assertions.assertEquals(0, this.pbkdf2PinVerifier.calibrateIterations(200) % 1000);
+    }
+
+    @Test
+    public void testLegacyPinIsRehashedOnLogin() {
+        when(this.bankAccountDataAccessService.updatePin(eq(1L), eq(LEGACY_PIN_1234), anyString())).thenReturn(true);
+
+        Assertions.assertTrue(this.authenticationService.authenticateBankAccount(new AccountSummary(1L, "clint_west", LEGACY_PIN_1234, 800L, 200L), "1234"));
+
+        ArgumentCaptor<String> rehashedPin = ArgumentCaptor.forClass(String.class);
+        verify(this.bankAccountDataAccessService, timeout(5000)).updatePin(eq(1L), eq(LEGACY_PIN_1234), rehashedPin.capture());
+        // The verification and the rehash both ran on the crypto executor.
+        verify(this.encryptionService, times(2)).executeCryptoTask(any());
+        Assertions.assertTrue(this.pbkdf2PinVerifier.matches("1234", rehashedPin.getValue()));
+        Assertions.assertTrue(this.authenticationService.authenticateBankAccount(new AccountSummary(1L, "clint_west", rehashedPin.getValue(), 800L, 200L), "1234"));
+    }
+
+    @Test
+    public void testFailedOrCurrentLoginIsNotRehashed() {
+        Assertions.assertFalse(this.authenticationService.authenticateBankAccount(new AccountSummary(1L, "clint_west", LEGACY_PIN_1234, 800L, 200L), "4321"));
+        Assertions.assertTrue(this.authenticationService.authenticateBankAccount(new AccountSummary(1L, "clint_west", this.pbkdf2PinVerifier.hash("1234"), 800L, 200L), "1234"));
+        verify(this.bankAccountDataAccessService, after(200).never()).updatePin(anyLong(), anyString(), anyString());
+    }
+}